@@ -179,7 +179,10 @@ if [ $SETUP_DB ]; then
 	$TAXOMACHINE_COMMAND loadtaxsyn $OTT_SOURCENAME $OTT_TAXONOMY $OTT_SYNONYMS $TAXOMACHINE_DB	
 	$TAXOMACHINE_COMMAND makecontexts $TAXOMACHINE_DB
 	$TAXOMACHINE_COMMAND makegenusindexes $TAXOMACHINE_DB
-    $TAXOMACHINE_COMMAND adddeprecated $OTT_DEPRECATED $TAXOMACHINE_DB
+
+	# this changes the taxonomy revision, so it also rebuilds the query files (dictionaries, bloom filters, deletion
+	# indexes, id tables) that makecontexts wrote. it must come after makecontexts, which builds the indexes they use.
+	$TAXOMACHINE_COMMAND adddeprecated $OTT_DEPRECATED $TAXOMACHINE_DB
 
 fi
 
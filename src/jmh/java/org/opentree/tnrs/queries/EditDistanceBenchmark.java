@@ -0,0 +1,157 @@
+package org.opentree.tnrs.queries;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opentree.utils.Levenshtein;
+
+/**
+ * Compares BoundedEditDistance with the Levenshtein implementation from ot-base on pairs of taxon names like the ones
+ * that approximate matching has to check. The names are read from the taxonomy files in the example directory (or from
+ * the files named by the taxomachine.benchmark.names system property, separated by commas), which have the name in the
+ * third column. Each benchmark method checks every pair once.
+ *
+ * The pairs are:
+ * - typo: a name and a copy of it with one or two random edits, which should match,
+ * - neighbour: a name and the next name in sorted order, which usually shares a prefix with it but should not match,
+ * - random: a name and some other name.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EditDistanceBenchmark {
+
+	private static final String DEFAULT_NAME_FILES = "example/nematoda.gbif,example/nematoda.ncbi,example/Dip.ncbi,example/Dip.gbif";
+
+	private static final int PAIR_COUNT = 10000;
+
+	@Param({"typo", "neighbour", "random"})
+	public String pairs;
+
+	private String[] queries;
+	private String[] terms;
+	private int[] budgets;
+
+	@Setup
+	public void setup() throws IOException {
+
+		List<String> names = readNames(System.getProperty("taxomachine.benchmark.names", DEFAULT_NAME_FILES));
+		Collections.sort(names);
+		Random random = new Random(42);
+
+		queries = new String[PAIR_COUNT];
+		terms = new String[PAIR_COUNT];
+		budgets = new int[PAIR_COUNT];
+		for (int i = 0; i < PAIR_COUNT; i++) {
+			int n = random.nextInt(names.size() - 1);
+			String query = names.get(n);
+			String term;
+			if ("typo".equals(pairs)) {
+				term = addTypos(query, 1 + random.nextInt(2), random);
+			} else if ("neighbour".equals(pairs)) {
+				term = names.get(n + 1);
+			} else {
+				term = names.get(random.nextInt(names.size()));
+			}
+			queries[i] = query;
+			terms[i] = term;
+			budgets[i] = AbstractBaseQuery.getMaxEdits(query);
+		}
+	}
+
+	/** The current implementation, which always works out the full distance. */
+	@Benchmark
+	public int levenshtein() {
+		int sum = 0;
+		for (int i = 0; i < queries.length; i++) {
+			sum += (int) Levenshtein.distance(queries[i], terms[i]);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public int unbounded() {
+		int sum = 0;
+		for (int i = 0; i < queries.length; i++) {
+			sum += BoundedEditDistance.distance(queries[i], terms[i]);
+		}
+		return sum;
+	}
+
+	/** With the edit budget that approximate matching uses for the query. */
+	@Benchmark
+	public int bounded() {
+		int sum = 0;
+		for (int i = 0; i < queries.length; i++) {
+			sum += BoundedEditDistance.distance(queries[i], terms[i], budgets[i]);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public int boundedWithTranspositions() {
+		int sum = 0;
+		for (int i = 0; i < queries.length; i++) {
+			sum += BoundedEditDistance.distance(queries[i], terms[i], budgets[i], true);
+		}
+		return sum;
+	}
+
+	private static List<String> readNames(String files) throws IOException {
+		List<String> names = new ArrayList<String>();
+		for (String path : files.split(",")) {
+			BufferedReader reader = new BufferedReader(new FileReader(new File(path.trim())));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] columns = line.split("\t\\|\t");
+					if (columns.length > 2 && columns[2].trim().length() > 0) {
+						names.add(columns[2].trim().toLowerCase());
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return names;
+	}
+
+	private static String addTypos(String name, int count, Random random) {
+		StringBuilder typo = new StringBuilder(name);
+		for (int i = 0; i < count && typo.length() > 1; i++) {
+			int position = random.nextInt(typo.length());
+			switch (random.nextInt(3)) {
+			case 0:
+				typo.deleteCharAt(position);
+				break;
+			case 1:
+				typo.insert(position, (char) ('a' + random.nextInt(26)));
+				break;
+			default:
+				typo.setCharAt(position, (char) ('a' + random.nextInt(26)));
+			}
+		}
+		return typo.toString();
+	}
+}
@@ -106,6 +106,12 @@ public class TNRSResultsRepresentation extends MappingRepresentation {
                 else
                     serializer.putBoolean("includes_suppressed_names", results.getIncludesDubious());
 				serializer.putBoolean("includes_approximate_matches", results.getIncludesApproximate());
+				if (V3) {
+					// names that are listed as unmatched because approximate matching ran out of time
+					serializer.putBoolean("fuzzy_budget_exhausted", results.getFuzzyBudgetExhausted());
+					serializer.putList("fuzzy_budget_exhausted_names",
+							OTRepresentationConverter.getListRepresentation(results.getFuzzyBudgetExhaustedNameIds()));
+				}
 				serializer.putMapping("taxonomy",
 						OTRepresentationConverter.getMapRepresentation(results.getTaxonomyMetdata()));
 				serializer.putList("results", getResultsListRepresentation(results, apiVersion));
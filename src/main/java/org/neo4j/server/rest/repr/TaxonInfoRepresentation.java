@@ -0,0 +1,78 @@
+package org.neo4j.server.rest.repr;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.helpers.collection.FirstItemIterable;
+import org.neo4j.helpers.collection.IterableWrapper;
+
+// MappingRepresentation is inherited from neo4j's
+// org.neo4j.server.rest.repr package.
+
+public class TaxonInfoRepresentation extends MappingRepresentation {
+
+	TaxonInfoRepresentation(String type) {
+		super(type);
+	}
+
+	/**
+	 * Return a Representation object capable of serializing the taxon info blobs in `taxonInfo` into a list under the key
+	 * "taxa", along with the OTT ids in `ottIdsNotFound`. The blobs are taken from `taxonInfo` one at a time while the
+	 * response is written, so a lazy Iterable can be used to avoid holding the info for all the taxa at once.
+	 *
+	 * @param taxonInfo
+	 * @param ottIdsNotFound
+	 * @return
+	 */
+	public static TaxonInfoRepresentation getBatchRepresentation(final Iterable<Map<String, Object>> taxonInfo,
+			final List<Long> ottIdsNotFound) {
+		return new TaxonInfoRepresentation(RepresentationType.MAP.toString()) {
+
+			@Override
+			protected void serialize(final MappingSerializer serializer) {
+				serializer.putList("taxa", getTaxonInfoListRepresentation(taxonInfo));
+				serializer.putList("ott_ids_not_found", OTRepresentationConverter.getListRepresentation(ottIdsNotFound));
+			}
+		};
+	}
+
+	private static ListRepresentation getTaxonInfoListRepresentation(Iterable<Map<String, Object>> taxonInfo) {
+		FirstItemIterable<Representation> results = new FirstItemIterable<Representation>(
+				new IterableWrapper<Representation, Map<String, Object>>(taxonInfo) {
+					@Override
+					protected Representation underlyingObjectToObject(Map<String, Object> info) {
+						return OTRepresentationConverter.getMapRepresentation(info);
+					}
+				});
+		return new ListRepresentation(RepresentationType.MAP.toString(), results);
+	}
+
+	// /////////////////////////////////////////////////////////////////////////////////////////////////////
+	//
+	// general serialization methods below here, as in TNRSResultsRepresentation
+	//
+	// ////////////////////////////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	String serialize(RepresentationFormat format, URI baseUri, ExtensionInjector extensions) {
+		MappingWriter writer = format.serializeMapping(type);
+		Serializer.injectExtensions(writer, this, baseUri, extensions);
+		serialize(new MappingSerializer(writer, baseUri, extensions));
+		writer.done();
+		return format.complete(writer);
+	}
+
+	@Override
+	void addTo(ListSerializer serializer) {
+		serializer.addMapping(this);
+	}
+
+	@Override
+	void putTo(MappingSerializer serializer, String key) {
+		serializer.putMapping(key, this);
+	}
+
+	@Override
+	protected void serialize(MappingSerializer serializer) {}
+}
@@ -175,6 +175,10 @@ public class Addition {
                 }
             } else
                 throw new BadInputException("bad json for addition");
+
+            // structures built from the graph before this addition are now out of date
+            if (!ids.isEmpty())
+                taxonomy.incrementRevisionForAdditions();
             tx.success();
         } finally {
             tx.finish();
@@ -0,0 +1,231 @@
+package org.opentree.taxonomy;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opens and shares the files that are built from the graph to speed up queries (exact name dictionaries, name bloom filters,
+ * deletion neighbourhood indexes, term dictionaries, the ott id map and the source id table), and helps to write them.
+ *
+ * Each kind of file has one instance of this class, which reads each file the first time it is opened and returns the same
+ * object after that, until closeAll() is called for the directory that holds it. Files that are missing or cannot be read
+ * are tried again once RETRY_INTERVAL has passed, so files that are written after the first attempt are picked up without
+ * restarting.
+ *
+ * Files are written to a temporary file next to the final one (see getTempFile() and createTempOutput()), which is then
+ * moved into place with moveIntoPlace(), so a file is never opened while it is only partly written.
+ *
+ * Each file records the taxonomy revision it was built from, and files built from an older revision are skipped (see
+ * isCurrent()), so that queries fall back to the graph until the files are built again.
+ *
+ * @param <T> the kind of object read from the files
+ */
+public class ArtifactFiles<T> {
+
+	/** The number of milliseconds after which a file that was missing or could not be read is tried again. */
+	public static final long RETRY_INTERVAL = 60000;
+
+	/**
+	 * Reads one kind of object from its file.
+	 */
+	public interface Reader<T> {
+
+		/**
+		 * Read the object stored in `file`, which exists.
+		 * @param file
+		 * @return
+		 * @throws IOException if the file cannot be read as this kind of object
+		 */
+		T read(File file) throws IOException;
+	}
+
+	private final String description;
+	private final Reader<T> reader;
+
+	// open files are looked up without locking, since that happens for most queries
+	private final Map<String, T> openArtifacts = new ConcurrentHashMap<String, T>();
+	private final Map<String, Long> failedPaths = new HashMap<String, Long>(); // when each failed file was last tried
+
+	// the taxonomy revision at which each out of date file was last reported, so each one is only reported once
+	private static final Map<String, Long> reportedStalePaths = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * @param description what the files contain, for error messages
+	 * @param reader reads the files
+	 */
+	public ArtifactFiles(String description, Reader<T> reader) {
+		this.description = description;
+		this.reader = reader;
+	}
+
+	/**
+	 * Return the object stored in `file`. The file is only read the first time it is opened; after that the same object is
+	 * returned. Returns null if the file does not exist or cannot be read, in which case it will not be tried again until
+	 * RETRY_INTERVAL has passed.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public T open(File file) {
+		String path = file.getAbsolutePath();
+		T artifact = openArtifacts.get(path);
+		return artifact != null ? artifact : openUncached(file, path);
+	}
+
+	private synchronized T openUncached(File file, String path) {
+		T artifact = openArtifacts.get(path); // it may have been opened while we were waiting
+		if (artifact != null) {
+			return artifact;
+		}
+		long now = System.currentTimeMillis();
+		Long lastTried = failedPaths.get(path);
+		if (lastTried != null && now - lastTried < RETRY_INTERVAL) {
+			return null;
+		}
+
+		if (file.exists()) {
+			try {
+				artifact = reader.read(file);
+			} catch (IOException ex) {
+				System.err.println("Could not open " + description + " " + path + ": " + ex.getMessage());
+			}
+		}
+		if (artifact == null) {
+			failedPaths.put(path, now);
+		} else {
+			failedPaths.remove(path);
+			openArtifacts.put(path, artifact);
+		}
+		return artifact;
+	}
+
+	/**
+	 * Forget any files that have been opened (or have failed to open) from within `dir`, so that they will be reopened from
+	 * disk the next time they are used. Should be called after the files have been rewritten.
+	 *
+	 * @param dir
+	 */
+	public synchronized void closeAll(File dir) {
+		String prefix = dir.getAbsolutePath() + File.separator;
+		for (Iterator<String> pathIter = reportedStalePaths.keySet().iterator(); pathIter.hasNext(); ) {
+			if (pathIter.next().startsWith(prefix)) {
+				pathIter.remove();
+			}
+		}
+		for (Iterator<String> pathIter = openArtifacts.keySet().iterator(); pathIter.hasNext(); ) {
+			if (pathIter.next().startsWith(prefix)) {
+				pathIter.remove();
+			}
+		}
+		for (Iterator<String> pathIter = failedPaths.keySet().iterator(); pathIter.hasNext(); ) {
+			if (pathIter.next().startsWith(prefix)) {
+				pathIter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Return a map from the file names of all the files that are currently open to the objects read from them.
+	 * @return
+	 */
+	public synchronized Map<String, T> getOpenArtifacts() {
+		Map<String, T> artifacts = new LinkedHashMap<String, T>();
+		for (Map.Entry<String, T> entry : openArtifacts.entrySet()) {
+			artifacts.put(new File(entry.getKey()).getName(), entry.getValue());
+		}
+		return artifacts;
+	}
+
+	/**
+	 * Return true if an object read from `file` that was built at `fileRevision` can be used with a taxonomy that is at
+	 * `revision`. Otherwise the file is out of date and should be skipped, and the first time that happens for the file at
+	 * this revision a warning is printed, since every query that would have used it is slower until it is rebuilt.
+	 *
+	 * @param file
+	 * @param fileRevision
+	 * @param revision
+	 * @return
+	 */
+	public static boolean isCurrent(File file, long fileRevision, long revision) {
+		if (fileRevision == revision) {
+			return true;
+		}
+		Long reported = reportedStalePaths.put(file.getAbsolutePath(), revision);
+		if (reported == null || reported != revision) {
+			System.err.println("WARNING: skipping " + file.getPath() + ", which was built at taxonomy revision " + fileRevision
+					+ " but the taxonomy is at revision " + revision + ". It is used again once it is rebuilt.");
+		}
+		return false;
+	}
+
+	/**
+	 * Map the whole of `file` into memory, read only. The mapping remains valid after the file is closed, and after the file
+	 * is replaced by moveIntoPlace().
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static ByteBuffer mapReadOnly(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Return the temporary file to write before it is moved into place as `file`, deleting any that was left behind by an
+	 * earlier attempt.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static File getTempFile(File file) throws IOException {
+		File tempFile = new File(file.getPath() + ".tmp");
+		if (tempFile.exists() && !tempFile.delete()) {
+			throw new IOException("could not replace " + tempFile.getPath());
+		}
+		return tempFile;
+	}
+
+	/**
+	 * Return a buffered stream that writes the temporary file for `file` (see getTempFile()).
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static DataOutputStream createTempOutput(File file) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getTempFile(file)), 1 << 16));
+	}
+
+	/**
+	 * Replace `file` with its temporary file, which must have been completely written and closed.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void moveIntoPlace(File file) throws IOException {
+		File tempFile = new File(file.getPath() + ".tmp");
+		if (file.exists() && !file.delete()) {
+			throw new IOException("could not replace " + file.getPath());
+		}
+		if (!tempFile.renameTo(file)) {
+			throw new IOException("could not move " + tempFile.getPath() + " to " + file.getPath());
+		}
+	}
+}
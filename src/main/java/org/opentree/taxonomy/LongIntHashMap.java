@@ -0,0 +1,117 @@
+package org.opentree.taxonomy;
+
+import java.util.Arrays;
+
+/**
+ * A map from long keys to int values, stored in two primitive arrays with open addressing, for the in-memory indexes over
+ * the taxonomy that map node ids (or ott ids) to positions in their arrays. This uses a fraction of the memory a
+ * HashMap<Long, Integer> would, and does not create an object for each entry. Long.MIN_VALUE cannot be used as a key.
+ *
+ * Not thread safe while it is being filled; once it is no longer changed it can be read from any number of threads.
+ */
+public class LongIntHashMap {
+
+	private static final long EMPTY = Long.MIN_VALUE;
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] keys;
+	private int[] values;
+	private int size = 0;
+	private final int missingValue;
+
+	/**
+	 * @param expectedSize the number of entries the map is expected to hold, which can be exceeded
+	 * @param missingValue the value get() returns for keys that are not in the map
+	 */
+	public LongIntHashMap(int expectedSize, int missingValue) {
+		this.missingValue = missingValue;
+		int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+	}
+
+	/**
+	 * Return the value stored under `key`, or the missing value given to the constructor if there is none.
+	 * @param key
+	 * @return
+	 */
+	public int get(long key) {
+		int mask = keys.length - 1;
+		for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				return values[slot];
+			} else if (keys[slot] == EMPTY) {
+				return missingValue;
+			}
+		}
+	}
+
+	/**
+	 * Return true if there is a value stored under `key`.
+	 * @param key
+	 * @return
+	 */
+	public boolean containsKey(long key) {
+		int mask = keys.length - 1;
+		for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				return true;
+			} else if (keys[slot] == EMPTY) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Store `value` under `key`, replacing any value already stored under it.
+	 * @param key
+	 * @param value
+	 */
+	public void put(long key, int value) {
+		if (key == EMPTY) {
+			throw new IllegalArgumentException("Long.MIN_VALUE cannot be used as a key");
+		}
+		if (size + 1 > keys.length * LOAD_FACTOR) {
+			resize(keys.length * 2);
+		}
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		if (keys[slot] == EMPTY) {
+			keys[slot] = key;
+			size++;
+		}
+		values[slot] = value;
+	}
+
+	/**
+	 * Return the number of entries in the map.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+
+	private static int hash(long key) {
+		// spread the bits, since node and ott ids are mostly sequential
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
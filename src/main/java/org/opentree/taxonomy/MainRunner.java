@@ -32,6 +32,7 @@ import org.opentree.properties.OTVocabularyPredicate;
 //import org.neo4j.graphdb.Transaction;
 //import org.neo4j.kernel.EmbeddedGraphDatabase;
 import org.opentree.taxonomy.contexts.ContextNotFoundException;
+import org.opentree.taxonomy.contexts.NameBloomFilter;
 import org.opentree.taxonomy.contexts.TaxonomyContext;
 import org.opentree.exceptions.MultipleHitsException;
 import org.opentree.tnrs.TNRSMatch;
@@ -43,6 +44,10 @@ import org.opentree.graphdb.GraphDatabaseAgent;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 
 public class MainRunner {
 
@@ -133,7 +138,7 @@ public class MainRunner {
         
         // Build contexts
         TaxonomySynthesizer te = null;
-        te = new TaxonomySynthesizer(taxdb);
+        te = new TaxonomySynthesizer(taxdb, graphName);
         System.out.println("Building context-specific indexes (this can take a while).");
         te.makeContexts();
         
@@ -246,7 +251,7 @@ public class MainRunner {
             
 //        } else
         
-        TaxonomyLoaderOTT tlo = new TaxonomyLoaderOTT(taxdb);
+        TaxonomyLoaderOTT tlo = new TaxonomyLoaderOTT(taxdb, graphname);
         Node lifeNode = tlo.getTaxonomyRootNode();
         System.out.println("life node: " + lifeNode);
 
@@ -263,6 +268,8 @@ public class MainRunner {
         } else if (args[0].equals("adddeprecated")) { 
             System.out.println("adding deprecated taxa from " + filename + " to " + graphname);
             tlo.loadDeprecatedTaxa(filename);
+            System.out.println("rebuilding the files used to speed up queries, which are now out of date");
+            new TaxonomySynthesizer(taxdb, graphname).makeQueryFiles();
         
         // ================= other
             
@@ -275,7 +282,7 @@ public class MainRunner {
         taxdb.shutdownDb();
     }
 
-    public void taxonomyQueryParser(String[] args) {
+    public void taxonomyQueryParser(String[] args) throws IOException {
 
         if (args[0].equals("getsubtree")) {
             if (args.length != 3) {
@@ -317,11 +324,31 @@ public class MainRunner {
                 System.out.println("arguments should be: graphdbfolder");
                 return;
             }
+        } else if (args[0].equals("makedictionaries")) {
+            if (args.length != 2) {
+                System.out.println("arguments should be: graphdbfolder");
+                return;
+            }
+        } else if (args[0].equals("makebloomfilters")) {
+            if (args.length != 2 && args.length != 3) {
+                System.out.println("arguments should be: graphdbfolder [falsepositiverate]");
+                return;
+            }
+        } else if (args[0].equals("makedeletionindexes")) {
+            if (args.length != 2) {
+                System.out.println("arguments should be: graphdbfolder");
+                return;
+            }
         } else if (args[0].equals("makegenusindexes")) {
             if (args.length != 2) {
                 System.out.println("arguments should be: graphdbfolder");
                 return;
             }
+        } else if (args[0].equals("makeidtables")) {
+            if (args.length != 2) {
+                System.out.println("arguments should be: graphdbfolder");
+                return;
+            }
         } else if (args.length != 3) {
             System.out.println("arguments should be: query graphdbfolder");
             return;
@@ -463,7 +490,7 @@ public class MainRunner {
         } else if (args[0].equals("makecontexts")) {
             String graphname = args[1];
             taxdb = new GraphDatabaseAgent(graphname);
-            te = new TaxonomySynthesizer(taxdb);
+            te = new TaxonomySynthesizer(taxdb, graphname);
             System.out.println("building context-specific indexes");
             te.makeContexts();
         } else if (args[0].equals("makegenusindexes")) {
@@ -472,6 +499,34 @@ public class MainRunner {
             te = new TaxonomySynthesizer(taxdb);
             System.out.println("making species indexes by genus");
             te.makeGenericIndexes();
+        } else if (args[0].equals("makedictionaries")) {
+            String graphname = args[1];
+            taxdb = new GraphDatabaseAgent(graphname);
+            te = new TaxonomySynthesizer(taxdb, graphname);
+            System.out.println("building exact name dictionaries");
+            te.makeExactNameDictionaries();
+        } else if (args[0].equals("makebloomfilters")) {
+            String graphname = args[1];
+            double falsePositiveRate = args.length > 2 ? Double.valueOf(args[2]) : NameBloomFilter.DEFAULT_FALSE_POSITIVE_RATE;
+            taxdb = new GraphDatabaseAgent(graphname);
+            te = new TaxonomySynthesizer(taxdb, graphname);
+            System.out.println("building name bloom filters with a false positive rate of " + falsePositiveRate);
+            te.makeNameBloomFilters(falsePositiveRate);
+        } else if (args[0].equals("makedeletionindexes")) {
+            String graphname = args[1];
+            taxdb = new GraphDatabaseAgent(graphname);
+            te = new TaxonomySynthesizer(taxdb, graphname);
+            System.out.println("building deletion neighbourhood indexes for approximate matching");
+            te.makeDeletionNeighbourhoodIndexes();
+            System.out.println("building sorted term dictionaries for approximate matching");
+            te.makeSortedTermDictionaries();
+        } else if (args[0].equals("makeidtables")) {
+            String graphname = args[1];
+            taxdb = new GraphDatabaseAgent(graphname);
+            te = new TaxonomySynthesizer(taxdb, graphname);
+            System.out.println("building the ott id map and source id table");
+            te.makeOTTIdMap();
+            te.makeSourceIdTable();
 /*        } else if (args[0].equals("checknames")) {
             String sourcename = args[1];
             String graphname = args[2];
@@ -543,6 +598,51 @@ public class MainRunner {
         tlo.verifyMainTaxonomy();
     }
 
+    /**
+     * Translate the source ids in a file (one per line) into ott ids, and write them out as tab-separated lines of source id
+     * and ott id (or "not found" or "ambiguous"), in the same order. The file is read in batches, so it can be of any size.
+     */
+    public void translateSourceIds(String args[]) throws IOException {
+        if (args.length != 3 && args.length != 4) {
+            System.out.println("arguments should be: graphdbfolder infile [outfile]");
+            return;
+        }
+        String graphname = args[1];
+        taxdb = new GraphDatabaseAgent(graphname);
+        Taxonomy taxonomy = new Taxonomy(taxdb, graphname);
+        if (taxonomy.getSourceIdTable() == null) {
+            System.err.println("there is no up to date source id table, so the source id index will be used (run makeidtables to build one)");
+        }
+
+        BufferedReader in = new BufferedReader(new FileReader(args[2]));
+        PrintStream out = args.length > 3 ? new PrintStream(new FileOutputStream(args[3]), false, "UTF-8") : System.out;
+        try {
+            List<String> batch = new ArrayList<String>();
+            String line;
+            do {
+                line = in.readLine();
+                if (line != null && line.trim().length() > 0) {
+                    batch.add(line.trim());
+                }
+                if (batch.size() == 10000 || (line == null && batch.size() > 0)) {
+                    long[] ottIds = taxonomy.getOTTIdsForSourceIds(batch);
+                    for (int i = 0; i < ottIds.length; i++) {
+                        String ottId = ottIds[i] == SourceIdTable.NOT_FOUND ? "not found"
+                                : ottIds[i] == SourceIdTable.AMBIGUOUS ? "ambiguous" : String.valueOf(ottIds[i]);
+                        out.println(batch.get(i) + "\t" + ottId);
+                    }
+                    batch.clear();
+                }
+            } while (line != null);
+        } finally {
+            in.close();
+            if (out != System.out) {
+                out.close();
+            }
+            taxdb.shutdownDb();
+        }
+    }
+
     public void parseTNRSRequest(String args[]) {
         if (args[0].equals("tnrsbasic")) {
             if (args.length != 3 && args.length != 4) {
@@ -669,7 +769,7 @@ public class MainRunner {
         System.out.println("\tbuildott <ott_directory> [graph_name (defaults to 'ott_v[ottVersion].db'] (build taxonomy db from ott distribution)");
 //        System.out.println("\tinittax <sourcename> <filename> <graphdbfolder> (initializes the tax graph with a tax list)");
 //        System.out.println("\taddtax <sourcename> <filename> <graphdbfolder> (adds a tax list into the tax graph)");
-        System.out.println("\tadddeprecated <filename> <graphdbfolder> (adds the deprecated taxa in the file to the graph)");
+        System.out.println("\tadddeprecated <filename> <graphdbfolder> (adds the deprecated taxa in the file to the graph, and rebuilds the files that makecontexts builds)");
 //        System.out.println("\tinittaxsyn <sourcename> <filename> <synonymfile> <graphdbfolder> (initializes the tax graph with a list and synonym file)");
         System.out.println("\tloadtaxsyn <sourcename> <filename> <synonymfile> <graphdbfolder> (load ott from smasher taxonomy files)");
 //        System.out.println("\taddtaxsyn <sourcename> <filename> <synonymfile> <graphdbfolder> (adds a tax list and synonym file)");
@@ -681,6 +781,10 @@ public class MainRunner {
         System.out.println("\trecalculatemrcas <graphdbfolder> (deletes the mrca and nested mrcas and recalculates them)");
         System.out.println("\tmakecontexts <graphdbfolder> (build context-specific indexes; requires that makeottol has already been run)");
         System.out.println("\tmakegenusindexes <graphdbfolder> (build indexes of species for each genus; requires that makeottol has already been run)");
+        System.out.println("\tmakedictionaries <graphdbfolder> (rebuild the exact name dictionaries, which makecontexts also builds)");
+        System.out.println("\tmakebloomfilters <graphdbfolder> [falsepositiverate] (rebuild the name bloom filters, which makecontexts also builds)");
+        System.out.println("\tmakedeletionindexes <graphdbfolder> (rebuild the deletion indexes and sorted term dictionaries used for fuzzy matching, which makecontexts also builds)");
+        System.out.println("\tmakeidtables <graphdbfolder> (rebuild the ott id map and source id table, which makecontexts also builds)");
         System.out.println("\tchecknames <sourcename> <graphdbfolder>");
         System.out.println("\tcomparenames <filename> <outfile> <graphdbfolder> (compare the names from a file to the ottol names and output the mappings of names)");
         
@@ -691,6 +795,7 @@ public class MainRunner {
         System.out.println("\tjsgraph <name> <graphdbfolder> (constructs a json file from tax graph)");
         System.out.println("\tchecktree <filename> <focalgroup> <graphdbfolder> (checks names in tree against tax graph)");
         System.out.println("\tgetsubtree <graphdbfolder> \"<nameslist>\" (find the subgraph for the specified taxa)");
+        System.out.println("\ttranslatesourceids <graphdbfolder> <infile> [outfile] (translate the source ids in infile, one per line, into ott ids)");
         
         System.out.println("\n---taxonomic name resolution services---");
         System.out.println("\ttnrsbasic <querynames> <graphdbfolder> [contextname] (check if the taxonomy graph contains comma-delimited names)");
@@ -760,11 +865,17 @@ public class MainRunner {
                         || args[0].equals("dumpott")
                         || args[0].equals("makecontexts")
                         || args[0].equals("makegenusindexes")
+                        || args[0].equals("makedictionaries")
+                        || args[0].equals("makebloomfilters")
+                        || args[0].equals("makedeletionindexes")
+                        || args[0].equals("makeidtables")
                         || args[0].equals("checknames")
                         || args[0].equals("getsubtree")) {
                     mr.taxonomyQueryParser(args);
                 } else if (args[0].equals("recalculatemrcas")) {
                     mr.recalculateMRCAS(args);
+                } else if (args[0].equals("translatesourceids")) {
+                    mr.translateSourceIds(args);
 /*                } else if (args[0].equals("graftbycomp")) {
                     mr.parseGraftByComp(args); */
                 } else if (args[0].matches("tnrsbasic|tnrstree")) {
@@ -0,0 +1,284 @@
+package org.opentree.taxonomy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A read-only map from OTT ids to the ids of the nodes they identify, covering the ids of live taxa, the alias ids that
+ * were loaded from the alias file and indexed for them, and the ids of deprecated taxa. Each value records the kind of id
+ * in its low TAG_BITS bits, with the node id above them. Maps are written to disk by TaxonomySynthesizer.makeOTTIdMap(),
+ * and are memory-mapped when they are opened, so that resolving an OTT id takes a few memory reads instead of one or two
+ * Lucene index queries.
+ *
+ * The file is an open-addressing hash table of long keys and long values. It starts with a header (magic number, format
+ * version, the taxonomy revision it was built from, number of slots, number of ids), followed by the keys of all the
+ * slots (Long.MIN_VALUE for empty slots), followed by the values of all the slots.
+ *
+ * Maps should always be obtained through Taxonomy.getOTTIdMap(), which returns null if there is no map or if it is out of
+ * date with the graph. Ids that are not in the map should still be looked up in the indexes, since taxa may have been
+ * added to the graph without the map being rebuilt. Ids that are claimed by more than one node are also left out of the
+ * map (see Builder.add()), so that looking them up in the indexes reports them as ambiguous.
+ */
+public class OTTIdMap {
+
+	/** The name of the directory (within the graph db directory) that holds the map file. */
+	public static final String DIRECTORY_NAME = "ott_id_map";
+
+	/** The name of the map file. */
+	public static final String FILE_NAME = "ott_ids.map";
+
+	/** The number of low bits of each value that record the kind of id. */
+	public static final int TAG_BITS = 2;
+
+	/** The kind of id for the OTT id of a live taxon. */
+	public static final int LIVE = 0;
+
+	/** The kind of id for an alias of a live taxon. */
+	public static final int ALIAS = 1;
+
+	/** The kind of id for the OTT id of a deprecated taxon. */
+	public static final int DEPRECATED = 2;
+
+	private static final int MAGIC = 0x4f54494d; // "OTIM"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	private static final ArtifactFiles<OTTIdMap> files = new ArtifactFiles<OTTIdMap>("ott id map",
+			new ArtifactFiles.Reader<OTTIdMap>() {
+				@Override
+				public OTTIdMap read(File file) throws IOException {
+					return new OTTIdMap(ArtifactFiles.mapReadOnly(file));
+				}
+			});
+
+	private final ByteBuffer buffer;
+	private final long revision;
+	private final int slotMask;
+	private final int size;
+	private final int valuesStart;
+
+	private OTTIdMap(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("not an ott id map, or an unsupported version");
+		}
+		revision = buffer.getLong(8);
+		int slotCount = buffer.getInt(16);
+		slotMask = slotCount - 1;
+		size = buffer.getInt(20);
+		valuesStart = HEADER_SIZE + slotCount * 8;
+	}
+
+	/**
+	 * Open the map stored in `file`, or return the one already opened from it (see ArtifactFiles). Returns null if the
+	 * file does not exist or cannot be read as a map.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static OTTIdMap open(File file) {
+		return files.open(file);
+	}
+
+	/**
+	 * Forget any maps that have been opened from within `dir`, so that they will be reopened from disk the next time they
+	 * are used. Should be called after the map file has been rewritten.
+	 *
+	 * @param dir
+	 */
+	public static void closeAll(File dir) {
+		files.closeAll(dir);
+	}
+
+	/**
+	 * Return the value recorded for `ottId`, which holds the node id and the kind of id (see getValueNodeId() and
+	 * getValueKind()), or -1 if the id is not in the map.
+	 *
+	 * @param ottId
+	 * @return
+	 */
+	public long get(long ottId) {
+		for (int slot = hash(ottId) & slotMask; ; slot = (slot + 1) & slotMask) {
+			long key = buffer.getLong(HEADER_SIZE + slot * 8);
+			if (key == ottId) {
+				return buffer.getLong(valuesStart + slot * 8);
+			} else if (key == EMPTY) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Return the id of the node identified by `ottId`, or -1 if the id is not in the map.
+	 * @param ottId
+	 * @return
+	 */
+	public long getNodeId(long ottId) {
+		long value = get(ottId);
+		return value < 0 ? -1 : getValueNodeId(value);
+	}
+
+	/**
+	 * Return the node id recorded in `value`, as returned by get().
+	 * @param value
+	 * @return
+	 */
+	public static long getValueNodeId(long value) {
+		return value >>> TAG_BITS;
+	}
+
+	/**
+	 * Return the kind of id (LIVE, ALIAS or DEPRECATED) recorded in `value`, as returned by get().
+	 * @param value
+	 * @return
+	 */
+	public static int getValueKind(long value) {
+		return (int) (value & ((1 << TAG_BITS) - 1));
+	}
+
+	/**
+	 * Return the number of ids in this map.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Return the taxonomy revision (see Taxonomy.getRevision()) of the graph from which this map was built.
+	 * @return
+	 */
+	public long getRevision() {
+		return revision;
+	}
+
+	private static int hash(long key) {
+		// spread the bits, since ott ids are mostly sequential
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Collects ott ids and node ids and writes them out as a map file.
+	 */
+	public static class Builder {
+
+		private long[] ottIds = new long[1024];
+		private long[] values = new long[1024];
+		private int count = 0;
+		private List<Long> ambiguousIds = new ArrayList<Long>();
+
+		/**
+		 * Record `nodeId` under `ottId`, as the kind of id given by `kind`. If an id is added more than once, live ids take
+		 * precedence over aliases, and both take precedence over deprecated ids. If an id is added for different nodes as
+		 * the kind that takes precedence for it, it is ambiguous, and is left out of the map (see getAmbiguousIds()).
+		 *
+		 * @param ottId
+		 * @param nodeId
+		 * @param kind
+		 */
+		public void add(long ottId, long nodeId, int kind) {
+			if (ottId == EMPTY) {
+				throw new IllegalArgumentException("Long.MIN_VALUE cannot be used as an ott id");
+			}
+			if (count == ottIds.length) {
+				ottIds = Arrays.copyOf(ottIds, count * 2);
+				values = Arrays.copyOf(values, count * 2);
+			}
+			ottIds[count] = ottId;
+			values[count] = (nodeId << TAG_BITS) | kind;
+			count++;
+		}
+
+		/**
+		 * Return the ids that were left out of the map by the last call to write() because they were added for more than
+		 * one node (see add()).
+		 *
+		 * @return
+		 */
+		public List<Long> getAmbiguousIds() {
+			return ambiguousIds;
+		}
+
+		/**
+		 * Write the map to `file`, recording `revision` as the taxonomy revision it was built from. The table is at most
+		 * three quarters full. The file is written to a temporary location first and then moved into place.
+		 *
+		 * @param file
+		 * @param revision
+		 * @return the number of distinct ids written, not counting ambiguous ids
+		 * @throws IOException
+		 */
+		public int write(File file, long revision) throws IOException {
+
+			int slotCount = 2;
+			while (slotCount * 3L < count * 4L) {
+				slotCount <<= 1;
+			}
+			long fileSize = HEADER_SIZE + slotCount * 16L;
+			if (fileSize > Integer.MAX_VALUE) {
+				throw new IOException("too many ids for an ott id map: " + count);
+			}
+			int slotMask = slotCount - 1;
+			int valuesStart = HEADER_SIZE + slotCount * 8;
+
+			RandomAccessFile raf = new RandomAccessFile(ArtifactFiles.getTempFile(file), "rw");
+			int size = 0;
+			ambiguousIds = new ArrayList<Long>();
+			try {
+				MappedByteBuffer out = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+				for (int slot = 0; slot < slotCount; slot++) {
+					out.putLong(HEADER_SIZE + slot * 8, EMPTY);
+				}
+
+				// add the ids in order of precedence, so ids that are already in the table are never replaced
+				for (int kind = LIVE; kind <= DEPRECATED; kind++) {
+					for (int i = 0; i < count; i++) {
+						if (getValueKind(values[i]) != kind) {
+							continue;
+						}
+						int slot = hash(ottIds[i]) & slotMask;
+						long key;
+						while ((key = out.getLong(HEADER_SIZE + slot * 8)) != EMPTY && key != ottIds[i]) {
+							slot = (slot + 1) & slotMask;
+						}
+						if (key == EMPTY) {
+							out.putLong(HEADER_SIZE + slot * 8, ottIds[i]);
+							out.putLong(valuesStart + slot * 8, values[i]);
+							size++;
+						} else {
+							// the key stays in the table with -1 (as get() returns for missing ids) as its value, so that
+							// ids of other kinds added later cannot take its place
+							long value = out.getLong(valuesStart + slot * 8);
+							if (value >= 0 && getValueKind(value) == kind && getValueNodeId(value) != getValueNodeId(values[i])) {
+								out.putLong(valuesStart + slot * 8, -1);
+								size--;
+								ambiguousIds.add(ottIds[i]);
+							}
+						}
+					}
+				}
+
+				out.putInt(0, MAGIC);
+				out.putInt(4, VERSION);
+				out.putLong(8, revision);
+				out.putInt(16, slotCount);
+				out.putInt(20, size);
+				out.force();
+			} finally {
+				raf.close();
+			}
+
+			ArtifactFiles.moveIntoPlace(file);
+			return size;
+		}
+	}
+}
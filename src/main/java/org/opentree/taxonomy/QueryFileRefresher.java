@@ -0,0 +1,70 @@
+package org.opentree.taxonomy;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.opentree.graphdb.GraphDatabaseAgent;
+
+/**
+ * Rebuilds the files used to speed up queries (see TaxonomySynthesizer.makeQueryFiles()) on a background thread, for use
+ * after taxa have been added to the graph of a running server. Those files record the taxonomy revision they were built
+ * from, so once taxa are added they are skipped and queries use the Neo4J indexes until the files are rebuilt.
+ *
+ * Only one rebuild runs at a time for each database. If another is requested while one is running, it runs again when
+ * the first finishes, so that the files end up built from the latest state of the graph. Rebuilds can be turned off with
+ * the taxomachine.refresh_query_files system property (e.g. -Dtaxomachine.refresh_query_files=false), in which case the
+ * files must be rebuilt offline with makecontexts.
+ */
+public class QueryFileRefresher {
+
+	/** Whether refresh() rebuilds the files. On unless the taxomachine.refresh_query_files system property is false. */
+	public static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("taxomachine.refresh_query_files"));
+
+	// for each database with a rebuild running, whether another one has been requested since it started
+	private static final Map<String, Boolean> pending = new HashMap<String, Boolean>();
+
+	/**
+	 * Start rebuilding the query files for `graphDb` in the background, or if they are already being rebuilt, rebuild them
+	 * again once that is done. Does nothing if the location of the database is not known, or if rebuilds are turned off.
+	 *
+	 * @param graphDb
+	 */
+	public static void refresh(final GraphDatabaseService graphDb) {
+		final Taxonomy taxonomy = new Taxonomy(graphDb);
+		if (!ENABLED || taxonomy.getStoreDir() == null) {
+			return;
+		}
+		final String storeDir = taxonomy.getStoreDir().getAbsolutePath();
+		synchronized (pending) {
+			if (pending.containsKey(storeDir)) {
+				pending.put(storeDir, Boolean.TRUE);
+				return;
+			}
+			pending.put(storeDir, Boolean.FALSE);
+		}
+
+		Thread builder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						System.out.println("rebuilding the query files for revision " + taxonomy.getRevision() + " of " + storeDir);
+						new TaxonomySynthesizer(new GraphDatabaseAgent(graphDb), storeDir).makeQueryFiles();
+					} catch (RuntimeException ex) {
+						System.err.println("Could not rebuild the query files for " + storeDir + ": " + ex.getMessage());
+					}
+					synchronized (pending) {
+						if (!pending.get(storeDir)) {
+							pending.remove(storeDir);
+							return;
+						}
+						pending.put(storeDir, Boolean.FALSE);
+					}
+				}
+			}
+		}, "query file builder");
+		builder.setDaemon(true);
+		builder.start();
+	}
+}
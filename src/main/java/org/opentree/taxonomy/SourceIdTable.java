@@ -0,0 +1,396 @@
+package org.opentree.taxonomy;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A read-only table that maps source ids (e.g. ncbi:417950), as recorded in the input sources of each taxon, to the OTT
+ * ids of the taxa they were taken from. Tables are written to disk by TaxonomySynthesizer.makeSourceIdTable(), and are
+ * memory-mapped when they are opened, so that large batches of source ids can be translated without a Lucene query for
+ * each of them.
+ *
+ * Source ids are stored and looked up in lower case, as in the source id index, so NCBI:417950 and ncbi:417950 are the
+ * same id. The ids are grouped by their prefix (the part before the first colon). Within each group, ids whose local part
+ * is a number are stored as sorted arrays of numbers and OTT ids, which are searched with a binary search, and all other
+ * ids are stored as a sorted list of strings and OTT ids. The file starts with a header (magic number, format version, the taxonomy
+ * revision it was built from, number of groups), followed by the file offset of each group. Each group holds its prefix,
+ * the number of numeric and of other ids, the numbers, their OTT ids, the file offsets of the other ids, their OTT ids, and
+ * the utf-8 bytes of the other ids themselves.
+ *
+ * Tables should always be obtained through Taxonomy.getSourceIdTable(), which returns null if there is no table or if it
+ * is out of date with the graph. In that case, callers should fall back to the source id index.
+ */
+public class SourceIdTable {
+
+	/** The name of the directory (within the graph db directory) that holds the table file. */
+	public static final String DIRECTORY_NAME = "source_id_table";
+
+	/** The name of the table file. */
+	public static final String FILE_NAME = "source_ids.table";
+
+	/** Returned by get() for source ids that are not in the table. */
+	public static final long NOT_FOUND = -1;
+
+	/** Returned by get() for source ids that were recorded for more than one taxon. */
+	public static final long AMBIGUOUS = -2;
+
+	private static final int MAGIC = 0x4f545349; // "OTSI"
+	private static final int VERSION = 2; // version 1 tables were case sensitive
+	private static final int HEADER_SIZE = 20;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final ArtifactFiles<SourceIdTable> files = new ArtifactFiles<SourceIdTable>("source id table",
+			new ArtifactFiles.Reader<SourceIdTable>() {
+				@Override
+				public SourceIdTable read(File file) throws IOException {
+					return new SourceIdTable(ArtifactFiles.mapReadOnly(file));
+				}
+			});
+
+	private final ByteBuffer buffer;
+	private final long revision;
+	private final Map<String, Group> groups = new HashMap<String, Group>();
+
+	/**
+	 * The positions of the sections of one prefix group within the file.
+	 */
+	private static class Group {
+		int numericCount;
+		int stringCount;
+		int numericKeys;
+		int numericValues;
+		int stringOffsets;
+		int stringValues;
+	}
+
+	private SourceIdTable(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("not a source id table, or an unsupported version");
+		}
+		revision = buffer.getLong(8);
+		int groupCount = buffer.getInt(16);
+		for (int i = 0; i < groupCount; i++) {
+			int p = buffer.getInt(HEADER_SIZE + i * 4);
+			String prefix = readString(p);
+			p += 4 + buffer.getInt(p);
+			Group group = new Group();
+			group.numericCount = buffer.getInt(p);
+			group.stringCount = buffer.getInt(p + 4);
+			group.numericKeys = p + 8;
+			group.numericValues = group.numericKeys + group.numericCount * 8;
+			group.stringOffsets = group.numericValues + group.numericCount * 8;
+			group.stringValues = group.stringOffsets + group.stringCount * 4;
+			groups.put(prefix, group);
+		}
+	}
+
+	/**
+	 * Open the table stored in `file`, or return the one already opened from it (see ArtifactFiles). Returns null if the
+	 * file does not exist or cannot be read as a table.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static SourceIdTable open(File file) {
+		return files.open(file);
+	}
+
+	/**
+	 * Forget any tables that have been opened from within `dir`, so that they will be reopened from disk the next time they
+	 * are used. Should be called after the table file has been rewritten.
+	 *
+	 * @param dir
+	 */
+	public static void closeAll(File dir) {
+		files.closeAll(dir);
+	}
+
+	/**
+	 * Return the OTT id of the taxon that `sourceId` was recorded for, NOT_FOUND if it is not in the table, or AMBIGUOUS if
+	 * it was recorded for more than one taxon. Case is ignored.
+	 *
+	 * @param sourceId
+	 * @return
+	 */
+	public long get(String sourceId) {
+		sourceId = sourceId.toLowerCase();
+		int colon = sourceId.indexOf(':');
+		if (colon < 0) {
+			return NOT_FOUND;
+		}
+		Group group = groups.get(sourceId.substring(0, colon));
+		if (group == null) {
+			return NOT_FOUND;
+		}
+
+		String localId = sourceId.substring(colon + 1);
+		long number = parseNumber(localId);
+		int low = 0;
+		if (number >= 0) {
+			int high = group.numericCount - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				long key = buffer.getLong(group.numericKeys + mid * 8);
+				if (key < number) {
+					low = mid + 1;
+				} else if (key > number) {
+					high = mid - 1;
+				} else {
+					return buffer.getLong(group.numericValues + mid * 8);
+				}
+			}
+		} else {
+			int high = group.stringCount - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int c = readString(buffer.getInt(group.stringOffsets + mid * 4)).compareTo(localId);
+				if (c < 0) {
+					low = mid + 1;
+				} else if (c > 0) {
+					high = mid - 1;
+				} else {
+					return buffer.getLong(group.stringValues + mid * 8);
+				}
+			}
+		}
+		return NOT_FOUND;
+	}
+
+	/**
+	 * Return the taxonomy revision (see Taxonomy.getRevision()) of the graph from which this table was built.
+	 * @return
+	 */
+	public long getRevision() {
+		return revision;
+	}
+
+	private String readString(int offset) {
+		byte[] bytes = new byte[buffer.getInt(offset)];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(offset + 4 + i);
+		}
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Return the value of `localId` if it is a number written in the usual way (only digits, with no leading zeros), which
+	 * is how it is stored in the numeric part of a group, or -1 otherwise.
+	 */
+	private static long parseNumber(String localId) {
+		int length = localId.length();
+		if (length == 0 || length > 18 || (localId.charAt(0) == '0' && length > 1)) {
+			return -1;
+		}
+		long number = 0;
+		for (int i = 0; i < length; i++) {
+			char c = localId.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			number = number * 10 + (c - '0');
+		}
+		return number;
+	}
+
+	/**
+	 * Collects source ids and OTT ids and writes them out as a table file.
+	 */
+	public static class Builder {
+
+		private final Map<String, GroupBuilder> groups = new TreeMap<String, GroupBuilder>();
+
+		private static class GroupBuilder {
+			long[] numericKeys = new long[1024];
+			long[] numericValues = new long[1024];
+			int numericCount = 0;
+			TreeMap<String, Long> strings = new TreeMap<String, Long>();
+		}
+
+		/**
+		 * Record that `sourceId` was taken from the taxon with `ottId`. Source ids without a colon or with an empty local part
+		 * are ignored. Source ids that differ only in case are the same id. If a source id is recorded for more than one OTT
+		 * id, it is marked as ambiguous.
+		 *
+		 * @param sourceId
+		 * @param ottId
+		 */
+		public void add(String sourceId, long ottId) {
+			sourceId = sourceId.toLowerCase();
+			int colon = sourceId.indexOf(':');
+			if (colon < 0 || colon == sourceId.length() - 1) {
+				return;
+			}
+			String prefix = sourceId.substring(0, colon);
+			GroupBuilder group = groups.get(prefix);
+			if (group == null) {
+				group = new GroupBuilder();
+				groups.put(prefix, group);
+			}
+
+			String localId = sourceId.substring(colon + 1);
+			long number = parseNumber(localId);
+			if (number >= 0) {
+				if (group.numericCount == group.numericKeys.length) {
+					group.numericKeys = Arrays.copyOf(group.numericKeys, group.numericCount * 2);
+					group.numericValues = Arrays.copyOf(group.numericValues, group.numericCount * 2);
+				}
+				group.numericKeys[group.numericCount] = number;
+				group.numericValues[group.numericCount] = ottId;
+				group.numericCount++;
+			} else {
+				Long previous = group.strings.put(localId, ottId);
+				if (previous != null && previous != ottId) {
+					group.strings.put(localId, AMBIGUOUS);
+				}
+			}
+		}
+
+		/**
+		 * Write the table to `file`, recording `revision` as the taxonomy revision it was built from. The file is written to a
+		 * temporary location first and then moved into place.
+		 *
+		 * @param file
+		 * @param revision
+		 * @return the number of distinct source ids written
+		 * @throws IOException
+		 */
+		public int write(File file, long revision) throws IOException {
+
+			// sort the numbers in each group, and merge repeated ones
+			for (GroupBuilder group : groups.values()) {
+				sort(group.numericKeys, group.numericValues, 0, group.numericCount - 1);
+				int n = 0;
+				for (int i = 0; i < group.numericCount; i++) {
+					if (n > 0 && group.numericKeys[n - 1] == group.numericKeys[i]) {
+						if (group.numericValues[n - 1] != group.numericValues[i]) {
+							group.numericValues[n - 1] = AMBIGUOUS;
+						}
+					} else {
+						group.numericKeys[n] = group.numericKeys[i];
+						group.numericValues[n] = group.numericValues[i];
+						n++;
+					}
+				}
+				group.numericCount = n;
+			}
+
+			// work out where each group starts
+			String[] prefixes = groups.keySet().toArray(new String[groups.size()]);
+			byte[][][] stringBytes = new byte[prefixes.length][][];
+			int[] groupOffsets = new int[prefixes.length];
+			long offset = HEADER_SIZE + prefixes.length * 4L;
+			int size = 0;
+			for (int i = 0; i < prefixes.length; i++) {
+				GroupBuilder group = groups.get(prefixes[i]);
+				stringBytes[i] = new byte[group.strings.size()][];
+				int j = 0;
+				long stringsSize = 0;
+				for (String localId : group.strings.keySet()) {
+					stringBytes[i][j] = localId.getBytes(UTF8);
+					stringsSize += 4 + stringBytes[i][j++].length;
+				}
+				groupOffsets[i] = (int) offset;
+				offset += 4 + prefixes[i].getBytes(UTF8).length + 8 + group.numericCount * 16L + group.strings.size() * 12L + stringsSize;
+				if (offset > Integer.MAX_VALUE) {
+					throw new IOException("too many source ids for a source id table");
+				}
+				size += group.numericCount + group.strings.size();
+			}
+
+			DataOutputStream out = ArtifactFiles.createTempOutput(file);
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(revision);
+				out.writeInt(prefixes.length);
+				for (int groupOffset : groupOffsets) {
+					out.writeInt(groupOffset);
+				}
+				for (int i = 0; i < prefixes.length; i++) {
+					GroupBuilder group = groups.get(prefixes[i]);
+					byte[] prefixBytes = prefixes[i].getBytes(UTF8);
+					out.writeInt(prefixBytes.length);
+					out.write(prefixBytes);
+					out.writeInt(group.numericCount);
+					out.writeInt(group.strings.size());
+					for (int j = 0; j < group.numericCount; j++) {
+						out.writeLong(group.numericKeys[j]);
+					}
+					for (int j = 0; j < group.numericCount; j++) {
+						out.writeLong(group.numericValues[j]);
+					}
+					int stringOffset = groupOffsets[i] + 4 + prefixBytes.length + 8 + group.numericCount * 16 + group.strings.size() * 12;
+					for (byte[] bytes : stringBytes[i]) {
+						out.writeInt(stringOffset);
+						stringOffset += 4 + bytes.length;
+					}
+					for (Long ottId : group.strings.values()) {
+						out.writeLong(ottId);
+					}
+					for (byte[] bytes : stringBytes[i]) {
+						out.writeInt(bytes.length);
+						out.write(bytes);
+					}
+				}
+			} finally {
+				out.close();
+			}
+
+			ArtifactFiles.moveIntoPlace(file);
+			return size;
+		}
+
+		/**
+		 * Sort `keys` between `from` and `to` (inclusive), moving the elements of `values` along with them.
+		 */
+		private static void sort(long[] keys, long[] values, int from, int to) {
+			while (to - from > 16) {
+				long pivot = keys[(from + to) >>> 1];
+				int i = from;
+				int j = to;
+				while (i <= j) {
+					while (keys[i] < pivot) {
+						i++;
+					}
+					while (keys[j] > pivot) {
+						j--;
+					}
+					if (i <= j) {
+						swap(keys, values, i++, j--);
+					}
+				}
+				// recurse into the smaller part, loop on the larger one
+				if (j - from < to - i) {
+					sort(keys, values, from, j);
+					from = i;
+				} else {
+					sort(keys, values, i, to);
+					to = j;
+				}
+			}
+			for (int i = from + 1; i <= to; i++) {
+				for (int j = i; j > from && keys[j - 1] > keys[j]; j--) {
+					swap(keys, values, j, j - 1);
+				}
+			}
+		}
+
+		private static void swap(long[] keys, long[] values, int i, int j) {
+			long key = keys[i];
+			keys[i] = keys[j];
+			keys[j] = key;
+			long value = values[i];
+			values[i] = values[j];
+			values[j] = value;
+		}
+	}
+}
@@ -8,8 +8,10 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 
 import org.neo4j.graphalgo.GraphAlgoFactory;
@@ -136,6 +138,25 @@ public class Taxon {
     
     public boolean isPreferredTaxChildOf(Taxon parent) {
     
+    	// use the in-memory copy of the preferred tree if both taxa are in it
+    	TaxonomyTree prefTree = TaxonomyTree.get(taxonomy, TaxonomyRelType.PREFTAXCHILDOF);
+    	if (prefTree != null) {
+    		int a = prefTree.getIndex(taxNode.getId());
+    		int b = prefTree.getIndex(parent.getNode().getId());
+    		if (a >= 0 && b >= 0) {
+    			return prefTree.isWithin(a, b);
+    		}
+    	}
+
+    	// or the stored preorder and postorder numbers, if they are up to date
+    	String pre = TaxonomyProperty.PREORDER_NUMBER.propertyName();
+    	String post = TaxonomyProperty.POSTORDER_NUMBER.propertyName();
+    	Node parentNode = parent.getNode();
+    	if (taxNode.hasProperty(pre) && parentNode.hasProperty(pre) && taxonomy.hasCurrentPreorderNumbers()) {
+    		return (Integer) taxNode.getProperty(pre) >= (Integer) parentNode.getProperty(pre)
+    				&& (Integer) taxNode.getProperty(post) <= (Integer) parentNode.getProperty(post);
+    	}
+
         TraversalDescription hierarchy = Traversal.description()
                 .depthFirst()
                 .relationships( TaxonomyRelType.PREFTAXCHILDOF, Direction.OUTGOING );
@@ -275,6 +296,102 @@ public class Taxon {
         return new JadeTree(root);
     }
     
+    /**
+     * Return the number of taxa in the clade of this taxon in the preferred taxonomy tree, including this taxon, without
+     * traversing the clade. Returns -1 if the size is not known, i.e. if the stored clade sizes are out of date and this
+     * taxon is not in the in-memory copy of the preferred tree.
+     * @return
+     */
+    public int getPreferredCladeSize() {
+
+    	// use the stored size if it is up to date, since the in-memory tree may not have been built yet
+    	String sizeProperty = TaxonomyProperty.PREFERRED_CLADE_SIZE.propertyName();
+    	if (taxNode.hasProperty(sizeProperty) && taxonomy.hasCurrentPreorderNumbers()) {
+    		return (Integer) taxNode.getProperty(sizeProperty);
+    	}
+
+    	TaxonomyTree prefTree = TaxonomyTree.get(taxonomy, TaxonomyRelType.PREFTAXCHILDOF);
+    	if (prefTree != null) {
+    		int index = prefTree.getIndex(taxNode.getId());
+    		if (index >= 0) {
+    			return prefTree.getSubtreeSize(index);
+    		}
+    	}
+    	return -1;
+    }
+
+    /**
+     * Write the taxonomic structure below this taxon to `out` as a newick string (the same string as the one made by
+     * getTaxonomySubtree()), followed by a semicolon. The newick is written during a single depth-first traversal, with the
+     * path to the current taxon held in explicit stacks, so no tree is built and only the path is held in memory. If the
+     * clade has more than `maxTaxa` taxa, writing stops as soon as the limit is passed and -1 is returned, in which case the
+     * newick written to `out` is incomplete.
+     * 
+     * @param out
+     * @param labelFormat
+     * @param maxTaxa
+     * @return the number of taxa written, or -1 if there are more than maxTaxa
+     * @throws IOException
+     */
+    public int writeTaxonomySubtreeNewick(Appendable out, LabelFormat labelFormat, int maxTaxa) throws IOException {
+
+    	// the path from this taxon to the current one, with the children still to write and the number already written
+    	Node[] pathNodes = new Node[64];
+    	@SuppressWarnings("unchecked")
+    	Iterator<Relationship>[] pathChildren = new Iterator[64];
+    	int[] pathChildCounts = new int[64];
+    	int pathLength = 0;
+
+    	int count = 0;
+    	Node next = taxNode;
+    	while (true) {
+    		if (next != null) {
+    			// start a taxon
+    			if (++count > maxTaxa) {
+    				return -1;
+    			}
+    			if (pathLength == pathNodes.length) {
+    				pathNodes = Arrays.copyOf(pathNodes, pathLength * 2);
+    				pathChildren = Arrays.copyOf(pathChildren, pathLength * 2);
+    				pathChildCounts = Arrays.copyOf(pathChildCounts, pathLength * 2);
+    			}
+    			pathNodes[pathLength] = next;
+    			pathChildren[pathLength] = next.getRelationships(Direction.INCOMING, TaxonomyRelType.PREFTAXCHILDOF).iterator();
+    			pathChildCounts[pathLength] = 0;
+    			pathLength++;
+    		}
+
+    		int last = pathLength - 1;
+    		Iterator<Relationship> children = pathChildren[last];
+    		next = null;
+    		while (next == null && children.hasNext()) {
+    			Node child = children.next().getStartNode();
+    			if (!child.equals(pathNodes[last])) { // guard against relationships from a node to itself
+    				next = child;
+    			}
+    		}
+
+    		if (next != null) {
+    			out.append(pathChildCounts[last]++ == 0 ? '(' : ',');
+    		} else {
+    			// finish the taxon at the end of the path; its label follows its children
+    			if (pathChildCounts[last] > 0) {
+    				out.append(')');
+    			}
+    			out.append(Taxonomy.getNodeLabel(pathNodes[last], labelFormat));
+    			pathNodes[last] = null;
+    			pathChildren[last] = null;
+    			pathLength--;
+    			if (pathLength == 0) {
+    				break;
+    			}
+    		}
+    	}
+
+    	out.append(';');
+    	return count;
+    }
+
     /**
      * Return a list terminal taxa below this taxon.
      * @return
@@ -28,6 +28,8 @@ public class TaxonSet implements Iterable<Taxon> {
     // for building subtrees
     private int nodeIndex;
     private HashSet<Long> taxonIds;
+    private TaxonomyTree prefTree; // null if the taxa are not all in the in-memory copy of the preferred tree
+    private int[] taxonIndexes; // positions of the taxa in prefTree
 
     /**
      * Assumes all taxa are coming from the same taxonomy (since we only expect to ever be working with one taxonomy)
@@ -80,6 +82,9 @@ public class TaxonSet implements Iterable<Taxon> {
             // if there is only one taxon, then it is the mrca
             licaNode = taxa.iterator().next().getNode();
         
+        } else if ((licaNode = getLICAFromTree(relType)) != null) {
+            // found from the in-memory copy of the tree
+
         } else {
             // find the mrca of all taxa
 //            HashSet<Taxon> temptaxa = (LinkedList<Node>) taxa.clone();
@@ -114,6 +119,27 @@ public class TaxonSet implements Iterable<Taxon> {
         return lica;
     }
     
+    /**
+     * Find the LICA using the in-memory copy of the tree formed by `relType` relationships (see TaxonomyTree). Returns null
+     * if there is no copy of the tree for this taxonomy or if any of the taxa are not in it, in which case the LICA must be
+     * found by traversing the graph.
+     * @param relType
+     * @return
+     */
+    private Node getLICAFromTree(TaxonomyRelType relType) {
+        TaxonomyTree tree = TaxonomyTree.get(taxonomy, relType);
+        if (tree == null) {
+            return null;
+        }
+        long[] nodeIds = new long[taxa.size()];
+        int i = 0;
+        for (Taxon t : taxa) {
+            nodeIds[i++] = t.getNode().getId();
+        }
+        long licaId = tree.getLCANodeId(nodeIds);
+        return licaId < 0 ? null : taxonomy.getNodeById(licaId);
+    }
+
     private JadeNode makeSubtree(Taxon taxNode) {
         
         final double DEF_BRLEN = 1.0;  
@@ -131,6 +157,18 @@ public class TaxonSet implements Iterable<Taxon> {
             if (childNode.getId() == taxNode.getNode().getId())
                 continue;
 
+            // if we have the preferred tree, just check whether any taxa are within the child
+            int childIndex = prefTree == null ? -1 : prefTree.getIndex(childNode.getId());
+            if (childIndex >= 0) {
+                for (int taxonIndex : taxonIndexes) {
+                    if (prefTree.isWithin(taxonIndex, childIndex)) {
+                        heavyChildren.add(childNode);
+                        break;
+                    }
+                }
+                continue;
+            }
+
             // get ids of all eventual descendants of this child node
             HashSet<Long> descendantIds = new HashSet<Long>();
 
@@ -186,9 +224,22 @@ public class TaxonSet implements Iterable<Taxon> {
         // make a set of taxon ids in this taxon set
         taxonIds = new HashSet<Long>();
         for (Taxon t : taxa) {
-            System.out.println("adding " + String.valueOf(t.getNode().getId()) + " to taxid hashset");
             taxonIds.add(t.getNode().getId());
         }
+
+        // and find their positions in the preferred tree, if they are all in it
+        prefTree = TaxonomyTree.get(taxonomy, TaxonomyRelType.PREFTAXCHILDOF);
+        if (prefTree != null) {
+            taxonIndexes = new int[taxonIds.size()];
+            int i = 0;
+            for (long id : taxonIds) {
+                taxonIndexes[i] = prefTree.getIndex(id);
+                if (taxonIndexes[i++] < 0) {
+                    prefTree = null;
+                    break;
+                }
+            }
+        }
         
         nodeIndex = 0;
         return new JadeTree(makeSubtree(lica));
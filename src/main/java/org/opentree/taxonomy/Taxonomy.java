@@ -1,12 +1,19 @@
 package org.opentree.taxonomy;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.NoSuchElementException;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
 import org.opentree.exceptions.MultipleHitsException;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -16,12 +23,14 @@ import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.IndexHits;
 import org.neo4j.graphdb.traversal.TraversalDescription;
+import org.neo4j.kernel.GraphDatabaseAPI;
 import org.neo4j.kernel.Traversal;
 import org.opentree.properties.OTVocabularyPredicate;
 import org.opentree.taxonomy.constants.TaxonomyProperty;
 import org.opentree.taxonomy.constants.TaxonomyRelType;
 import org.opentree.taxonomy.contexts.ContextDescription;
 import org.opentree.taxonomy.contexts.ContextNotFoundException;
+import org.opentree.taxonomy.contexts.NameBloomFilter;
 import org.opentree.taxonomy.contexts.TaxonomyContext;
 import org.opentree.taxonomy.contexts.TaxonomyNodeIndex;
 import org.opentree.utils.GeneralUtils;
@@ -49,16 +58,42 @@ public class Taxonomy {
 	public Index<Node> taxaByOTTId;
 	public Index<Node> taxaByFlag;
 	public Index<Node> deprecatedTaxa;
+	private File storeDir;
 
 	public static final String[] SPECIFIC_RANKS = {"species", "subspecies", "variety", "varietas", "forma", "form"};
 
+	/**
+	 * The name indexes for which name bloom filters are built within each context by makeNameBloomFilters(). (The
+	 * deprecated taxa filter is only built for ALLTAXA).
+	 */
+	public static final TaxonomyNodeIndex[] NAME_BLOOM_FILTER_INDEXES = {
+		TaxonomyNodeIndex.TAXON_BY_NAME,
+		TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME,
+		TaxonomyNodeIndex.SYNONYM_NODES_BY_SYNONYM,
+		TaxonomyNodeIndex.PREFERRED_SYNONYM_NODES_BY_SYNONYM};
+
 	public Taxonomy(GraphDatabaseAgent gdb) {
 		graphDb = gdb;
 		initIndexes();
 	}
+
+	/**
+	 * Use this constructor when the location of the database directory is known, so that structures stored alongside the
+	 * graph (e.g. exact name dictionaries) can be built and used.
+	 * @param gdb
+	 * @param storeDir
+	 */
+	public Taxonomy(GraphDatabaseAgent gdb, String storeDir) {
+		graphDb = gdb;
+		this.storeDir = new File(storeDir);
+		initIndexes();
+	}
 	
 	public Taxonomy(GraphDatabaseService gds) {
 		graphDb = new GraphDatabaseAgent(gds);
+		if (gds instanceof GraphDatabaseAPI) {
+			storeDir = new File(((GraphDatabaseAPI) gds).getStoreDir());
+		}
 		initIndexes();
 	}
 
@@ -103,6 +138,162 @@ public class Taxonomy {
 		}
 	}
 	
+	/**
+	 * @return the directory containing the graph database, or null if it is not known
+	 */
+	public File getStoreDir() {
+		return storeDir;
+	}
+
+	/**
+	 * @return the revision counter for this taxonomy, which is incremented whenever taxa are added to the graph
+	 */
+	public long getRevision() {
+		Long revision = (Long) graphDb.getGraphProperty(TaxonomyProperty.TAXONOMY_REVISION.propertyName());
+		return revision == null ? 0 : revision;
+	}
+
+	/**
+	 * @return the file in which the ott id map (see OTTIdMap) is stored, or null if the location of the database is not known
+	 */
+	public File getOTTIdMapFile() {
+		if (storeDir == null) {
+			return null;
+		}
+		return new File(new File(storeDir, OTTIdMap.DIRECTORY_NAME), OTTIdMap.FILE_NAME);
+	}
+
+	/**
+	 * @return the ott id map for this taxonomy, or null if there is none or it is out of date with the graph. A map built
+	 * before taxa were added by Addition is still used, since it is only missing the added ids, which are looked up in the
+	 * indexes, and additions never give an existing id to another taxon.
+	 */
+	public OTTIdMap getOTTIdMap() {
+		File file = getOTTIdMapFile();
+		if (file == null) {
+			return null;
+		}
+		OTTIdMap map = OTTIdMap.open(file);
+		if (map == null) {
+			return null;
+		}
+		Long additionsBaseRevision = (Long) graphDb.getGraphProperty(TaxonomyProperty.ADDITIONS_BASE_REVISION.propertyName());
+		if (additionsBaseRevision != null && map.getRevision() >= additionsBaseRevision && map.getRevision() <= getRevision()) {
+			return map;
+		}
+		return ArtifactFiles.isCurrent(file, map.getRevision(), getRevision()) ? map : null;
+	}
+
+	/**
+	 * @return the file in which the source id table (see SourceIdTable) is stored, or null if the location of the database is
+	 * not known
+	 */
+	public File getSourceIdTableFile() {
+		if (storeDir == null) {
+			return null;
+		}
+		return new File(new File(storeDir, SourceIdTable.DIRECTORY_NAME), SourceIdTable.FILE_NAME);
+	}
+
+	/**
+	 * @return the source id table for this taxonomy, or null if there is none or it is out of date with the graph
+	 */
+	public SourceIdTable getSourceIdTable() {
+		File file = getSourceIdTableFile();
+		if (file == null) {
+			return null;
+		}
+		SourceIdTable table = SourceIdTable.open(file);
+		if (table == null || !ArtifactFiles.isCurrent(file, table.getRevision(), getRevision())) {
+			return null;
+		}
+		return table;
+	}
+
+	/**
+	 * @return true if the preorder and postorder numbers stored on the taxon nodes (see TaxonomySynthesizer.numberPreferredTaxa())
+	 * were assigned at the current revision of this taxonomy
+	 */
+	public boolean hasCurrentPreorderNumbers() {
+		Long numberingRevision = (Long) graphDb.getGraphProperty(TaxonomyProperty.PREORDER_NUMBERING_REVISION.propertyName());
+		return numberingRevision != null && numberingRevision == getRevision();
+	}
+
+	/**
+	 * Increment the revision counter for this taxonomy. This should be done whenever taxa are added to an existing graph,
+	 * as it causes structures built from the previous state of the graph to be considered out of date. Must be called from
+	 * within a transaction.
+	 */
+	public void incrementRevision() {
+		long revision = getRevision() + 1;
+		graphDb.setGraphProperty(TaxonomyProperty.TAXONOMY_REVISION.propertyName(), revision);
+		graphDb.setGraphProperty(TaxonomyProperty.ADDITIONS_BASE_REVISION.propertyName(), revision);
+	}
+
+	/**
+	 * Increment the revision counter after taxa have been added by Addition, which only adds taxa with new ids, without
+	 * moving TaxonomyProperty.ADDITIONS_BASE_REVISION, so that the ott id map built before the additions can still be used.
+	 * Must be called from within a transaction.
+	 */
+	public void incrementRevisionForAdditions() {
+		long revision = getRevision();
+		if (graphDb.getGraphProperty(TaxonomyProperty.ADDITIONS_BASE_REVISION.propertyName()) == null) {
+			graphDb.setGraphProperty(TaxonomyProperty.ADDITIONS_BASE_REVISION.propertyName(), revision);
+		}
+		graphDb.setGraphProperty(TaxonomyProperty.TAXONOMY_REVISION.propertyName(), revision + 1);
+	}
+
+	/**
+	 * Write the name bloom filters (see the NameBloomFilter class) for all the indexes in NAME_BLOOM_FILTER_INDEXES within
+	 * every context, and for the deprecated taxa, at the current revision of the taxonomy. Does nothing if the location of
+	 * the database is not known.
+	 * 
+	 * @param falsePositiveRate
+	 * @throws IOException
+	 */
+	public void makeNameBloomFilters(double falsePositiveRate) throws IOException {
+		
+		if (storeDir == null) {
+			System.out.println("the location of the graph database is not known, so no name bloom filters will be built");
+			return;
+		}
+		File filterDir = new File(storeDir, NameBloomFilter.DIRECTORY_NAME);
+		if (!filterDir.exists() && !filterDir.mkdirs()) {
+			throw new IOException("could not create directory " + filterDir.getPath());
+		}
+		NameBloomFilter.closeAll(filterDir);
+		
+		long revision = getRevision();
+		for (ContextDescription cd : ContextDescription.values()) {
+			TaxonomyContext context = getContext(cd);
+			for (TaxonomyNodeIndex indexDesc : NAME_BLOOM_FILTER_INDEXES) {
+				makeNameBloomFilter(context, indexDesc, falsePositiveRate, revision);
+			}
+		}
+		makeNameBloomFilter(ALLTAXA, TaxonomyNodeIndex.DEPRECATED_TAXA, falsePositiveRate, revision);
+	}
+
+	/**
+	 * Write the name bloom filter for a single index in a single context, using the names of all the nodes in the index.
+	 */
+	private void makeNameBloomFilter(TaxonomyContext context, TaxonomyNodeIndex indexDesc, double falsePositiveRate, long revision)
+			throws IOException {
+
+		Set<String> names = new HashSet<String>();
+		IndexHits<Node> hits = context.getNodeIndex(indexDesc).query(new MatchAllDocsQuery());
+		try {
+			for (Node n : hits) {
+				names.add(((String) n.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName())).toLowerCase());
+			}
+		} finally {
+			hits.close();
+		}
+
+		File file = context.getNameBloomFilterFile(indexDesc);
+		NameBloomFilter.build(names, falsePositiveRate).write(file, revision);
+		System.out.println("wrote bloom filter for " + names.size() + " names to " + file.getPath());
+	}
+	
 	/**
 	 * @return
 	 */
@@ -179,9 +370,39 @@ public class Taxonomy {
 	 * @throws MultipleHitsException
 	 */
     public Taxon getTaxonForOTTId(final Long ottId) {
+        return getTaxonForOTTId(ottId, ottId == null ? null : getOTTIdMap());
+    }
+
+	/**
+	 * Search for the taxa matching each of the supplied OTT ids, in the same order, with null for ids that match no taxon.
+	 * The ott id map is only looked up once for all the ids, and the indexes are only searched for ids that are not in it.
+	 * If more than one hit is found for any id (bad) throws MultipleHitsException.
+	 * 
+	 * @param ottIds
+	 * @return
+	 * @throws MultipleHitsException
+	 */
+	public List<Taxon> getTaxaForOTTIds(List<Long> ottIds) {
+		List<Taxon> taxa = new ArrayList<Taxon>(ottIds.size());
+		OTTIdMap ottIdMap = getOTTIdMap();
+		for (Long ottId : ottIds) {
+			taxa.add(ottId == null ? null : getTaxonForOTTId(ottId, ottIdMap));
+		}
+		return taxa;
+	}
+
+    private Taxon getTaxonForOTTId(final Long ottId, OTTIdMap ottIdMap) {
         IndexHits<Node> hits = null;
         Node match = null;
         
+        // use the ott id map if there is one. ids that are not in it may have been added since it was built
+        if (ottIdMap != null) {
+        	long nodeId = ottIdMap.getNodeId(ottId);
+        	if (nodeId >= 0) {
+        		return new Taxon(getNodeById(nodeId), this);
+        	}
+        }
+
         try {
         	// first check the standard index
         	hits = taxaByOTTId.get(OTVocabularyPredicate.OT_OTT_ID.propertyName(), ottId);
@@ -240,6 +461,34 @@ public class Taxonomy {
         return match != null ? new Taxon(match, this) : null;
 	}
 	
+	/**
+	 * Find the OTT ids of the taxa matching each of the supplied source ids, in the same order. Uses the source id table
+	 * if there is an up to date one, and the source id index otherwise.
+	 * 
+	 * @param sourceIds
+	 * @return for each source id, the OTT id of its taxon, SourceIdTable.NOT_FOUND if there is none, or
+	 * SourceIdTable.AMBIGUOUS if there is more than one
+	 */
+	public long[] getOTTIdsForSourceIds(List<String> sourceIds) {
+		long[] ottIds = new long[sourceIds.size()];
+		SourceIdTable table = getSourceIdTable();
+		for (int i = 0; i < ottIds.length; i++) {
+			String sourceId = sourceIds.get(i);
+			if (table != null) {
+				ottIds[i] = table.get(sourceId);
+				continue;
+			}
+			try {
+				Taxon match = getTaxonForSourceId(sourceId);
+				ottIds[i] = match == null ? SourceIdTable.NOT_FOUND
+						: (Long) match.getNode().getProperty(OTVocabularyPredicate.OT_OTT_ID.propertyName());
+			} catch (MultipleHitsException ex) {
+				ottIds[i] = SourceIdTable.AMBIGUOUS;
+			}
+		}
+		return ottIds;
+	}
+
 	/**
 	 * Just get the recognized taxon node that is associated with a given synonym node. Deprecated since the synonym nodes are now only accessible via
 	 * traversals that must pass through the associated taxon nodes anyway, but left in case it is becomes useful.
@@ -262,7 +511,10 @@ public class Taxonomy {
 	/**
 	 * Finds the directed internodal distance between `n1` and `n2` along relationships of type `relType` by tracing the paths to the LICA
 	 * of n1 and n2. Note that this method uses direction to find the LICA, and will not behave properly if the outgoing paths along the
-	 * specified relType from n1 and n2 do not intersect.
+	 * specified relType from n1 and n2 do not intersect (in which case the sum of the lengths of the two paths is returned).
+	 * 
+	 * When both nodes are in the in-memory copy of the tree formed by `relType` (see TaxonomyTree), the distance is found from
+	 * the depths of the nodes and their LCA without traversing the graph.
 	 * 
 	 * @param n1
 	 * @param n2
@@ -271,33 +523,54 @@ public class Taxonomy {
 	 */
 	public int getInternodalDistThroughMRCA(Node n1, Node n2, RelationshipType relType) {
 
-		System.out.println("Node 1: " + n1.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName()) + " " + n1.getId() + ", Node 2: " + n2.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName()) + " " + n2.getId());
+		if (relType instanceof TaxonomyRelType) {
+			TaxonomyTree tree = TaxonomyTree.get(this, (TaxonomyRelType) relType);
+			int d = tree == null ? -1 : tree.getDistance(n1.getId(), n2.getId());
+			if (d >= 0) {
+				return d;
+			}
+		}
 
 		TraversalDescription hierarchy = Traversal.description().depthFirst().relationships(relType, Direction.OUTGOING);
 
-		Iterable<Node> firstPath = hierarchy.traverse(n1).nodes();
-		Iterable<Node> secondPath = hierarchy.traverse(n2).nodes();
-
-		int i = 0;
-		boolean matched = false;
-		count: for (Node n : firstPath) {
+		// record the position of each node on the path from n1, then walk up from n2 until we meet it
+		HashMap<Long, Integer> firstPathPositions = new HashMap<Long, Integer>();
+		for (Node n : hierarchy.traverse(n1).nodes()) {
+			firstPathPositions.put(n.getId(), firstPathPositions.size());
+		}
 
-			int j = 0;
-			for (Node m : secondPath) {
-				if (n.getId() == m.getId())
-					matched = true;
-				j++;
+		int j = 0;
+		for (Node m : hierarchy.traverse(n2).nodes()) {
+			Integer i = firstPathPositions.get(m.getId());
+			if (i != null) {
+				return i + j;
 			}
+			j++;
+		}
 
-			if (matched) {
-				i += j;
-				break count;
-			}
+		return firstPathPositions.size() + j;
+	}
 
-			i++;
-		}
+	/**
+	 * Finds the internodal distance (see getInternodalDistThroughMRCA()) between `anchor` and each of `nodes`, in the same order.
+	 * 
+	 * @param anchor
+	 * @param nodes
+	 * @param relType
+	 * @return distances
+	 */
+	public int[] getInternodalDistsThroughMRCA(Node anchor, List<Node> nodes, RelationshipType relType) {
+
+		int[] distances = new int[nodes.size()];
+		TaxonomyTree tree = relType instanceof TaxonomyRelType ? TaxonomyTree.get(this, (TaxonomyRelType) relType) : null;
+		int anchorIndex = tree == null ? -1 : tree.getIndex(anchor.getId());
 
-		return i;
+		for (int i = 0; i < distances.length; i++) {
+			Node n = nodes.get(i);
+			int index = anchorIndex < 0 ? -1 : tree.getIndex(n.getId());
+			distances[i] = index < 0 ? getInternodalDistThroughMRCA(anchor, n, relType) : tree.getDistance(anchorIndex, index);
+		}
+		return distances;
 	}
 
     private final static Pattern deversioner = Pattern.compile("([^0-9\\.]+)\\.?(([0-9]+(\\.[0-9]+)?).*)");
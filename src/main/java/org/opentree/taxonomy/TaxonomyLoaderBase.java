@@ -32,6 +32,10 @@ public abstract class TaxonomyLoaderBase extends Taxonomy {
 	public TaxonomyLoaderBase(GraphDatabaseService gds) {
 		super(gds);
 	}
+
+	public TaxonomyLoaderBase(GraphDatabaseAgent gdb, String storeDir) {
+		super(gdb, storeDir);
+	}
 	
 	/**
 	 * delete all the mrcas and nested mrcas
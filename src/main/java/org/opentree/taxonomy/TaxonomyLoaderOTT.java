@@ -126,6 +126,11 @@ public class TaxonomyLoaderOTT extends TaxonomyLoaderBase {
 		super(gds);
 		buildFlagMap();
 	}
+
+	public TaxonomyLoaderOTT(GraphDatabaseAgent gdb, String storeDir) {
+		super(gdb, storeDir);
+		buildFlagMap();
+	}
 	
 	public void setCreateOTTIdIndexes (boolean createOTTIdIndexes) {
 		this.createOTTIdIndexes = createOTTIdIndexes;
@@ -152,6 +157,13 @@ public class TaxonomyLoaderOTT extends TaxonomyLoaderBase {
 		this.buildPreferredRels = buildPreferredRels;
 	}
 
+	/**
+	 * Add the deprecated taxa in `deprecatedFile` to the graph, and increment the revision of the taxonomy. All the files
+	 * built to speed up queries are out of date after this, so TaxonomySynthesizer.makeQueryFiles() should be called next
+	 * (the adddeprecated command does this).
+	 * 
+	 * @param deprecatedFile
+	 */
 	public void loadDeprecatedTaxa(String deprecatedFile) {
 		
 		setupIndexes();
@@ -205,6 +217,14 @@ public class TaxonomyLoaderOTT extends TaxonomyLoaderBase {
 				n++;
 			}
 			reader.close();
+
+			// files built before these were added are now out of date
+			boolean preorderNumbersCurrent = hasCurrentPreorderNumbers();
+			incrementRevision();
+			if (preorderNumbersCurrent) {
+				// but the deprecated taxa are not in the preferred tree, so its numbering has not changed
+				graphDb.setGraphProperty(TaxonomyProperty.PREORDER_NUMBERING_REVISION.propertyName(), getRevision());
+			}
 			tx.success();
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -724,12 +744,18 @@ public class TaxonomyLoaderOTT extends TaxonomyLoaderBase {
 		}
 
 		ArrayList<Long> aliases = ottIdToAliasesMap.get(inputId);
-		if (aliases != null)
+		if (aliases != null) {
+			long[] aliasIds = new long[aliases.size()];
+			int i = 0;
 			for (Long alias : aliases) {
 				taxaByOTTId.add(tnode, OTVocabularyPredicate.OT_OTT_ID.propertyName(), Long.valueOf(alias));
+				aliasIds[i++] = alias;
 				if (inputId.longValue() == 10914)
 					System.out.format("# Indexed alias %s for %s\n", alias, inputId);
 			}
+			// also record them on the node, since they can't be read back out of the index (see TaxonomySynthesizer.makeOTTIdMap())
+			tnode.setProperty(TaxonomyProperty.OTT_ID_ALIASES.propertyName(), aliasIds);
+		}
 	}
 
 	/**
@@ -12,6 +12,7 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.NotFoundException;
@@ -29,6 +30,12 @@ import org.opentree.properties.OTVocabularyPredicate;
 import org.opentree.taxonomy.constants.TaxonomyProperty;
 import org.opentree.taxonomy.constants.TaxonomyRelType;
 import org.opentree.taxonomy.contexts.ContextDescription;
+import org.opentree.taxonomy.contexts.DeletionNeighbourhoodIndex;
+import org.opentree.taxonomy.contexts.ExactNameDictionary;
+import org.opentree.taxonomy.contexts.LatinNameNormalizer;
+import org.opentree.taxonomy.contexts.NameBloomFilter;
+import org.opentree.taxonomy.contexts.BucketedTermDictionary;
+import org.opentree.taxonomy.contexts.SortedTermDictionary;
 import org.opentree.taxonomy.contexts.TaxonomyContext;
 import org.opentree.taxonomy.contexts.TaxonomyNodeIndex;
 import org.opentree.exceptions.MultipleHitsException;
@@ -57,10 +64,70 @@ public class TaxonomySynthesizer extends Taxonomy {
 	private final Index<Node> prefSpeciesByGenus = ALLTAXA.getNodeIndex(TaxonomyNodeIndex.PREFERRED_SPECIES_BY_GENUS);
 	private final Index<Node> speciesByGenus = ALLTAXA.getNodeIndex(TaxonomyNodeIndex.SPECIES_BY_GENUS);
 
+    /**
+     * The name indexes for which exact name dictionaries are built within each context by makeExactNameDictionaries().
+     * (The deprecated taxa index is only built for ALLTAXA).
+     */
+    public static final TaxonomyNodeIndex[] EXACT_NAME_DICTIONARY_INDEXES = {
+    	TaxonomyNodeIndex.TAXON_BY_NAME,
+    	TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME,
+    	TaxonomyNodeIndex.SYNONYM_NODES_BY_SYNONYM,
+    	TaxonomyNodeIndex.PREFERRED_SYNONYM_NODES_BY_SYNONYM};
+
+    /**
+     * Pairs of name and synonym indexes for which combined exact name dictionaries are built within each context, so that
+     * a name can be matched against taxa and synonyms with a single lookup.
+     */
+    public static final TaxonomyNodeIndex[][] EXACT_NAME_OR_SYNONYM_DICTIONARY_INDEXES = {
+    	{TaxonomyNodeIndex.TAXON_BY_NAME, TaxonomyNodeIndex.SYNONYM_NODES_BY_SYNONYM},
+    	{TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME, TaxonomyNodeIndex.PREFERRED_SYNONYM_NODES_BY_SYNONYM}};
+
+    /**
+     * The name indexes for which sorted term dictionaries are built within each context by makeSortedTermDictionaries(), for
+     * use in approximate matching. (The deprecated taxa dictionary is only built for ALLTAXA).
+     */
+    public static final TaxonomyNodeIndex[] SORTED_TERM_DICTIONARY_INDEXES = {
+    	TaxonomyNodeIndex.TAXON_BY_NAME,
+    	TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME,
+    	TaxonomyNodeIndex.SYNONYM_NODES_BY_SYNONYM,
+    	TaxonomyNodeIndex.PREFERRED_SYNONYM_NODES_BY_SYNONYM,
+    	TaxonomyNodeIndex.TAXON_BY_NAME_OR_SYNONYM,
+    	TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME_OR_SYNONYM,
+    	TaxonomyNodeIndex.TAXON_BY_NAME_OR_SYNONYM_HIGHER,
+    	TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME_OR_SYNONYM_HIGHER,
+    	TaxonomyNodeIndex.TAXON_BY_NAME_GENERA,
+    	TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME_GENERA};
+
+    /**
+     * The indexes for which deletion neighbourhood indexes are built within each context by makeDeletionNeighbourhoodIndexes().
+     * (The deprecated taxa index is only built for ALLTAXA).
+     */
+    public static final TaxonomyNodeIndex[] DELETION_NEIGHBOURHOOD_INDEXES = {
+    	TaxonomyNodeIndex.TAXON_BY_NAME,
+    	TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME,
+    	TaxonomyNodeIndex.SYNONYM_NODES_BY_SYNONYM,
+    	TaxonomyNodeIndex.PREFERRED_SYNONYM_NODES_BY_SYNONYM,
+    	TaxonomyNodeIndex.TAXON_BY_NAME_GENERA,
+    	TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME_GENERA};
+
     public TaxonomySynthesizer(GraphDatabaseAgent t) {
         super(t);
     }
 
+    private double bloomFilterFalsePositiveRate = NameBloomFilter.DEFAULT_FALSE_POSITIVE_RATE;
+
+    public TaxonomySynthesizer(GraphDatabaseAgent t, String storeDir) {
+        super(t, storeDir);
+    }
+
+    /**
+     * Set the false positive rate that the name bloom filters built by makeContexts() are sized for.
+     * @param bloomFilterFalsePositiveRate
+     */
+    public void setBloomFilterFalsePositiveRate(double bloomFilterFalsePositiveRate) {
+    	this.bloomFilterFalsePositiveRate = bloomFilterFalsePositiveRate;
+    }
+
     /**
      * Dump all the name data in a format consistent with Phylotastic treestore requirements
      */
@@ -493,6 +560,9 @@ public class TaxonomySynthesizer extends Taxonomy {
      */
     public void makeContexts() {
         
+        // number the preferred taxa first, so the nesting of the contexts can be found without traversing the graph
+        TaxonomyTree prefTree = numberPreferredTaxa();
+
         // make map of ContextTreeNode objects for all taxonomic contexts, indexed by root node name
         HashMap<String, ContextTreeNode> contextNodesByRootName = new HashMap<String, ContextTreeNode>();
         for (ContextDescription cd : ContextDescription.values()) {
@@ -511,31 +581,51 @@ public class TaxonomySynthesizer extends Taxonomy {
             
             System.out.println(contextNode.context.getDescription().toString());
             
-            // traverse back up the taxonomy tree from the root of this context toward life
             Node cr = contextNode.context.getRootNode();
             if (cr != null) {
-	            for (Node parentNode : prefTaxParentOfTraversal.traverse(cr).nodes()) {
-	
-	                // if/when we find a more inclusive (i.e. parent) context
-	                String parentName = String.valueOf(parentNode.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName()));
-	                if (contextNodesByRootName.containsKey(parentName) && (parentName.equals(childName) == false)) {
-	
-	                    System.out.println("Adding " + childName + " as child of " + parentName);
-	                    
-	                    // add this link in the contextNode hierarchy and move to the next contextNode
-	                    ContextTreeNode parentContextNode = contextNodesByRootName.get(parentName);
-	                    parentContextNode.addChild(contextNode);
-
-	                    ContextTreeNode p = contextNode;
-	                    while (p != null) {
-	                    	deepestContext = p;
-	                    	p = p.parent;
-	                    }
-
-	                    break;
-	
-	                }
-	            }
+            	String parentName = null;
+            	int crIndex = prefTree == null ? -1 : prefTree.getIndex(cr.getId());
+            	if (crIndex >= 0) {
+
+            		// the parent context is the other context with the deepest root that contains the root of this context
+            		int parentIndex = -1;
+            		for (Entry<String, ContextTreeNode> other : contextNodesByRootName.entrySet()) {
+            			Node otherRoot = other.getValue().context.getRootNode();
+            			int otherIndex = otherRoot == null ? -1 : prefTree.getIndex(otherRoot.getId());
+            			if (otherIndex > parentIndex && prefTree.isWithin(crIndex, otherIndex) && (other.getKey().equals(childName) == false)) {
+            				parentIndex = otherIndex;
+            				parentName = other.getKey();
+            			}
+            		}
+
+            	} else {
+
+            		// traverse back up the taxonomy tree from the root of this context toward life
+		            for (Node parentNode : prefTaxParentOfTraversal.traverse(cr).nodes()) {
+		
+		                // if/when we find a more inclusive (i.e. parent) context
+		                String name = String.valueOf(parentNode.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName()));
+		                if (contextNodesByRootName.containsKey(name) && (name.equals(childName) == false)) {
+		                	parentName = name;
+		                	break;
+		                }
+		            }
+            	}
+
+            	if (parentName != null) {
+
+                    System.out.println("Adding " + childName + " as child of " + parentName);
+                    
+                    // add this link in the contextNode hierarchy and move to the next contextNode
+                    ContextTreeNode parentContextNode = contextNodesByRootName.get(parentName);
+                    parentContextNode.addChild(contextNode);
+
+                    ContextTreeNode p = contextNode;
+                    while (p != null) {
+                    	deepestContext = p;
+                    	p = p.parent;
+                    }
+            	}
             }
         }
         
@@ -552,6 +642,53 @@ public class TaxonomySynthesizer extends Taxonomy {
         } else {
 	        System.out.println("\nCould not find any nodes corresponding to identified contexts. No context-specific indexes will be built.");
         }
+        
+        // build the files used to speed up queries from the finished indexes
+        makeQueryFiles();
+    }
+
+    /**
+     * Write all the files that are built from the graph to speed up queries, at the current revision of the taxonomy: the
+     * exact name dictionaries, name bloom filters, deletion neighbourhood indexes, term dictionaries, the ott id map and the
+     * source id table. Called by makeContexts(), and must be called again whenever the revision changes (e.g. after deprecated
+     * taxa are added), since files from an earlier revision are not used. Errors are reported, and the files that could not be
+     * built are left out.
+     */
+    public void makeQueryFiles() {
+
+        // build the exact name dictionaries, so any left over from an earlier run are replaced
+        if (getStoreDir() == null) {
+        	System.out.println("the location of the graph database is not known, so no exact name dictionaries will be built");
+        } else {
+	        try {
+	        	makeExactNameDictionaries();
+	        } catch (IOException ex) {
+	        	System.err.println("Could not build exact name dictionaries: " + ex.getMessage());
+	        }
+        }
+
+        // and the name bloom filters
+        try {
+        	makeNameBloomFilters(bloomFilterFalsePositiveRate);
+        } catch (IOException ex) {
+        	System.err.println("Could not build name bloom filters: " + ex.getMessage());
+        }
+
+        // and the deletion indexes and term dictionaries used for approximate matching
+        try {
+        	makeDeletionNeighbourhoodIndexes();
+        	makeSortedTermDictionaries();
+        } catch (IOException ex) {
+        	System.err.println("Could not build the indexes for approximate matching: " + ex.getMessage());
+        }
+
+        // and the tables used to resolve ott ids and source ids
+        try {
+        	makeOTTIdMap();
+        	makeSourceIdTable();
+        } catch (IOException ex) {
+        	System.err.println("Could not build the id tables: " + ex.getMessage());
+        }
     }
     
     class isSpecificEvaluator implements Evaluator {
@@ -572,6 +709,181 @@ public class TaxonomySynthesizer extends Taxonomy {
 		}
     }
     
+    /**
+     * Write the exact name dictionaries (see the ExactNameDictionary class) for all the indexes in EXACT_NAME_DICTIONARY_INDEXES
+     * and all the index pairs in EXACT_NAME_OR_SYNONYM_DICTIONARY_INDEXES within every context, and for the deprecated taxa. The dictionaries are built from the contents of the Neo4J indexes, so
+     * this must be called after the indexes are built. It is called by makeContexts(), and only needs to be called again if
+     * the dictionaries are lost. Requires that this object was created with the location of the database.
+     * 
+     * @throws IOException
+     */
+    public void makeExactNameDictionaries() throws IOException {
+    	
+    	if (getStoreDir() == null) {
+    		throw new IllegalStateException("the location of the graph database is needed to build exact name dictionaries");
+    	}
+    	File dictionaryDir = new File(getStoreDir(), ExactNameDictionary.DIRECTORY_NAME);
+    	if (!dictionaryDir.exists() && !dictionaryDir.mkdirs()) {
+    		throw new IOException("could not create directory " + dictionaryDir.getPath());
+    	}
+    	ExactNameDictionary.closeAll(dictionaryDir);
+    	
+    	long revision = getRevision();
+    	for (ContextDescription cd : ContextDescription.values()) {
+    		TaxonomyContext context = getContext(cd);
+    		for (TaxonomyNodeIndex indexDesc : EXACT_NAME_DICTIONARY_INDEXES) {
+    			makeExactNameDictionary(context, revision, indexDesc);
+    		}
+    		for (TaxonomyNodeIndex[] indexDescs : EXACT_NAME_OR_SYNONYM_DICTIONARY_INDEXES) {
+    			makeExactNameDictionary(context, revision, indexDescs);
+    		}
+    	}
+    	makeExactNameDictionary(ALLTAXA, revision, TaxonomyNodeIndex.DEPRECATED_TAXA);
+    }
+    
+    /**
+     * Write the exact name dictionary for one or more indexes in a single context. Every node in the indexes is recorded under
+     * its own name, which is the key under which all the name indexes in EXACT_NAME_DICTIONARY_INDEXES record their nodes.
+     */
+    private void makeExactNameDictionary(TaxonomyContext context, long revision, TaxonomyNodeIndex ... indexDescs) throws IOException {
+    	
+    	ExactNameDictionary.Builder builder = new ExactNameDictionary.Builder();
+    	for (TaxonomyNodeIndex indexDesc : indexDescs) {
+	    	IndexHits<Node> hits = context.getNodeIndex(indexDesc).query(new MatchAllDocsQuery());
+	    	try {
+	    		for (Node n : hits) {
+	    			builder.add((String) n.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName()), n.getId());
+	    		}
+	    	} finally {
+	    		hits.close();
+	    	}
+    	}
+
+    	File file = context.getExactNameDictionaryFile(indexDescs);
+    	builder.write(file, revision);
+    	System.out.println("wrote " + builder.size() + " names to " + file.getPath());
+    }
+    
+    /**
+     * Write the deletion neighbourhood indexes (see the DeletionNeighbourhoodIndex class) used for approximate name matching
+     * for all the indexes in DELETION_NEIGHBOURHOOD_INDEXES within every context, and for the deprecated taxa, at the current
+     * revision of the taxonomy. Like the dictionaries, these are built from the contents of the Neo4J indexes, so this must be
+     * called after makeContexts(). Does nothing if the location of the database is not known.
+     * 
+     * @throws IOException
+     */
+    public void makeDeletionNeighbourhoodIndexes() throws IOException {
+    	
+    	if (getStoreDir() == null) {
+    		System.out.println("the location of the graph database is not known, so no deletion neighbourhood indexes will be built");
+    		return;
+    	}
+    	File indexDir = new File(getStoreDir(), DeletionNeighbourhoodIndex.DIRECTORY_NAME);
+    	if (!indexDir.exists() && !indexDir.mkdirs()) {
+    		throw new IOException("could not create directory " + indexDir.getPath());
+    	}
+    	DeletionNeighbourhoodIndex.closeAll(indexDir);
+    	
+    	long revision = getRevision();
+    	for (ContextDescription cd : ContextDescription.values()) {
+    		TaxonomyContext context = getContext(cd);
+    		for (TaxonomyNodeIndex indexDesc : DELETION_NEIGHBOURHOOD_INDEXES) {
+    			makeDeletionNeighbourhoodIndex(context, indexDesc, revision);
+    		}
+    	}
+    	makeDeletionNeighbourhoodIndex(ALLTAXA, TaxonomyNodeIndex.DEPRECATED_TAXA, revision);
+    }
+    
+    /**
+     * Write the deletion neighbourhood index for a single index in a single context, using the names of all the nodes in the index.
+     */
+    private void makeDeletionNeighbourhoodIndex(TaxonomyContext context, TaxonomyNodeIndex indexDesc, long revision) throws IOException {
+    	
+    	DeletionNeighbourhoodIndex.Builder builder = new DeletionNeighbourhoodIndex.Builder();
+    	IndexHits<Node> hits = context.getNodeIndex(indexDesc).query(new MatchAllDocsQuery());
+    	try {
+    		for (Node n : hits) {
+    			builder.add((String) n.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName()));
+    		}
+    	} finally {
+    		hits.close();
+    	}
+
+    	File file = context.getDeletionNeighbourhoodIndexFile(indexDesc);
+    	builder.write(file, revision);
+    	System.out.println("wrote deletion neighbourhood index for " + builder.size() + " names to " + file.getPath());
+    }
+    
+    /**
+     * Write the sorted term dictionaries (see the SortedTermDictionary class) used for approximate name matching for all the
+     * indexes in SORTED_TERM_DICTIONARY_INDEXES within every context, and for the deprecated taxa, at the current revision of
+     * the taxonomy, along with a bucketed term dictionary (see the BucketedTermDictionary class) over the same terms for each
+     * of them. Must be called after makeContexts(). Does nothing if the location of the database is not known.
+     * 
+     * @throws IOException
+     */
+    public void makeSortedTermDictionaries() throws IOException {
+    	
+    	if (getStoreDir() == null) {
+    		System.out.println("the location of the graph database is not known, so no sorted term dictionaries will be built");
+    		return;
+    	}
+    	File dictionaryDir = new File(getStoreDir(), SortedTermDictionary.DIRECTORY_NAME);
+    	if (!dictionaryDir.exists() && !dictionaryDir.mkdirs()) {
+    		throw new IOException("could not create directory " + dictionaryDir.getPath());
+    	}
+    	SortedTermDictionary.closeAll(dictionaryDir);
+    	File bucketedDictionaryDir = new File(getStoreDir(), BucketedTermDictionary.DIRECTORY_NAME);
+    	if (!bucketedDictionaryDir.exists() && !bucketedDictionaryDir.mkdirs()) {
+    		throw new IOException("could not create directory " + bucketedDictionaryDir.getPath());
+    	}
+    	BucketedTermDictionary.closeAll(bucketedDictionaryDir);
+    	
+    	long revision = getRevision();
+    	for (ContextDescription cd : ContextDescription.values()) {
+    		TaxonomyContext context = getContext(cd);
+    		for (TaxonomyNodeIndex indexDesc : SORTED_TERM_DICTIONARY_INDEXES) {
+    			makeSortedTermDictionary(context, indexDesc, revision);
+    		}
+    	}
+    	makeSortedTermDictionary(ALLTAXA, TaxonomyNodeIndex.DEPRECATED_TAXA, revision);
+    }
+    
+    /**
+     * Write the sorted and bucketed term dictionaries for a single index in a single context. Nodes are recorded under their own names, and
+     * for the name-or-synonym indexes also under the names of their synonyms, which is how addToIndexes() records them.
+     */
+    private void makeSortedTermDictionary(TaxonomyContext context, TaxonomyNodeIndex indexDesc, long revision) throws IOException {
+    	
+    	boolean indexedBySynonyms = indexDesc == TaxonomyNodeIndex.TAXON_BY_NAME_OR_SYNONYM
+    			|| indexDesc == TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME_OR_SYNONYM
+    			|| indexDesc == TaxonomyNodeIndex.TAXON_BY_NAME_OR_SYNONYM_HIGHER
+    			|| indexDesc == TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME_OR_SYNONYM_HIGHER;
+    	
+    	SortedTermDictionary.Builder builder = new SortedTermDictionary.Builder();
+    	IndexHits<Node> hits = context.getNodeIndex(indexDesc).query(new MatchAllDocsQuery());
+    	try {
+    		for (Node n : hits) {
+    			builder.add((String) n.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName()), n.getId());
+    			if (indexedBySynonyms) {
+    				for (Relationship synRel : n.getRelationships(TaxonomyRelType.SYNONYMOF, Direction.INCOMING)) {
+    					builder.add((String) synRel.getStartNode().getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName()), n.getId());
+    				}
+    			}
+    		}
+    	} finally {
+    		hits.close();
+    	}
+
+    	File file = context.getSortedTermDictionaryFile(indexDesc);
+    	builder.write(file, revision);
+    	System.out.println("wrote sorted term dictionary for " + builder.size() + " names to " + file.getPath());
+
+    	File bucketedFile = context.getBucketedTermDictionaryFile(indexDesc);
+    	BucketedTermDictionary.write(builder, bucketedFile, revision);
+    	System.out.println("wrote bucketed term dictionary for " + builder.size() + " names to " + bucketedFile.getPath());
+    }
+    
     /**
      * Make an index recording all the species + infraspecific taxa within each genus.
      */
@@ -610,6 +922,153 @@ public class TaxonomySynthesizer extends Taxonomy {
     	}
     }
     
+    /**
+     * Write the ott id map (see the OTTIdMap class) from the ott ids of all the taxa in the ott id index, the aliases recorded
+     * on them, and the ott ids of the deprecated taxa, at the current revision of the taxonomy. Aliases are only included for
+     * taxa that were loaded with the OTT_ID_ALIASES property. Ids that belong to more than one taxon are left out of the map
+     * and listed in a warning. Does nothing if the location of the database is not known.
+     * 
+     * @throws IOException
+     */
+    public void makeOTTIdMap() throws IOException {
+
+    	File file = getOTTIdMapFile();
+    	if (file == null) {
+    		System.out.println("the location of the graph database is not known, so no ott id map will be built");
+    		return;
+    	}
+    	File mapDir = file.getParentFile();
+    	if (!mapDir.exists() && !mapDir.mkdirs()) {
+    		throw new IOException("could not create directory " + mapDir.getPath());
+    	}
+    	OTTIdMap.closeAll(mapDir);
+
+    	String ottIdKey = OTVocabularyPredicate.OT_OTT_ID.propertyName();
+    	String aliasesKey = TaxonomyProperty.OTT_ID_ALIASES.propertyName();
+    	OTTIdMap.Builder builder = new OTTIdMap.Builder();
+
+    	IndexHits<Node> hits = taxaByOTTId.query(new MatchAllDocsQuery());
+    	try {
+    		for (Node n : hits) {
+    			// nodes with aliases come up once for each of their ids, but the builder ignores repeated ids
+    			builder.add((Long) n.getProperty(ottIdKey), n.getId(), OTTIdMap.LIVE);
+    			if (n.hasProperty(aliasesKey)) {
+    				for (long alias : (long[]) n.getProperty(aliasesKey)) {
+    					builder.add(alias, n.getId(), OTTIdMap.ALIAS);
+    				}
+    			}
+    		}
+    	} finally {
+    		hits.close();
+    	}
+
+    	hits = deprecatedTaxa.query(new MatchAllDocsQuery());
+    	try {
+    		for (Node n : hits) {
+    			builder.add((Long) n.getProperty(ottIdKey), n.getId(), OTTIdMap.DEPRECATED);
+    		}
+    	} finally {
+    		hits.close();
+    	}
+
+    	int size = builder.write(file, getRevision());
+    	System.out.println("wrote " + size + " ott ids to " + file.getPath());
+    	if (!builder.getAmbiguousIds().isEmpty()) {
+    		// these are looked up in the indexes instead, which report them as ambiguous
+    		System.out.println("** WARNING: " + builder.getAmbiguousIds().size() + " ott ids were found for more than one node and were "
+    				+ "left out of the map: " + builder.getAmbiguousIds());
+    	}
+    }
+
+    /**
+     * Write the source id table (see the SourceIdTable class) from the input sources of all the taxa in the ott id index, at
+     * the current revision of the taxonomy. The input sources are split into source ids the same way as when the source id
+     * index is built by TaxonomyLoaderOTT. Does nothing if the location of the database is not known.
+     * 
+     * @throws IOException
+     */
+    public void makeSourceIdTable() throws IOException {
+
+    	File file = getSourceIdTableFile();
+    	if (file == null) {
+    		System.out.println("the location of the graph database is not known, so no source id table will be built");
+    		return;
+    	}
+    	File tableDir = file.getParentFile();
+    	if (!tableDir.exists() && !tableDir.mkdirs()) {
+    		throw new IOException("could not create directory " + tableDir.getPath());
+    	}
+    	SourceIdTable.closeAll(tableDir);
+
+    	String ottIdKey = OTVocabularyPredicate.OT_OTT_ID.propertyName();
+    	String sourcesKey = TaxonomyProperty.INPUT_SOURCES.propertyName();
+    	SourceIdTable.Builder builder = new SourceIdTable.Builder();
+    	LongIntHashMap seen = new LongIntHashMap(1 << 20, 0); // nodes with aliases come up once for each of their ids
+
+    	IndexHits<Node> hits = taxaByOTTId.query(new MatchAllDocsQuery());
+    	try {
+    		for (Node n : hits) {
+    			if (seen.containsKey(n.getId()) || !n.hasProperty(sourcesKey)) {
+    				continue;
+    			}
+    			seen.put(n.getId(), 1);
+    			long ottId = (Long) n.getProperty(ottIdKey);
+    			for (String source : ((String) n.getProperty(sourcesKey)).split(",")) {
+    				if (source.contains(":") && !source.endsWith(":") && !source.startsWith("http")) {
+    					builder.add(source, ottId);
+    				}
+    			}
+    		}
+    	} finally {
+    		hits.close();
+    	}
+
+    	int size = builder.write(file, getRevision());
+    	System.out.println("wrote " + size + " source ids to " + file.getPath());
+    }
+
+    /**
+     * Assign each taxon in the preferred taxonomy tree its preorder and postorder numbers (see TaxonomyTree) and the size of
+     * its clade, and record the taxonomy revision at which they were assigned. Called by makeContexts(), and should be run again whenever the preferred
+     * relationships change. Taxa that are not connected to the root by preferred relationships are not numbered.
+     * 
+     * @return the tree the numbers were taken from, or null if there is no taxonomy root node
+     */
+    public TaxonomyTree numberPreferredTaxa() {
+
+    	Node rootNode = getTaxonomyRootNode();
+    	if (rootNode == null) {
+    		System.out.println("Could not find the taxonomy root node. Taxa will not be numbered.");
+    		return null;
+    	}
+
+    	System.out.println("numbering preferred taxa");
+    	TaxonomyTree tree = TaxonomyTree.build(rootNode, TaxonomyRelType.PREFTAXCHILDOF, getRevision());
+
+    	Transaction tx = beginTx();
+    	try {
+    		for (int i = 0; i < tree.size(); i++) {
+    			Node n = getNodeById(tree.getNodeId(i));
+    			n.setProperty(TaxonomyProperty.PREORDER_NUMBER.propertyName(), i);
+    			n.setProperty(TaxonomyProperty.POSTORDER_NUMBER.propertyName(), tree.getPostorder(i));
+    			n.setProperty(TaxonomyProperty.PREFERRED_CLADE_SIZE.propertyName(), tree.getSubtreeSize(i));
+
+    			if ((i + 1) % transaction_iter == 0) {
+    				tx.success();
+    				tx.finish();
+    				tx = beginTx();
+    			}
+    		}
+    		graphDb.setGraphProperty(TaxonomyProperty.PREORDER_NUMBERING_REVISION.propertyName(), tree.getRevision());
+    		tx.success();
+    	} finally {
+    		tx.finish();
+    	}
+    	System.out.println("numbered " + tree.size() + " taxa");
+
+    	return tree;
+    }
+
     /**
      * Uses preorder recursion for building indexes, so that least inclusive indexes are built last.
      * @param contextNode
@@ -656,6 +1115,7 @@ public class TaxonomySynthesizer extends Taxonomy {
         Index<Node> taxonByName = context.getNodeIndex(TaxonomyNodeIndex.TAXON_BY_NAME);
         Index<Node> taxonBySynonym = context.getNodeIndex(TaxonomyNodeIndex.TAXON_BY_SYNONYM);
         Index<Node> taxonByNameOrSynonym = context.getNodeIndex(TaxonomyNodeIndex.TAXON_BY_NAME_OR_SYNONYM);
+        Index<Node> taxonByNormalizedName = context.getNodeIndex(TaxonomyNodeIndex.TAXON_BY_NORMALIZED_NAME);
         Index<Node> synonymNodeBySynonym = context.getNodeIndex(TaxonomyNodeIndex.SYNONYM_NODES_BY_SYNONYM);
         Index<Node> synonymNodeBySynonymHigher = context.getNodeIndex(TaxonomyNodeIndex.SYNONYM_NODES_BY_SYNONYM_HIGHER);
 
@@ -672,6 +1132,7 @@ public class TaxonomySynthesizer extends Taxonomy {
         Index<Node> taxonByNameOrSynHigher = context.getNodeIndex(TaxonomyNodeIndex.TAXON_BY_NAME_OR_SYNONYM_HIGHER);
 
         String name = (String) node.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName());
+        String normalizedName = LatinNameNormalizer.getKey(name);
         String rank = null;
         if (node.hasProperty(TaxonomyProperty.RANK.propertyName())) {
         	rank = String.valueOf(node.getProperty(TaxonomyProperty.RANK.propertyName())).toLowerCase();
@@ -681,6 +1142,9 @@ public class TaxonomySynthesizer extends Taxonomy {
         
         taxonByName.add(node, OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), name);
         taxonByNameOrSynonym.add(node, OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), name);
+        if (normalizedName.length() > 0) {
+        	taxonByNormalizedName.add(node, TaxonomyProperty.NORMALIZED_NAME.propertyName(), normalizedName);
+        }
 
         if (rank != null) {
         	taxonByRank.add(node, TaxonomyProperty.RANK.propertyName(), rank);
@@ -717,6 +1181,7 @@ public class TaxonomySynthesizer extends Taxonomy {
 	        taxonByName = context.getNodeIndex(TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME);
 	        taxonBySynonym = context.getNodeIndex(TaxonomyNodeIndex.PREFERRED_TAXON_BY_SYNONYM);
 	        taxonByNameOrSynonym = context.getNodeIndex(TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME_OR_SYNONYM);
+	        taxonByNormalizedName = context.getNodeIndex(TaxonomyNodeIndex.PREFERRED_TAXON_BY_NORMALIZED_NAME);
 	        synonymNodeBySynonym = context.getNodeIndex(TaxonomyNodeIndex.PREFERRED_SYNONYM_NODES_BY_SYNONYM);
 	        synonymNodeBySynonymHigher = context.getNodeIndex(TaxonomyNodeIndex.PREFERRED_SYNONYM_NODES_BY_SYNONYM_HIGHER);
 	        
@@ -735,6 +1200,9 @@ public class TaxonomySynthesizer extends Taxonomy {
 	        // add the taxon node under its own name
 	        taxonByName.add(node, OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), name);
 	        taxonByNameOrSynonym.add(node, OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), name);
+	        if (normalizedName.length() > 0) {
+	        	taxonByNormalizedName.add(node, TaxonomyProperty.NORMALIZED_NAME.propertyName(), normalizedName);
+	        }
 	
 	        if (rank != null) {
 	        	taxonByRank.add(node, TaxonomyProperty.RANK.propertyName(), rank);
@@ -0,0 +1,475 @@
+package org.opentree.taxonomy;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.opentree.taxonomy.constants.TaxonomyRelType;
+
+/**
+ * An in-memory copy of the shape of one of the taxonomy trees (the TAXCHILDOF tree or the PREFTAXCHILDOF tree), held in
+ * primitive arrays, for answering questions about the positions of taxa in the tree without traversing the graph. Each
+ * node in the tree is identified by its position in a preorder traversal from the root of the taxonomy (its index).
+ *
+ * Least common ancestors are found with an Euler tour of the tree (the index of each node, written down every time the
+ * tour passes through it) and a range minimum structure over the tour. Every node visited by the tour between any two
+ * nodes is a descendant of their LCA, and descendants come after their ancestors in preorder, so the LCA is the node with
+ * the smallest index on that stretch of the tour. The minimum over the tour is found from a sparse table over the minima
+ * of blocks of BLOCK_SIZE positions, plus a scan of at most two partial blocks, so each query takes constant time. The LCA
+ * of a set of nodes is the LCA of the ones with the smallest and largest indexes, so it takes one pass over the set.
+ *
+ * Each node also has a postorder number, its position in a postorder traversal. A node is a descendant of another if and
+ * only if its preorder index is larger and its postorder number is smaller, so checking whether a taxon is within a clade
+ * takes two comparisons. TaxonomySynthesizer.numberPreferredTaxa() stores the numbers for the PREFTAXCHILDOF tree as node
+ * properties, so they can be checked without building the tree.
+ *
+ * The depth of each node is also recorded, so the number of edges on the path between two nodes is depth(a) + depth(b) -
+ * 2 * depth(LCA(a, b)), which takes constant time.
+ *
+ * Trees are built from the graph on a background thread the first time they are asked for with get(), which traverses
+ * the whole taxonomy, and then shared. get() returns null until the tree is ready, and callers must fall back to the graph
+ * (or the numbers stored by numberPreferredTaxa()) in the meantime, so no query waits for a build. When taxa are added to
+ * the graph, invalidate() must be called, after which the trees are built again the next time they are asked for. Nodes
+ * that are not connected to the root of the taxonomy by the tree's relationships (e.g. deprecated taxa) are not in the
+ * tree, and callers must fall back to traversing the graph for them. Once built, a tree is never changed, so it can be used
+ * from any number of threads.
+ */
+public class TaxonomyTree {
+
+	/** The number of positions in the Euler tour covered by each entry in the first level of the sparse table. */
+	private static final int BLOCK_SIZE = 32;
+
+	// trees are built once per database directory and relationship type and shared. they are looked up without locking,
+	// since that happens for most queries
+	private static final Map<String, TaxonomyTree> trees = new ConcurrentHashMap<String, TaxonomyTree>();
+	private static final Map<String, Boolean> building = new ConcurrentHashMap<String, Boolean>(); // builds in progress
+	private static final AtomicLong invalidations = new AtomicLong(); // trees built before an invalidation are not shared
+
+	private final TaxonomyRelType relType;
+	private final long revision;
+
+	private final long[] nodeIds; // by index
+	private final LongIntHashMap indexesByNodeId;
+
+	private final int[] postorder; // by index
+	private final int[] depth; // by index; the root has depth 0
+	private final int[] eulerTour;
+	private final int[] firstVisit; // the position of the first visit to each node in the Euler tour, by index
+	private final int[][] blockMinima; // blockMinima[k][b] is the smallest index in blocks b to b + 2^k - 1 of the tour
+
+	private TaxonomyTree(TaxonomyRelType relType, long revision, long[] nodeIds, int[] postorder, int[] depth, int[] eulerTour,
+			int[] firstVisit) {
+		this.relType = relType;
+		this.revision = revision;
+		this.nodeIds = nodeIds;
+		this.postorder = postorder;
+		this.depth = depth;
+		this.eulerTour = eulerTour;
+		this.firstVisit = firstVisit;
+
+		indexesByNodeId = new LongIntHashMap(nodeIds.length, -1);
+		for (int i = 0; i < nodeIds.length; i++) {
+			indexesByNodeId.put(nodeIds[i], i);
+		}
+
+		int blockCount = (eulerTour.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		int levels = 1;
+		while ((1 << levels) <= blockCount) {
+			levels++;
+		}
+		blockMinima = new int[levels][];
+		blockMinima[0] = new int[blockCount];
+		Arrays.fill(blockMinima[0], Integer.MAX_VALUE);
+		for (int p = 0; p < eulerTour.length; p++) {
+			blockMinima[0][p / BLOCK_SIZE] = Math.min(blockMinima[0][p / BLOCK_SIZE], eulerTour[p]);
+		}
+		for (int k = 1; k < levels; k++) {
+			int half = 1 << (k - 1);
+			blockMinima[k] = new int[blockCount - (1 << k) + 1];
+			for (int b = 0; b < blockMinima[k].length; b++) {
+				blockMinima[k][b] = Math.min(blockMinima[k - 1][b], blockMinima[k - 1][b + half]);
+			}
+		}
+	}
+
+	/**
+	 * Return the tree formed by the `relType` relationships (TAXCHILDOF or PREFTAXCHILDOF) of `taxonomy`, or null if it is
+	 * not ready yet. The first call for a taxonomy starts building the tree on a background thread. Also returns null if the
+	 * location of the database is not known (since the tree could not be shared), or if the taxonomy has no root node.
+	 *
+	 * @param taxonomy
+	 * @param relType
+	 * @return
+	 */
+	public static TaxonomyTree get(Taxonomy taxonomy, TaxonomyRelType relType) {
+		File storeDir = taxonomy.getStoreDir();
+		if (storeDir == null) {
+			return null;
+		}
+		String key = storeDir.getAbsolutePath() + "|" + relType;
+		TaxonomyTree tree = trees.get(key);
+		if (tree == null) {
+			startBuild(taxonomy, relType, key);
+		}
+		return tree;
+	}
+
+	/**
+	 * Forget the trees that have been built for `taxonomy`, so they are built again from the graph the next time they are
+	 * asked for. Must be called after taxa have been added to the graph and the transaction that added them has finished.
+	 *
+	 * @param taxonomy
+	 */
+	public static void invalidate(Taxonomy taxonomy) {
+		File storeDir = taxonomy.getStoreDir();
+		if (storeDir == null) {
+			return;
+		}
+		invalidations.incrementAndGet();
+		String prefix = storeDir.getAbsolutePath() + "|";
+		for (Iterator<String> keyIter = trees.keySet().iterator(); keyIter.hasNext(); ) {
+			if (keyIter.next().startsWith(prefix)) {
+				keyIter.remove();
+			}
+		}
+	}
+
+	private static void startBuild(final Taxonomy taxonomy, final TaxonomyRelType relType, final String key) {
+		if (building.put(key, Boolean.TRUE) != null) {
+			return; // already being built
+		}
+		Thread builder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					long invalidationCount = invalidations.get();
+					Node root = taxonomy.getTaxonomyRootNode();
+					if (root != null) {
+						TaxonomyTree tree = build(root, relType, taxonomy.getRevision());
+						// if taxa were added while we were building, the tree may be missing them, so build it again next time
+						if (invalidations.get() == invalidationCount) {
+							trees.put(key, tree);
+						}
+					}
+				} catch (RuntimeException ex) {
+					System.err.println("Could not build the " + relType + " tree: " + ex.getMessage());
+				} finally {
+					building.remove(key);
+				}
+			}
+		}, "taxonomy tree builder (" + relType + ")");
+		builder.setDaemon(true);
+		builder.start();
+	}
+
+	/**
+	 * Traverse the tree formed by `relType` relationships below `root`, recording the nodes in preorder and postorder, their
+	 * depths and the Euler tour, and return it labelled with `revision`. Trees built with this method are not shared; use get() to
+	 * obtain the shared tree for a taxonomy.
+	 *
+	 * @param root
+	 * @param relType
+	 * @param revision
+	 * @return
+	 */
+	static TaxonomyTree build(Node root, TaxonomyRelType relType, long revision) {
+
+		long[] nodeIds = new long[1024];
+		int nodeCount = 0;
+		int[] eulerTour = new int[2048];
+		int tourLength = 0;
+		int[] firstVisit = new int[1024];
+		int[] postorder = new int[1024];
+		int postorderCount = 0;
+		int[] depth = new int[1024];
+
+		// the path from the root to the current node, with the index of each node on it and the children still to visit
+		Node[] pathNodes = new Node[64];
+		int[] pathIndexes = new int[64];
+		@SuppressWarnings("unchecked")
+		Iterator<Relationship>[] pathChildren = new Iterator[64];
+		int pathLength = 0;
+
+		Node next = root;
+		while (next != null || pathLength > 0) {
+			if (next != null) {
+				// visit a node for the first time
+				if (nodeCount == nodeIds.length) {
+					nodeIds = Arrays.copyOf(nodeIds, nodeCount * 2);
+					firstVisit = Arrays.copyOf(firstVisit, nodeCount * 2);
+					postorder = Arrays.copyOf(postorder, nodeCount * 2);
+					depth = Arrays.copyOf(depth, nodeCount * 2);
+				}
+				if (pathLength == pathNodes.length) {
+					pathNodes = Arrays.copyOf(pathNodes, pathLength * 2);
+					pathIndexes = Arrays.copyOf(pathIndexes, pathLength * 2);
+					pathChildren = Arrays.copyOf(pathChildren, pathLength * 2);
+				}
+				nodeIds[nodeCount] = next.getId();
+				firstVisit[nodeCount] = tourLength;
+				depth[nodeCount] = pathLength;
+				pathNodes[pathLength] = next;
+				pathIndexes[pathLength] = nodeCount;
+				pathChildren[pathLength] = next.getRelationships(Direction.INCOMING, relType).iterator();
+				pathLength++;
+				nodeCount++;
+			} else {
+				// done with the node at the end of the path; go back to its parent
+				pathLength--;
+				postorder[pathIndexes[pathLength]] = postorderCount++;
+				pathNodes[pathLength] = null;
+				pathChildren[pathLength] = null;
+				if (pathLength == 0) {
+					break;
+				}
+			}
+
+			if (tourLength == eulerTour.length) {
+				eulerTour = Arrays.copyOf(eulerTour, tourLength * 2);
+			}
+			eulerTour[tourLength++] = pathIndexes[pathLength - 1];
+
+			Iterator<Relationship> children = pathChildren[pathLength - 1];
+			next = null;
+			while (next == null && children.hasNext()) {
+				Node child = children.next().getStartNode();
+				if (!child.equals(pathNodes[pathLength - 1])) { // guard against relationships from a node to itself
+					next = child;
+				}
+			}
+		}
+
+		return new TaxonomyTree(relType, revision, Arrays.copyOf(nodeIds, nodeCount), Arrays.copyOf(postorder, nodeCount),
+				Arrays.copyOf(depth, nodeCount), Arrays.copyOf(eulerTour, tourLength), Arrays.copyOf(firstVisit, nodeCount));
+	}
+
+	/**
+	 * Return the relationship type that forms this tree.
+	 * @return
+	 */
+	public TaxonomyRelType getRelType() {
+		return relType;
+	}
+
+	/**
+	 * Return the taxonomy revision (see Taxonomy.getRevision()) of the graph from which this tree was built.
+	 * @return
+	 */
+	public long getRevision() {
+		return revision;
+	}
+
+	/**
+	 * Return the number of nodes in the tree.
+	 * @return
+	 */
+	public int size() {
+		return nodeIds.length;
+	}
+
+	/**
+	 * Return the index of the node with id `nodeId`, or -1 if it is not in the tree.
+	 * @param nodeId
+	 * @return
+	 */
+	public int getIndex(long nodeId) {
+		return indexesByNodeId.get(nodeId);
+	}
+
+	/**
+	 * Return the id of the node at `index`.
+	 * @param index
+	 * @return
+	 */
+	public long getNodeId(int index) {
+		return nodeIds[index];
+	}
+
+	/**
+	 * Return the postorder number of the node at `index`.
+	 * @param index
+	 * @return
+	 */
+	public int getPostorder(int index) {
+		return postorder[index];
+	}
+
+	/**
+	 * Return the number of edges between the node at `index` and the root of the tree.
+	 * @param index
+	 * @return
+	 */
+	public int getDepth(int index) {
+		return depth[index];
+	}
+
+	/**
+	 * Return the number of nodes in the subtree below the node at `index`, including the node itself. The nodes before it in
+	 * preorder are its ancestors and the nodes to its left, and the nodes before it in postorder are its descendants and the
+	 * same nodes to its left, so the size is postorder - index + depth + 1.
+	 * @param index
+	 * @return
+	 */
+	public int getSubtreeSize(int index) {
+		return postorder[index] - index + depth[index] + 1;
+	}
+
+	/**
+	 * Return true if the node at index `a` is the node at index `b` or one of its descendants.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public boolean isWithin(int a, int b) {
+		return a >= b && postorder[a] <= postorder[b];
+	}
+
+	/**
+	 * Return true if the node with id `nodeId` is in the tree and is the node with id `ancestorId` or one of its descendants.
+	 * @param nodeId
+	 * @param ancestorId
+	 * @return
+	 */
+	public boolean isWithin(long nodeId, long ancestorId) {
+		int a = getIndex(nodeId);
+		int b = getIndex(ancestorId);
+		return a >= 0 && b >= 0 && isWithin(a, b);
+	}
+
+	/**
+	 * Return the index of the least common ancestor of the nodes at indexes `a` and `b`.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public int getLCA(int a, int b) {
+		int from = Math.min(firstVisit[a], firstVisit[b]);
+		int to = Math.max(firstVisit[a], firstVisit[b]);
+		return getTourMinimum(from, to);
+	}
+
+	/**
+	 * Return the index of the least common ancestor of the nodes at `indexes`, which must not be empty.
+	 * @param indexes
+	 * @return
+	 */
+	public int getLCA(int[] indexes) {
+		int min = indexes[0];
+		int max = indexes[0];
+		for (int index : indexes) {
+			min = Math.min(min, index);
+			max = Math.max(max, index);
+		}
+		return getLCA(min, max);
+	}
+
+	/**
+	 * Return the id of the least common ancestor of the nodes with ids `nodeIds`, which must not be empty, or -1 if any of
+	 * them is not in the tree.
+	 * @param nodeIds
+	 * @return
+	 */
+	public long getLCANodeId(long[] nodeIds) {
+		int[] indexes = new int[nodeIds.length];
+		for (int i = 0; i < nodeIds.length; i++) {
+			indexes[i] = getIndex(nodeIds[i]);
+			if (indexes[i] < 0) {
+				return -1;
+			}
+		}
+		return getNodeId(getLCA(indexes));
+	}
+
+	/**
+	 * Return the number of edges on the path between the nodes at indexes `a` and `b`, through their LCA.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public int getDistance(int a, int b) {
+		return depth[a] + depth[b] - 2 * depth[getLCA(a, b)];
+	}
+
+	/**
+	 * Return the number of edges on the path between the nodes with ids `nodeId1` and `nodeId2`, or -1 if either of them is
+	 * not in the tree.
+	 * @param nodeId1
+	 * @param nodeId2
+	 * @return
+	 */
+	public int getDistance(long nodeId1, long nodeId2) {
+		int a = getIndex(nodeId1);
+		int b = getIndex(nodeId2);
+		return a < 0 || b < 0 ? -1 : getDistance(a, b);
+	}
+
+	/**
+	 * Return the distance (see getDistance()) from the node at index `anchor` to each of the nodes at `indexes`, in the same
+	 * order.
+	 * @param anchor
+	 * @param indexes
+	 * @return
+	 */
+	public int[] getDistances(int anchor, int[] indexes) {
+		int[] distances = new int[indexes.length];
+		int anchorVisit = firstVisit[anchor];
+		int anchorDepth = depth[anchor];
+		for (int i = 0; i < indexes.length; i++) {
+			int visit = firstVisit[indexes[i]];
+			int lca = visit < anchorVisit ? getTourMinimum(visit, anchorVisit) : getTourMinimum(anchorVisit, visit);
+			distances[i] = anchorDepth + depth[indexes[i]] - 2 * depth[lca];
+		}
+		return distances;
+	}
+
+	/**
+	 * Return the distance (see getDistance()) from the node with id `anchorId` to each of the nodes with ids `nodeIds`, in
+	 * the same order. The distance is -1 for nodes that are not in the tree, and for all of them if the anchor is not.
+	 * @param anchorId
+	 * @param nodeIds
+	 * @return
+	 */
+	public int[] getDistances(long anchorId, long[] nodeIds) {
+		int[] distances = new int[nodeIds.length];
+		int anchor = getIndex(anchorId);
+		for (int i = 0; i < nodeIds.length; i++) {
+			int index = getIndex(nodeIds[i]);
+			distances[i] = anchor < 0 || index < 0 ? -1 : getDistance(anchor, index);
+		}
+		return distances;
+	}
+
+	/**
+	 * Return the smallest index in the Euler tour between positions `from` and `to`, inclusive.
+	 */
+	private int getTourMinimum(int from, int to) {
+		int firstBlock = from / BLOCK_SIZE;
+		int lastBlock = to / BLOCK_SIZE;
+		int min = Integer.MAX_VALUE;
+		if (lastBlock - firstBlock <= 1) {
+			for (int p = from; p <= to; p++) {
+				min = Math.min(min, eulerTour[p]);
+			}
+			return min;
+		}
+
+		// the partial blocks at either end, and the whole blocks in between from the sparse table
+		for (int p = from, end = (firstBlock + 1) * BLOCK_SIZE; p < end; p++) {
+			min = Math.min(min, eulerTour[p]);
+		}
+		for (int p = lastBlock * BLOCK_SIZE; p <= to; p++) {
+			min = Math.min(min, eulerTour[p]);
+		}
+		int low = firstBlock + 1;
+		int high = lastBlock - 1;
+		int k = 31 - Integer.numberOfLeadingZeros(high - low + 1);
+		min = Math.min(min, Math.min(blockMinima[k][low], blockMinima[k][high - (1 << k) + 1]));
+		return min;
+	}
+}
@@ -45,7 +45,17 @@ public enum TaxonomyProperty implements OTPropertyPredicate {
 	 * The OTT id of the genus that contains this taxon. Used for indexing.
 	 */
 	PARENT_GENUS_OTT_ID ("parent_genus_ott_id", Long.class),
+
+	/**
+	 * The normalized key for the name of the taxon, from LatinNameNormalizer. Used for indexing.
+	 */
+	NORMALIZED_NAME ("normalized_name", String.class),
 	
+	/**
+	 * The alias OTT ids (from the alias file) that have been indexed for this taxon, in addition to its own OTT id.
+	 */
+	OTT_ID_ALIASES ("ott_id_aliases", long[].class),
+
 	/**
 	 * For deprecated taxa; the reason for deprecation (or generally, could be used for any other purpose).
 	 */
@@ -71,6 +81,42 @@ public enum TaxonomyProperty implements OTPropertyPredicate {
 	 */
 	TAXONOMY_ROOT_NODE_ID ("taxonomy_root_node_id", String.class),
 
+	/**
+	 * A counter that is incremented whenever taxa are added to an existing taxonomy graph. Used to detect when structures
+	 * built from the graph (e.g. exact name dictionaries) are out of date. Assumed to be 0 if absent.
+	 */
+	TAXONOMY_REVISION ("taxonomy_revision", Long.class),
+
+	/**
+	 * The position of the taxon in a preorder traversal of the preferred taxonomy tree. Together with the postorder number,
+	 * this allows checking whether one taxon is within another without traversing the graph (see TaxonomyTree).
+	 */
+	PREORDER_NUMBER ("preorder_number", Integer.class),
+
+	/**
+	 * The position of the taxon in a postorder traversal of the preferred taxonomy tree.
+	 */
+	POSTORDER_NUMBER ("postorder_number", Integer.class),
+
+	/**
+	 * The number of taxa in the clade of the taxon in the preferred taxonomy tree, including the taxon itself. Assigned along
+	 * with the preorder and postorder numbers, and out of date whenever they are.
+	 */
+	PREFERRED_CLADE_SIZE ("preferred_clade_size", Integer.class),
+
+	/**
+	 * The taxonomy revision at which the preorder and postorder numbers were assigned. The numbers are out of date if this
+	 * differs from the current revision, or is absent.
+	 */
+	PREORDER_NUMBERING_REVISION ("preorder_numbering_revision", Long.class),
+
+	/**
+	 * The earliest taxonomy revision since which the graph has only gained taxa through additions (see Addition), so that
+	 * structures built at any revision from this one to the current one are only missing the added taxa. Set to the new
+	 * revision by any other change. Absent if the revision has never been incremented since this property was introduced.
+	 */
+	ADDITIONS_BASE_REVISION ("additions_base_revision", Long.class),
+
 	;
 
 	private String propertyName;
@@ -0,0 +1,201 @@
+package org.opentree.taxonomy.contexts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.opentree.taxonomy.ArtifactFiles;
+
+/**
+ * The terms of a SortedTermDictionary split into buckets by their length and their first character, each of which is a
+ * sorted term dictionary of its own. A term of length m can only be within k edits of a query of length n if |m - n| <= k,
+ * and its first character rules out more (see LevenshteinAutomatonFuzzyMatcher), so approximate matching can skip most
+ * of the buckets without looking at any of their terms, which a single dictionary walk cannot do.
+ *
+ * Bucketed dictionaries are written by TaxonomySynthesizer.makeSortedTermDictionaries() from the same terms as the sorted
+ * term dictionary for each index, and are memory-mapped when they are opened. The file starts with a header (magic number,
+ * format version, the taxonomy revision it was built from, and the number of buckets), followed by a table with the term
+ * length, first character, file offset and size of each bucket, in order of length and then first character, followed by
+ * the buckets, each of which is stored in the SortedTermDictionary file format.
+ *
+ * Dictionaries should always be obtained through TaxonomyContext.getBucketedTermDictionary(), which returns null if there
+ * is no dictionary for an index, or if the dictionary is out of date with the graph.
+ */
+public class BucketedTermDictionary {
+
+	/** The name of the directory (within the graph db directory) that holds the dictionary files. */
+	public static final String DIRECTORY_NAME = "bucketed_term_dictionaries";
+
+	/** The file extension for dictionary files. */
+	public static final String FILE_SUFFIX = ".buckets";
+
+	private static final int MAGIC = 0x4f544254; // "OTBT"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 20;
+	private static final int BUCKET_ENTRY_SIZE = 16;
+
+	private static final ArtifactFiles<BucketedTermDictionary> files = new ArtifactFiles<BucketedTermDictionary>("bucketed term dictionary",
+			new ArtifactFiles.Reader<BucketedTermDictionary>() {
+				@Override
+				public BucketedTermDictionary read(File file) throws IOException {
+					return new BucketedTermDictionary(ArtifactFiles.mapReadOnly(file));
+				}
+			});
+
+	private final long revision;
+	private final int[] lengths;
+	private final char[] firstChars;
+	private final SortedTermDictionary[] buckets;
+
+	private BucketedTermDictionary(ByteBuffer buffer) throws IOException {
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("not a bucketed term dictionary, or an unsupported version");
+		}
+		revision = buffer.getLong(8);
+		int bucketCount = buffer.getInt(16);
+		lengths = new int[bucketCount];
+		firstChars = new char[bucketCount];
+		buckets = new SortedTermDictionary[bucketCount];
+		for (int i = 0; i < bucketCount; i++) {
+			int entry = HEADER_SIZE + i * BUCKET_ENTRY_SIZE;
+			lengths[i] = buffer.getInt(entry);
+			firstChars[i] = (char) buffer.getInt(entry + 4);
+			ByteBuffer bucket = buffer.duplicate();
+			bucket.position(buffer.getInt(entry + 8));
+			bucket.limit(buffer.getInt(entry + 8) + buffer.getInt(entry + 12));
+			buckets[i] = SortedTermDictionary.wrap(bucket.slice());
+		}
+	}
+
+	/**
+	 * Open the dictionary stored in `file`, or return the one already opened from it (see ArtifactFiles). Returns null if the
+	 * file does not exist or cannot be read as a dictionary.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static BucketedTermDictionary open(File file) {
+		return files.open(file);
+	}
+
+	/**
+	 * Forget any dictionaries that have been opened from within `dir`, so that they will be reopened from disk the next
+	 * time they are used. Should be called after the dictionary files have been rewritten.
+	 *
+	 * @param dir
+	 */
+	public static void closeAll(File dir) {
+		files.closeAll(dir);
+	}
+
+	/**
+	 * Return the number of buckets in this dictionary. Only buckets with at least one term are stored.
+	 * @return
+	 */
+	public int getBucketCount() {
+		return buckets.length;
+	}
+
+	/**
+	 * Return the length of the terms in the bucket at position `bucket`. The buckets are in order of length, and then of
+	 * first character.
+	 * @param bucket
+	 * @return
+	 */
+	public int getBucketLength(int bucket) {
+		return lengths[bucket];
+	}
+
+	/**
+	 * Return the first character of the terms in the bucket at position `bucket`.
+	 * @param bucket
+	 * @return
+	 */
+	public char getBucketFirstChar(int bucket) {
+		return firstChars[bucket];
+	}
+
+	/**
+	 * Return the terms in the bucket at position `bucket`.
+	 * @param bucket
+	 * @return
+	 */
+	public SortedTermDictionary getBucket(int bucket) {
+		return buckets[bucket];
+	}
+
+	/**
+	 * Return the taxonomy revision (see Taxonomy.getRevision()) of the graph from which this dictionary was built.
+	 * @return
+	 */
+	public long getRevision() {
+		return revision;
+	}
+
+	/**
+	 * Write the terms and node ids that have been added to `terms` to `file` as a bucketed dictionary, recording `revision`
+	 * as the taxonomy revision it was built from. Empty terms are left out. The file is written to a temporary location
+	 * first and then moved into place.
+	 *
+	 * @param terms
+	 * @param file
+	 * @param revision
+	 * @throws IOException
+	 */
+	public static void write(SortedTermDictionary.Builder terms, File file, long revision) throws IOException {
+
+		// split the terms into buckets, keyed by length and then first character so they come out in the order of the table
+		TreeMap<Long, TreeMap<String, long[]>> bucketTerms = new TreeMap<Long, TreeMap<String, long[]>>();
+		for (Map.Entry<String, long[]> entry : terms.getIdsByTerm().entrySet()) {
+			String term = entry.getKey();
+			if (term.length() == 0) {
+				continue;
+			}
+			Long key = ((long) term.length() << 16) | term.charAt(0);
+			TreeMap<String, long[]> bucket = bucketTerms.get(key);
+			if (bucket == null) {
+				bucket = new TreeMap<String, long[]>();
+				bucketTerms.put(key, bucket);
+			}
+			bucket.put(term, entry.getValue());
+		}
+
+		// encode the buckets first, so their offsets are known before anything is written
+		ByteArrayOutputStream images = new ByteArrayOutputStream();
+		List<int[]> table = new ArrayList<int[]>();
+		long imagesStart = HEADER_SIZE + (long) bucketTerms.size() * BUCKET_ENTRY_SIZE;
+		for (Map.Entry<Long, TreeMap<String, long[]>> bucket : bucketTerms.entrySet()) {
+			int offset = images.size();
+			new SortedTermDictionary.Builder(bucket.getValue()).writeTo(images, revision);
+			if (imagesStart + images.size() > Integer.MAX_VALUE) {
+				throw new IOException("too many terms for a bucketed term dictionary: " + terms.size());
+			}
+			long key = bucket.getKey();
+			table.add(new int[] {(int) (key >>> 16), (int) (key & 0xffff), (int) imagesStart + offset, images.size() - offset});
+		}
+
+		DataOutputStream out = ArtifactFiles.createTempOutput(file);
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(revision);
+			out.writeInt(table.size());
+			for (int[] entry : table) {
+				for (int value : entry) {
+					out.writeInt(value);
+				}
+			}
+			images.writeTo(out);
+		} finally {
+			out.close();
+		}
+
+		ArtifactFiles.moveIntoPlace(file);
+	}
+}
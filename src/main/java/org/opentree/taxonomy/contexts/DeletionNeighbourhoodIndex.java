@@ -0,0 +1,449 @@
+package org.opentree.taxonomy.contexts;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opentree.taxonomy.ArtifactFiles;
+
+/**
+ * A read-only symmetric deletion index over the lowercased names recorded in one of the name indexes of one TaxonomyContext,
+ * used to find the candidates for approximate name matching without scanning the whole term dictionary of the Lucene index.
+ * Every name is recorded under each of the strings that can be made by deleting up to `maxDeletions` characters from its
+ * first `prefixLength` characters. A query is looked up under the same deletion variants of its own prefix, and every name
+ * found under any of them is a candidate. Any name within `maxDeletions` edits (insertions, deletions or substitutions) of
+ * the query shares at least one variant with it, so no match within that distance is missed; the candidates must then be
+ * checked against the actual edit distance, since most of them will be further away.
+ *
+ * Indexes are written to disk by TaxonomySynthesizer.makeDeletionNeighbourhoodIndexes(), which is called at the end of
+ * makeContexts(), and are memory-mapped when they are opened. The file starts with a header (magic number, format version,
+ * the taxonomy revision it was built from, the prefix length, the maximum number of deletions, and the numbers of names,
+ * variant groups, postings and name bytes), followed by the offsets of the names, the utf-8 bytes of the names in sorted
+ * order, the sorted hashes of the variants, the offsets of the postings for each variant hash, and the postings themselves
+ * (the ordinals of the names recorded under each hash). Variants are stored only by their hash, so a collision can add
+ * candidates but can never lose one.
+ *
+ * Indexes should always be obtained through TaxonomyContext.getDeletionNeighbourhoodIndex(), which returns null if there is
+ * no index, or if the index is out of date with the graph. In that case, callers should fall back to Lucene fuzzy queries.
+ */
+public class DeletionNeighbourhoodIndex {
+
+	/** The name of the directory (within the graph db directory) that holds the index files. */
+	public static final String DIRECTORY_NAME = "deletion_indexes";
+
+	/** The file extension for index files. */
+	public static final String FILE_SUFFIX = ".del";
+
+	/** The number of deletions recorded for each name unless another is specified. */
+	public static final int DEFAULT_MAX_DELETIONS = 2;
+
+	/** The number of leading characters of each name from which deletions are made unless another is specified. */
+	public static final int DEFAULT_PREFIX_LENGTH = 7;
+
+	private static final int MAGIC = 0x4f54444c; // "OTDL"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 40;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final ArtifactFiles<DeletionNeighbourhoodIndex> files = new ArtifactFiles<DeletionNeighbourhoodIndex>("deletion neighbourhood index",
+			new ArtifactFiles.Reader<DeletionNeighbourhoodIndex>() {
+				@Override
+				public DeletionNeighbourhoodIndex read(File file) throws IOException {
+					return new DeletionNeighbourhoodIndex(ArtifactFiles.mapReadOnly(file));
+				}
+			});
+
+	private final ByteBuffer buffer;
+	private final long revision;
+	private final int prefixLength;
+	private final int maxDeletions;
+	private final int termCount;
+	private final int groupCount;
+
+	// absolute offsets of the sections of the file
+	private final int termOffsetsStart;
+	private final int termBytesStart;
+	private final int groupHashesStart;
+	private final int groupStartsStart;
+	private final int postingsStart;
+
+	private final AtomicLong lookupCount = new AtomicLong();
+	private final AtomicLong candidateCount = new AtomicLong();
+
+	private DeletionNeighbourhoodIndex(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("not a deletion neighbourhood index, or an unsupported version");
+		}
+		revision = buffer.getLong(8);
+		prefixLength = buffer.getInt(16);
+		maxDeletions = buffer.getInt(20);
+		termCount = buffer.getInt(24);
+		groupCount = buffer.getInt(28);
+		int termBytesLength = buffer.getInt(36);
+
+		termOffsetsStart = HEADER_SIZE;
+		termBytesStart = termOffsetsStart + (termCount + 1) * 4;
+		groupHashesStart = termBytesStart + termBytesLength;
+		groupStartsStart = groupHashesStart + groupCount * 4;
+		postingsStart = groupStartsStart + (groupCount + 1) * 4;
+	}
+
+	/**
+	 * Open the index stored in `file`, or return the one already opened from it (see ArtifactFiles). Returns null if the
+	 * file does not exist or cannot be read as an index.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static DeletionNeighbourhoodIndex open(File file) {
+		return files.open(file);
+	}
+
+	/**
+	 * Forget any indexes that have been opened from within `dir`, so that they will be reopened from disk the next time
+	 * they are used. Should be called after the index files have been rewritten.
+	 *
+	 * @param dir
+	 */
+	public static void closeAll(File dir) {
+		files.closeAll(dir);
+	}
+
+	/**
+	 * Return a map from the file names of all the indexes that are currently open to their statistics (see getStatistics()).
+	 * @return
+	 */
+	public static Map<String, Map<String, Object>> getOpenIndexStatistics() {
+		Map<String, Map<String, Object>> stats = new LinkedHashMap<String, Map<String, Object>>();
+		for (Map.Entry<String, DeletionNeighbourhoodIndex> entry : files.getOpenArtifacts().entrySet()) {
+			stats.put(entry.getKey(), entry.getValue().getStatistics());
+		}
+		return stats;
+	}
+
+	/**
+	 * Return true if this index will find every name within `maxEdits` edits of a query, i.e. if it records at least that
+	 * many deletions.
+	 *
+	 * @param maxEdits
+	 * @return
+	 */
+	public boolean covers(int maxEdits) {
+		return maxEdits <= maxDeletions;
+	}
+
+	/**
+	 * Return the distinct names that share a deletion variant with `query`, which is expected to be lowercased. This includes
+	 * every name within getMaxDeletions() edits of the query, along with others that are further away and must be checked
+	 * by the caller.
+	 *
+	 * @param query
+	 * @return
+	 */
+	public List<String> getCandidates(String query) {
+		return getCandidates(getVariants(query));
+	}
+
+	/**
+	 * Return the distinct names that share one of `variants`, which should come from getVariants() on this index or on
+	 * another index with the same prefix length and maximum deletions. This lets the variants of a query be made once for
+	 * several indexes.
+	 *
+	 * @param variants
+	 * @return
+	 */
+	public List<String> getCandidates(Set<String> variants) {
+		lookupCount.incrementAndGet();
+
+		Set<Integer> ordinals = new HashSet<Integer>();
+		for (String variant : variants) {
+			int group = findGroup(hash(variant));
+			if (group < 0) {
+				continue;
+			}
+			int end = buffer.getInt(groupStartsStart + (group + 1) * 4);
+			for (int p = buffer.getInt(groupStartsStart + group * 4); p < end; p++) {
+				ordinals.add(buffer.getInt(postingsStart + p * 4));
+			}
+		}
+
+		List<String> candidates = new ArrayList<String>(ordinals.size());
+		for (int ordinal : ordinals) {
+			candidates.add(getTerm(ordinal));
+		}
+		candidateCount.addAndGet(candidates.size());
+		return candidates;
+	}
+
+	/**
+	 * Return the deletion variants of `query` that are looked up by getCandidates().
+	 *
+	 * @param query
+	 * @return
+	 */
+	public Set<String> getVariants(String query) {
+		return getVariants(query, prefixLength, maxDeletions);
+	}
+
+	/**
+	 * Return the number of distinct names in this index.
+	 * @return
+	 */
+	public int size() {
+		return termCount;
+	}
+
+	/**
+	 * Return the taxonomy revision (see Taxonomy.getRevision()) of the graph from which this index was built.
+	 * @return
+	 */
+	public long getRevision() {
+		return revision;
+	}
+
+	/**
+	 * Return the maximum number of deletions recorded for each name, which is the greatest edit distance at which this
+	 * index is guaranteed to find all the names near a query.
+	 * @return
+	 */
+	public int getMaxDeletions() {
+		return maxDeletions;
+	}
+
+	/**
+	 * Return the number of leading characters of each name from which the deletions were made.
+	 * @return
+	 */
+	public int getPrefixLength() {
+		return prefixLength;
+	}
+
+	/**
+	 * Return the size and settings of this index, and the number of lookups made in it and candidates returned.
+	 * @return
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("names", termCount);
+		stats.put("variant_hashes", groupCount);
+		stats.put("max_deletions", maxDeletions);
+		stats.put("prefix_length", prefixLength);
+		stats.put("revision", revision);
+		stats.put("lookups", lookupCount.get());
+		stats.put("candidates", candidateCount.get());
+		return stats;
+	}
+
+	private String getTerm(int ordinal) {
+		int start = buffer.getInt(termOffsetsStart + ordinal * 4);
+		byte[] bytes = new byte[buffer.getInt(termOffsetsStart + (ordinal + 1) * 4) - start];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(termBytesStart + start + i);
+		}
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Binary search for the group of postings recorded under `hash`. Returns -1 if there is none.
+	 */
+	private int findGroup(int hash) {
+		int low = 0;
+		int high = groupCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midHash = buffer.getInt(groupHashesStart + mid * 4);
+			if (midHash < hash) {
+				low = mid + 1;
+			} else if (midHash > hash) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the distinct strings that can be made by deleting up to `maxDeletions` characters from the first `prefixLength`
+	 * characters of `name` (including that prefix itself).
+	 */
+	static Set<String> getVariants(String name, int prefixLength, int maxDeletions) {
+		String prefix = name.length() > prefixLength ? name.substring(0, prefixLength) : name;
+		Set<String> variants = new HashSet<String>();
+		variants.add(prefix);
+
+		// each level holds the variants with one more deletion than the last
+		Set<String> level = variants;
+		for (int d = 0; d < maxDeletions; d++) {
+			Set<String> nextLevel = new HashSet<String>();
+			for (String s : level) {
+				for (int i = 0; i < s.length(); i++) {
+					String variant = s.substring(0, i) + s.substring(i + 1);
+					if (variants.add(variant)) {
+						nextLevel.add(variant);
+					}
+				}
+			}
+			level = nextLevel;
+		}
+		return variants;
+	}
+
+	/**
+	 * 32-bit FNV-1a hash over the characters of `s`
+	 */
+	private static int hash(String s) {
+		int h = 0x811c9dc5;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			h ^= (c & 0xff);
+			h *= 0x01000193;
+			h ^= (c >>> 8);
+			h *= 0x01000193;
+		}
+		return h;
+	}
+
+	/**
+	 * Collects names and writes them out as a deletion neighbourhood index file.
+	 */
+	public static class Builder {
+
+		private final Set<String> names = new HashSet<String>();
+		private final int prefixLength;
+		private final int maxDeletions;
+
+		public Builder() {
+			this(DEFAULT_PREFIX_LENGTH, DEFAULT_MAX_DELETIONS);
+		}
+
+		public Builder(int prefixLength, int maxDeletions) {
+			if (prefixLength < 1 || maxDeletions < 0) {
+				throw new IllegalArgumentException("the prefix length must be positive and the number of deletions must not be negative");
+			}
+			this.prefixLength = prefixLength;
+			this.maxDeletions = maxDeletions;
+		}
+
+		/**
+		 * Record `name`, which will be lowercased. Adding the same name more than once has no effect.
+		 * @param name
+		 */
+		public void add(String name) {
+			names.add(name.toLowerCase());
+		}
+
+		/**
+		 * Return the number of distinct names added so far.
+		 * @return
+		 */
+		public int size() {
+			return names.size();
+		}
+
+		/**
+		 * Write the index to `file`, recording `revision` as the taxonomy revision it was built from. The file is written to
+		 * a temporary location first and then moved into place.
+		 *
+		 * @param file
+		 * @param revision
+		 * @throws IOException
+		 */
+		public void write(File file, long revision) throws IOException {
+
+			// sort the names so the file layout does not depend on hash set iteration order
+			String[] sortedNames = names.toArray(new String[names.size()]);
+			Arrays.sort(sortedNames);
+
+			// pair the hash of each variant with the ordinal of its name, so that sorting groups the names by variant
+			byte[][] keys = new byte[sortedNames.length][];
+			long termBytesLength = 0;
+			long[] pairs = new long[sortedNames.length * 8];
+			int pairCount = 0;
+			for (int i = 0; i < sortedNames.length; i++) {
+				keys[i] = sortedNames[i].getBytes(UTF8);
+				termBytesLength += keys[i].length;
+				for (String variant : getVariants(sortedNames[i], prefixLength, maxDeletions)) {
+					if (pairCount == pairs.length) {
+						pairs = Arrays.copyOf(pairs, pairs.length + (pairs.length >> 1) + 1);
+					}
+					pairs[pairCount++] = ((long) hash(variant) << 32) | i;
+				}
+			}
+			Arrays.sort(pairs, 0, pairCount);
+
+			// collapse pairs that are repeated because two variants of the same name have the same hash
+			int postingCount = 0;
+			int groupCount = 0;
+			for (int p = 0; p < pairCount; p++) {
+				if (p == 0 || pairs[p] != pairs[p - 1]) {
+					if (p == 0 || (int) (pairs[p] >> 32) != (int) (pairs[p - 1] >> 32)) {
+						groupCount++;
+					}
+					pairs[postingCount++] = pairs[p];
+				}
+			}
+
+			long fileSize = HEADER_SIZE + (sortedNames.length + 1) * 4L + termBytesLength + groupCount * 4L + (groupCount + 1) * 4L
+					+ postingCount * 4L;
+			if (fileSize > Integer.MAX_VALUE) {
+				throw new IOException("too many names for a deletion neighbourhood index: " + sortedNames.length);
+			}
+
+			DataOutputStream out = ArtifactFiles.createTempOutput(file);
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(revision);
+				out.writeInt(prefixLength);
+				out.writeInt(maxDeletions);
+				out.writeInt(sortedNames.length);
+				out.writeInt(groupCount);
+				out.writeInt(postingCount);
+				out.writeInt((int) termBytesLength);
+
+				int offset = 0;
+				for (byte[] key : keys) {
+					out.writeInt(offset);
+					offset += key.length;
+				}
+				out.writeInt(offset);
+				for (byte[] key : keys) {
+					out.write(key);
+				}
+
+				// the hash of each group, then the position of its first posting
+				for (int p = 0; p < postingCount; p++) {
+					if (p == 0 || (int) (pairs[p] >> 32) != (int) (pairs[p - 1] >> 32)) {
+						out.writeInt((int) (pairs[p] >> 32));
+					}
+				}
+				for (int p = 0; p < postingCount; p++) {
+					if (p == 0 || (int) (pairs[p] >> 32) != (int) (pairs[p - 1] >> 32)) {
+						out.writeInt(p);
+					}
+				}
+				out.writeInt(postingCount);
+				for (int p = 0; p < postingCount; p++) {
+					out.writeInt((int) pairs[p]);
+				}
+			} finally {
+				out.close();
+			}
+
+			ArtifactFiles.moveIntoPlace(file);
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package org.opentree.taxonomy.contexts;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opentree.taxonomy.ArtifactFiles;
+
+/**
+ * A read-only dictionary that maps lowercased names to the ids of the nodes recorded under those names in one of the
+ * name indexes of one TaxonomyContext. Dictionaries are written to disk by the TaxonomySynthesizer.makeExactNameDictionaries()
+ * method, which is called by makeContexts(), and are memory-mapped when they are opened, so that they live outside of the java heap and are shared by all
+ * the queries that use them.
+ *
+ * Each dictionary file is an open-addressing hash table. The file starts with a header (magic number, format version, the
+ * taxonomy revision it was built from, number of slots, number of names), followed by the table of slots, each of which
+ * holds the file offset of its entry (or 0 if the slot is empty), followed by the entries themselves. Each entry contains
+ * the utf-8 bytes of the name and the ids of the nodes that were indexed under that name.
+ *
+ * Exact name lookups should always go through TaxonomyContext.getExactNameDictionary(), which will return null if there
+ * is no dictionary for an index, or if the dictionary is out of date with the graph. In that case, callers should fall back
+ * to the Lucene index itself.
+ */
+public class ExactNameDictionary {
+
+	/** The name of the directory (within the graph db directory) that holds the dictionary files. */
+	public static final String DIRECTORY_NAME = "exact_name_dictionaries";
+
+	/** The file extension for dictionary files. */
+	public static final String FILE_SUFFIX = ".dict";
+
+	private static final int MAGIC = 0x4f54444e; // "OTDN"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final long[] NO_HITS = new long[0];
+
+	private static final ArtifactFiles<ExactNameDictionary> files = new ArtifactFiles<ExactNameDictionary>("exact name dictionary",
+			new ArtifactFiles.Reader<ExactNameDictionary>() {
+				@Override
+				public ExactNameDictionary read(File file) throws IOException {
+					return new ExactNameDictionary(ArtifactFiles.mapReadOnly(file));
+				}
+			});
+
+	private final ByteBuffer buffer;
+	private final long revision;
+	private final int slotMask;
+	private final int size;
+
+	private ExactNameDictionary(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("not an exact name dictionary, or an unsupported version");
+		}
+		revision = buffer.getLong(8);
+		slotMask = buffer.getInt(16) - 1;
+		size = buffer.getInt(20);
+	}
+
+	/**
+	 * Open the dictionary stored in `file`, or return the one already opened from it (see ArtifactFiles). Returns null if the
+	 * file does not exist or cannot be read as a dictionary.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static ExactNameDictionary open(File file) {
+		return files.open(file);
+	}
+
+	/**
+	 * Forget any dictionaries that have been opened from within `dir`, so that they will be reopened from disk the next
+	 * time they are used. Should be called after the dictionary files have been rewritten.
+	 *
+	 * @param dir
+	 */
+	public static void closeAll(File dir) {
+		files.closeAll(dir);
+	}
+
+	/**
+	 * Return the ids of the nodes recorded under `name`, which is expected to be lowercased. If there are no nodes for
+	 * this name, an empty array is returned.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public long[] get(String name) {
+		byte[] key = name.getBytes(UTF8);
+		int slot = hash(key) & slotMask;
+		while (true) {
+			int entry = buffer.getInt(HEADER_SIZE + slot * 4);
+			if (entry == 0) {
+				return NO_HITS;
+			}
+			if (keyEquals(entry, key)) {
+				int idsStart = entry + 4 + key.length;
+				long[] ids = new long[buffer.getInt(idsStart)];
+				for (int i = 0; i < ids.length; i++) {
+					ids[i] = buffer.getLong(idsStart + 4 + i * 8);
+				}
+				return ids;
+			}
+			slot = (slot + 1) & slotMask;
+		}
+	}
+
+	/**
+	 * Return true if there are any nodes recorded under `name`, which is expected to be lowercased.
+	 * @param name
+	 * @return
+	 */
+	public boolean contains(String name) {
+		return get(name).length > 0;
+	}
+
+	/**
+	 * Return the number of distinct names in this dictionary.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Return the taxonomy revision (see Taxonomy.getRevision()) of the graph from which this dictionary was built.
+	 * @return
+	 */
+	public long getRevision() {
+		return revision;
+	}
+
+	private boolean keyEquals(int entry, byte[] key) {
+		if (buffer.getInt(entry) != key.length) {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (buffer.get(entry + 4 + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 32-bit FNV-1a hash
+	 */
+	private static int hash(byte[] key) {
+		int h = 0x811c9dc5;
+		for (byte b : key) {
+			h ^= (b & 0xff);
+			h *= 0x01000193;
+		}
+		return h;
+	}
+
+	/**
+	 * Collects names and node ids and writes them out as a dictionary file.
+	 */
+	public static class Builder {
+
+		private final Map<String, long[]> idsByName = new HashMap<String, long[]>();
+
+		/**
+		 * Record `nodeId` under `name`. The name will be lowercased. Adding the same id under the same name more than once
+		 * has no effect.
+		 *
+		 * @param name
+		 * @param nodeId
+		 */
+		public void add(String name, long nodeId) {
+			String key = name.toLowerCase();
+			long[] ids = idsByName.get(key);
+			if (ids == null) {
+				idsByName.put(key, new long[] {nodeId});
+			} else {
+				for (long id : ids) {
+					if (id == nodeId) {
+						return;
+					}
+				}
+				ids = Arrays.copyOf(ids, ids.length + 1);
+				ids[ids.length - 1] = nodeId;
+				idsByName.put(key, ids);
+			}
+		}
+
+		/**
+		 * Return the number of distinct names added so far.
+		 * @return
+		 */
+		public int size() {
+			return idsByName.size();
+		}
+
+		/**
+		 * Write the dictionary to `file`, recording `revision` as the taxonomy revision it was built from. The file is
+		 * written to a temporary location first and then moved into place.
+		 *
+		 * @param file
+		 * @param revision
+		 * @throws IOException
+		 */
+		public void write(File file, long revision) throws IOException {
+
+			// sort the names so the file layout does not depend on hash map iteration order
+			String[] names = idsByName.keySet().toArray(new String[idsByName.size()]);
+			Arrays.sort(names);
+
+			// use a table at most half full
+			int slotCount = 2;
+			while (slotCount < names.length * 2) {
+				slotCount <<= 1;
+			}
+			int slotMask = slotCount - 1;
+
+			// lay out the entries and assign them to slots
+			byte[][] keys = new byte[names.length][];
+			int[] slots = new int[slotCount];
+			long offset = HEADER_SIZE + (long) slotCount * 4;
+			for (int i = 0; i < names.length; i++) {
+				keys[i] = names[i].getBytes(UTF8);
+				if (offset > Integer.MAX_VALUE) {
+					throw new IOException("too many names for an exact name dictionary: " + names.length);
+				}
+				int slot = hash(keys[i]) & slotMask;
+				while (slots[slot] != 0) {
+					slot = (slot + 1) & slotMask;
+				}
+				slots[slot] = (int) offset;
+				offset += 4 + keys[i].length + 4 + idsByName.get(names[i]).length * 8;
+			}
+			if (offset > Integer.MAX_VALUE) {
+				throw new IOException("too many names for an exact name dictionary: " + names.length);
+			}
+
+			DataOutputStream out = ArtifactFiles.createTempOutput(file);
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(revision);
+				out.writeInt(slotCount);
+				out.writeInt(names.length);
+				for (int slot : slots) {
+					out.writeInt(slot);
+				}
+				for (int i = 0; i < names.length; i++) {
+					out.writeInt(keys[i].length);
+					out.write(keys[i]);
+					long[] ids = idsByName.get(names[i]);
+					out.writeInt(ids.length);
+					for (long id : ids) {
+						out.writeLong(id);
+					}
+				}
+			} finally {
+				out.close();
+			}
+
+			ArtifactFiles.moveIntoPlace(file);
+		}
+	}
+}
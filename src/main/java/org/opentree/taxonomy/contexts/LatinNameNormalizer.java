@@ -0,0 +1,88 @@
+package org.opentree.taxonomy.contexts;
+
+import java.text.Normalizer;
+
+/**
+ * Makes normalized keys for taxon names, in the spirit of the phonetic keys used by Taxamatch, so that names that only
+ * differ by the spelling variants that are common in latin names have the same key. To make the key, the name is lower
+ * cased and:
+ *
+ * - diacritics are removed and the ligatures æ and œ are spelled out,
+ * - anything other than letters and spaces is removed,
+ * - the gender endings (-us, -a, -um, -is, -e and a few others) are removed from every word but the first,
+ * - ae and oe are replaced by e, and y by i,
+ * - repeated letters are collapsed to a single letter.
+ *
+ * The keys are recorded in the TAXON_BY_NORMALIZED_NAME indexes by TaxonomySynthesizer.addToIndexes(), and used by
+ * MultiNameContextQuery to find approximate matches for names without exact matches before falling back to fuzzy matching.
+ * The keys are only used for lookups, so changing the normalization requires the indexes to be rebuilt.
+ */
+public class LatinNameNormalizer {
+
+	/** The endings removed from the epithets, longest first so that e.g. -ius is not only stripped down to -i. */
+	private static final String[] EPITHET_ENDINGS = {"ius", "ium", "ia", "us", "um", "is", "os", "on", "es", "a", "e"};
+
+	/** The shortest stem that can be left after an ending is removed. */
+	private static final int MIN_STEM_LENGTH = 3;
+
+	private LatinNameNormalizer() {}
+
+	/**
+	 * Return the normalized key for `name`, which is empty if the name has no letters.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public static String getKey(String name) {
+
+		String decomposed = Normalizer.normalize(name.toLowerCase().replace("æ", "ae").replace("œ", "oe"), Normalizer.Form.NFD);
+
+		StringBuilder key = new StringBuilder();
+		StringBuilder word = new StringBuilder();
+		boolean firstWord = true;
+		for (int i = 0; i <= decomposed.length(); i++) {
+			char c = i < decomposed.length() ? decomposed.charAt(i) : ' ';
+			if (Character.isLetter(c)) {
+				word.append(c);
+			} else if (Character.isWhitespace(c) && word.length() > 0) {
+				if (!firstWord) {
+					removeEnding(word);
+					key.append(' ');
+				}
+				key.append(normalizeSpelling(word));
+				word.setLength(0);
+				firstWord = false;
+			}
+			// combining marks and punctuation are dropped
+		}
+		return key.toString();
+	}
+
+	private static void removeEnding(StringBuilder word) {
+		for (String ending : EPITHET_ENDINGS) {
+			int stemLength = word.length() - ending.length();
+			if (stemLength >= MIN_STEM_LENGTH && word.indexOf(ending, stemLength) == stemLength) {
+				word.setLength(stemLength);
+				return;
+			}
+		}
+	}
+
+	private static String normalizeSpelling(StringBuilder word) {
+		StringBuilder normalized = new StringBuilder(word.length());
+		for (int i = 0; i < word.length(); i++) {
+			char c = word.charAt(i);
+			char next = i + 1 < word.length() ? word.charAt(i + 1) : 0;
+			if ((c == 'a' || c == 'o') && next == 'e') {
+				c = 'e';
+				i++;
+			} else if (c == 'y') {
+				c = 'i';
+			}
+			if (normalized.length() == 0 || normalized.charAt(normalized.length() - 1) != c) {
+				normalized.append(c);
+			}
+		}
+		return normalized.toString();
+	}
+}
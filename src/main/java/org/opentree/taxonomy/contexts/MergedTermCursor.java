@@ -0,0 +1,91 @@
+package org.opentree.taxonomy.contexts;
+
+/**
+ * A cursor over the union of the terms of several SortedTermDictionaries, in the same order as the cursor of a single
+ * dictionary. Each term is visited once, however many of the dictionaries contain it, and the dictionaries that contain
+ * the current term (identified by their position in the array given to the constructor) can be checked with contains().
+ * This lets a matcher enumerate the terms of several indexes in one pass. Like a TermCursor, a new cursor is positioned
+ * before the first term.
+ */
+public class MergedTermCursor {
+
+	private final SortedTermDictionary.TermCursor[] cursors;
+	private final String[] terms; // the current term of each cursor, or null if it has no more terms
+	private boolean started = false;
+	private String term;
+
+	public MergedTermCursor(SortedTermDictionary[] dictionaries) {
+		cursors = new SortedTermDictionary.TermCursor[dictionaries.length];
+		terms = new String[dictionaries.length];
+		for (int i = 0; i < dictionaries.length; i++) {
+			cursors[i] = dictionaries[i].cursor();
+		}
+	}
+
+	/**
+	 * Move to the next term. Returns false if there are no more terms in any of the dictionaries.
+	 * @return
+	 */
+	public boolean next() {
+		for (int i = 0; i < cursors.length; i++) {
+			if (!started || (terms[i] != null && terms[i].equals(term))) {
+				terms[i] = cursors[i].next() ? cursors[i].term() : null;
+			}
+		}
+		started = true;
+		return updateTerm();
+	}
+
+	/**
+	 * Move to the first term that is greater than or equal to `target`. Returns false if there is no such term in any of
+	 * the dictionaries.
+	 * @param target
+	 * @return
+	 */
+	public boolean seek(String target) {
+		for (int i = 0; i < cursors.length; i++) {
+			if (!started || (terms[i] != null && terms[i].compareTo(target) < 0)) {
+				terms[i] = cursors[i].seek(target) ? cursors[i].term() : null;
+			}
+		}
+		started = true;
+		return updateTerm();
+	}
+
+	/**
+	 * Return the current term.
+	 * @return
+	 */
+	public String term() {
+		return term;
+	}
+
+	/**
+	 * Return true if the dictionary at position `dictionary` contains the current term.
+	 * @param dictionary
+	 * @return
+	 */
+	public boolean contains(int dictionary) {
+		return term != null && term.equals(terms[dictionary]);
+	}
+
+	/**
+	 * Return the ids of the nodes recorded under the current term in the dictionary at position `dictionary`, which must
+	 * contain it.
+	 * @param dictionary
+	 * @return
+	 */
+	public long[] nodeIds(int dictionary) {
+		return cursors[dictionary].nodeIds();
+	}
+
+	private boolean updateTerm() {
+		term = null;
+		for (String t : terms) {
+			if (t != null && (term == null || t.compareTo(term) < 0)) {
+				term = t;
+			}
+		}
+		return term != null;
+	}
+}
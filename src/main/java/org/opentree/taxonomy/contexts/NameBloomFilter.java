@@ -0,0 +1,279 @@
+package org.opentree.taxonomy.contexts;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opentree.taxonomy.ArtifactFiles;
+
+/**
+ * A Bloom filter over the lowercased names recorded in one of the name indexes of one TaxonomyContext. It is used to
+ * skip exact lookups for names that are definitely not in the index: if mightContain() returns false, the index has no
+ * entries for the name. If it returns true, the name is probably in the index, and the index must be checked.
+ *
+ * Filters are written to disk by Taxonomy.makeNameBloomFilters(), which is called by TaxonomySynthesizer.makeQueryFiles()
+ * at the end of makeContexts() and after deprecated taxa are added. The file contains a header (magic number, format version, the taxonomy revision
+ * it was built from, the number of hash functions, the number of bits, the number of names, and the false positive rate
+ * the filter was sized for) followed by the bits themselves. Filters are small (about 10 bits per name at a 1% false
+ * positive rate), so they are read into memory when they are opened.
+ *
+ * Filters should always be obtained through TaxonomyContext.getNameBloomFilter(), which returns null if there is no filter
+ * for an index or if the filter is out of date with the graph, since names added since then would be reported as missing.
+ */
+public class NameBloomFilter {
+
+	/** The name of the directory (within the graph db directory) that holds the filter files. */
+	public static final String DIRECTORY_NAME = "name_bloom_filters";
+
+	/** The file extension for filter files. */
+	public static final String FILE_SUFFIX = ".bloom";
+
+	/** The false positive rate filters are built for unless another is specified. */
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+	private static final int MAGIC = 0x4f54424c; // "OTBL"
+	private static final int VERSION = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final ArtifactFiles<NameBloomFilter> files = new ArtifactFiles<NameBloomFilter>("name bloom filter",
+			new ArtifactFiles.Reader<NameBloomFilter>() {
+				@Override
+				public NameBloomFilter read(File file) throws IOException {
+					return readFilter(file);
+				}
+			});
+
+	private final long[] bits;
+	private final long bitCount;
+	private final int hashCount;
+	private final double falsePositiveRate;
+	private final long revision;
+	private int size;
+
+	private final AtomicLong checkCount = new AtomicLong();
+	private final AtomicLong definiteMissCount = new AtomicLong();
+
+	private NameBloomFilter(int expectedSize, double falsePositiveRate) {
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("the false positive rate must be between 0 and 1");
+		}
+		int n = Math.max(expectedSize, 1);
+		double ln2 = Math.log(2);
+		long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (ln2 * ln2));
+		this.bits = new long[(int) ((Math.max(m, 64) + 63) / 64)];
+		this.bitCount = bits.length * 64L;
+		this.hashCount = Math.max(1, (int) Math.round((double) bitCount / n * ln2));
+		this.size = 0;
+		this.falsePositiveRate = falsePositiveRate;
+		this.revision = 0;
+	}
+
+	private NameBloomFilter(long[] bits, int hashCount, int size, double falsePositiveRate, long revision) {
+		this.bits = bits;
+		this.bitCount = bits.length * 64L;
+		this.hashCount = hashCount;
+		this.size = size;
+		this.falsePositiveRate = falsePositiveRate;
+		this.revision = revision;
+	}
+
+	/**
+	 * Build a filter containing all of `names`, which will be lowercased.
+	 * @param names
+	 * @param falsePositiveRate
+	 * @return
+	 */
+	public static NameBloomFilter build(Collection<String> names, double falsePositiveRate) {
+		NameBloomFilter filter = new NameBloomFilter(names.size(), falsePositiveRate);
+		for (String name : names) {
+			filter.add(name.toLowerCase());
+		}
+		return filter;
+	}
+
+	/**
+	 * Open the filter stored in `file`, or return the one already opened from it (see ArtifactFiles). Returns null if the
+	 * file does not exist or cannot be read as a filter.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static NameBloomFilter open(File file) {
+		return files.open(file);
+	}
+
+	private static NameBloomFilter readFilter(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("not a name bloom filter, or an unsupported version");
+			}
+			long revision = in.readLong();
+			int hashCount = in.readInt();
+			long[] bits = new long[in.readInt()];
+			int size = in.readInt();
+			double falsePositiveRate = in.readDouble();
+			for (int i = 0; i < bits.length; i++) {
+				bits[i] = in.readLong();
+			}
+			return new NameBloomFilter(bits, hashCount, size, falsePositiveRate, revision);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Forget any filters that have been opened from within `dir`, so that they will be reread from disk the next time
+	 * they are used. Should be called after the filter files have been rewritten.
+	 *
+	 * @param dir
+	 */
+	public static void closeAll(File dir) {
+		files.closeAll(dir);
+	}
+
+	/**
+	 * Return a map from the file names of all the filters that are currently open to their statistics (see getStatistics()).
+	 * @return
+	 */
+	public static Map<String, Map<String, Object>> getOpenFilterStatistics() {
+		Map<String, Map<String, Object>> stats = new LinkedHashMap<String, Map<String, Object>>();
+		for (Map.Entry<String, NameBloomFilter> entry : files.getOpenArtifacts().entrySet()) {
+			stats.put(entry.getKey(), entry.getValue().getStatistics());
+		}
+		return stats;
+	}
+
+	/**
+	 * Return false if `name` (which is expected to be lowercased) is definitely not in this filter, and true if it
+	 * probably is.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public boolean mightContain(String name) {
+		checkCount.incrementAndGet();
+		long hash = hash(name.getBytes(UTF8));
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < hashCount; i++) {
+			long bit = ((h1 + i * h2) & 0x7fffffffL) % bitCount;
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				definiteMissCount.incrementAndGet();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void add(String name) {
+		long hash = hash(name.getBytes(UTF8));
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < hashCount; i++) {
+			long bit = ((h1 + i * h2) & 0x7fffffffL) % bitCount;
+			bits[(int) (bit >>> 6)] |= (1L << bit);
+		}
+		size++;
+	}
+
+	/**
+	 * Write this filter to `file`, recording `revision` as the taxonomy revision it was built from.
+	 *
+	 * @param file
+	 * @param revision
+	 * @throws IOException
+	 */
+	public void write(File file, long revision) throws IOException {
+		DataOutputStream out = ArtifactFiles.createTempOutput(file);
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(revision);
+			out.writeInt(hashCount);
+			out.writeInt(bits.length);
+			out.writeInt(size);
+			out.writeDouble(falsePositiveRate);
+			for (long word : bits) {
+				out.writeLong(word);
+			}
+		} finally {
+			out.close();
+		}
+
+		ArtifactFiles.moveIntoPlace(file);
+	}
+
+	/**
+	 * Return the number of names in this filter.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Return the taxonomy revision (see Taxonomy.getRevision()) of the graph from which this filter was built.
+	 * @return
+	 */
+	public long getRevision() {
+		return revision;
+	}
+
+	/**
+	 * Return the false positive rate this filter was sized for.
+	 * @return
+	 */
+	public double getFalsePositiveRate() {
+		return falsePositiveRate;
+	}
+
+	/**
+	 * Return the false positive rate expected from the actual number of bits, hash functions, and names in this filter.
+	 * @return
+	 */
+	public double getExpectedFalsePositiveRate() {
+		return Math.pow(1 - Math.exp(-(double) hashCount * size / bitCount), hashCount);
+	}
+
+	/**
+	 * Return the number of names checked against this filter, and how many of them were definite misses.
+	 * @return
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("names", size);
+		stats.put("bits", bitCount);
+		stats.put("hash_functions", hashCount);
+		stats.put("false_positive_rate", falsePositiveRate);
+		stats.put("expected_false_positive_rate", getExpectedFalsePositiveRate());
+		stats.put("revision", revision);
+		stats.put("checks", checkCount.get());
+		stats.put("definite_misses", definiteMissCount.get());
+		return stats;
+	}
+
+	/**
+	 * 64-bit FNV-1a hash, with a final mix so that both halves can be used as independent hashes
+	 */
+	private static long hash(byte[] key) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : key) {
+			h ^= (b & 0xff);
+			h *= 0x100000001b3L;
+		}
+		h ^= (h >>> 33);
+		h *= 0xff51afd7ed558ccdL;
+		h ^= (h >>> 33);
+		return h;
+	}
+}
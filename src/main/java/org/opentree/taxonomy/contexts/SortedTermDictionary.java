@@ -0,0 +1,477 @@
+package org.opentree.taxonomy.contexts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.opentree.taxonomy.ArtifactFiles;
+
+/**
+ * A read-only dictionary of the lowercased names (terms) recorded in one of the name indexes of one TaxonomyContext, in
+ * sorted order, with the ids of the nodes recorded under each one. Unlike the ExactNameDictionary, which only supports
+ * lookups of whole names, this dictionary can be walked in order from any point, which is what approximate matching
+ * needs: a matcher can skip over every term that starts with a prefix it has ruled out by seeking to the first term past
+ * that prefix.
+ *
+ * Dictionaries are written to disk by TaxonomySynthesizer.makeSortedTermDictionaries(), which is called at the end of
+ * makeContexts(), and are memory-mapped when they are opened. The terms are front-coded in blocks of BLOCK_SIZE: the first
+ * term of each block is stored whole and the others as the number of leading characters they share with the term before
+ * them plus the rest of the term. The file starts with a header (magic number, format version, the taxonomy revision it
+ * was built from, the number of terms and the number of blocks), followed by the file offset of each block, followed by
+ * the blocks. Each entry in a block holds the shared prefix length, the utf-8 bytes of the rest of the term, and the node
+ * ids (delta-coded), with all numbers written as variable-length integers.
+ *
+ * Dictionaries should always be obtained through TaxonomyContext.getSortedTermDictionary(), which returns null if there is
+ * no dictionary for an index, or if the dictionary is out of date with the graph.
+ */
+public class SortedTermDictionary {
+
+	/** The name of the directory (within the graph db directory) that holds the dictionary files. */
+	public static final String DIRECTORY_NAME = "sorted_term_dictionaries";
+
+	/** The file extension for dictionary files. */
+	public static final String FILE_SUFFIX = ".terms";
+
+	/** The number of terms in each front-coded block. */
+	public static final int BLOCK_SIZE = 16;
+
+	private static final int MAGIC = 0x4f545354; // "OTST"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final ArtifactFiles<SortedTermDictionary> files = new ArtifactFiles<SortedTermDictionary>("sorted term dictionary",
+			new ArtifactFiles.Reader<SortedTermDictionary>() {
+				@Override
+				public SortedTermDictionary read(File file) throws IOException {
+					return new SortedTermDictionary(ArtifactFiles.mapReadOnly(file));
+				}
+			});
+
+	private final ByteBuffer buffer;
+	private final long revision;
+	private final int termCount;
+	private final int blockCount;
+
+	private SortedTermDictionary(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("not a sorted term dictionary, or an unsupported version");
+		}
+		revision = buffer.getLong(8);
+		termCount = buffer.getInt(16);
+		blockCount = buffer.getInt(20);
+	}
+
+	/**
+	 * Open the dictionary stored in `file`, or return the one already opened from it (see ArtifactFiles). Returns null if the
+	 * file does not exist or cannot be read as a dictionary.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static SortedTermDictionary open(File file) {
+		return files.open(file);
+	}
+
+	/**
+	 * Return a dictionary over the dictionary image in `buffer`, which starts at position 0 of the buffer. Used by
+	 * BucketedTermDictionary, whose buckets are stored as dictionary images within a single file.
+	 *
+	 * @param buffer
+	 * @return
+	 * @throws IOException if the buffer does not hold a dictionary
+	 */
+	static SortedTermDictionary wrap(ByteBuffer buffer) throws IOException {
+		return new SortedTermDictionary(buffer);
+	}
+
+	/**
+	 * Forget any dictionaries that have been opened from within `dir`, so that they will be reopened from disk the next
+	 * time they are used. Should be called after the dictionary files have been rewritten.
+	 *
+	 * @param dir
+	 */
+	public static void closeAll(File dir) {
+		files.closeAll(dir);
+	}
+
+	/**
+	 * Return a new cursor over the terms of this dictionary. Cursors are cheap, and are not thread safe, so each thread
+	 * should use its own.
+	 * @return
+	 */
+	public TermCursor cursor() {
+		return new TermCursor();
+	}
+
+	/**
+	 * Return the number of distinct terms in this dictionary.
+	 * @return
+	 */
+	public int size() {
+		return termCount;
+	}
+
+	/**
+	 * Return the taxonomy revision (see Taxonomy.getRevision()) of the graph from which this dictionary was built.
+	 * @return
+	 */
+	public long getRevision() {
+		return revision;
+	}
+
+	/**
+	 * A position in the dictionary. A new cursor is positioned before the first term; call next() or seek() to move it
+	 * onto a term.
+	 */
+	public class TermCursor {
+
+		private final StringBuilder term = new StringBuilder();
+		private int ordinal = -1;
+		private int position;     // the offset of the next entry to read
+		private int idsPosition;  // the offset of the node ids of the current term
+		private int idCount;
+
+		private TermCursor() {
+			position = blockCount > 0 ? getBlockOffset(0) : 0;
+		}
+
+		/**
+		 * Move to the next term. Returns false if there are no more terms.
+		 * @return
+		 */
+		public boolean next() {
+			if (ordinal + 1 >= termCount) {
+				ordinal = termCount;
+				return false;
+			}
+			readEntry();
+			return true;
+		}
+
+		/**
+		 * Move to the first term that is greater than or equal to `target`, comparing as String.compareTo() does. Returns
+		 * false if there is no such term. Seeking forward from the current term is cheapest when the target is close by.
+		 * @param target
+		 * @return
+		 */
+		public boolean seek(String target) {
+			if (termCount == 0) {
+				return false;
+			}
+
+			// find the last block whose first term is not after the target. when moving forward, search outwards from the
+			// current block first, since matchers usually skip ahead by only a few blocks
+			int low = 0;
+			int high = blockCount - 1;
+			if (ordinal >= 0 && ordinal < termCount && compareTo(target) < 0) {
+				low = ordinal / BLOCK_SIZE;
+				int step = 1;
+				while (low + step <= high) {
+					readFirstEntry(low + step);
+					if (compareTo(target) > 0) {
+						high = low + step - 1;
+						break;
+					}
+					low += step;
+					step <<= 1;
+				}
+			}
+			int block = low;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				readFirstEntry(mid);
+				if (compareTo(target) <= 0) {
+					block = mid;
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+
+			// and scan forward from there
+			moveToBlock(block);
+			while (next()) {
+				if (compareTo(target) >= 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Return the current term.
+		 * @return
+		 */
+		public String term() {
+			return term.toString();
+		}
+
+		/**
+		 * Return the position of the current term in the dictionary, counting from 0.
+		 * @return
+		 */
+		public int getOrdinal() {
+			return ordinal;
+		}
+
+		/**
+		 * Return the ids of the nodes recorded under the current term.
+		 * @return
+		 */
+		public long[] nodeIds() {
+			long[] ids = new long[idCount];
+			int p = idsPosition;
+			long id = 0;
+			for (int i = 0; i < idCount; i++) {
+				long delta = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = buffer.get(p++);
+					delta |= (long) (b & 0x7f) << shift;
+					shift += 7;
+				} while (b < 0);
+				id += delta;
+				ids[i] = id;
+			}
+			return ids;
+		}
+
+		/**
+		 * Compare the current term with `other`, as String.compareTo() would.
+		 */
+		private int compareTo(String other) {
+			int max = Math.min(term.length(), other.length());
+			for (int i = 0; i < max; i++) {
+				int diff = term.charAt(i) - other.charAt(i);
+				if (diff != 0) {
+					return diff;
+				}
+			}
+			return term.length() - other.length();
+		}
+
+		private void readFirstEntry(int block) {
+			moveToBlock(block);
+			readEntry();
+		}
+
+		private void moveToBlock(int block) {
+			position = getBlockOffset(block);
+			ordinal = block * BLOCK_SIZE - 1;
+		}
+
+		private void readEntry() {
+			int shared = readVInt();
+			int suffixEnd = readVInt();
+			suffixEnd += position;
+			term.setLength(shared);
+
+			// decode the utf-8 suffix directly onto the shared prefix
+			while (position < suffixEnd) {
+				int b = buffer.get(position++) & 0xff;
+				if (b < 0x80) {
+					term.append((char) b);
+				} else if (b < 0xe0) {
+					term.append((char) (((b & 0x1f) << 6) | (buffer.get(position++) & 0x3f)));
+				} else if (b < 0xf0) {
+					term.append((char) (((b & 0x0f) << 12) | ((buffer.get(position++) & 0x3f) << 6) | (buffer.get(position++) & 0x3f)));
+				} else {
+					int codePoint = ((b & 0x07) << 18) | ((buffer.get(position++) & 0x3f) << 12)
+							| ((buffer.get(position++) & 0x3f) << 6) | (buffer.get(position++) & 0x3f);
+					term.appendCodePoint(codePoint);
+				}
+			}
+
+			idCount = readVInt();
+			int idsLength = readVInt();
+			idsPosition = position;
+			position += idsLength;
+			ordinal++;
+		}
+
+		private int readVInt() {
+			int value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = buffer.get(position++);
+				value |= (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			return value;
+		}
+	}
+
+	private int getBlockOffset(int block) {
+		return buffer.getInt(HEADER_SIZE + block * 4);
+	}
+
+	/**
+	 * Collects terms and node ids and writes them out as a dictionary file.
+	 */
+	public static class Builder {
+
+		private final TreeMap<String, long[]> idsByTerm;
+
+		public Builder() {
+			this(new TreeMap<String, long[]>());
+		}
+
+		/**
+		 * Create a builder holding the terms and ids in `idsByTerm`, which are shared with it rather than copied.
+		 */
+		Builder(TreeMap<String, long[]> idsByTerm) {
+			this.idsByTerm = idsByTerm;
+		}
+
+		/**
+		 * Record `nodeId` under `term`. The term will be lowercased. Adding the same id under the same term more than once
+		 * has no effect.
+		 *
+		 * @param term
+		 * @param nodeId
+		 */
+		public void add(String term, long nodeId) {
+			String key = term.toLowerCase();
+			long[] ids = idsByTerm.get(key);
+			if (ids == null) {
+				idsByTerm.put(key, new long[] {nodeId});
+			} else {
+				for (long id : ids) {
+					if (id == nodeId) {
+						return;
+					}
+				}
+				ids = Arrays.copyOf(ids, ids.length + 1);
+				ids[ids.length - 1] = nodeId;
+				idsByTerm.put(key, ids);
+			}
+		}
+
+		/**
+		 * Return the number of distinct terms added so far.
+		 * @return
+		 */
+		public int size() {
+			return idsByTerm.size();
+		}
+
+		/**
+		 * Return the terms added so far, with the ids recorded under each, in sorted order. The map must not be changed.
+		 */
+		TreeMap<String, long[]> getIdsByTerm() {
+			return idsByTerm;
+		}
+
+		/**
+		 * Write the dictionary to `file`, recording `revision` as the taxonomy revision it was built from. The file is
+		 * written to a temporary location first and then moved into place.
+		 *
+		 * @param file
+		 * @param revision
+		 * @throws IOException
+		 */
+		public void write(File file, long revision) throws IOException {
+
+			OutputStream out = ArtifactFiles.createTempOutput(file);
+			try {
+				writeTo(out, revision);
+			} finally {
+				out.close();
+			}
+
+			ArtifactFiles.moveIntoPlace(file);
+		}
+
+		/**
+		 * Write the dictionary image to `out`, recording `revision` as the taxonomy revision it was built from.
+		 *
+		 * @param out
+		 * @param revision
+		 * @throws IOException
+		 */
+		void writeTo(OutputStream out, long revision) throws IOException {
+
+			int blockCount = (idsByTerm.size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+			// encode the entries first, so the block offsets are known before anything is written
+			ByteArrayOutputStream entries = new ByteArrayOutputStream();
+			int[] blockOffsets = new int[blockCount];
+			long entriesStart = HEADER_SIZE + blockCount * 4L;
+			String previous = "";
+			int i = 0;
+			for (Map.Entry<String, long[]> entry : idsByTerm.entrySet()) {
+				String term = entry.getKey();
+				int shared = 0;
+				if (i % BLOCK_SIZE == 0) {
+					if (entriesStart + entries.size() > Integer.MAX_VALUE) {
+						throw new IOException("too many terms for a sorted term dictionary: " + idsByTerm.size());
+					}
+					blockOffsets[i / BLOCK_SIZE] = (int) (entriesStart + entries.size());
+				} else {
+					int max = Math.min(previous.length(), term.length());
+					while (shared < max && previous.charAt(shared) == term.charAt(shared)) {
+						shared++;
+					}
+					// don't split a surrogate pair between the shared prefix and the suffix
+					if (shared > 0 && Character.isHighSurrogate(term.charAt(shared - 1))) {
+						shared--;
+					}
+				}
+				byte[] suffix = term.substring(shared).getBytes(UTF8);
+				writeVLong(entries, shared);
+				writeVLong(entries, suffix.length);
+				entries.write(suffix);
+
+				long[] ids = entry.getValue().clone();
+				Arrays.sort(ids);
+				ByteArrayOutputStream idBytes = new ByteArrayOutputStream();
+				long last = 0;
+				for (long id : ids) {
+					writeVLong(idBytes, id - last);
+					last = id;
+				}
+				writeVLong(entries, ids.length);
+				writeVLong(entries, idBytes.size());
+				idBytes.writeTo(entries);
+
+				previous = term;
+				i++;
+			}
+			if (entriesStart + entries.size() > Integer.MAX_VALUE) {
+				throw new IOException("too many terms for a sorted term dictionary: " + idsByTerm.size());
+			}
+
+			DataOutputStream data = new DataOutputStream(out);
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+			data.writeLong(revision);
+			data.writeInt(idsByTerm.size());
+			data.writeInt(blockCount);
+			for (int offset : blockOffsets) {
+				data.writeInt(offset);
+			}
+			entries.writeTo(data);
+			data.flush();
+		}
+
+		private static void writeVLong(OutputStream out, long value) throws IOException {
+			while ((value & ~0x7fL) != 0) {
+				out.write((int) ((value & 0x7f) | 0x80));
+				value >>>= 7;
+			}
+			out.write((int) value);
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package org.opentree.taxonomy.contexts;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -8,6 +9,7 @@ import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.IndexHits;
 import org.opentree.properties.OTVocabularyPredicate;
+import org.opentree.taxonomy.ArtifactFiles;
 import org.opentree.taxonomy.Taxonomy;
 import org.opentree.taxonomy.contexts.ContextDescription;
 import org.apache.lucene.queryParser.QueryParser;
@@ -71,6 +73,187 @@ public class TaxonomyContext {
 
 	}
 
+	/**
+	 * Return the file in which the exact name dictionary for the indexes defined by `indexDescs` is stored for this context,
+	 * or null if the location of the graph database is not known. A dictionary for more than one index records the nodes of
+	 * all of them.
+	 * 
+	 * @param indexDescs
+	 * @return
+	 */
+	public File getExactNameDictionaryFile(TaxonomyNodeIndex ... indexDescs) {
+		if (taxonomy.getStoreDir() == null) {
+			return null;
+		}
+		StringBuffer fileName = new StringBuffer();
+		for (TaxonomyNodeIndex indexDesc : indexDescs) {
+			if (fileName.length() > 0) {
+				fileName.append("+");
+			}
+			fileName.append(indexDesc.namePrefix);
+		}
+		fileName.append(contextDescription.nameSuffix).append(ExactNameDictionary.FILE_SUFFIX);
+		return new File(new File(taxonomy.getStoreDir(), ExactNameDictionary.DIRECTORY_NAME), fileName.toString());
+	}
+
+	/**
+	 * Return the memory-mapped exact name dictionary for the indexes defined by `indexDescs` within this context. Returns null
+	 * if no dictionary has been built for these indexes, or if the dictionary is older than the current state of the graph, in
+	 * which case the Neo4J indexes (from getNodeIndex()) must be used instead.
+	 * 
+	 * @param indexDescs
+	 * @return
+	 */
+	public ExactNameDictionary getExactNameDictionary(TaxonomyNodeIndex ... indexDescs) {
+		File file = getExactNameDictionaryFile(indexDescs);
+		if (file == null) {
+			return null;
+		}
+		ExactNameDictionary dictionary = ExactNameDictionary.open(file);
+		if (dictionary == null || !ArtifactFiles.isCurrent(file, dictionary.getRevision(), taxonomy.getRevision())) {
+			return null;
+		}
+		return dictionary;
+	}
+
+	/**
+	 * Return the file in which the name bloom filter for the index defined by `indexDesc` is stored for this context, or null
+	 * if the location of the graph database is not known.
+	 * 
+	 * @param indexDesc
+	 * @return
+	 */
+	public File getNameBloomFilterFile(TaxonomyNodeIndex indexDesc) {
+		if (taxonomy.getStoreDir() == null) {
+			return null;
+		}
+		File dir = new File(taxonomy.getStoreDir(), NameBloomFilter.DIRECTORY_NAME);
+		return new File(dir, indexDesc.namePrefix + contextDescription.nameSuffix + NameBloomFilter.FILE_SUFFIX);
+	}
+
+	/**
+	 * Return the bloom filter over the names in the index defined by `indexDesc` within this context. Returns null if no
+	 * filter has been built for this index, or if the filter is older than the current state of the graph, in which case
+	 * every name must be looked up in the index.
+	 * 
+	 * @param indexDesc
+	 * @return
+	 */
+	public NameBloomFilter getNameBloomFilter(TaxonomyNodeIndex indexDesc) {
+		File file = getNameBloomFilterFile(indexDesc);
+		if (file == null) {
+			return null;
+		}
+		NameBloomFilter filter = NameBloomFilter.open(file);
+		if (filter == null || !ArtifactFiles.isCurrent(file, filter.getRevision(), taxonomy.getRevision())) {
+			return null;
+		}
+		return filter;
+	}
+
+	/**
+	 * Return the file in which the deletion neighbourhood index for the index defined by `indexDesc` is stored for this
+	 * context, or null if the location of the graph database is not known.
+	 *
+	 * @param indexDesc
+	 * @return
+	 */
+	public File getDeletionNeighbourhoodIndexFile(TaxonomyNodeIndex indexDesc) {
+		if (taxonomy.getStoreDir() == null) {
+			return null;
+		}
+		File dir = new File(taxonomy.getStoreDir(), DeletionNeighbourhoodIndex.DIRECTORY_NAME);
+		return new File(dir, indexDesc.namePrefix + contextDescription.nameSuffix + DeletionNeighbourhoodIndex.FILE_SUFFIX);
+	}
+
+	/**
+	 * Return the memory-mapped deletion neighbourhood index over the names in the index defined by `indexDesc` within this
+	 * context. Returns null if no deletion index has been built for this index, or if it is older than the current state of
+	 * the graph, in which case approximate matching must use Lucene fuzzy queries on the index from getNodeIndex() instead.
+	 *
+	 * @param indexDesc
+	 * @return
+	 */
+	public DeletionNeighbourhoodIndex getDeletionNeighbourhoodIndex(TaxonomyNodeIndex indexDesc) {
+		File file = getDeletionNeighbourhoodIndexFile(indexDesc);
+		if (file == null) {
+			return null;
+		}
+		DeletionNeighbourhoodIndex index = DeletionNeighbourhoodIndex.open(file);
+		if (index == null || !ArtifactFiles.isCurrent(file, index.getRevision(), taxonomy.getRevision())) {
+			return null;
+		}
+		return index;
+	}
+
+	/**
+	 * Return the file in which the sorted term dictionary for the index defined by `indexDesc` is stored for this context,
+	 * or null if the location of the graph database is not known.
+	 *
+	 * @param indexDesc
+	 * @return
+	 */
+	public File getSortedTermDictionaryFile(TaxonomyNodeIndex indexDesc) {
+		if (taxonomy.getStoreDir() == null) {
+			return null;
+		}
+		File dir = new File(taxonomy.getStoreDir(), SortedTermDictionary.DIRECTORY_NAME);
+		return new File(dir, indexDesc.namePrefix + contextDescription.nameSuffix + SortedTermDictionary.FILE_SUFFIX);
+	}
+
+	/**
+	 * Return the memory-mapped sorted term dictionary for the index defined by `indexDesc` within this context. Returns null
+	 * if no dictionary has been built for this index, or if it is older than the current state of the graph.
+	 *
+	 * @param indexDesc
+	 * @return
+	 */
+	public SortedTermDictionary getSortedTermDictionary(TaxonomyNodeIndex indexDesc) {
+		File file = getSortedTermDictionaryFile(indexDesc);
+		if (file == null) {
+			return null;
+		}
+		SortedTermDictionary dictionary = SortedTermDictionary.open(file);
+		if (dictionary == null || !ArtifactFiles.isCurrent(file, dictionary.getRevision(), taxonomy.getRevision())) {
+			return null;
+		}
+		return dictionary;
+	}
+
+	/**
+	 * Return the file in which the bucketed term dictionary for the index defined by `indexDesc` is stored for this context,
+	 * or null if the location of the graph database is not known.
+	 *
+	 * @param indexDesc
+	 * @return
+	 */
+	public File getBucketedTermDictionaryFile(TaxonomyNodeIndex indexDesc) {
+		if (taxonomy.getStoreDir() == null) {
+			return null;
+		}
+		File dir = new File(taxonomy.getStoreDir(), BucketedTermDictionary.DIRECTORY_NAME);
+		return new File(dir, indexDesc.namePrefix + contextDescription.nameSuffix + BucketedTermDictionary.FILE_SUFFIX);
+	}
+
+	/**
+	 * Return the memory-mapped bucketed term dictionary for the index defined by `indexDesc` within this context. Returns
+	 * null if no dictionary has been built for this index, or if it is older than the current state of the graph.
+	 *
+	 * @param indexDesc
+	 * @return
+	 */
+	public BucketedTermDictionary getBucketedTermDictionary(TaxonomyNodeIndex indexDesc) {
+		File file = getBucketedTermDictionaryFile(indexDesc);
+		if (file == null) {
+			return null;
+		}
+		BucketedTermDictionary dictionary = BucketedTermDictionary.open(file);
+		if (dictionary == null || !ArtifactFiles.isCurrent(file, dictionary.getRevision(), taxonomy.getRevision())) {
+			return null;
+		}
+		return dictionary;
+	}
+
 	/**
 	 * Return the ContextDescription that underlies this TaxonomyContext object.
 	 * 
@@ -80,6 +263,15 @@ public class TaxonomyContext {
 		return contextDescription;
 	}
 
+	/**
+	 * Return the Taxonomy whose indexes this TaxonomyContext object provides access to.
+	 *
+	 * @return
+	 */
+	public Taxonomy getTaxonomy() {
+		return taxonomy;
+	}
+
 	/**
 	 * Return the root node for this taxonomic context
 	 * 
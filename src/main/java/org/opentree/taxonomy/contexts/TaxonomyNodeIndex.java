@@ -35,6 +35,9 @@ public enum TaxonomyNodeIndex implements NodeIndexDescription {
     /** Records all taxa of rank higher than species. Field is OTVocabularyPredicate.OT_OTT_TAXON_NAME and key is taxon name. */
     TAXON_BY_NAME_HIGHER		("taxNodesByNameHigher"),
 
+    /** Records all taxa. Field is TaxonomyProperty.NORMALIZED_NAME and key is the normalized key from LatinNameNormalizer for the taxon name. */
+    TAXON_BY_NORMALIZED_NAME		("taxNodesByNormalizedName"),
+
 	/** Records all taxa. Field is OTVocabularyPredicate.OT_OTT_ID and key is ott id. */
     TAXON_BY_OTT_ID 			("taxNodesByOTTId"),
 
@@ -84,6 +87,9 @@ public enum TaxonomyNodeIndex implements NodeIndexDescription {
     /** Records all preferred taxa. Field is OTVocabularyPredicate.OT_OTT_TAXON_NAME, key is taxon name or synonymous name. */
     PREFERRED_TAXON_BY_NAME_OR_SYNONYM  ("prefTaxNodesByNameOrSyn"),
 
+    /** Records all preferred taxa. Field is TaxonomyProperty.NORMALIZED_NAME and key is the normalized key from LatinNameNormalizer for the taxon name. */
+    PREFERRED_TAXON_BY_NORMALIZED_NAME  ("prefTaxNodesByNormalizedName"),
+
     // species and subspecific ranks
 
     /** Records preferred species and infraspecific taxa. Field is OTVocabularyPredicate.OT_OTT_TAXON_NAME, key is taxon name. */
@@ -1,5 +1,6 @@
 package org.opentree.taxonomy.plugins;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -18,6 +19,7 @@ import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.helpers.collection.IterableWrapper;
 import org.neo4j.server.plugins.Description;
 import org.neo4j.server.plugins.Parameter;
 import org.neo4j.server.plugins.PluginTarget;
@@ -26,19 +28,23 @@ import org.neo4j.server.plugins.Source;
 import org.neo4j.server.rest.repr.OTRepresentationConverter;
 import org.neo4j.server.rest.repr.Representation;
 import org.neo4j.server.rest.repr.BadInputException;
+import org.neo4j.server.rest.repr.TaxonInfoRepresentation;
 
-import jade.tree.JadeTree;
 import org.opentree.graphdb.GraphDatabaseAgent;
 import org.opentree.properties.OTVocabularyPredicate;
 import org.opentree.taxonomy.LabelFormat;
 import org.opentree.taxonomy.OTTFlag;
+import org.opentree.taxonomy.SourceIdTable;
 import org.opentree.taxonomy.Taxon;
 import org.opentree.taxonomy.TaxonSet;
 import org.opentree.taxonomy.Taxonomy;
+import org.opentree.taxonomy.QueryFileRefresher;
+import org.opentree.taxonomy.TaxonomyTree;
 import org.opentree.taxonomy.constants.TaxonomyProperty;
 import org.opentree.taxonomy.constants.TaxonomyRelType;
 import org.opentree.taxonomy.contexts.TaxonomyNodeIndex;
 import org.opentree.taxonomy.Addition;
+import org.opentree.tnrs.TNRSResultCache;
 
 public class taxonomy_v3 extends ServerPlugin {
 
@@ -93,14 +99,22 @@ public class taxonomy_v3 extends ServerPlugin {
                 throw new BadInputException(
                             String.format("The specified taxon %s was not found.", ottId));
             else {
-                JadeTree tree = match.getTaxonomySubtree(format);
-                int count = tree.nodeCount();
-                if (count > SUBTREE_LIMIT)
+                // reject clades that are known to be too big without reading any of them, and stop writing any
+                // others as soon as they pass the limit
+                int cladeSize = match.getPreferredCladeSize();
+                StringBuilder newick = new StringBuilder();
+                int count;
+                try {
+                    count = cladeSize > SUBTREE_LIMIT ? -1 : match.writeTaxonomySubtreeNewick(newick, format, SUBTREE_LIMIT);
+                } catch (IOException e) {
+                    throw new RuntimeException(e); // a StringBuilder does not throw
+                }
+                if (count < 0)
                     throw new BadInputException(
                                 String.format("The requested subtree exceeds the limit of %s taxa.",
                                               SUBTREE_LIMIT));
                 else
-                    results.put("newick", tree.getRoot().getNewick(false)+";");
+                    results.put("newick", newick.toString());
             }
     	}
 
@@ -223,6 +237,102 @@ public class taxonomy_v3 extends ServerPlugin {
     	return OTRepresentationConverter.convert(results);
     }
 
+    @Description("Get information about many known taxa at once. The information for each taxon is the same as that returned "
+    		+ "by taxon_info, and is returned in an array (\"taxa\") in the same order as the OTT ids. OTT ids that could not be "
+    		+ "found are listed separately. The higher level taxa shared by the lineages of the taxa are only looked up once, "
+    		+ "so this is much faster than calling taxon_info for each taxon.")
+    @PluginTarget(GraphDatabaseService.class)
+    public Representation taxon_info_batch (@Source GraphDatabaseService graphDb,
+
+    		@Description("The OTT ids (in an array) of the taxa of interest.")
+    		@Parameter(name="ott_ids", optional=false)
+    		Long[] ottIds,
+
+    		@Description("Whether or not to include information about all the higher level taxa that include each taxon. "
+    		+ "By default, this option is set to false. If it is set to true, each lineage will be provided in an ordered array, "
+    		+ "with the least inclusive taxa at lower indices (i.e. higher indices are higher taxa).")
+    		@Parameter(name="include_lineage", optional=true)
+    		final Boolean includeLineage,
+
+    		@Description("Whether or not to include information about all the children of each taxon. "
+    		+ "By default, this option is set to false. If it is set to true, the children will be provided in an array.")
+    		@Parameter(name="include_children", optional=true)
+    		final Boolean includeChildren)
+        throws BadInputException
+    {
+
+    	if (ottIds.length < 1) {
+    		throw new BadInputException("You must provide at least one OTT id");
+    	}
+
+    	Taxonomy tax = new Taxonomy(graphDb);
+    	List<Taxon> matches = tax.getTaxaForOTTIds(Arrays.asList(ottIds));
+
+    	List<Taxon> taxa = new ArrayList<Taxon>(matches.size());
+    	List<Long> ottIdsNotFound = new ArrayList<Long>();
+    	for (int i = 0; i < ottIds.length; i++) {
+    		if (matches.get(i) == null) {
+    			ottIdsNotFound.add(ottIds[i]);
+    		} else {
+    			taxa.add(matches.get(i));
+    		}
+    	}
+
+    	// the info for each taxon is only gathered as it is written to the response
+    	final TaxonInfoCache infoCache = new TaxonInfoCache();
+    	Iterable<Map<String, Object>> taxonInfo = new IterableWrapper<Map<String, Object>, Taxon>(taxa) {
+    		@Override
+    		protected Map<String, Object> underlyingObjectToObject(Taxon t) {
+    			return infoCache.getTaxonInfo(t, includeLineage, includeChildren);
+    		}
+    	};
+
+    	return TaxonInfoRepresentation.getBatchRepresentation(taxonInfo, ottIdsNotFound);
+    }
+
+    @Description("Translate source ids (e.g. ncbi:417950) into the OTT ids of the taxa they were taken from. The translations "
+    		+ "are returned in an array in the same order as the source ids, each with the source id and its ott_id. The ott_id "
+    		+ "is left out for source ids that could not be found or that belong to more than one taxon, which are also listed "
+    		+ "separately.")
+    @PluginTarget(GraphDatabaseService.class)
+    public Representation source_id_translation (@Source GraphDatabaseService graphDb,
+
+    		@Description("The source ids (in an array) to translate.")
+    		@Parameter(name="source_ids", optional=false)
+    		String[] sourceIds)
+        throws BadInputException
+    {
+
+    	if (sourceIds.length < 1) {
+    		throw new BadInputException("You must provide at least one source id");
+    	}
+
+    	Taxonomy tax = new Taxonomy(graphDb);
+    	long[] ottIds = tax.getOTTIdsForSourceIds(Arrays.asList(sourceIds));
+
+    	List<Map<String, Object>> translations = new ArrayList<Map<String, Object>>(ottIds.length);
+    	List<String> notFound = new ArrayList<String>();
+    	List<String> ambiguous = new ArrayList<String>();
+    	for (int i = 0; i < ottIds.length; i++) {
+    		Map<String, Object> translation = new HashMap<String, Object>();
+    		translation.put("source_id", sourceIds[i]);
+    		if (ottIds[i] == SourceIdTable.NOT_FOUND) {
+    			notFound.add(sourceIds[i]);
+    		} else if (ottIds[i] == SourceIdTable.AMBIGUOUS) {
+    			ambiguous.add(sourceIds[i]);
+    		} else {
+    			translation.put("ott_id", ottIds[i]);
+    		}
+    		translations.add(translation);
+    	}
+
+    	HashMap<String, Object> results = new HashMap<String, Object>();
+    	results.put("translations", translations);
+    	results.put("source_ids_not_found", notFound);
+    	results.put("ambiguous_source_ids", ambiguous);
+    	return OTRepresentationConverter.convert(results);
+    }
+
     @Description("Return a list of all taxonomic flags used in this database, including the number of taxa to which each flag "
     		+ "has been assigned.")
     @PluginTarget(GraphDatabaseService.class)
@@ -242,52 +352,79 @@ public class taxonomy_v3 extends ServerPlugin {
     // Utility to generate a taxon-description-blob
 
     private Map<String,Object> getTaxonInfo(Taxon t, Boolean includeLineage, Boolean includeChildren) {
+    	return new TaxonInfoCache().getTaxonInfo(t, includeLineage, includeChildren);
+    }
 
-    	HashMap<String, Object> results = new HashMap<String, Object>();
-		Node n = t.getNode();
-
-		if (t.isDeprecated()) {
-			// for deprecated ids, add only appropriate properties
-			addPropertyFromNode(n, OTVocabularyPredicate.OT_OTT_ID.propertyName(), "ott_id", results);
-            addPropertyFromNode(n, OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), "name", results);
-			addPropertyFromNode(n, TaxonomyProperty.REASON.propertyName(), results);
-			addPropertyFromNode(n, TaxonomyProperty.INPUT_SOURCES.propertyName(), results);
-			results.put("flags", Arrays.asList(new String[] {TaxonomyProperty.DEPRECATED.toString()}));
-            // is_suppressed is required by spec.  This seems wrong somehow.
-			results.put("is_suppressed", Boolean.TRUE);
-            // synonyms is required by spec.  This seems wrong somehow.
-            results.put("synonyms", new HashSet<String>());  // No synonyms for deprecated
-
-		} else {
-			// not deprecated, add regular info
-			addTaxonInfo(n, results);
-
-    		if (includeLineage != null && includeLineage == true) {
-    			Node p = n;
-    			LinkedList<HashMap<String,Object>> lineage = new LinkedList<HashMap<String, Object>>();
-                String ottprop = OTVocabularyPredicate.OT_OTT_ID.propertyName();
-    			while (p.hasRelationship(TaxonomyRelType.TAXCHILDOF, Direction.OUTGOING)) {
-    				p = p.getSingleRelationship(TaxonomyRelType.TAXCHILDOF, Direction.OUTGOING).getEndNode();
-    				HashMap<String,Object> info = new HashMap<String, Object>();
-    				addTaxonInfo(p, info);
-    				lineage.add(info);
+    /**
+     * Generates taxon-description-blobs for any number of taxa. The blob for each node (without its lineage or children) is
+     * only made once, and the parent of each node is only looked up once, so when the lineages of many taxa are requested
+     * the graph is only read once for each of the higher taxa they share.
+     */
+    private class TaxonInfoCache {
+
+    	private final Map<Long, HashMap<String, Object>> infoByNodeId = new HashMap<Long, HashMap<String, Object>>();
+    	private final Map<Long, Node> parentByNodeId = new HashMap<Long, Node>();
+
+    	Map<String, Object> getTaxonInfo(Taxon t, Boolean includeLineage, Boolean includeChildren) {
+
+    		HashMap<String, Object> results = new HashMap<String, Object>();
+    		Node n = t.getNode();
+
+    		if (t.isDeprecated()) {
+    			// for deprecated ids, add only appropriate properties
+    			addPropertyFromNode(n, OTVocabularyPredicate.OT_OTT_ID.propertyName(), "ott_id", results);
+    			addPropertyFromNode(n, OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), "name", results);
+    			addPropertyFromNode(n, TaxonomyProperty.REASON.propertyName(), results);
+    			addPropertyFromNode(n, TaxonomyProperty.INPUT_SOURCES.propertyName(), results);
+    			results.put("flags", Arrays.asList(new String[] {TaxonomyProperty.DEPRECATED.toString()}));
+    			// is_suppressed is required by spec.  This seems wrong somehow.
+    			results.put("is_suppressed", Boolean.TRUE);
+    			// synonyms is required by spec.  This seems wrong somehow.
+    			results.put("synonyms", new HashSet<String>());  // No synonyms for deprecated
+
+    		} else {
+    			// not deprecated, add regular info. the cached blob is shared with the lineages that contain this node, so copy it
+    			results.putAll(getNodeInfo(n));
+
+    			if (includeLineage != null && includeLineage == true) {
+    				List<HashMap<String,Object>> lineage = new ArrayList<HashMap<String, Object>>();
+    				for (Node p = getParent(n); p != null; p = getParent(p)) {
+    					lineage.add(getNodeInfo(p));
+    				}
+    				results.put("lineage", lineage);
+    			}
+
+    			if (includeChildren != null && includeChildren == true) {
+    				List<HashMap<String,Object>> children = new ArrayList<HashMap<String, Object>>();
+    				for (Relationship child : n.getRelationships(TaxonomyRelType.TAXCHILDOF, Direction.INCOMING)) {
+    					children.add(getNodeInfo(child.getStartNode()));
+    				}
+    				results.put("children", children);
     			}
-    			results.put("lineage", lineage);
     		}
 
-            if (includeChildren != null && includeChildren == true) {
-    			LinkedList<HashMap<String,Object>> children = new LinkedList<HashMap<String, Object>>();
-                for (Relationship child : n.getRelationships(TaxonomyRelType.TAXCHILDOF, Direction.INCOMING)) {
-                    Node c = child.getStartNode();
-    				HashMap<String,Object> info = new HashMap<String, Object>();
-    				addTaxonInfo(c, info);
-    				children.add(info);
-                }
-    			results.put("children", children);
-            }
-		}
+    		return results;
+    	}
+
+    	private HashMap<String, Object> getNodeInfo(Node n) {
+    		HashMap<String, Object> info = infoByNodeId.get(n.getId());
+    		if (info == null) {
+    			info = new HashMap<String, Object>();
+    			addTaxonInfo(n, info);
+    			infoByNodeId.put(n.getId(), info);
+    		}
+    		return info;
+    	}
 
-		return results;
+    	private Node getParent(Node n) {
+    		if (parentByNodeId.containsKey(n.getId())) {
+    			return parentByNodeId.get(n.getId());
+    		}
+    		Relationship parentRel = n.getSingleRelationship(TaxonomyRelType.TAXCHILDOF, Direction.OUTGOING);
+    		Node p = parentRel == null ? null : parentRel.getEndNode();
+    		parentByNodeId.put(n.getId(), p);
+    		return p;
+    	}
     }
 
     // Compare addTaxonInfo in class TNRSResultsRepresentation
@@ -314,22 +451,31 @@ public class taxonomy_v3 extends ServerPlugin {
         // Do this only if property is present on node?  and is true?
         results.put("is_suppressed", isSuppressed);
 
+		// read the property keys once rather than probing the node for every flag
 		HashSet<String> flags = new HashSet<String>();
-		for (OTTFlag flag : OTTFlag.values()) {
-			if (n.hasProperty(flag.label)) {
+		for (String key : n.getPropertyKeys()) {
+			OTTFlag flag = flagsByLabel.get(key);
+			if (flag != null) {
 				flags.add(flag.toString());
 			}
 		}
 		results.put("flags", flags);
 
+        // synonym nodes are only ever attached directly to their taxon, so there is no need for a traversal
         HashSet<String> synonyms = new HashSet<String>();
-        for (Node m : Taxon.getSynonymNodes(n)) {
-            if (m != n)
-                synonyms.add((String) m.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName()));
+        for (Relationship synRel : n.getRelationships(TaxonomyRelType.SYNONYMOF, Direction.INCOMING)) {
+            synonyms.add((String) synRel.getStartNode().getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName()));
         }
         results.put("synonyms", synonyms);
     }
 
+    private static final Map<String, OTTFlag> flagsByLabel = new HashMap<String, OTTFlag>();
+    static {
+    	for (OTTFlag flag : OTTFlag.values()) {
+    		flagsByLabel.put(flag.label, flag);
+    	}
+    }
+
     private void addPropertyFromNode(Node node, String property, Map<String, Object> map) {
 		map.put(property, node.getProperty(property));
     }
@@ -363,6 +509,12 @@ public class taxonomy_v3 extends ServerPlugin {
         throws BadInputException, ParseException
     {
         Map<String, Long> tagToId = Addition.processAdditionDocument(addition_document, graphDb);
+        // the in-memory taxonomy trees are missing the new taxa, so they need to be built again
+        TaxonomyTree.invalidate(new Taxonomy(graphDb));
+        // cached TNRS results are keyed by the taxonomy revision and can no longer be found, so free the space they use
+        TNRSResultCache.getSharedCache().clear();
+        // the query files are out of date too, and queries use the slower Neo4J indexes until they are rebuilt
+        QueryFileRefresher.refresh(graphDb);
         // ignore it - client already has the map via phylesystem-api - just return nothing
     	return OTRepresentationConverter.convert(new HashMap<String, Object>());
     }
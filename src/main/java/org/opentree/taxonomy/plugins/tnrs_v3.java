@@ -32,12 +32,16 @@ import org.opentree.taxonomy.Taxonomy;
 import org.opentree.taxonomy.contexts.ContextDescription;
 import org.opentree.taxonomy.contexts.ContextGroup;
 import org.opentree.taxonomy.contexts.ContextNotFoundException;
+import org.opentree.taxonomy.contexts.DeletionNeighbourhoodIndex;
+import org.opentree.taxonomy.contexts.NameBloomFilter;
 import org.opentree.taxonomy.contexts.TaxonomyContext;
 import org.opentree.tnrs.ContextResult;
 import org.opentree.tnrs.TNRSMatch;
 import org.opentree.tnrs.TNRSMatchSet;
 import org.opentree.tnrs.TNRSNameResult;
+import org.opentree.tnrs.TNRSResultCache;
 import org.opentree.tnrs.TNRSResults;
+import org.opentree.tnrs.queries.FuzzyExpansionCache;
 import org.opentree.tnrs.queries.MultiNameContextQuery;
 import org.opentree.tnrs.queries.SingleNamePrefixQuery;
 
@@ -48,8 +52,17 @@ public class tnrs_v3 extends ServerPlugin {
     // Limit in v2 was 1000.  See https://github.com/OpenTreeOfLife/feedback/issues/242
     // 10,000 queries at .0016 second per query = 16 seconds
 	public static int MAX_NONFUZZY_QUERY_STRINGS = 10000;
-    // 250 queries at .3 second per query = 75 seconds
-	public static int MAX_FUZZY_QUERY_STRINGS = 250;
+    // Fuzzy queries were limited to 250 names (at .3 second per query = 75 seconds). The time spent on approximate matching
+    // is now limited by DEFAULT_MAX_FUZZY_MS instead (checked between names, and between the candidates for each name), so
+    // they have the same limit as other queries.
+	public static int MAX_FUZZY_QUERY_STRINGS = 10000;
+	// The time allowed for approximate matching in match_names unless the taxomachine.max_fuzzy_ms system property is set.
+	public static final long BUILT_IN_MAX_FUZZY_MS = 60000;
+	// The time allowed for approximate matching in match_names, which requests can lower but not raise (0 for no limit).
+	public static long DEFAULT_MAX_FUZZY_MS = Long.getLong("taxomachine.max_fuzzy_ms", BUILT_IN_MAX_FUZZY_MS);
+	// Whether approximate matching in match_names is spread over the threads of a pool shared by all requests, which
+	// shortens large requests but slows down the others. Off unless the taxomachine.match_in_parallel system property is true.
+	public static boolean MATCH_IN_PARALLEL = Boolean.getBoolean("taxomachine.match_in_parallel");
 	    
     @Description("Taxonomic contexts are available to limit the scope of TNRS searches. These contexts correspond to uncontested higher "
     		+ "taxa such as 'Animals' or 'Land plants'. This service returns a list containing all available taxonomic context "
@@ -86,7 +99,7 @@ public class tnrs_v3 extends ServerPlugin {
 
     	// initialize objects
         GraphDatabaseAgent gdb = new GraphDatabaseAgent(graphDb);
-        Taxonomy taxonomy = new Taxonomy(gdb);
+        Taxonomy taxonomy = new Taxonomy(graphDb);
         MultiNameContextQuery tnrs = new MultiNameContextQuery(taxonomy);
 
         // format input for the TNRS query object
@@ -143,7 +156,7 @@ public class tnrs_v3 extends ServerPlugin {
     	includeSuppressed = includeSuppressed == null ? false : includeSuppressed;
     	
         GraphDatabaseAgent gdb = new GraphDatabaseAgent(graphDb);
-        Taxonomy taxonomy = new Taxonomy(gdb);
+        Taxonomy taxonomy = new Taxonomy(graphDb);
         
         // attempt to get the named context, return an error if a name is supplied but no corresponding context can be found
         TaxonomyContext context = null;
@@ -191,19 +204,28 @@ public class tnrs_v3 extends ServerPlugin {
 
             @Description("The name of the taxonomic context to be searched")
             	@Parameter(name = "context_name", optional = true) String contextName,
-        	@Description("An array of taxon names to be queried. Currently limited to 10,000 names for exact matches, or 250 names when inexact matches are requested.")
+        	@Description("An array of taxon names to be queried. Currently limited to 10,000 names.")
         		@Parameter(name="names", optional = false) String[] names,
         	@Description("An array of ids to use for identifying names. These will be assigned to each name in the `names` array. If `ids` is provided, then `ids` and `names` must be identical in length.")
     			@Parameter(name="ids", optional = true) String[] ids,
     		@Description("A boolean indicating whether or not to perform approximate string (a.k.a. \"fuzzy\") matching. Will greatly improve speed if this is turned OFF (false). By default, it is off (false).")
             	@Parameter(name="do_approximate_matching", optional = true) Boolean doFuzzyMatching,
     		@Description("Ordinarily, some quasi-taxa, such as incertae sedis buckets and other non-OTUs, are suppressed from TNRS results.  If this parameter is true, these quasi-taxa are allowed as possible TNRS results.")
-            	@Parameter(name="include_suppressed", optional=true) Boolean includeSuppressed)
+            	@Parameter(name="include_suppressed", optional=true) Boolean includeSuppressed,
+    		@Description("The most time, in milliseconds, to spend on approximate matching. Names are matched approximately in "
+    				+ "order of how cheap they are to match, and any names that have not been matched when the time runs out are "
+    				+ "returned as unmatched and listed in `fuzzy_budget_exhausted_names`. Defaults to (and cannot exceed) a limit "
+    				+ "set by the server, which is " + BUILT_IN_MAX_FUZZY_MS + " unless it has been changed.")
+            	@Parameter(name="max_fuzzy_ms", optional=true) Long maxFuzzyMillis,
+    		@Description("The most approximate matches to return for each name. If a name has more approximate matches than "
+    				+ "this, only the ones with the highest scores are returned. Exact matches are never dropped, so a name "
+    				+ "that matches several taxa exactly gets all of them. By default, all the matches are returned.")
+            	@Parameter(name="max_matches_per_name", optional=true) Integer maxMatchesPerName)
         throws BadInputException
     {
     	
         GraphDatabaseAgent gdb = new GraphDatabaseAgent(graphDb);
-        Taxonomy taxonomy = new Taxonomy(gdb);
+        Taxonomy taxonomy = new Taxonomy(graphDb);
 
         // including deprecated and suppressed names are turned OFF by default
         boolean includeDeprecated = false;
@@ -212,6 +234,21 @@ public class tnrs_v3 extends ServerPlugin {
         // fuzzy matching is turned ON by default
         doFuzzyMatching = doFuzzyMatching == null ? false : doFuzzyMatching;
 
+        // the server default is also the most that can be requested, unless it is 0 (no limit)
+        if (maxFuzzyMillis == null) {
+        	maxFuzzyMillis = DEFAULT_MAX_FUZZY_MS;
+        } else if (maxFuzzyMillis <= 0) {
+        	throw new BadInputException("The value of max_fuzzy_ms must be a positive number of milliseconds.");
+        } else if (DEFAULT_MAX_FUZZY_MS > 0 && maxFuzzyMillis > DEFAULT_MAX_FUZZY_MS) {
+        	maxFuzzyMillis = DEFAULT_MAX_FUZZY_MS;
+        }
+
+        if (maxMatchesPerName == null) {
+        	maxMatchesPerName = 0;
+        } else if (maxMatchesPerName <= 0) {
+        	throw new BadInputException("The value of max_matches_per_name must be a positive number.");
+        }
+
         HashMap<String, Object> errorResults = new HashMap<String, Object>();
         if (ids == null) {
         	ids = names;
@@ -262,6 +299,9 @@ public class tnrs_v3 extends ServerPlugin {
         		.setIncludeDubious(includeSuppressed)
         		.setIncludeDeprecated(includeDeprecated)
         		.setDoFuzzyMatching(doFuzzyMatching)
+        		.setMatchInParallel(doFuzzyMatching && MATCH_IN_PARALLEL)
+        		.setMaxFuzzyMillis(maxFuzzyMillis)
+        		.setMaxMatchesPerName(maxMatchesPerName)
         		.runQuery()
         		.getResults();
 
@@ -269,6 +309,25 @@ public class tnrs_v3 extends ServerPlugin {
         return TNRSResultsRepresentation.getResultsRepresentation(results, apiVersion);
     }
     
+    @Description("Return statistics about the structures used to speed up name matching. `result_cache` and "
+    		+ "`fuzzy_expansion_cache` give the hit, miss and eviction counts of the cache of match results and of the cache "
+    		+ "of names found by approximate matching. `name_bloom_filters` has an entry for each name bloom filter that has "
+    		+ "been opened. It gives the size of the filter and its configured and expected false positive rates. It also "
+    		+ "says how many of the names checked against the filter were ruled out. `deletion_indexes` has an entry for "
+    		+ "each deletion index that has been opened for approximate matching. It gives the size of the index and how "
+    		+ "many candidates it has returned.")
+    @PluginTarget(GraphDatabaseService.class)
+    public Representation statistics(
+            @Source GraphDatabaseService graphDb) {
+
+    	HashMap<String, Object> stats = new HashMap<String, Object>();
+    	stats.put("result_cache", TNRSResultCache.getSharedCache().getStatistics());
+    	stats.put("fuzzy_expansion_cache", FuzzyExpansionCache.getSharedCache().getStatistics());
+    	stats.put("name_bloom_filters", NameBloomFilter.getOpenFilterStatistics());
+    	stats.put("deletion_indexes", DeletionNeighbourhoodIndex.getOpenIndexStatistics());
+        return OTRepresentationConverter.convert(stats);
+    }
+    
     /**
 	 * A small custom comparator to facilitate sorting matches for the autocomplete box.
 	 * @author cody
@@ -10,8 +10,11 @@ import org.opentree.taxonomy.constants.TaxonomyProperty;
 import org.opentree.taxonomy.constants.TaxonomyRelType;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
 
 /**
  * @author Cody Hinchliff
@@ -25,18 +28,38 @@ public class TNRSMatchSet implements Iterable<TNRSMatch> {
     private List<TNRSMatch> matches;
     private Taxonomy taxonomy;
 
-    // TODO: add sort features
+    // used instead of `matches` while hits are being added when the number of matches is limited. the hit with the lowest
+    // score is at the head, so it is the one that is dropped when a better hit is added to a full set
+    private final int maxMatches;
+    private PriorityQueue<RankedHit> keptHits;
+    private long hitsAdded;
 
     public TNRSMatchSet(Taxonomy tax) {
+    	this(tax, 0);
+    }
+    
+    /**
+     * Create a match set that only keeps the `maxMatches` matches with the highest scores. Hits that do not make it into
+     * the set are dropped when they are added, and the matches are only made from the hits that are kept, in order of their
+     * score (highest first), when they are first read. If `maxMatches` is 0 or less, all the matches are kept, in the order
+     * they were added.
+     * @param tax
+     * @param maxMatches
+     */
+    public TNRSMatchSet(Taxonomy tax, int maxMatches) {
         matches = new ArrayList<TNRSMatch>();
         taxonomy = tax;
+        this.maxMatches = maxMatches;
+        if (maxMatches > 0) {
+        	keptHits = new PriorityQueue<RankedHit>(maxMatches, RankedHit.LOWEST_FIRST);
+        }
     }
     
     /**
      * @return the number of matches in the set
      */
-    public int size() {
-        return matches.size();
+    public synchronized int size() {
+        return keptHits != null ? keptHits.size() : matches.size();
     }
 
     /**
@@ -44,21 +67,79 @@ public class TNRSMatchSet implements Iterable<TNRSMatch> {
      */
     @Override
 	public Iterator<TNRSMatch> iterator() {
-        return matches.iterator();
+        return getMatchList().iterator();
+    }
+
+    /**
+     * Return true if a hit with `score` would be kept if it were added now, which is always the case unless the number of
+     * matches is limited and the set already has that many matches with scores at least as high. Callers can use this to
+     * avoid building hits that would be dropped.
+     * @param score
+     * @return
+     */
+    public synchronized boolean wouldKeep(double score) {
+    	return keptHits == null || keptHits.size() < maxMatches || keptHits.peek().hit.score < score;
     }
 
     /**
-     * Adds a match to the set, using the data within the passed TNRSHit object.
+     * Adds a match to the set, using the data within the passed TNRSHit object. If the number of matches is limited and
+     * the set is full, the match with the lowest score (the latest added of those with the same score) is dropped, which
+     * may be the one being added.
      * @param TNRSHit to be added
      */
-    public void addMatch(TNRSHit m) {
-        Match match = new Match(m);
-        matches.add(match);
+    public synchronized void addMatch(TNRSHit m) {
+    	if (keptHits == null) {
+    		matches.add(new Match(m));
+    		return;
+    	}
+    	if (!wouldKeep(m.score)) {
+    		return;
+    	}
+    	if (keptHits.size() == maxMatches) {
+    		keptHits.poll();
+    	}
+    	keptHits.add(new RankedHit(m, hitsAdded++));
+    	matches = null;
     }
     
-    public List<TNRSMatch> getMatchList() {
+    public synchronized List<TNRSMatch> getMatchList() {
+    	if (matches == null) {
+    		// make the matches from the kept hits. if more are added afterwards, this is done again
+    		List<RankedHit> ranked = new ArrayList<RankedHit>(keptHits);
+    		Collections.sort(ranked, Collections.reverseOrder(RankedHit.LOWEST_FIRST));
+    		matches = new ArrayList<TNRSMatch>(ranked.size());
+    		for (RankedHit rankedHit : ranked) {
+    			matches.add(new Match(rankedHit.hit));
+    		}
+    	}
     	return matches;
     }
+    
+    /**
+     * A hit kept by a match set with a limited number of matches, along with the order in which it was added so that hits
+     * with the same score are kept in the order they were added.
+     */
+    private static class RankedHit {
+
+    	private static final Comparator<RankedHit> LOWEST_FIRST = new Comparator<RankedHit>() {
+    		@Override
+    		public int compare(RankedHit a, RankedHit b) {
+    			if (a.hit.score != b.hit.score) {
+    				return a.hit.score < b.hit.score ? -1 : 1;
+    			}
+    			// of hits with the same score, the one added last ranks lowest
+    			return a.order > b.order ? -1 : (a.order == b.order ? 0 : 1);
+    		}
+    	};
+
+    	private final TNRSHit hit;
+    	private final long order;
+
+    	public RankedHit(TNRSHit hit, long order) {
+    		this.hit = hit;
+    		this.order = order;
+    	}
+    }
         
     /**
      * An internal container compatible with the TNRSMatch specification.
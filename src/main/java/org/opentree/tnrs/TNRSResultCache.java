@@ -0,0 +1,169 @@
+package org.opentree.tnrs;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opentree.taxonomy.Taxon;
+
+/**
+ * A bounded least-recently-used cache of the results of matching single names, shared by TNRS queries across requests.
+ * Entries are stored under string keys built by the query, which must include everything the cached result depends on
+ * (the normalized name, the context and query options, and the taxonomy version and revision), so that entries made
+ * against an older state of the taxonomy are simply never found again and age out of the cache.
+ *
+ * The size of the cache is bounded by the total weight of its entries rather than their number; each entry weighs one
+ * plus the number of matches it holds. All methods are synchronized, so a single cache can be used by concurrent queries.
+ */
+public class TNRSResultCache {
+
+	/**
+	 * The maximum total weight of the shared cache, which can be set with the
+	 * taxomachine.result_cache_weight system property. With 0 the shared cache keeps nothing.
+	 */
+	public static final int DEFAULT_MAX_WEIGHT = Integer.getInteger("taxomachine.result_cache_weight", 200000);
+
+	private static final TNRSResultCache sharedCache = new TNRSResultCache(DEFAULT_MAX_WEIGHT);
+
+	private final LinkedHashMap<String, Entry> entries;
+	private final long maxWeight;
+	private long weight = 0;
+
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long evictionCount = 0;
+
+	public TNRSResultCache(long maxWeight) {
+		this.maxWeight = maxWeight;
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true); // access order
+	}
+
+	/**
+	 * Return the cache that is shared by all TNRS queries in this jvm.
+	 * @return
+	 */
+	public static TNRSResultCache getSharedCache() {
+		return sharedCache;
+	}
+
+	/**
+	 * Return the entry stored under `key`, or null if there is none.
+	 * @param key
+	 * @return
+	 */
+	public synchronized Entry get(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			missCount++;
+		} else {
+			hitCount++;
+		}
+		return entry;
+	}
+
+	/**
+	 * Store `entry` under `key`, evicting the least recently used entries if the cache is over its maximum weight.
+	 * @param key
+	 * @param entry
+	 */
+	public synchronized void put(String key, Entry entry) {
+		Entry previous = entries.put(key, entry);
+		if (previous != null) {
+			weight -= previous.weight;
+		}
+		weight += entry.weight;
+
+		Iterator<Entry> entryIter = entries.values().iterator();
+		while (weight > maxWeight && entryIter.hasNext()) {
+			weight -= entryIter.next().weight;
+			entryIter.remove();
+			evictionCount++;
+		}
+	}
+
+	/**
+	 * Remove all the entries from the cache. The counters are not reset.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		weight = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * Return the cache counters (hits, misses, evictions) and current size, e.g. for reporting.
+	 * @return
+	 */
+	public synchronized Map<String, Long> getStatistics() {
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+		stats.put("hits", hitCount);
+		stats.put("misses", missCount);
+		stats.put("evictions", evictionCount);
+		stats.put("entries", (long) entries.size());
+		stats.put("weight", weight);
+		return stats;
+	}
+
+	/**
+	 * The cached result of matching a single name. Entries are shared between queries and must not be modified.
+	 */
+	public static class Entry {
+
+		private final TNRSMatchSet matches;
+		private final boolean hasDirectMatch;
+		private final List<Taxon> exactlyMatchedTaxa;
+		private final String unmatchedName;
+		private final int weight;
+
+		/**
+		 * @param matches the matches found for the name, or null if there were none
+		 * @param hasDirectMatch whether the name was recorded as having a direct match
+		 * @param exactlyMatchedTaxa the taxa whose names were matched exactly, which are used to find the LICA of the query
+		 * @param unmatchedName the name that still needs to be matched if no matches were found (may differ from the queried name)
+		 */
+		public Entry(TNRSMatchSet matches, boolean hasDirectMatch, List<Taxon> exactlyMatchedTaxa, String unmatchedName) {
+			this.matches = matches;
+			this.hasDirectMatch = hasDirectMatch;
+			this.exactlyMatchedTaxa = exactlyMatchedTaxa == null ? Collections.<Taxon>emptyList() : exactlyMatchedTaxa;
+			this.unmatchedName = unmatchedName;
+			this.weight = 1 + (matches == null ? 0 : matches.size());
+		}
+
+		public TNRSMatchSet getMatches() {
+			return matches;
+		}
+
+		public boolean getHasDirectMatch() {
+			return hasDirectMatch;
+		}
+
+		public List<Taxon> getExactlyMatchedTaxa() {
+			return exactlyMatchedTaxa;
+		}
+
+		public String getUnmatchedName() {
+			return unmatchedName;
+		}
+	}
+}
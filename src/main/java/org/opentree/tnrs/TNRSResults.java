@@ -12,6 +12,7 @@ public class TNRSResults implements Iterable<TNRSNameResult> {
 	private Map<Object, TNRSNameResult> results;
 	private Map<Object, String> unambiguousNames;
 	private Map<Object, String> unmatchedNames;
+	private Map<Object, String> fuzzyBudgetExhaustedNames; // unmatched names that were not matched approximately for lack of time
 	private String contextName;
 	private String governingCode;
 	private double minimumScore;
@@ -20,11 +21,13 @@ public class TNRSResults implements Iterable<TNRSNameResult> {
 	private boolean includesDeprecated;
 	private boolean includesApproximate;
 	private Map<String, Object> taxonomyMetadata;
+	private int indexProbeCount; // the number of lookups sent to indexes or exact name dictionaries to produce these results
 
 	public TNRSResults() {
 		results = new HashMap<Object, TNRSNameResult>();
 		unambiguousNames = new HashMap<Object, String>();
 		unmatchedNames = new HashMap<Object, String>();
+		fuzzyBudgetExhaustedNames = new HashMap<Object, String>();
 		contextName = "";
 		governingCode = "";
 		minimumScore = 0;
@@ -32,6 +35,7 @@ public class TNRSResults implements Iterable<TNRSNameResult> {
 		includesDeprecated = false;
 		includesApproximate = true;
 		taxonomyMetadata = new HashMap<String, Object>();
+		indexProbeCount = 0;
 	}
 
 	public Iterator<TNRSNameResult> iterator() {
@@ -49,6 +53,23 @@ public class TNRSResults implements Iterable<TNRSNameResult> {
 		return unmatchedNames.keySet();
 	}
 
+	/**
+	 * Return the ids of the unmatched names that were not matched approximately because the time allowed for approximate
+	 * matching ran out. These names might have approximate matches.
+	 * @return
+	 */
+	public Set<Object> getFuzzyBudgetExhaustedNameIds() {
+		return fuzzyBudgetExhaustedNames.keySet();
+	}
+
+	/**
+	 * Return true if approximate matching was skipped for any names because the time allowed for it ran out.
+	 * @return
+	 */
+	public boolean getFuzzyBudgetExhausted() {
+		return !fuzzyBudgetExhaustedNames.isEmpty();
+	}
+
 	public Set<Object> getNameIdsWithDirectMatches() {
 		return unambiguousNames.keySet();
 	}
@@ -81,6 +102,15 @@ public class TNRSResults implements Iterable<TNRSNameResult> {
 		return taxonomyMetadata;
 	}
 
+	/**
+	 * Return the number of index probes used to produce these results. Each lookup sent to a Neo4J index or an exact name
+	 * dictionary counts as one probe, whether it is for a single name or (for batched lookups) a set of names.
+	 * @return
+	 */
+	public int getIndexProbeCount() {
+		return indexProbeCount;
+	}
+
 	public int size() {
 		return results.size();
 	}
@@ -106,6 +136,17 @@ public class TNRSResults implements Iterable<TNRSNameResult> {
 		return this;
 	}
 
+	/**
+	 * Record that the name with `id` was not matched approximately because the time allowed for approximate matching ran
+	 * out. The name should also be added as an unmatched name.
+	 * @param id
+	 * @param name
+	 */
+	public TNRSResults addFuzzyBudgetExhaustedName(Object id, String name) {
+		fuzzyBudgetExhaustedNames.put(id, name);
+		return this;
+	}
+
 	public TNRSResults addNameWithDirectMatch(Object id, String name) {
 		unambiguousNames.put(id, name);
 		return this;
@@ -141,6 +182,53 @@ public class TNRSResults implements Iterable<TNRSNameResult> {
 		return this;
 	}
 
+	/**
+	 * Record that `n` more index probes were used to produce these results.
+	 * @param n
+	 */
+	public synchronized TNRSResults addIndexProbes(int n) {
+		indexProbeCount += n;
+		return this;
+	}
+
+	/**
+	 * Add the name results, names with direct matches, unmatched names (including those for which the fuzzy matching
+	 * budget was exhausted), and index probes recorded in `other` to these
+	 * results. Used to combine results that were recorded separately for disjoint sets of names.
+	 * @param other
+	 */
+	public TNRSResults addResults(TNRSResults other) {
+		results.putAll(other.results);
+		unambiguousNames.putAll(other.unambiguousNames);
+		unmatchedNames.putAll(other.unmatchedNames);
+		fuzzyBudgetExhaustedNames.putAll(other.fuzzyBudgetExhaustedNames);
+		addIndexProbes(other.indexProbeCount);
+		return this;
+	}
+
+	/**
+	 * Record the same results for `newId` as have been recorded for `id`: its name result (which will share the same
+	 * match set), and its presence among the names with direct matches or the unmatched names. Used when the same name
+	 * has been queried under more than one id.
+	 * @param id
+	 * @param newId
+	 */
+	public TNRSResults copyResultsForId(Object id, Object newId) {
+		if (results.containsKey(id)) {
+			results.put(newId, new TNRSNameResult(newId, results.get(id).getMatches()));
+		}
+		if (unambiguousNames.containsKey(id)) {
+			unambiguousNames.put(newId, unambiguousNames.get(id));
+		}
+		if (unmatchedNames.containsKey(id)) {
+			unmatchedNames.put(newId, unmatchedNames.get(id));
+		}
+		if (fuzzyBudgetExhaustedNames.containsKey(id)) {
+			fuzzyBudgetExhaustedNames.put(newId, fuzzyBudgetExhaustedNames.get(id));
+		}
+		return this;
+	}
+
 	public void setMinimumScore(double s) {
 		minimumScore = s;
 	}
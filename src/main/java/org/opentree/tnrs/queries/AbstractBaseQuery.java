@@ -3,6 +3,8 @@ package org.opentree.tnrs.queries;
 import java.util.HashSet;
 import java.util.Set;
 
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.IndexHits;
@@ -10,7 +12,9 @@ import org.opentree.properties.OTVocabularyPredicate;
 import org.opentree.taxonomy.Taxon;
 import org.opentree.taxonomy.TaxonSet;
 import org.opentree.taxonomy.Taxonomy;
+import org.opentree.taxonomy.contexts.ExactNameDictionary;
 import org.opentree.taxonomy.contexts.TaxonomyContext;
+import org.opentree.taxonomy.contexts.TaxonomyNodeIndex;
 import org.opentree.tnrs.TNRSResults;
 
 public abstract class AbstractBaseQuery implements TNRSQuery {
@@ -23,10 +27,11 @@ public abstract class AbstractBaseQuery implements TNRSQuery {
     protected static final int LONG_NAME_LENGTH = 19;
     protected static final String DEFAULT_TAXONOMY_NAME = "ott";
     protected double minScore;
+    protected FuzzyMatchingEngine fuzzyMatchingEngine = FuzzyMatchingEngine.getDefault();
+    protected FuzzyExpansionCache fuzzyExpansionCache = FuzzyExpansionCache.getSharedCache(); // null if matches are not cached
 	
     // essential container variables and objects
 	protected Taxonomy taxonomy;
-    protected Index<Node> prefTaxNodesByName;
     protected TaxonomyContext context;
     protected TNRSResults results;
     
@@ -80,11 +85,23 @@ public abstract class AbstractBaseQuery implements TNRSQuery {
     public TaxonomyContext inferContext(Set<String> names) {
     	
     	HashSet<Taxon> tempExactMatches = new HashSet<Taxon>();
+
+    	// use the exact name dictionary if there is one, otherwise the index
+    	ExactNameDictionary prefTaxNamesDictionary = taxonomy.ALLTAXA.getExactNameDictionary(TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME);
+    	Index<Node> prefTaxNodesByName = taxonomy.ALLTAXA.getNodeIndex(TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME);
     	
     	for (String thisName : names) {
 
     		// attempt to find exact matches within the ALLTAXA context
-            IndexHits<Node> hits = prefTaxNodesByName.query(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), thisName.replace(" ", "\\ "));
+    		if (prefTaxNamesDictionary != null) {
+    			long[] hits = prefTaxNamesDictionary.get(thisName.toLowerCase());
+    			if (hits.length == 1) { // an exact match
+    				tempExactMatches.add(taxonomy.getTaxon(taxonomy.getNodeById(hits[0])));
+    			}
+    			continue;
+    		}
+    		
+            IndexHits<Node> hits = prefTaxNodesByName.query(new TermQuery(new Term(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), thisName.toLowerCase())));
             try {
 	            if (hits.size() == 1) { // an exact match
 	                Taxon matchedTaxon = taxonomy.getTaxon(hits.getSingle());
@@ -133,16 +150,116 @@ public abstract class AbstractBaseQuery implements TNRSQuery {
     public static float getMinIdentity(String name) {
         
         float ql = name.length();
+        return (ql - (getMaxEdits(name) + 1)) / ql;
+    }
+    
+    /**
+     * Return a matcher from the current fuzzy matching engine for the index defined by `indexDesc` within `context`, which
+     * remembers the matches it finds in the fuzzy expansion cache if there is one.
+     * 
+     * @param context
+     * @param indexDesc
+     * @return
+     */
+    protected FuzzyMatcher getFuzzyMatcher(TaxonomyContext context, TaxonomyNodeIndex indexDesc) {
+    	FuzzyMatcher matcher = fuzzyMatchingEngine.getMatcher(context, indexDesc);
+    	return fuzzyExpansionCache == null ? matcher : fuzzyExpansionCache.wrap(matcher, fuzzyMatchingEngine, context, indexDesc);
+    }
+    
+    /**
+     * Return a combined matcher from the current fuzzy matching engine for the indexes defined by `indexDescs` within
+     * `contexts` (see FuzzyMatchingEngine.getCombinedMatcher()), which remembers the matches it finds in the fuzzy expansion
+     * cache if there is one.
+     * 
+     * @param contexts
+     * @param indexDescs
+     * @return
+     */
+    protected CombinedFuzzyMatcher getCombinedFuzzyMatcher(TaxonomyContext[] contexts, TaxonomyNodeIndex[] indexDescs) {
+    	CombinedFuzzyMatcher matcher = fuzzyMatchingEngine.getCombinedMatcher(contexts, indexDescs);
+    	return fuzzyExpansionCache == null ? matcher : fuzzyExpansionCache.wrap(matcher, fuzzyMatchingEngine, contexts, indexDescs);
+    }
+    
+    /**
+     * Returns the greatest number of edit differences allowed between `name` and an approximate match, based
+     * on the length of the name. This is the edit distance that getMinIdentity() corresponds to.
+     * 
+     * @param name
+     * @return maxEdits
+     */
+    public static int getMaxEdits(String name) {
 
-        int maxEdits = 4; // used for names longer than LONG_NAME_LENGTH
-
+        int ql = name.length();
+        
         if (ql < SHORT_NAME_LENGTH)
-            maxEdits = 1;
+            return 1;
         else if (ql < MEDIUM_NAME_LENGTH)
-            maxEdits = 2;
+            return 2;
         else if (ql < LONG_NAME_LENGTH)
-            maxEdits = 3;
-            
-        return (ql - (maxEdits + 1)) / ql;
+            return 3;
+        
+        return 4; // used for names longer than LONG_NAME_LENGTH
+    }
+    
+    /**
+     * Returns true if `term` is close enough to `query` to be accepted by a Lucene FuzzyQuery for `query` with
+     * `minIdentity` as its minimum similarity, i.e. if one minus their edit distance over the length of the
+     * shorter of the two is greater than `minIdentity`. Used to check candidates that are found without a
+     * FuzzyQuery, so that they are held to exactly the same standard.
+     * 
+     * @param query
+     * @param term
+     * @param minIdentity
+     * @return
+     */
+    public static boolean isWithinMinIdentity(String query, String term, float minIdentity) {
+    	
+    	int minLength = Math.min(query.length(), term.length());
+    	if (minLength == 0) {
+    		return false;
+    	}
+    	
+    	// the same cutoff that FuzzyTermEnum uses to stop early, which also rules out names of very different lengths
+    	int maxDistance = getMaxDistance(query.length(), term.length(), minIdentity);
+    	if (Math.abs(query.length() - term.length()) > maxDistance) {
+    		return false;
+    	}
+    	
+    	// distances over the cutoff all fail the check below, so they do not need to be worked out exactly
+    	return isWithinMinIdentity(query.length(), term.length(), BoundedEditDistance.distance(query, term, maxDistance), minIdentity);
+    }
+
+    /**
+     * Return the edit distance cutoff for a query of length `queryLength` and a term of length `termLength` with
+     * `minIdentity` as the minimum similarity. Pairs at a greater distance are never within `minIdentity` of each other,
+     * so it can be used as the bound for BoundedEditDistance.distance() before calling isWithinMinIdentity().
+     * 
+     * @param queryLength
+     * @param termLength
+     * @param minIdentity
+     * @return
+     */
+    public static int getMaxDistance(int queryLength, int termLength, float minIdentity) {
+    	return Math.max(0, (int) ((1 - minIdentity) * Math.min(queryLength, termLength)));
+    }
+
+    /**
+     * Returns true if a term of length `termLength` at edit distance `distance` from a query of length `queryLength` would
+     * be accepted by a Lucene FuzzyQuery with `minIdentity` as its minimum similarity. For matchers that have already
+     * found the edit distance.
+     * 
+     * @param queryLength
+     * @param termLength
+     * @param distance
+     * @param minIdentity
+     * @return
+     */
+    public static boolean isWithinMinIdentity(int queryLength, int termLength, int distance, float minIdentity) {
+    	
+    	int minLength = Math.min(queryLength, termLength);
+    	if (minLength == 0) {
+    		return false;
+    	}
+    	return 1.0f - ((float) distance / (float) minLength) > minIdentity;
     }
 }
@@ -0,0 +1,114 @@
+package org.opentree.tnrs.queries;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.TermQuery;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.opentree.properties.OTVocabularyPredicate;
+
+/**
+ * Resolves exact matches for a whole set of names against a single name index. Instead of issuing one TermQuery per
+ * name, the names are sorted and de-duplicated, and then resolved in as few passes over the index as possible by
+ * sending them as disjunctions of term queries (at most BooleanQuery.getMaxClauseCount() terms per pass). The results
+ * are returned as a multimap from each requested name to the ids of the nodes that matched it.
+ *
+ * Names are expected to be lowercased already, as they are in the name indexes. Each name is looked up under its key (see
+ * getKey()), which does not depend on the default locale the name was lowercased under, and the hits for each key are
+ * returned for all the requested names that have that key, spelled as they were requested. Since the hits of a disjunction
+ * do not say which of its terms they matched, each hit is assigned to a key by the name on the node.
+ */
+public class BatchedExactLookup {
+
+	private static final String NAME_FIELD = OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName();
+
+	private final Index<Node> index;
+	private final TreeSet<String> names;
+	private int indexPasses = 0;
+
+	public BatchedExactLookup(Index<Node> index, Collection<String> names) {
+		this.index = index;
+		this.names = new TreeSet<String>(names);
+	}
+
+	/**
+	 * Resolve all the names against the index. The returned map contains one entry for every requested name; names
+	 * without any hits are mapped to an empty list, so that a null value from the map always means the name was not
+	 * part of this lookup.
+	 *
+	 * @return
+	 */
+	public Map<String, List<Long>> run() {
+
+		Map<String, List<Long>> hitsByName = new HashMap<String, List<Long>>();
+		for (String name : names) {
+			hitsByName.put(name, new ArrayList<Long>(1));
+		}
+
+		int batchSize = BooleanQuery.getMaxClauseCount();
+		Iterator<String> nameIter = names.iterator();
+		while (nameIter.hasNext()) {
+
+			// collect the next set of (sorted) names into one disjunction
+			BooleanQuery batchQuery = new BooleanQuery(true);
+			Map<String, List<String>> batchNamesByKey = new HashMap<String, List<String>>();
+			for (int i = 0; i < batchSize && nameIter.hasNext(); i++) {
+				String name = nameIter.next();
+				String key = getKey(name);
+				List<String> batchNames = batchNamesByKey.get(key);
+				if (batchNames == null) {
+					batchQuery.add(new TermQuery(new Term(NAME_FIELD, key)), BooleanClause.Occur.SHOULD);
+					batchNames = new ArrayList<String>(1);
+					batchNamesByKey.put(key, batchNames);
+				}
+				batchNames.add(name);
+			}
+
+			IndexHits<Node> hits = index.query(batchQuery);
+			indexPasses++;
+			try {
+				for (Node hit : hits) {
+					// group the hits by the names in this pass that they were indexed under
+					List<String> batchNames = batchNamesByKey.get(getKey((String) hit.getProperty(NAME_FIELD)));
+					if (batchNames != null) {
+						for (String name : batchNames) {
+							hitsByName.get(name).add(hit.getId());
+						}
+					}
+				}
+			} finally {
+				hits.close();
+			}
+		}
+
+		return hitsByName;
+	}
+
+	/**
+	 * Return the term `name` is looked up under, which is also used to match the hits to the names they were found for:
+	 * `name` folded to lowercase in a way that does not depend on the default locale, so that the same name lowercased under
+	 * any locale has the same key, which is the term it is indexed under.
+	 */
+	private static String getKey(String name) {
+		return name.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Return the number of queries that were sent to the index during the last call to run().
+	 * @return
+	 */
+	public int getIndexPasses() {
+		return indexPasses;
+	}
+}
@@ -0,0 +1,118 @@
+package org.opentree.tnrs.queries;
+
+/**
+ * Edit distance for checking and scoring approximate matches. Callers usually only need to know the distance if it is
+ * within some budget (e.g. the one from AbstractBaseQuery.getMaxEdits()), so only the cells of the edit distance table
+ * that are within that many places of the diagonal are filled in, and the computation stops as soon as a whole row is
+ * over the budget. The rows are kept in buffers that belong to the calling thread and are reused from call to call, so
+ * nothing is allocated once a thread's buffers are big enough for the names it sees.
+ *
+ * By default this is the Levenshtein distance (insertions, deletions and substitutions), which is what Lucene FuzzyQuery
+ * uses, so it must be used wherever the result has to agree with a FuzzyQuery. Transpositions of adjacent characters can
+ * also be counted as single edits (the optimal string alignment distance, a restricted form of Damerau-Levenshtein).
+ */
+public final class BoundedEditDistance {
+
+	private static final ThreadLocal<int[][]> ROWS = new ThreadLocal<int[][]>() {
+		@Override
+		protected int[][] initialValue() {
+			return new int[3][64];
+		}
+	};
+
+	private BoundedEditDistance() {}
+
+	/**
+	 * Return the Levenshtein distance between `a` and `b`.
+	 */
+	public static int distance(CharSequence a, CharSequence b) {
+		return distance(a, b, Math.max(a.length(), b.length()), false);
+	}
+
+	/**
+	 * Return the Levenshtein distance between `a` and `b` if it is at most `maxDistance`, and `maxDistance + 1` otherwise.
+	 */
+	public static int distance(CharSequence a, CharSequence b, int maxDistance) {
+		return distance(a, b, maxDistance, false);
+	}
+
+	/**
+	 * Return the edit distance between `a` and `b` if it is at most `maxDistance`, and `maxDistance + 1` otherwise. If
+	 * `transpositions` is true, swapping two adjacent characters counts as a single edit.
+	 */
+	public static int distance(CharSequence a, CharSequence b, int maxDistance, boolean transpositions) {
+
+		int n = a.length();
+		int m = b.length();
+		if (maxDistance < 0) {
+			throw new IllegalArgumentException("maxDistance must not be negative: " + maxDistance);
+		}
+		int over = maxDistance + 1;
+		if (Math.abs(n - m) > maxDistance) {
+			return over;
+		}
+		if (n == 0 || m == 0) {
+			return Math.max(n, m);
+		}
+
+		int[][] rows = getRows(m + 1);
+		int[] before = rows[0]; // row i - 2, only used for transpositions
+		int[] previous = rows[1];
+		int[] current = rows[2];
+
+		// row 0, and the cell just past the band, which row 1 reads
+		int initEnd = Math.min(m, maxDistance + 1);
+		for (int j = 0; j <= initEnd; j++) {
+			previous[j] = Math.min(j, over);
+		}
+
+		for (int i = 1; i <= n; i++) {
+			char ca = a.charAt(i - 1);
+			int low = Math.max(1, i - maxDistance);
+			int high = Math.min(m, i + maxDistance);
+
+			// the cell just before the band
+			current[low - 1] = low == 1 ? Math.min(i, over) : over;
+			int rowMin = current[low - 1];
+
+			for (int j = low; j <= high; j++) {
+				char cb = b.charAt(j - 1);
+				int d = previous[j - 1] + (ca == cb ? 0 : 1);
+				d = Math.min(d, previous[j] + 1);
+				d = Math.min(d, current[j - 1] + 1);
+				if (transpositions && i > 1 && j > 1 && ca == b.charAt(j - 2) && a.charAt(i - 2) == cb) {
+					d = Math.min(d, before[j - 2] + 1);
+				}
+				d = Math.min(d, over);
+				current[j] = d;
+				if (d < rowMin) {
+					rowMin = d;
+				}
+			}
+
+			// the cell just past the band, which the next row reads
+			if (high < m) {
+				current[high + 1] = over;
+			}
+			if (rowMin > maxDistance) {
+				return over;
+			}
+
+			int[] recycled = before;
+			before = previous;
+			previous = current;
+			current = recycled;
+		}
+		return previous[m];
+	}
+
+	private static int[][] getRows(int length) {
+		int[][] rows = ROWS.get();
+		if (rows[0].length < length) {
+			int size = Math.max(length, rows[0].length * 2);
+			rows = new int[][] {new int[size], new int[size], new int[size]};
+			ROWS.set(rows);
+		}
+		return rows;
+	}
+}
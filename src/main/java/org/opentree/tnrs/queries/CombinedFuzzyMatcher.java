@@ -0,0 +1,25 @@
+package org.opentree.tnrs.queries;
+
+import java.util.List;
+
+/**
+ * Finds approximate matches for a name in several name indexes at once, so that matchers that enumerate the names of an
+ * index (or the variants of the query) can do that once for all the indexes instead of once for each of them. The results
+ * are the same as those of a FuzzyMatcher for each of the indexes. Combined matchers are obtained from a
+ * FuzzyMatchingEngine, and must be safe to use from several threads at once.
+ */
+public interface CombinedFuzzyMatcher {
+
+	/**
+	 * Return a list for each of the indexes the matcher was made for, in the same order, holding the matches in that
+	 * index for the names that are within `minIdentity` of `name` (as FuzzyMatcher.findMatches() does). Indexes for
+	 * which `searchIndex` is false are not searched, and get an empty list.
+	 * 
+	 * @param name
+	 * @param minIdentity
+	 * @param searchIndex
+	 * @return
+	 */
+	public List<List<FuzzyMatch>> findMatches(String name, float minIdentity, boolean[] searchIndex);
+
+}
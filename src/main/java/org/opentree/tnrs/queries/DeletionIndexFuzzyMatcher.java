@@ -0,0 +1,136 @@
+package org.opentree.tnrs.queries;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.opentree.properties.OTVocabularyPredicate;
+import org.opentree.taxonomy.contexts.DeletionNeighbourhoodIndex;
+import org.opentree.taxonomy.contexts.ExactNameDictionary;
+import org.opentree.taxonomy.contexts.TaxonomyContext;
+import org.opentree.taxonomy.contexts.TaxonomyNodeIndex;
+
+/**
+ * Finds approximate matches using the candidates from a DeletionNeighbourhoodIndex. Each candidate is checked with
+ * AbstractBaseQuery.isWithinMinIdentity(), and the nodes for the names that pass are looked up exactly, in the exact name
+ * dictionary if there is one and otherwise in the index itself. Names whose edit budget is greater than the number of
+ * deletions recorded in the deletion index (long names, see AbstractBaseQuery.getMaxEdits()), and all names when there is
+ * no deletion index, are matched with a LevenshteinAutomatonFuzzyMatcher, which only uses Lucene for indexes without term
+ * dictionaries.
+ */
+public class DeletionIndexFuzzyMatcher implements FuzzyMatcher {
+
+	private final Index<Node> index;
+	private final DeletionNeighbourhoodIndex deletionIndex; // may be null
+	private final ExactNameDictionary dictionary; // may be null
+	private final LevenshteinAutomatonFuzzyMatcher fallback;
+	
+	public DeletionIndexFuzzyMatcher(TaxonomyContext context, TaxonomyNodeIndex indexDesc) {
+		index = context.getNodeIndex(indexDesc);
+		deletionIndex = context.getDeletionNeighbourhoodIndex(indexDesc);
+		dictionary = context.getExactNameDictionary(indexDesc);
+		fallback = new LevenshteinAutomatonFuzzyMatcher(context, indexDesc);
+	}
+	
+	@Override
+	public List<FuzzyMatch> findMatches(String name, float minIdentity) {
+		
+		if (!covers(name)) {
+			return fallback.findMatches(name, minIdentity);
+		}
+		return findMatches(name, minIdentity, deletionIndex.getVariants(name));
+	}
+
+	/**
+	 * Return true if the deletion index will find all the matches for `name`.
+	 */
+	private boolean covers(String name) {
+		return deletionIndex != null && deletionIndex.covers(AbstractBaseQuery.getMaxEdits(name));
+	}
+
+	/**
+	 * Return the matches for `name` among the candidates found in the deletion index for `variants`, which must be the
+	 * deletion variants of `name`.
+	 */
+	private List<FuzzyMatch> findMatches(String name, float minIdentity, Set<String> variants) {
+
+		List<FuzzyMatch> matches = new ArrayList<FuzzyMatch>();
+		for (String candidate : deletionIndex.getCandidates(variants)) {
+			if (!AbstractBaseQuery.isWithinMinIdentity(name, candidate, minIdentity)) {
+				continue;
+			}
+			if (dictionary != null) {
+				for (long nodeId : dictionary.get(candidate)) {
+					matches.add(new FuzzyMatch(candidate, nodeId));
+				}
+			} else {
+				IndexHits<Node> hits = index.query(new TermQuery(new Term(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), candidate)));
+	    		try {
+	    			for (Node hit : hits) {
+	    				matches.add(new FuzzyMatch(candidate, hit.getId()));
+	    			}
+	    		} finally {
+	    			hits.close();
+	    		}
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Finds approximate matches in several indexes with a DeletionIndexFuzzyMatcher for each of them, making the deletion
+	 * variants of the query only once for all the deletion indexes that have the same settings. The indexes whose deletion
+	 * indexes do not cover the query are matched together with a LevenshteinAutomatonFuzzyMatcher.Combined.
+	 */
+	static class Combined implements CombinedFuzzyMatcher {
+
+		private final DeletionIndexFuzzyMatcher[] matchers;
+		private final LevenshteinAutomatonFuzzyMatcher.Combined fallback;
+
+		Combined(TaxonomyContext[] contexts, TaxonomyNodeIndex[] indexDescs) {
+			matchers = new DeletionIndexFuzzyMatcher[indexDescs.length];
+			for (int i = 0; i < indexDescs.length; i++) {
+				matchers[i] = new DeletionIndexFuzzyMatcher(contexts[i], indexDescs[i]);
+			}
+			fallback = new LevenshteinAutomatonFuzzyMatcher.Combined(contexts, indexDescs);
+		}
+
+		@Override
+		public List<List<FuzzyMatch>> findMatches(String name, float minIdentity, boolean[] searchIndex) {
+
+			// the indexes the deletion indexes do not cover are searched in one pass of the automaton
+			boolean[] searchFallback = new boolean[matchers.length];
+			boolean useFallback = false;
+			for (int i = 0; i < matchers.length; i++) {
+				searchFallback[i] = searchIndex[i] && !matchers[i].covers(name);
+				useFallback |= searchFallback[i];
+			}
+			List<List<FuzzyMatch>> fallbackMatches = useFallback ? fallback.findMatches(name, minIdentity, searchFallback) : null;
+
+			List<List<FuzzyMatch>> matches = new ArrayList<List<FuzzyMatch>>(matchers.length);
+			DeletionNeighbourhoodIndex variantsIndex = null; // the index whose settings were used to make the variants
+			Set<String> variants = null;
+			for (int i = 0; i < matchers.length; i++) {
+				DeletionIndexFuzzyMatcher matcher = matchers[i];
+				if (!searchIndex[i]) {
+					matches.add(new ArrayList<FuzzyMatch>());
+				} else if (searchFallback[i]) {
+					matches.add(fallbackMatches.get(i));
+				} else {
+					if (variants == null || variantsIndex.getPrefixLength() != matcher.deletionIndex.getPrefixLength()
+							|| variantsIndex.getMaxDeletions() != matcher.deletionIndex.getMaxDeletions()) {
+						variantsIndex = matcher.deletionIndex;
+						variants = variantsIndex.getVariants(name);
+					}
+					matches.add(matcher.findMatches(name, minIdentity, variants));
+				}
+			}
+			return matches;
+		}
+	}
+}
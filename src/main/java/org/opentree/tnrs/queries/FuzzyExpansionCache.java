@@ -0,0 +1,231 @@
+package org.opentree.tnrs.queries;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opentree.taxonomy.Taxonomy;
+import org.opentree.taxonomy.contexts.TaxonomyContext;
+import org.opentree.taxonomy.contexts.TaxonomyNodeIndex;
+
+/**
+ * A bounded least-recently-used cache of the matches that fuzzy matchers find for query names, shared by TNRS queries
+ * across requests, so that a misspelling that keeps being queried is only expanded into its matching names once. Queries
+ * use it by wrapping the matchers they get from their FuzzyMatchingEngine with wrap(), which look up each (index, name,
+ * minimum identity) in the cache before searching the index.
+ *
+ * Entries are stored under keys that start with the location and revision of the taxonomy they were found in. Whenever a
+ * matcher is wrapped for a taxonomy whose revision is not the one the cache last saw for it, the entries for that taxonomy
+ * are removed. The size of the cache is bounded by the total weight of its entries; each entry weighs one plus the number
+ * of matches it holds. All methods are synchronized, so a single cache can be used by concurrent queries.
+ */
+public class FuzzyExpansionCache {
+
+	/**
+	 * The maximum total weight of the shared cache, which can be set with the
+	 * taxomachine.fuzzy_expansion_cache_weight system property. With 0 the shared cache keeps nothing.
+	 */
+	public static final int DEFAULT_MAX_WEIGHT = Integer.getInteger("taxomachine.fuzzy_expansion_cache_weight", 500000);
+
+	private static final FuzzyExpansionCache sharedCache = new FuzzyExpansionCache(DEFAULT_MAX_WEIGHT);
+
+	private final LinkedHashMap<String, List<FuzzyMatch>> entries;
+	private final Map<String, Long> revisions; // the last revision seen for each taxonomy, by key prefix
+	private final long maxWeight;
+	private long weight = 0;
+
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long evictionCount = 0;
+	private long invalidationCount = 0;
+
+	public FuzzyExpansionCache(long maxWeight) {
+		this.maxWeight = maxWeight;
+		entries = new LinkedHashMap<String, List<FuzzyMatch>>(16, 0.75f, true); // access order
+		revisions = new HashMap<String, Long>();
+	}
+
+	/**
+	 * Return the cache that is shared by all TNRS queries in this jvm.
+	 * @return
+	 */
+	public static FuzzyExpansionCache getSharedCache() {
+		return sharedCache;
+	}
+
+	/**
+	 * Return a matcher that returns the matches found by `matcher` (from `engine`, for the index defined by `indexDesc`
+	 * within `context`), and remembers them in this cache.
+	 *
+	 * @param matcher
+	 * @param engine
+	 * @param context
+	 * @param indexDesc
+	 * @return
+	 */
+	public FuzzyMatcher wrap(final FuzzyMatcher matcher, FuzzyMatchingEngine engine, TaxonomyContext context, TaxonomyNodeIndex indexDesc) {
+		final String keyPrefix = getKeyPrefix(engine, context, indexDesc);
+		return new FuzzyMatcher() {
+			@Override
+			public List<FuzzyMatch> findMatches(String name, float minIdentity) {
+				String key = keyPrefix + minIdentity + "|" + name;
+				List<FuzzyMatch> matches = get(key);
+				if (matches == null) {
+					matches = Collections.unmodifiableList(matcher.findMatches(name, minIdentity));
+					put(key, matches);
+				}
+				return matches;
+			}
+		};
+	}
+
+	/**
+	 * Return a combined matcher that returns the matches found by `matcher` (from `engine`, for the index defined by each
+	 * element of `indexDescs` within the context at the same position in `contexts`), and remembers the matches for each
+	 * index in this cache. Only the indexes whose matches are not in the cache are searched.
+	 *
+	 * @param matcher
+	 * @param engine
+	 * @param contexts
+	 * @param indexDescs
+	 * @return
+	 */
+	public CombinedFuzzyMatcher wrap(final CombinedFuzzyMatcher matcher, FuzzyMatchingEngine engine, TaxonomyContext[] contexts,
+			TaxonomyNodeIndex[] indexDescs) {
+		final String[] keyPrefixes = new String[indexDescs.length];
+		for (int i = 0; i < indexDescs.length; i++) {
+			keyPrefixes[i] = getKeyPrefix(engine, contexts[i], indexDescs[i]);
+		}
+		return new CombinedFuzzyMatcher() {
+			@Override
+			public List<List<FuzzyMatch>> findMatches(String name, float minIdentity, boolean[] searchIndex) {
+
+				List<List<FuzzyMatch>> matches = new ArrayList<List<FuzzyMatch>>(keyPrefixes.length);
+				boolean[] uncached = new boolean[keyPrefixes.length];
+				boolean anyUncached = false;
+				for (int i = 0; i < keyPrefixes.length; i++) {
+					List<FuzzyMatch> cached = searchIndex[i] ? get(keyPrefixes[i] + minIdentity + "|" + name) : null;
+					uncached[i] = searchIndex[i] && cached == null;
+					anyUncached |= uncached[i];
+					matches.add(cached == null ? Collections.<FuzzyMatch>emptyList() : cached);
+				}
+
+				if (anyUncached) {
+					List<List<FuzzyMatch>> found = matcher.findMatches(name, minIdentity, uncached);
+					for (int i = 0; i < keyPrefixes.length; i++) {
+						if (uncached[i]) {
+							List<FuzzyMatch> indexMatches = Collections.unmodifiableList(found.get(i));
+							put(keyPrefixes[i] + minIdentity + "|" + name, indexMatches);
+							matches.set(i, indexMatches);
+						}
+					}
+				}
+				return matches;
+			}
+		};
+	}
+
+	/**
+	 * Return the part of the keys for the matches in the index defined by `indexDesc` within `context` that identifies the
+	 * index and the matcher, and remove the entries for the taxonomy of `context` if it has changed since it was last seen.
+	 */
+	private String getKeyPrefix(FuzzyMatchingEngine engine, TaxonomyContext context, TaxonomyNodeIndex indexDesc) {
+		Taxonomy taxonomy = context.getTaxonomy();
+		String taxonomyPrefix = taxonomy.getStoreDir() + "|";
+		long revision = taxonomy.getRevision();
+		checkRevision(taxonomyPrefix, revision);
+		return taxonomyPrefix + revision + "|" + engine + "|" + indexDesc.namePrefix + context.getDescription().nameSuffix + "|";
+	}
+
+	/**
+	 * Remove the entries whose keys start with `taxonomyPrefix` if `revision` is not the last revision seen for it.
+	 */
+	private synchronized void checkRevision(String taxonomyPrefix, long revision) {
+		Long lastRevision = revisions.put(taxonomyPrefix, revision);
+		if (lastRevision == null || lastRevision == revision) {
+			return;
+		}
+		Iterator<Map.Entry<String, List<FuzzyMatch>>> entryIter = entries.entrySet().iterator();
+		while (entryIter.hasNext()) {
+			Map.Entry<String, List<FuzzyMatch>> entry = entryIter.next();
+			if (entry.getKey().startsWith(taxonomyPrefix)) {
+				weight -= getWeight(entry.getValue());
+				entryIter.remove();
+				invalidationCount++;
+			}
+		}
+	}
+
+	/**
+	 * Return the matches stored under `key`, or null if there are none.
+	 * @param key
+	 * @return
+	 */
+	public synchronized List<FuzzyMatch> get(String key) {
+		List<FuzzyMatch> matches = entries.get(key);
+		if (matches == null) {
+			missCount++;
+		} else {
+			hitCount++;
+		}
+		return matches;
+	}
+
+	/**
+	 * Store `matches` under `key`, evicting the least recently used entries if the cache is over its maximum weight. The
+	 * list is shared with every query that finds it in the cache, so it must not be modified.
+	 * @param key
+	 * @param matches
+	 */
+	public synchronized void put(String key, List<FuzzyMatch> matches) {
+		List<FuzzyMatch> previous = entries.put(key, matches);
+		if (previous != null) {
+			weight -= getWeight(previous);
+		}
+		weight += getWeight(matches);
+
+		Iterator<List<FuzzyMatch>> entryIter = entries.values().iterator();
+		while (weight > maxWeight && entryIter.hasNext()) {
+			weight -= getWeight(entryIter.next());
+			entryIter.remove();
+			evictionCount++;
+		}
+	}
+
+	private static long getWeight(List<FuzzyMatch> matches) {
+		return 1 + matches.size();
+	}
+
+	/**
+	 * Remove all the entries from the cache. The counters are not reset.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		revisions.clear();
+		weight = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Return the cache counters (hits, misses, evictions, and entries removed because the taxonomy changed) and current
+	 * size, e.g. for reporting.
+	 * @return
+	 */
+	public synchronized Map<String, Long> getStatistics() {
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+		stats.put("hits", hitCount);
+		stats.put("misses", missCount);
+		stats.put("evictions", evictionCount);
+		stats.put("invalidations", invalidationCount);
+		stats.put("entries", (long) entries.size());
+		stats.put("weight", weight);
+		return stats;
+	}
+}
@@ -0,0 +1,32 @@
+package org.opentree.tnrs.queries;
+
+/**
+ * A name found by a FuzzyMatcher, and the id of one of the nodes recorded under it. Matchers report the names they find
+ * without loading the nodes, so that callers can decide from the names alone which nodes are worth loading.
+ */
+public class FuzzyMatch {
+
+	private final String name;
+	private final long nodeId;
+
+	public FuzzyMatch(String name, long nodeId) {
+		this.name = name;
+		this.nodeId = nodeId;
+	}
+
+	/**
+	 * Return the matched name, lowercased as it is in the index.
+	 * @return
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Return the id of the node recorded under the matched name.
+	 * @return
+	 */
+	public long getNodeId() {
+		return nodeId;
+	}
+}
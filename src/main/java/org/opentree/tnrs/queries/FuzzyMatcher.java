@@ -0,0 +1,24 @@
+package org.opentree.tnrs.queries;
+
+import java.util.List;
+
+/**
+ * Finds the nodes in one name index of one TaxonomyContext whose names approximately match a query name. Every matcher
+ * must accept exactly the names that a Lucene FuzzyQuery for the query name with `minIdentity` as its minimum similarity
+ * would, so that the matchers can be swapped without changing the results (see AbstractBaseQuery.isWithinMinIdentity());
+ * they differ only in how they find them. Matchers are obtained from a FuzzyMatchingEngine, and must be safe to use from
+ * several threads at once.
+ */
+public interface FuzzyMatcher {
+
+	/**
+	 * Return a match for each node recorded under a name that is within `minIdentity` of `name`, which is expected to be
+	 * lowercased. Nodes recorded under more than one matching name are returned once for each of them.
+	 * 
+	 * @param name
+	 * @param minIdentity
+	 * @return
+	 */
+	public List<FuzzyMatch> findMatches(String name, float minIdentity);
+
+}
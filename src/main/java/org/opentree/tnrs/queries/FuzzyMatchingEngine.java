@@ -0,0 +1,118 @@
+package org.opentree.tnrs.queries;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opentree.taxonomy.contexts.TaxonomyContext;
+import org.opentree.taxonomy.contexts.TaxonomyNodeIndex;
+
+/**
+ * The available ways of finding approximate name matches. All of them find the same matches (see FuzzyMatcher); they are
+ * kept side by side so they can be compared. The engines other than LUCENE use structures that are built alongside the
+ * graph by makecontexts, and fall back to Lucene fuzzy queries for indexes where those structures are missing or out of
+ * date.
+ * 
+ * The engine used by queries that are not given one is set with the taxomachine.fuzzy_matching_engine system property
+ * (e.g. -Dtaxomachine.fuzzy_matching_engine=levenshtein_automaton), and is DELETION_INDEX if that is not set.
+ */
+public enum FuzzyMatchingEngine {
+
+	/**
+	 * Lucene FuzzyQuery against the Neo4J index, which compares the query with every term in the index.
+	 */
+	LUCENE {
+		@Override
+		public FuzzyMatcher getMatcher(TaxonomyContext context, TaxonomyNodeIndex indexDesc) {
+			return new LuceneFuzzyMatcher(context.getNodeIndex(indexDesc));
+		}
+	},
+	
+	/**
+	 * Candidate names from the DeletionNeighbourhoodIndex, checked against the edit distance. Only used for names whose
+	 * edit budget is within the deletions recorded by the index; the others are matched as by LEVENSHTEIN_AUTOMATON.
+	 */
+	DELETION_INDEX {
+		@Override
+		public FuzzyMatcher getMatcher(TaxonomyContext context, TaxonomyNodeIndex indexDesc) {
+			return new DeletionIndexFuzzyMatcher(context, indexDesc);
+		}
+
+		@Override
+		public CombinedFuzzyMatcher getCombinedMatcher(TaxonomyContext[] contexts, TaxonomyNodeIndex[] indexDescs) {
+			return new DeletionIndexFuzzyMatcher.Combined(contexts, indexDescs);
+		}
+	},
+	
+	/**
+	 * A Levenshtein automaton for the query, walked over the SortedTermDictionary so that only the terms that share a
+	 * prefix the automaton can still accept are visited. Where there is a BucketedTermDictionary, only the buckets of terms
+	 * whose length and first character are close enough to the query's are walked.
+	 */
+	LEVENSHTEIN_AUTOMATON {
+		@Override
+		public FuzzyMatcher getMatcher(TaxonomyContext context, TaxonomyNodeIndex indexDesc) {
+			return new LevenshteinAutomatonFuzzyMatcher(context, indexDesc);
+		}
+
+		@Override
+		public CombinedFuzzyMatcher getCombinedMatcher(TaxonomyContext[] contexts, TaxonomyNodeIndex[] indexDescs) {
+			return new LevenshteinAutomatonFuzzyMatcher.Combined(contexts, indexDescs);
+		}
+	};
+
+	/** The system property that sets the default engine. */
+	public static final String SYSTEM_PROPERTY = "taxomachine.fuzzy_matching_engine";
+	
+	/**
+	 * Return a matcher for the names in the index defined by `indexDesc` within `context`.
+	 * 
+	 * @param context
+	 * @param indexDesc
+	 * @return
+	 */
+	public abstract FuzzyMatcher getMatcher(TaxonomyContext context, TaxonomyNodeIndex indexDesc);
+
+	/**
+	 * Return a matcher for the names in several indexes at once: the index defined by each element of `indexDescs` within
+	 * the context at the same position in `contexts`. Engines that cannot share work between indexes just search each of
+	 * them with its own matcher.
+	 * 
+	 * @param contexts
+	 * @param indexDescs
+	 * @return
+	 */
+	public CombinedFuzzyMatcher getCombinedMatcher(TaxonomyContext[] contexts, TaxonomyNodeIndex[] indexDescs) {
+		final FuzzyMatcher[] matchers = new FuzzyMatcher[indexDescs.length];
+		for (int i = 0; i < indexDescs.length; i++) {
+			matchers[i] = getMatcher(contexts[i], indexDescs[i]);
+		}
+		return new CombinedFuzzyMatcher() {
+			@Override
+			public List<List<FuzzyMatch>> findMatches(String name, float minIdentity, boolean[] searchIndex) {
+				List<List<FuzzyMatch>> matches = new ArrayList<List<FuzzyMatch>>(matchers.length);
+				for (int i = 0; i < matchers.length; i++) {
+					matches.add(searchIndex[i] ? matchers[i].findMatches(name, minIdentity) : new ArrayList<FuzzyMatch>());
+				}
+				return matches;
+			}
+		};
+	}
+	
+	/**
+	 * Return the engine named by the taxomachine.fuzzy_matching_engine system property (ignoring case), or DELETION_INDEX if
+	 * it is not set or does not name an engine.
+	 * 
+	 * @return
+	 */
+	public static FuzzyMatchingEngine getDefault() {
+		String name = System.getProperty(SYSTEM_PROPERTY);
+		if (name != null) {
+			try {
+				return valueOf(name.trim().toUpperCase());
+			} catch (IllegalArgumentException ex) {
+				System.err.println("Unknown fuzzy matching engine '" + name + "', using " + DELETION_INDEX);
+			}
+		}
+		return DELETION_INDEX;
+	}
+}
@@ -0,0 +1,337 @@
+package org.opentree.tnrs.queries;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.opentree.taxonomy.contexts.BucketedTermDictionary;
+import org.opentree.taxonomy.contexts.MergedTermCursor;
+import org.opentree.taxonomy.contexts.SortedTermDictionary;
+import org.opentree.taxonomy.contexts.TaxonomyContext;
+import org.opentree.taxonomy.contexts.TaxonomyNodeIndex;
+
+/**
+ * Finds approximate matches by running a Levenshtein automaton for the query over the SortedTermDictionary of an index.
+ * The automaton's state after reading some prefix of a term is the row of edit distances between that prefix and every
+ * prefix of the query (capped at one more than the edit budget from AbstractBaseQuery.getMaxEdits()). Since the terms are
+ * sorted, the states for the prefix a term shares with the one before it are reused, and as soon as a prefix leaves the
+ * automaton with no live state, every term that starts with that prefix is skipped by seeking past it. Only the terms the
+ * automaton accepts are checked against the minimum identity, using the distance it has already computed.
+ *
+ * If there is a BucketedTermDictionary for the index, the automaton is only walked over the buckets whose term length and
+ * first character leave some chance of a match (see canMatch()). Otherwise the whole SortedTermDictionary is walked, and if
+ * there is no sorted term dictionary for the index either, Lucene is used instead.
+ */
+public class LevenshteinAutomatonFuzzyMatcher implements FuzzyMatcher {
+
+	private final BucketedTermDictionary bucketedDictionary; // may be null
+	private final SortedTermDictionary dictionary; // may be null
+	private final LuceneFuzzyMatcher fallback;
+
+	public LevenshteinAutomatonFuzzyMatcher(TaxonomyContext context, TaxonomyNodeIndex indexDesc) {
+		bucketedDictionary = context.getBucketedTermDictionary(indexDesc);
+		dictionary = context.getSortedTermDictionary(indexDesc);
+		fallback = new LuceneFuzzyMatcher(context.getNodeIndex(indexDesc));
+	}
+
+	@Override
+	public List<FuzzyMatch> findMatches(String name, float minIdentity) {
+
+		if (bucketedDictionary != null) {
+			return findMatches(new BucketedTermDictionary[] {bucketedDictionary}, name, minIdentity).get(0);
+		} else if (dictionary != null) {
+			return findMatches(dictionary, name, minIdentity);
+		}
+		return fallback.findMatches(name, minIdentity);
+	}
+
+	/**
+	 * Return the matches in `dictionary` for the terms that are within `minIdentity` of `name`.
+	 */
+	static List<FuzzyMatch> findMatches(SortedTermDictionary dictionary, String name, float minIdentity) {
+		return findMatches(new SortedTermDictionary[] {dictionary}, name, minIdentity).get(0);
+	}
+
+	/**
+	 * Return a list for each of `dictionaries`, holding the matches in that dictionary for the terms that are within
+	 * `minIdentity` of `name`. The terms of all the dictionaries are walked in a single pass.
+	 */
+	static List<List<FuzzyMatch>> findMatches(SortedTermDictionary[] dictionaries, String name, float minIdentity) {
+		return findMatches(dictionaries, name, minIdentity, new LevenshteinAutomaton(name, AbstractBaseQuery.getMaxEdits(name)));
+	}
+
+	/**
+	 * Return a list for each of `dictionaries`, holding the matches in that dictionary for the terms that are within
+	 * `minIdentity` of `name`. Only the buckets that pass canMatch() are walked, and buckets for the same length and first
+	 * character in different dictionaries are walked together.
+	 */
+	static List<List<FuzzyMatch>> findMatches(BucketedTermDictionary[] dictionaries, String name, float minIdentity) {
+
+		int maxEdits = AbstractBaseQuery.getMaxEdits(name);
+		List<List<FuzzyMatch>> matches = new ArrayList<List<FuzzyMatch>>(dictionaries.length);
+		for (int i = 0; i < dictionaries.length; i++) {
+			matches.add(new ArrayList<FuzzyMatch>());
+		}
+
+		// the buckets to walk, by length and first character, with the bucket from each dictionary (if it has one)
+		TreeMap<Long, SortedTermDictionary[]> buckets = new TreeMap<Long, SortedTermDictionary[]>();
+		for (int d = 0; d < dictionaries.length; d++) {
+			for (int b = 0; b < dictionaries[d].getBucketCount(); b++) {
+				int length = dictionaries[d].getBucketLength(b);
+				char firstChar = dictionaries[d].getBucketFirstChar(b);
+				if (canMatch(name, maxEdits, minIdentity, length, firstChar)) {
+					Long key = ((long) length << 16) | firstChar;
+					SortedTermDictionary[] bucket = buckets.get(key);
+					if (bucket == null) {
+						bucket = new SortedTermDictionary[dictionaries.length];
+						buckets.put(key, bucket);
+					}
+					bucket[d] = dictionaries[d].getBucket(b);
+				}
+			}
+		}
+
+		LevenshteinAutomaton automaton = new LevenshteinAutomaton(name, maxEdits);
+		for (SortedTermDictionary[] bucket : buckets.values()) {
+			List<SortedTermDictionary> walked = new ArrayList<SortedTermDictionary>();
+			List<Integer> walkedDictionaries = new ArrayList<Integer>();
+			for (int d = 0; d < bucket.length; d++) {
+				if (bucket[d] != null) {
+					walked.add(bucket[d]);
+					walkedDictionaries.add(d);
+				}
+			}
+			List<List<FuzzyMatch>> bucketMatches = findMatches(walked.toArray(new SortedTermDictionary[walked.size()]), name, minIdentity, automaton);
+			for (int w = 0; w < walked.size(); w++) {
+				matches.get(walkedDictionaries.get(w)).addAll(bucketMatches.get(w));
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Return true if a term of length `length` starting with `firstChar` could be within `maxEdits` edits of `name`, and
+	 * close enough in length to be within `minIdentity` of it (see AbstractBaseQuery.isWithinMinIdentity()). As well as
+	 * the difference in length, this uses the fact that the first character of the term must either be inserted or
+	 * substituted, which costs an edit, or match one of the first maxEdits + 1 characters of the name, which costs an edit
+	 * for every character of the name before it that has to be deleted.
+	 */
+	static boolean canMatch(String name, int maxEdits, float minIdentity, int length, char firstChar) {
+
+		int minLength = Math.min(name.length(), length);
+		if (minLength == 0) {
+			return false;
+		}
+		int lengthDifference = Math.abs(name.length() - length);
+		if (lengthDifference > (int) ((1 - minIdentity) * minLength)) {
+			return false;
+		}
+
+		int minEdits;
+		int firstMatch = name.indexOf(firstChar);
+		if (firstMatch == 0) {
+			minEdits = lengthDifference;
+		} else if (firstMatch > 0 && firstMatch <= maxEdits) {
+			minEdits = Math.max(1, lengthDifference);
+		} else {
+			// the first character is substituted for the first character of the name, or inserted before it
+			minEdits = 1 + Math.min(lengthDifference, Math.abs(name.length() - (length - 1)));
+		}
+		return minEdits <= maxEdits;
+	}
+
+	private static List<List<FuzzyMatch>> findMatches(SortedTermDictionary[] dictionaries, String name, float minIdentity, LevenshteinAutomaton automaton) {
+
+		List<List<FuzzyMatch>> matches = new ArrayList<List<FuzzyMatch>>(dictionaries.length);
+		for (int i = 0; i < dictionaries.length; i++) {
+			matches.add(new ArrayList<FuzzyMatch>());
+		}
+
+		// states.get(i) is the state of the automaton after reading the first i characters of `path`
+		List<int[]> states = new ArrayList<int[]>();
+		states.add(automaton.getStartState());
+		StringBuilder path = new StringBuilder();
+
+		MergedTermCursor cursor = new MergedTermCursor(dictionaries);
+		boolean more = cursor.next();
+		while (more) {
+			String term = cursor.term();
+
+			// reuse the states for the prefix this term shares with the last path we followed
+			int depth = 0;
+			int max = Math.min(path.length(), term.length());
+			while (depth < max && path.charAt(depth) == term.charAt(depth)) {
+				depth++;
+			}
+			path.setLength(depth);
+			while (states.size() > depth + 1) {
+				states.remove(states.size() - 1);
+			}
+
+			int deadAt = -1;
+			for (int i = depth; i < term.length(); i++) {
+				int[] state = automaton.step(states.get(i), term.charAt(i));
+				if (automaton.isDead(state)) {
+					deadAt = i;
+					break;
+				}
+				states.add(state);
+				path.append(term.charAt(i));
+			}
+
+			if (deadAt < 0) {
+				int distance = automaton.getDistance(states.get(term.length()));
+				if (automaton.accepts(distance) && AbstractBaseQuery.isWithinMinIdentity(name.length(), term.length(), distance, minIdentity)) {
+					for (int d = 0; d < dictionaries.length; d++) {
+						if (cursor.contains(d)) {
+							for (long nodeId : cursor.nodeIds(d)) {
+								matches.get(d).add(new FuzzyMatch(term, nodeId));
+							}
+						}
+					}
+				}
+				more = cursor.next();
+
+			} else {
+				// no term starting with this prefix can match. the next term often doesn't share it, in which case a seek is not needed
+				String deadPrefix = term.substring(0, deadAt + 1);
+				more = cursor.next();
+				if (more && cursor.term().startsWith(deadPrefix)) {
+					String successor = getSuccessor(deadPrefix);
+					more = successor != null && cursor.seek(successor);
+				}
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Return the smallest string that is greater than every string starting with `prefix`, or null if there is none.
+	 */
+	private static String getSuccessor(String prefix) {
+		char[] chars = prefix.toCharArray();
+		for (int i = chars.length - 1; i >= 0; i--) {
+			if (chars[i] != Character.MAX_VALUE) {
+				chars[i]++;
+				return new String(chars, 0, i + 1);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Finds approximate matches in several indexes by walking the automaton once over the merged terms of their bucketed
+	 * term dictionaries, or of their sorted term dictionaries for the indexes without bucketed ones (see MergedTermCursor).
+	 * Indexes without either dictionary are matched with Lucene.
+	 */
+	static class Combined implements CombinedFuzzyMatcher {
+
+		private final BucketedTermDictionary[] bucketedDictionaries; // elements may be null
+		private final SortedTermDictionary[] dictionaries; // elements may be null
+		private final LuceneFuzzyMatcher[] fallbacks;
+
+		Combined(TaxonomyContext[] contexts, TaxonomyNodeIndex[] indexDescs) {
+			bucketedDictionaries = new BucketedTermDictionary[indexDescs.length];
+			dictionaries = new SortedTermDictionary[indexDescs.length];
+			fallbacks = new LuceneFuzzyMatcher[indexDescs.length];
+			for (int i = 0; i < indexDescs.length; i++) {
+				bucketedDictionaries[i] = contexts[i].getBucketedTermDictionary(indexDescs[i]);
+				dictionaries[i] = contexts[i].getSortedTermDictionary(indexDescs[i]);
+				fallbacks[i] = new LuceneFuzzyMatcher(contexts[i].getNodeIndex(indexDescs[i]));
+			}
+		}
+
+		@Override
+		public List<List<FuzzyMatch>> findMatches(String name, float minIdentity, boolean[] searchIndex) {
+
+			// walk the dictionaries of all the indexes being searched together, bucketed ones in one pass and sorted ones in another
+			List<BucketedTermDictionary> bucketedWalked = new ArrayList<BucketedTermDictionary>();
+			List<SortedTermDictionary> walked = new ArrayList<SortedTermDictionary>();
+			for (int i = 0; i < dictionaries.length; i++) {
+				if (searchIndex[i] && bucketedDictionaries[i] != null) {
+					bucketedWalked.add(bucketedDictionaries[i]);
+				} else if (searchIndex[i] && dictionaries[i] != null) {
+					walked.add(dictionaries[i]);
+				}
+			}
+			List<List<FuzzyMatch>> bucketedMatches = bucketedWalked.isEmpty() ? new ArrayList<List<FuzzyMatch>>()
+					: LevenshteinAutomatonFuzzyMatcher.findMatches(bucketedWalked.toArray(new BucketedTermDictionary[bucketedWalked.size()]), name, minIdentity);
+			List<List<FuzzyMatch>> walkedMatches = walked.isEmpty() ? new ArrayList<List<FuzzyMatch>>()
+					: LevenshteinAutomatonFuzzyMatcher.findMatches(walked.toArray(new SortedTermDictionary[walked.size()]), name, minIdentity);
+
+			List<List<FuzzyMatch>> matches = new ArrayList<List<FuzzyMatch>>(dictionaries.length);
+			int b = 0;
+			int w = 0;
+			for (int i = 0; i < dictionaries.length; i++) {
+				if (!searchIndex[i]) {
+					matches.add(new ArrayList<FuzzyMatch>());
+				} else if (bucketedDictionaries[i] != null) {
+					matches.add(bucketedMatches.get(b++));
+				} else if (dictionaries[i] == null) {
+					matches.add(fallbacks[i].findMatches(name, minIdentity));
+				} else {
+					matches.add(walkedMatches.get(w++));
+				}
+			}
+			return matches;
+		}
+	}
+
+	/**
+	 * A Levenshtein automaton for a query string and an edit budget, simulated with rows of the edit distance table:
+	 * the state after reading a string s holds the edit distance between s and each prefix of the query, with every value
+	 * above the budget replaced by the budget plus one. A state is dead when all its values are above the budget, since
+	 * reading more characters can never bring them back down.
+	 */
+	static class LevenshteinAutomaton {
+
+		private final char[] query;
+		private final int maxEdits;
+
+		LevenshteinAutomaton(String query, int maxEdits) {
+			this.query = query.toCharArray();
+			this.maxEdits = maxEdits;
+		}
+
+		int[] getStartState() {
+			int[] state = new int[query.length + 1];
+			for (int j = 0; j < state.length; j++) {
+				state[j] = Math.min(j, maxEdits + 1);
+			}
+			return state;
+		}
+
+		int[] step(int[] state, char c) {
+			int[] next = new int[state.length];
+			next[0] = Math.min(state[0] + 1, maxEdits + 1);
+			for (int j = 1; j < next.length; j++) {
+				int d = state[j - 1] + (query[j - 1] == c ? 0 : 1);
+				d = Math.min(d, state[j] + 1);
+				d = Math.min(d, next[j - 1] + 1);
+				next[j] = Math.min(d, maxEdits + 1);
+			}
+			return next;
+		}
+
+		boolean isDead(int[] state) {
+			for (int d : state) {
+				if (d <= maxEdits) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Return the edit distance between the query and the string that led to `state`, or the budget plus one if it is
+		 * greater than the budget.
+		 */
+		int getDistance(int[] state) {
+			return state[query.length];
+		}
+
+		boolean accepts(int distance) {
+			return distance <= maxEdits;
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package org.opentree.tnrs.queries;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.FuzzyQuery;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.opentree.properties.OTVocabularyPredicate;
+
+/**
+ * Finds approximate matches with a Lucene FuzzyQuery against a Neo4J name index. This is the reference for the other
+ * matchers, and the one they fall back to when their own structures are not available. Since the hits of a FuzzyQuery do
+ * not say which term they matched, the name reported for each hit is the name of the node, which is the name it is indexed
+ * under in every index but the name-or-synonym ones.
+ */
+public class LuceneFuzzyMatcher implements FuzzyMatcher {
+
+	private final Index<Node> index;
+	
+	public LuceneFuzzyMatcher(Index<Node> index) {
+		this.index = index;
+	}
+	
+	@Override
+	public List<FuzzyMatch> findMatches(String name, float minIdentity) {
+		
+		List<FuzzyMatch> matches = new ArrayList<FuzzyMatch>();
+    	IndexHits<Node> hits = index.query(new FuzzyQuery(new Term(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), name), minIdentity));
+    	try {
+    		for (Node hit : hits) {
+    			String hitName = (String) hit.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName());
+    			matches.add(new FuzzyMatch(hitName.toLowerCase(), hit.getId()));
+    		}
+    	} finally {
+    		hits.close();
+    	}
+    	return matches;
+	}
+}
@@ -1,18 +1,27 @@
 package org.opentree.tnrs.queries;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.QueryParser;
-import org.apache.lucene.search.FuzzyQuery;
 import org.apache.lucene.search.TermQuery;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
@@ -22,14 +31,19 @@ import org.opentree.properties.OTVocabularyPredicate;
 import org.opentree.taxonomy.Taxon;
 import org.opentree.taxonomy.TaxonSet;
 import org.opentree.taxonomy.Taxonomy;
+import org.opentree.taxonomy.TaxonomyTree;
+import org.opentree.taxonomy.constants.TaxonomyProperty;
 import org.opentree.taxonomy.constants.TaxonomyRelType;
+import org.opentree.taxonomy.contexts.ExactNameDictionary;
+import org.opentree.taxonomy.contexts.LatinNameNormalizer;
+import org.opentree.taxonomy.contexts.NameBloomFilter;
 import org.opentree.taxonomy.contexts.TaxonomyContext;
 import org.opentree.taxonomy.contexts.TaxonomyNodeIndex;
 import org.opentree.tnrs.TNRSHit;
 import org.opentree.tnrs.TNRSMatchSet;
 import org.opentree.tnrs.TNRSNameResult;
+import org.opentree.tnrs.TNRSResultCache;
 import org.opentree.tnrs.TNRSResults;
-import org.opentree.utils.Levenshtein;
 
 /**
  * Provides access to the default TNRS query, which accepts a set of taxonomic names, from which it will attempt to infer
@@ -44,8 +58,13 @@ import org.opentree.utils.Levenshtein;
 public class MultiNameContextQuery extends AbstractBaseQuery {
 	
 	private Map<Object, String> queriedNames;
+	private Map<Object, String> distinctNames; // one entry (under the first id it was seen with) for each distinct queried name
+	private Map<Object, List<Object>> duplicateIds; // the other ids for the names in distinctNames that were queried more than once
     private Taxon bestGuessLICAForNames; // used for the inferred context
+    private TaxonomyTree preferredTree; // the in-memory preferred tree, if there is one
+    private int bestGuessLICAIndex = -1; // the position of bestGuessLICAForNames in preferredTree, or -1
     private HashSet<Taxon> validTaxaWithExactMatches; // To store taxa/names for which we find direct (exact, n=1) matches
+    private Map<Object, List<Taxon>> validTaxaWithExactMatchesById; // the same taxa, by the id of the name they matched
 
     // set during construction by setDefaults()
     private boolean contextAutoInferenceIsOn;
@@ -53,13 +72,61 @@ public class MultiNameContextQuery extends AbstractBaseQuery {
     private boolean includeDubious;
     private boolean includeDeprecated;
     private boolean matchSpTaxaToGenera;
+    private boolean useBatchedExactLookups;
+    private boolean matchInParallel;
+    private boolean useGenusFirstMatching;
+    private long maxFuzzyMillis;
+    private int maxMatchesPerName;
+    private TNRSResultCache resultCache;
+    
+    private String cacheKeyPrefix; // identifies the indexes and options used for the current query in cache keys
     
     private Index<Node> nameIndex;
     private Index<Node> synonymIndex;
     private Index<Node> deprecatedIndex;
+    private Index<Node> normalizedNameIndex;
+
+    // memory-mapped versions of the indexes above for exact lookups. null if they are not available
+    private ExactNameDictionary nameDictionary;
+    private ExactNameDictionary synonymDictionary;
+    private ExactNameDictionary nameOrSynonymDictionary; // covers both nameIndex and synonymIndex
+    private ExactNameDictionary deprecatedDictionary;
+
+    // bloom filters over the names in the indexes above, used to skip lookups for names that are not there. null if not available
+    private NameBloomFilter nameFilter;
+    private NameBloomFilter synonymFilter;
+    private NameBloomFilter deprecatedFilter;
+
+    // approximate matcher for the name, synonym and deprecated indexes above (in the order of the positions below), from
+    // the fuzzy matching engine. these are searched in a single pass for each name
+    private CombinedFuzzyMatcher approximateMatcher;
+    private static final int APPROXIMATE_NAME_INDEX = 0;
+    private static final int APPROXIMATE_SYNONYM_INDEX = 1;
+    private static final int APPROXIMATE_DEPRECATED_INDEX = 2;
+    private static final List<FuzzyMatch> NO_FUZZY_MATCHES = Collections.emptyList();
+
+    // used for genus-first approximate matching of binomials
+    private Index<Node> generaIndex;
+    private Index<Node> speciesByGenusIndex;
+    private FuzzyMatcher generaMatcher;
+
+    // exact hits for each name, found once per query by fetchExactHits() and used by all the exact matching steps
+    private Map<String, List<Node>> exactTaxonHits;
+    private Map<String, List<Node>> exactSynonymHits;
+    private Map<String, List<Node>> exactDeprecatedHits;
     
     private Map<Object, String> namesWithoutExactMatches;
     private Map<Object, String> namesWithoutApproxMatches;
+    private Map<Object, String> namesWithExhaustedFuzzyBudget; // names skipped by approximate matching because it ran out of time
+    private long fuzzyDeadline; // System.nanoTime() at which approximate matching runs out of time, if maxFuzzyMillis is set
+
+    // used for parallel matching; see runMatchingPhase()
+    private static ForkJoinPool matchingPool = null;
+    private final static int PARTITIONS_PER_THREAD = 4;
+    // the most partitions one query is split into, so a single large query cannot take over the whole pool. can be set with
+    // the taxomachine.max_matching_partitions system property
+    private final static int MAX_PARTITIONS_PER_QUERY = Math.max(1, Integer.getInteger("taxomachine.max_matching_partitions", 8));
+    private final static int MIN_EXACT_NAMES_PER_PARTITION = 64;
 
     private final static double GENERIC_SP_MATCHING_SCORE_MODIFIER = 0.99; // arbitrary score modifier, high because we're pretty confident, but not 1 to indicate it was not an exact match
     
@@ -73,17 +140,29 @@ public class MultiNameContextQuery extends AbstractBaseQuery {
 
     /**
      * Initialize the query object with a set of names. Returns self on success. The result will be returned
-     * with the incoming map keys set as the ids.
+     * with the incoming map keys set as the ids. Names that are the same once they have been lowercased are
+     * only matched once, and the result is reported for each of their ids.
      * @param searchStrings
      * @param predefContext
      */
     public MultiNameContextQuery setSearchStrings(Map<Object, String> idNameMap) {
         clear();
+        Map<String, Object> firstIdForName = new HashMap<String, Object>();
         for (Object id : idNameMap.keySet()) {
-            queriedNames.put(id,
-                           //QueryParser.escape(idNameMap.get(id)).toLowerCase()
-                           idNameMap.get(id).toLowerCase()
-                           );
+        	//String name = QueryParser.escape(idNameMap.get(id)).toLowerCase();
+        	String name = idNameMap.get(id).toLowerCase();
+            queriedNames.put(id, name);
+
+            Object firstId = firstIdForName.get(name);
+            if (firstId == null) {
+            	firstIdForName.put(name, id);
+            	distinctNames.put(id, name);
+            } else {
+            	if (!duplicateIds.containsKey(firstId)) {
+            		duplicateIds.put(firstId, new LinkedList<Object>());
+            	}
+            	duplicateIds.get(firstId).add(id);
+            }
         }
         return this;
     }
@@ -152,6 +231,104 @@ public class MultiNameContextQuery extends AbstractBaseQuery {
 		this.includeDeprecated = includeDeprecated;
 		return this;
 	}
+
+	/**
+	 * Set the behavior for exact lookups. If set to true (the default), the exact matching steps will resolve all their names
+	 * against each index at once using a BatchedExactLookup, rather than sending a separate query to the index for every name.
+	 * This only applies to indexes for which no exact name dictionary is available, since dictionary lookups are always used
+	 * when they can be.
+	 * @param useBatchedExactLookups
+	 * @return
+	 */
+	public MultiNameContextQuery setUseBatchedExactLookups(boolean useBatchedExactLookups) {
+		this.useBatchedExactLookups = useBatchedExactLookups;
+		return this;
+	}
+
+	/**
+	 * Set the execution mode for matching. If set to true, each matching phase splits the names into at most
+	 * MAX_PARTITIONS_PER_QUERY partitions, which are matched on a pool of threads shared by all queries (one thread per
+	 * processor). This shortens large queries with approximate matching, at the expense of other queries running at the same
+	 * time. The results are the same either way. Defaults to false.
+	 * @param matchInParallel
+	 * @return
+	 */
+	public MultiNameContextQuery setMatchInParallel(boolean matchInParallel) {
+		this.matchInParallel = matchInParallel;
+		return this;
+	}
+
+	/**
+	 * Set the engine used to find approximate matches. All the engines find the same matches. Defaults to the engine from
+	 * FuzzyMatchingEngine.getDefault().
+	 * @param fuzzyMatchingEngine
+	 * @return
+	 */
+	public MultiNameContextQuery setFuzzyMatchingEngine(FuzzyMatchingEngine fuzzyMatchingEngine) {
+		this.fuzzyMatchingEngine = fuzzyMatchingEngine;
+		return this;
+	}
+
+	/**
+	 * Set the cache used to remember the names found by approximate matching across queries. By default the shared cache
+	 * from FuzzyExpansionCache.getSharedCache() is used. Pass null to search the indexes for every name.
+	 * @param fuzzyExpansionCache
+	 * @return
+	 */
+	public MultiNameContextQuery setFuzzyExpansionCache(FuzzyExpansionCache fuzzyExpansionCache) {
+		this.fuzzyExpansionCache = fuzzyExpansionCache;
+		return this;
+	}
+
+	/**
+	 * Set the behavior for approximate matching of names with more than one word. If set to true (the default), the first
+	 * word is matched against the genera (exactly if possible, otherwise approximately), and the rest of the name is only
+	 * compared to the species and infraspecific taxa in the matched genera. The whole name is only matched approximately
+	 * against all the taxa in the context if this finds nothing.
+	 * @param useGenusFirstMatching
+	 * @return
+	 */
+	public MultiNameContextQuery setUseGenusFirstMatching(boolean useGenusFirstMatching) {
+		this.useGenusFirstMatching = useGenusFirstMatching;
+		return this;
+	}
+
+	/**
+	 * Set the time allowed for approximate matching, in milliseconds. Names are matched approximately in order of their
+	 * edit budget (see getMaxEdits()), so the names that are cheapest to match go first. Once the time is used up, the
+	 * remaining names are not matched approximately, and are recorded as unmatched and as having exhausted the fuzzy
+	 * budget in the results. The time is also checked while the candidates for a name are scored, and a name that is
+	 * being matched when it runs out is recorded the same way, so the time can only be exceeded by one search of the
+	 * name indexes. Set to 0 (the default) for no limit.
+	 * @param maxFuzzyMillis
+	 * @return
+	 */
+	public MultiNameContextQuery setMaxFuzzyMillis(long maxFuzzyMillis) {
+		this.maxFuzzyMillis = maxFuzzyMillis;
+		return this;
+	}
+
+	/**
+	 * Set the most approximate matches that are returned for each name. The matches with the highest scores are kept, and
+	 * the rest are dropped as they are found (see TNRSMatchSet). Exact matches to names and synonyms are all returned however
+	 * many there are, so that no homonym is hidden. Set to 0 (the default) to return all the matches.
+	 * @param maxMatchesPerName
+	 * @return
+	 */
+	public MultiNameContextQuery setMaxMatchesPerName(int maxMatchesPerName) {
+		this.maxMatchesPerName = maxMatchesPerName;
+		return this;
+	}
+
+	/**
+	 * Set the cache used to remember the results for single names across queries. By default the shared cache from
+	 * TNRSResultCache.getSharedCache() is used. Pass null to match every name from scratch.
+	 * @param resultCache
+	 */
+	public MultiNameContextQuery setResultCache(TNRSResultCache resultCache) {
+		this.resultCache = resultCache;
+		return this;
+	}
     
     /**
      * Clears the previous results and search strings. Also called by the constructor to initialize the query object.
@@ -159,12 +336,18 @@ public class MultiNameContextQuery extends AbstractBaseQuery {
     @Override
     public MultiNameContextQuery clear() {
     	validTaxaWithExactMatches = new HashSet<Taxon>();
+    	validTaxaWithExactMatchesById = new HashMap<Object, List<Taxon>>();
         bestGuessLICAForNames = null;
+        bestGuessLICAIndex = -1;
         results = new TNRSResults();
 
         queriedNames = new HashMap<Object, String>();
+        distinctNames = new HashMap<Object, String>();
+        duplicateIds = new HashMap<Object, List<Object>>();
         namesWithoutExactMatches = new HashMap<Object, String>();
         namesWithoutApproxMatches = new HashMap<Object, String>();
+        namesWithExhaustedFuzzyBudget = new HashMap<Object, String>();
+        clearExactHits();
 
         return this;
     }
@@ -179,6 +362,12 @@ public class MultiNameContextQuery extends AbstractBaseQuery {
         includeDubious = false;
         includeDeprecated = false;
         matchSpTaxaToGenera = true;
+        useBatchedExactLookups = true;
+        matchInParallel = false;
+        useGenusFirstMatching = true;
+        maxFuzzyMillis = 0;
+        maxMatchesPerName = 0;
+        resultCache = TNRSResultCache.getSharedCache();
     	return this;
     }
     
@@ -192,29 +381,62 @@ public class MultiNameContextQuery extends AbstractBaseQuery {
     public MultiNameContextQuery runQuery() {
     	
     	setIndexes();
+
+    	// each distinct name is only matched once, under the first id it was queried with. the results are copied to the
+    	// other ids for the same name at the end. names whose exact matching results are cached are not matched at all.
+    	Map<Object, String> namesToMatch = distinctNames;
+    	List<Taxon> cachedAmbiguousTaxa = new LinkedList<Taxon>();
+    	if (resultCache != null) {
+    		cacheKeyPrefix = getCacheKeyPrefix();
+    		namesToMatch = useCachedExactResults(distinctNames, cachedAmbiguousTaxa);
+    	}
+
+    	// find the exact hits for all the names once. all the exact matching steps below use these hits
+    	fetchExactHits(namesToMatch.values());
     	
-    	Map<Object, String> namesToMatchToTaxa =  new HashMap<Object, String>();
+    	Map<Object, String> namesToMatchToTaxa;
     	if (contextAutoInferenceIsOn) {
-        	namesToMatchToTaxa = (HashMap<Object, String>) inferContextAndReturnAmbiguousNames();
+        	namesToMatchToTaxa = inferContextFromExactHits(namesToMatch);
         } else {
-            namesToMatchToTaxa = queriedNames;
+            namesToMatchToTaxa = namesToMatch;
         }
         
-        // direct match unmatched names within context
+        // cached names without unambiguous matches were not used for inference, but they count towards the LICA from here on
+        validTaxaWithExactMatches.addAll(cachedAmbiguousTaxa);
+        
+        // direct match the names that weren't unambiguously matched during context inference. the indexes do not change
+        // when the context is set, so the hits we already found for these names are still the ones we want.
         getExactNameMatches(namesToMatchToTaxa);
         
         // direct match *all* names against synonyms
-        getExactSynonymMatches(queriedNames);
+        getExactSynonymMatches(namesToMatch);
+        
+        if (resultCache != null) {
+        	cacheExactResults(namesToMatch);
+        }
         
         // do fuzzy matching for any names we couldn't match
         if (doFuzzyMatching) {
-        	getApproxTaxnameOrSynonymMatches(namesWithoutExactMatches);
+        	Map<Object, String> namesToApproxMatch = namesWithoutExactMatches;
+        	if (resultCache != null) {
+        		namesToApproxMatch = useCachedApproxResults(namesWithoutExactMatches);
+        	}
+        	getApproxTaxnameOrSynonymMatches(namesToApproxMatch);
+        	if (resultCache != null) {
+        		cacheApproxResults(namesToApproxMatch);
+        	}
         }
         
         // record unmatchable names to results
         for (Entry<Object, String> nameEntry : doFuzzyMatching ? namesWithoutApproxMatches.entrySet() : namesWithoutExactMatches.entrySet()) {
         	results.addUnmatchedName(nameEntry.getKey(), nameEntry.getValue());
         }
+        for (Entry<Object, String> nameEntry : namesWithExhaustedFuzzyBudget.entrySet()) {
+        	results.addUnmatchedName(nameEntry.getKey(), nameEntry.getValue());
+        	results.addFuzzyBudgetExhaustedName(nameEntry.getKey(), nameEntry.getValue());
+        }
+        
+        copyResultsToDuplicateIds();
         
         results.setIncludesDeprecated(includeDeprecated);
         results.setIncludesDubious(includeDubious);
@@ -232,105 +454,85 @@ public class MultiNameContextQuery extends AbstractBaseQuery {
     public TNRSResults getResults() {
         return results;
     }
+
+    /**
+     * Return the taxon the previous query took to be the LICA of the names it matched exactly, which approximate matches
+     * were scored against. Null if there was none.
+     */
+    public Taxon getBestGuessLICA() {
+        return bestGuessLICAForNames;
+    }
    
     /**
      * Attempt to infer a context for the current set of names by looking for direct matches to the current set of search
      * strings. The resulting TaxonomyContext object is remembered internally.
      * 
-     * This method will record the exact taxon matches that it finds during this process. If the `unmatchableNames` object is
-     * not null, then names without exact matches will be placed in it as well.
-     * 
-     * Called by getTNRSResultsForSetNames().
+     * This method will record the exact taxon matches that it finds during this process, and returns the names that
+     * do not have exactly one exact match.
      * 
-     * @param searchStrings
-     * @return the initiating NameslistStandardQuery object
+     * @return the names without unambiguous exact matches
      */
     public Map<Object, String> inferContextAndReturnAmbiguousNames() {
-//    public Object inferContextAndReturnAmbiguousNames() {
 
     	setIndexes();
+    	fetchExactHits(distinctNames.values());
+    	Map<Object, String> ambiguousNames = inferContextFromExactHits(distinctNames);
+    	copyResultsToDuplicateIds();
     	
-    	// we will return the names without exact matches
+    	// report the ambiguous names under all of their ids
+    	Map<Object, String> ambiguousNamesForAllIds = new HashMap<Object, String>(ambiguousNames);
+    	for (Entry<Object, String> nameEntry : ambiguousNames.entrySet()) {
+    		if (duplicateIds.containsKey(nameEntry.getKey())) {
+    			for (Object duplicateId : duplicateIds.get(nameEntry.getKey())) {
+    				ambiguousNamesForAllIds.put(duplicateId, nameEntry.getValue());
+    			}
+    		}
+    	}
+    	return ambiguousNamesForAllIds;
+    }
+    
+    /**
+     * Copy the results recorded for each distinct name to all the other ids that the same name was queried with.
+     */
+    private void copyResultsToDuplicateIds() {
+    	for (Entry<Object, List<Object>> idEntry : duplicateIds.entrySet()) {
+    		for (Object duplicateId : idEntry.getValue()) {
+    			results.copyResultsForId(idEntry.getKey(), duplicateId);
+    		}
+    	}
+    }
+    
+    /**
+     * Infer the context from the exact hits that have already been found for `names` by fetchExactHits(). Names with
+     * exactly one exact taxon hit are recorded as matches, and the context is set to the least inclusive context containing
+     * all of them (and any other taxa already in validTaxaWithExactMatches).
+     * 
+     * @param names
+     * @return the names without unambiguous exact matches
+     */
+    private Map<Object, String> inferContextFromExactHits(Map<Object, String> names) {
+    	
+    	Map<Object, String> namesWithUnambiguousMatches = new HashMap<Object, String>();
     	Map<Object, String> namesUnmatchableAgainstAllTaxaContext = new HashMap<Object, String>();
   	
-    	for (Entry<Object, String> nameEntry : queriedNames.entrySet()) {
+    	for (Entry<Object, String> nameEntry : names.entrySet()) {
 
-    		Object thisId = nameEntry.getKey();
-    		String thisName = nameEntry.getValue();
-    		
-            // Attempt to find exact matches against *ALL* taxa
-            IndexHits<Node> hits = null;
-            TermQuery exactQuery = new TermQuery(new Term(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), thisName));
-            TNRSMatchSet matches = new TNRSMatchSet(taxonomy);
-
-            try {
-            	hits = nameIndex.query(exactQuery);
-
-	            if (hits.size() == 1) { // an exact match
-	
-	                // WE (MUST) ASSUME that users have spelled names correctly, but havoc may ensue if this assumption
-	                // is violated, as slight misspellings are likely to yield direct matches to distantly related taxa.
-	
-	                // add this taxon to the list of unambigous matches
-	                Taxon matchedTaxon = taxonomy.getTaxon(hits.getSingle());
-	                validTaxaWithExactMatches.add(matchedTaxon);
-	
-	                // add the match to the TNRS results
-	                matches.addMatch(new TNRSHit()
-	                        .setMatchedTaxon(matchedTaxon)
-	                        .setMatchedName(matchedTaxon.getName())
-	                        .setRank(matchedTaxon.getRank())
-	                        .setSearchString(thisName)
-	                        .setIsApprox(false)
-	                        .setIsSynonym(false)
-	                        .setNomenCode(matchedTaxon.getNomenCode())
-	                        .setScore(PERFECT_SCORE));
-	            } else {
-	            	// add this here so it gets checked against other indices later
-	            	// EVEN IF we match to a deprecated taxon (below)
-	            	namesUnmatchableAgainstAllTaxaContext.put(thisId, thisName);
-	            }
-
-	            if (includeDeprecated) {
-        			// do the deprecated search, add results
-	            	
-            		if (hits != null) {
-            			hits.close();
-            		}
-            		hits = deprecatedIndex.query(exactQuery);
-            		if (hits.size() > 0) {
-    	                for (Node hit : hits) {
-    	                    Taxon matchedTaxon = taxonomy.getTaxon(hit);
-    	                    matches.addMatch(new TNRSHit()
-    	                            .setMatchedTaxon(matchedTaxon)
-    	                            .setMatchedName(matchedTaxon.getName())
-                                    .setRank(matchedTaxon.getRank())
-    	                            .setSearchString(thisName)
-    	                            .setIsSynonym(false)
-    	                            .setIsApprox(false)
-    	                            .setScore(PERFECT_SCORE));
-    	                }
-            		}
-	            }
-	            
-	            if (matches.size() > 0) { // we found a perfect match
-	                results.addNameResult(new TNRSNameResult(thisId, matches));
-                    results.addNameWithDirectMatch(thisId, thisName);
-	            }
-	            
-            } finally {
-            	hits.close();
-            }
-        }
-        
-        // update the LICA for the unambiguous hits. Will set the LICA to the root of the graph if there are no unambiguous hits
-    	updateLICA();
-
-//    	return bestGuessLICAForNames.getName();
+            // WE (MUST) ASSUME that users have spelled names correctly, but havoc may ensue if this assumption
+            // is violated, as slight misspellings are likely to yield direct matches to distantly related taxa.
+    		if (getKeptHits(exactTaxonHits, nameEntry.getValue()).size() == 1) {
+    			namesWithUnambiguousMatches.put(nameEntry.getKey(), nameEntry.getValue());
+    		} else {
+    			// these will be checked against the other indices later
+    			namesUnmatchableAgainstAllTaxaContext.put(nameEntry.getKey(), nameEntry.getValue());
+    		}
+    	}
     	
+    	// record the unambiguous matches. this also updates the LICA for these hits, which will be set to the root of
+    	// the graph if there are no unambiguous hits
+    	getExactNameMatches(namesWithUnambiguousMatches);
+
         // now set the context closest to the LICA. If the LICA is the root, this will set the context to ALLTAXA
         setContext(bestGuessLICAForNames.getLeastInclusiveContext());
-//        return bestGuessLICAForNames.getName();
         
         return namesUnmatchableAgainstAllTaxaContext;
     }
@@ -346,112 +548,109 @@ public class MultiNameContextQuery extends AbstractBaseQuery {
      */
     private void getExactNameMatches(Map<Object, String> searchStrings) {
 
+    	// find the hits for the generic names we may need for 'Genus sp.' names all at once
+    	if (matchSpTaxaToGenera) {
+    		Set<String> inferredGenusNames = new HashSet<String>();
+    		for (String name : searchStrings.values()) {
+    			String inferredGenusName = getInferredGenusName(name);
+    			if (inferredGenusName != null && getKeptHits(exactTaxonHits, name).isEmpty()) {
+    				inferredGenusNames.add(inferredGenusName);
+    			}
+    		}
+    		fetchExactHits(inferredGenusNames);
+    	}
+
+    	runMatchingPhase(MatchingPhase.EXACT_NAMES, searchStrings);
+        
+        // update the LICA to reflect any new exact hits
+        updateLICA();
+    }
+    
+    /**
+     * Record the exact taxon name matches for the names in `searchStrings` to `partition`. The hits for all the names
+     * must already have been found by fetchExactHits().
+     */
+    private void matchExactNames(Map<Object, String> searchStrings, MatchingPartition partition) {
+
     	// exact match the names against the context; save all hits
         for (Entry <Object, String> nameEntry : searchStrings.entrySet()) {
         	
     		Object thisId = nameEntry.getKey();
-    		String thisName = nameEntry.getValue();
+    		String queriedName = nameEntry.getValue();
+    		String thisName = queriedName;
     		        	
-            IndexHits<Node> hits = null;
-            TermQuery exactQuery = new TermQuery(new Term(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), thisName));
-            TNRSMatchSet matches = new TNRSMatchSet(taxonomy);
+            TNRSMatchSet matches = new TNRSMatchSet(taxonomy); // exact matches are not limited by maxMatchesPerName
             boolean usingGenericSpMatching = false;
             
-            try {
-            	
-            	// first do the search on the full name
-            	hits = nameIndex.query(exactQuery);
-
-            	if (hits.size() < 1 && matchSpTaxaToGenera) {
-            		// if we got no hits, AND we want to attempt genus name matching, then do so...
-            		// will attempt to match names of the form 'Genus sp.' to nodes with the name 'Genus'
-            		String[] parts = thisName.split("\\s+");
-            		String lastPart = parts[parts.length -1].toLowerCase();
-            		
-            		String inferredGenusName = null;
-
-            		if (lastPart.equals("sp.")) {
-            			inferredGenusName = thisName.substring(0,thisName.length()-3).trim();
-            		} else if (lastPart.equals("sp")) {
-            			inferredGenusName = thisName.substring(0,thisName.length()-2).trim();
-            		}
-            		
-            		if (inferredGenusName != null) {
-            			// this name seems appropriate for "Genus sp." name matching to "Genus", so go ahead
-            			thisName = inferredGenusName;
-                		usingGenericSpMatching = true;
-
-                		TermQuery exactGenusNameQuery = new TermQuery(new Term(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), thisName));
-                        if (hits != null) {
-                        	hits.close();
-                        	hits = nameIndex.query(exactGenusNameQuery);
-                        }
-            		}
-            	}
-            	
-	            if (hits.size() > 0) {
-	                // at least 1 hit; prepare to record matches
-	
-	                for (Node hit : hits) {
-	                    // add this match to the match set
-	                    Taxon matchedTaxon = taxonomy.getTaxon(hit);
-	                    matches.addMatch(new TNRSHit()
-	                            .setMatchedTaxon(matchedTaxon)
-	                            .setMatchedName(matchedTaxon.getName())
-                                .setRank(matchedTaxon.getRank())
-	                            .setSearchString(thisName)
-	                            .setIsApprox(false)
-	                            .setIsSynonym(false)
-	                            .setNomenCode(matchedTaxon.getNomenCode())
-	                            .setScore(usingGenericSpMatching ? PERFECT_SCORE * GENERIC_SP_MATCHING_SCORE_MODIFIER : PERFECT_SCORE));
-	                    
-	                    if (!usingGenericSpMatching) {
-	                    	validTaxaWithExactMatches.add(matchedTaxon);
-	                        results.addNameWithDirectMatch(thisId, thisName);
-	                    }
-	                }
-	            }
-	            
-	            if (includeDeprecated) {
-        			// do the deprecated search, add results. NOTE: we don't care about homonyms here
-
-            		if (hits != null) {
-            			hits.close();
-            		}
-            		hits = deprecatedIndex.query(exactQuery);
-            		if (hits.size() > 0) {
-    	                for (Node hit : hits) {
-    	                    Taxon matchedTaxon = taxonomy.getTaxon(hit);
-    	                    matches.addMatch(new TNRSHit()
-    	                            .setMatchedTaxon(matchedTaxon)
-    	                            .setMatchedName(matchedTaxon.getName())
-                                    .setRank(matchedTaxon.getRank())
-    	                            .setSearchString(thisName)
-    	                            .setIsSynonym(false)
-    	                            .setIsApprox(false)
-    	                            .setScore(usingGenericSpMatching ? PERFECT_SCORE * GENERIC_SP_MATCHING_SCORE_MODIFIER : PERFECT_SCORE));
-    	                    
-    	                    if (!usingGenericSpMatching) {
-	    	                    results.addNameWithDirectMatch(thisId, thisName);
-    	                    }
-    	                }
-            		}
-	            }
-	            
-                // add matches (if any) to the TNRS results
-	            if (matches.size() > 0) {
-	                results.addNameResult(new TNRSNameResult(thisId, matches));
-	            } else {
-	                namesWithoutExactMatches.put(thisId, thisName);
-	            }
+        	// first do the search on the full name
+            List<Node> hits = getKeptHits(exactTaxonHits, thisName);
 
-            } finally {
-            	hits.close();
+        	if (hits.size() < 1 && matchSpTaxaToGenera) {
+        		// if we got no hits, AND we want to attempt genus name matching, then do so...
+        		// will attempt to match names of the form 'Genus sp.' to nodes with the name 'Genus'
+        		String inferredGenusName = getInferredGenusName(thisName);
+        		
+        		if (inferredGenusName != null) {
+        			// this name seems appropriate for "Genus sp." name matching to "Genus", so go ahead
+        			thisName = inferredGenusName;
+            		usingGenericSpMatching = true;
+            		hits = getKeptHits(exactTaxonHits, thisName);
+        		}
+        	}
+        	
+            if (hits.size() > 0) {
+                // at least 1 hit; prepare to record matches
+
+                for (Node hit : hits) {
+                    // add this match to the match set
+                    Taxon matchedTaxon = taxonomy.getTaxon(hit);
+                    matches.addMatch(new TNRSHit()
+                            .setMatchedTaxon(matchedTaxon)
+                            .setMatchedName(matchedTaxon.getName())
+                            .setRank(matchedTaxon.getRank())
+                            .setSearchString(thisName)
+                            .setIsApprox(false)
+                            .setIsSynonym(false)
+                            .setNomenCode(matchedTaxon.getNomenCode())
+                            .setScore(usingGenericSpMatching ? PERFECT_SCORE * GENERIC_SP_MATCHING_SCORE_MODIFIER : PERFECT_SCORE));
+                    
+                    if (!usingGenericSpMatching) {
+                    	partition.validTaxaWithExactMatches.add(matchedTaxon);
+                    	if (!partition.validTaxaWithExactMatchesById.containsKey(thisId)) {
+                    		partition.validTaxaWithExactMatchesById.put(thisId, new LinkedList<Taxon>());
+                    	}
+                    	partition.validTaxaWithExactMatchesById.get(thisId).add(matchedTaxon);
+                        partition.results.addNameWithDirectMatch(thisId, thisName);
+                    }
+                }
+            }
+            
+            if (includeDeprecated) {
+    			// do the deprecated search (always on the full name), add results. NOTE: we don't care about homonyms here
+                for (Node hit : getKeptHits(exactDeprecatedHits, queriedName)) {
+                    Taxon matchedTaxon = taxonomy.getTaxon(hit);
+                    matches.addMatch(new TNRSHit()
+                            .setMatchedTaxon(matchedTaxon)
+                            .setMatchedName(matchedTaxon.getName())
+                            .setRank(matchedTaxon.getRank())
+                            .setSearchString(thisName)
+                            .setIsSynonym(false)
+                            .setIsApprox(false)
+                            .setScore(usingGenericSpMatching ? PERFECT_SCORE * GENERIC_SP_MATCHING_SCORE_MODIFIER : PERFECT_SCORE));
+                    
+                    if (!usingGenericSpMatching) {
+                        partition.results.addNameWithDirectMatch(thisId, thisName);
+                    }
+                }
+            }
+            
+            // add matches (if any) to the TNRS results
+            if (matches.size() > 0) {
+                partition.results.addNameResult(new TNRSNameResult(thisId, matches));
+            } else {
+                partition.namesWithoutExactMatches.put(thisId, thisName);
             }
         }
-        
-        // update the LICA to reflect any new exact hits
-        updateLICA();
     }
 
     /**
@@ -464,6 +663,14 @@ public class MultiNameContextQuery extends AbstractBaseQuery {
      * 
      */
     private void getExactSynonymMatches(Map<Object, String> searchStrings) {
+    	runMatchingPhase(MatchingPhase.EXACT_SYNONYMS, searchStrings);
+    }
+
+    /**
+     * Record the exact synonym matches for the names in `searchStrings` to `partition`. Synonym matches for names that already
+     * have results from the exact name matching step are added to the existing match sets.
+     */
+    private void matchExactSynonyms(Map<Object, String> searchStrings, MatchingPartition partition) {
   	
     	// exact match unmatched names against context synonym index
         for (Entry <Object, String> nameEntry : searchStrings.entrySet()) {
@@ -479,200 +686,824 @@ public class MultiNameContextQuery extends AbstractBaseQuery {
                 matches = new TNRSMatchSet(taxonomy);
         	}
             
-            IndexHits<Node> hits = null;
-            TermQuery exactQuery = new TermQuery(new Term(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), thisName));
+            for (Node synonymNode : getKeptHits(exactSynonymHits, thisName)) {
+                // add this match to the match set
 
-            try {
-            	
-            	hits = synonymIndex.query(exactQuery);
-	            if (hits.size() > 0) {
-	            	// at least 1 hit; prepare to record matches
-
-	            	for (Node synonymNode : hits) {
-	                    // add this match to the match set
-
-            			// TEMPORARY KLUDGE to prevent blowing up when a taxon node is found in the synonym index.
-            			// To be removed once db is corrected (should not find taxon nodes from synonym index).
-            			if (!synonymNode.hasRelationship(TaxonomyRelType.SYNONYMOF,Direction.OUTGOING)) {
-            				continue;
-            			}
-	            		
-	              
-            			// get the synonym name that was matched
-	                	String matchedSynonymName = (String) synonymNode.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName());
-
-	                	// get the taxon node for this synonym
-	                    Taxon matchedTaxon = taxonomy.getTaxon(synonymNode.getSingleRelationship(TaxonomyRelType.SYNONYMOF, Direction.OUTGOING).getEndNode());
+    			// TEMPORARY KLUDGE to prevent blowing up when a taxon node is found in the synonym index.
+    			// To be removed once db is corrected (should not find taxon nodes from synonym index).
+    			if (!synonymNode.hasRelationship(TaxonomyRelType.SYNONYMOF,Direction.OUTGOING)) {
+    				continue;
+    			}
+          
+    			// get the synonym name that was matched
+            	String matchedSynonymName = (String) synonymNode.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName());
 
-	                    matches.addMatch(new TNRSHit()
-	                            .setMatchedTaxon(matchedTaxon)
-	                            .setMatchedName(matchedSynonymName)
-                                .setRank(matchedTaxon.getRank())
-	                            .setSearchString(thisName)
-	                            .setIsApprox(false)
-	                            .setIsSynonym(true)
-	                            .setNomenCode(matchedTaxon.getNomenCode())
-	                            .setScore(PERFECT_SCORE));
-	                }
-	            }
-	            	
-                // add matches (if any) to the TNRS results
-	            if (matches.size() > 0) {
-	            	
-	            	// add the new name result if there wasn't one already there (if there was then we're already using it, see above)
-	            	if (!results.containsResultWithId(thisId)) {
-	            		results.addNameResult(new TNRSNameResult(thisId, matches));
-	            	}	            		          
-
-	            	// in case we managed to find a synonym match for a name that was not matched to a taxon...
-	                namesWithoutExactMatches.remove(thisId);
-	            }
+            	// get the taxon node for this synonym
+                Taxon matchedTaxon = taxonomy.getTaxon(synonymNode.getSingleRelationship(TaxonomyRelType.SYNONYMOF, Direction.OUTGOING).getEndNode());
 
-            } finally {
-            	hits.close();
+                matches.addMatch(new TNRSHit()
+                        .setMatchedTaxon(matchedTaxon)
+                        .setMatchedName(matchedSynonymName)
+                        .setRank(matchedTaxon.getRank())
+                        .setSearchString(thisName)
+                        .setIsApprox(false)
+                        .setIsSynonym(true)
+                        .setNomenCode(matchedTaxon.getNomenCode())
+                        .setScore(PERFECT_SCORE));
+            }
+            	
+            // add matches (if any) to the TNRS results
+            if (matches.size() > 0) {
+            	
+            	// add the new name result if there wasn't one already there (if there was then we're already using it, see above)
+            	if (!results.containsResultWithId(thisId)) {
+            		partition.results.addNameResult(new TNRSNameResult(thisId, matches));
+            	}	            		          
+
+            	// in case we managed to find a synonym match for a name that was not matched to a taxon...
+                partition.namesWithSynonymMatches.add(thisId);
             }
         }
     }
     
     /**
      * Search for approximate taxon name or synonym matches to names in `searchStrings`, adding names that
-     * cannot be matched to `namesWithoutApproxTaxnameOrSynonymMatches`.
+     * cannot be matched to `namesWithoutApproxTaxnameOrSynonymMatches`. The names are matched in order of their edit
+     * budget, and then their length, so that if maxFuzzyMillis is set, the names that are cheapest to match are the ones
+     * that get matched before the time runs out. Names that are not matched in time are added to namesWithExhaustedFuzzyBudget.
      * 
      * Called by getTNRSResultsForSetNames().
      * 
      * @param searchStrings
      */
-    @SuppressWarnings("unchecked")
 	private void getApproxTaxnameOrSynonymMatches(Map<Object, String> searchStrings) {
+
+		List<Entry<Object, String>> nameEntries = new ArrayList<Entry<Object, String>>(searchStrings.entrySet());
+		Collections.sort(nameEntries, new Comparator<Entry<Object, String>>() {
+			@Override
+			public int compare(Entry<Object, String> a, Entry<Object, String> b) {
+				int c = compareInts(getMaxEdits(a.getValue()), getMaxEdits(b.getValue()));
+				return c != 0 ? c : compareInts(a.getValue().length(), b.getValue().length());
+			}
+		});
+		Map<Object, String> orderedNames = new LinkedHashMap<Object, String>();
+		for (Entry<Object, String> nameEntry : nameEntries) {
+			orderedNames.put(nameEntry.getKey(), nameEntry.getValue());
+		}
+
+		fuzzyDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxFuzzyMillis);
+		runMatchingPhase(MatchingPhase.APPROXIMATE, orderedNames);
+	}
+
+	private static int compareInts(int a, int b) {
+		return a < b ? -1 : (a == b ? 0 : 1);
+	}
+
+	/**
+	 * Return true if maxFuzzyMillis is set and the time it allows for approximate matching has been used up.
+	 */
+	private boolean fuzzyBudgetIsExhausted() {
+		return maxFuzzyMillis > 0 && System.nanoTime() - fuzzyDeadline > 0;
+	}
+	
+    /**
+     * Record the approximate matches for the names in `searchStrings` to `partition`.
+     */
+	private void matchApproximately(Map<Object, String> searchStrings, MatchingPartition partition) {
     	
         for (Entry <Object, String> nameEntry : searchStrings.entrySet()) {
 
     		Object thisId = nameEntry.getKey();
     		String thisName = nameEntry.getValue();
     		
+    		// the names are in order of cost, so once time is up the rest are skipped
+    		if (fuzzyBudgetIsExhausted()) {
+    			partition.namesWithExhaustedFuzzyBudget.put(thisId, thisName);
+    			continue;
+    		}
+    		
             // fuzzy match names against ALL within-context taxa and synonyms
             float minIdentity = getMinIdentity(thisName);
-            IndexHits<Node> hits = null;
-            TNRSMatchSet matches = new TNRSMatchSet(taxonomy);
-            FuzzyQuery fuzzyQuery = new FuzzyQuery(new Term(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), thisName), minIdentity);
-
-            try {
-
-            	// search for regular taxa, add them if there are results
-            	hits = nameIndex.query(fuzzyQuery);
-            	if (hits.size() > 0) {
-	                // at least 1 hit; prepare to record matches
-	                
-	                for (Node hit : hits) {
-	                    
-	                    Taxon matchedTaxon = taxonomy.getTaxon(hit);
-	                    // add the match if it scores high enough
-	                    double score = getScore(thisName, matchedTaxon, hit);
-	                    if (score >= minScore) {
-	                        matches.addMatch(new TNRSHit()
-	                                .setMatchedTaxon(matchedTaxon)
-	                                .setMatchedName(matchedTaxon.getName())
-                                    .setRank(matchedTaxon.getRank())
-	                                .setSearchString(thisName)
-	                                .setIsApprox(true)
-	                                .setIsSynonym(false)
-	                                .setNomenCode(matchedTaxon.getNomenCode())
-	                                .setScore(score));
-	                    }
-	                }
-            	}
-            	
-            	// search for synonyms, add them if there are results
-            	hits = synonymIndex.query(fuzzyQuery);
-            	if (hits.size() > 0) {
-	                // at least 1 hit; prepare to record matches
+            TNRSMatchSet matches = new TNRSMatchSet(taxonomy, maxMatchesPerName);
+
+            // names that only differ from taxon names by common latin spelling variants are found without fuzzy matching
+            // over the name index. synonyms and deprecated names are still searched below
+            boolean foundNameMatches = matchNormalizedName(thisName, minIdentity, matches, partition);
 
-            		for (Node synonymNode : hits) {
+        	// search for regular taxa, add them if there are results. binomials are matched within the closest genera first
+            if (!foundNameMatches && useGenusFirstMatching) {
+            	foundNameMatches = matchBinomialApproximately(thisName, minIdentity, matches, partition);
+            }
+
+            // the time may run out during a name. the matches for it would be incomplete, so it is reported as unmatched instead
+            boolean outOfTime = fuzzyBudgetIsExhausted();
+
+            // search the remaining indexes in a single pass
+            boolean[] searchIndex = new boolean[3];
+            searchIndex[APPROXIMATE_NAME_INDEX] = !foundNameMatches;
+            searchIndex[APPROXIMATE_SYNONYM_INDEX] = true;
+            searchIndex[APPROXIMATE_DEPRECATED_INDEX] = includeDeprecated;
+            List<List<FuzzyMatch>> approximateHits;
+            if (outOfTime) {
+            	approximateHits = Arrays.asList(NO_FUZZY_MATCHES, NO_FUZZY_MATCHES, NO_FUZZY_MATCHES);
+            } else {
+            	partition.results.addIndexProbes(1);
+            	approximateHits = approximateMatcher.findMatches(thisName, minIdentity, searchIndex);
+            }
+
+            // candidates are scored against the names they matched before anything is loaded for them from the graph
+            if (!foundNameMatches) {
+	            for (FuzzyMatch candidate : approximateHits.get(APPROXIMATE_NAME_INDEX)) {
+	            	if (fuzzyBudgetIsExhausted()) {
+	            		outOfTime = true;
+	            		break;
+	            	}
+	            	int candidateDistance = getCandidateDistance(thisName, candidate);
+	            	if (candidateDistance < 0) {
+	            		continue;
+	            	}
 	                    
-	                	// get the synonym name that was matched
-	                	String matchedSynonymName = (String) synonymNode.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName());
-	                	
-	                	// get the associated taxon
-	                	Taxon matchedTaxon = taxonomy.getTaxon(synonymNode.getSingleRelationship(TaxonomyRelType.SYNONYMOF, Direction.OUTGOING).getEndNode());
-	                	
-	                	// add the match if it scores high enough
-	                    double score = getScore(thisName, matchedSynonymName, matchedTaxon, synonymNode);
-		                if (score >= minScore) {
-		                		                    
-	                        matches.addMatch(new TNRSHit()
-	                                .setMatchedTaxon(matchedTaxon)
-	                                .setMatchedName(matchedSynonymName)
-                                    .setRank(matchedTaxon.getRank())
-	                                .setSearchString(thisName)
-	                                .setIsApprox(true)
-	                                .setIsSynonym(true)
-	                                .setNomenCode(matchedTaxon.getNomenCode())
-	                                .setScore(score));
-	                    }
+	                Node hit = taxonomy.getNodeById(candidate.getNodeId());
+	                Taxon matchedTaxon = taxonomy.getTaxon(hit);
+	                // add the match if it scores high enough
+	                double score = getScore(getScore(thisName, matchedTaxon.getName(), candidate, candidateDistance), matchedTaxon, hit);
+	                if (score >= minScore && matches.wouldKeep(score)) {
+	                    matches.addMatch(new TNRSHit()
+	                            .setMatchedTaxon(matchedTaxon)
+	                            .setMatchedName(matchedTaxon.getName())
+	                            .setRank(matchedTaxon.getRank())
+	                            .setSearchString(thisName)
+	                            .setIsApprox(true)
+	                            .setIsSynonym(false)
+	                            .setNomenCode(matchedTaxon.getNomenCode())
+	                            .setScore(score));
 	                }
+	            }
+            }
+        	
+        	// search for synonyms, add them if there are results
+            for (FuzzyMatch candidate : approximateHits.get(APPROXIMATE_SYNONYM_INDEX)) {
+            	if (fuzzyBudgetIsExhausted()) {
+            		outOfTime = true;
+            		break;
             	}
-            	
-            	if (includeDeprecated) {
-        			// do the deprecated search, add results.
-
-            		if (hits != null) {
-            			hits.close();
-            		}
-            		hits = deprecatedIndex.query(fuzzyQuery);
-            		if (hits.size() > 0) {
-    	                for (Node hit : hits) {
-    	                    
-    	                    Taxon matchedTaxon = taxonomy.getTaxon(hit);
-    	
-    	                    // add the match if it scores high enough
-    	                    double score = getScore(thisName, (String) hit.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName()));
-    	                    if (score >= minScore) {
-    	                        matches.addMatch(new TNRSHit()
-    	                                .setMatchedTaxon(matchedTaxon)
-    	                                .setMatchedName(matchedTaxon.getName())
-                                        .setRank(matchedTaxon.getRank())
-    	                                .setSearchString(thisName)
-    	                                .setIsApprox(true)
-    	                                .setIsSynonym(false)
-    	                                .setScore(score));
-    	                    }
-    	                }
-            		}
+            	int candidateDistance = getCandidateDistance(thisName, candidate);
+            	if (candidateDistance < 0) {
+            		continue;
             	}
+                
+            	// get the synonym name that was matched
+            	Node synonymNode = taxonomy.getNodeById(candidate.getNodeId());
+            	String matchedSynonymName = (String) synonymNode.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName());
+            	
+            	// get the associated taxon
+            	Taxon matchedTaxon = taxonomy.getTaxon(synonymNode.getSingleRelationship(TaxonomyRelType.SYNONYMOF, Direction.OUTGOING).getEndNode());
             	
-                // add the matches (if any) to the TNRS results
-                if (matches.size() > 0) {
-	                results.addNameResult(new TNRSNameResult(thisId, matches));
-                } else {
-                    namesWithoutApproxMatches.put(thisId, thisName);
+            	// add the match if it scores high enough
+                double score = getScore(getScore(thisName, matchedSynonymName, candidate, candidateDistance), matchedTaxon, synonymNode);
+                if (score >= minScore && matches.wouldKeep(score)) {
+                	                    
+                    matches.addMatch(new TNRSHit()
+                            .setMatchedTaxon(matchedTaxon)
+                            .setMatchedName(matchedSynonymName)
+                            .setRank(matchedTaxon.getRank())
+                            .setSearchString(thisName)
+                            .setIsApprox(true)
+                            .setIsSynonym(true)
+                            .setNomenCode(matchedTaxon.getNomenCode())
+                            .setScore(score));
                 }
+            }
+        	
+        	if (includeDeprecated) {
+    			// do the deprecated search, add results.
+                for (FuzzyMatch candidate : approximateHits.get(APPROXIMATE_DEPRECATED_INDEX)) {
+                	if (fuzzyBudgetIsExhausted()) {
+                		outOfTime = true;
+                		break;
+                	}
+                	int candidateDistance = getCandidateDistance(thisName, candidate);
+                	if (candidateDistance < 0) {
+                		continue;
+                	}
+                    
+                    Node hit = taxonomy.getNodeById(candidate.getNodeId());
+                    Taxon matchedTaxon = taxonomy.getTaxon(hit);
 
-            } finally {
-            	if (hits != null) {
-            		hits.close();
-            	}
+                    // add the match if it scores high enough
+                    double score = getScore(thisName, (String) hit.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName()), candidate, candidateDistance);
+                    if (score >= minScore && matches.wouldKeep(score)) {
+                        matches.addMatch(new TNRSHit()
+                                .setMatchedTaxon(matchedTaxon)
+                                .setMatchedName(matchedTaxon.getName())
+                                .setRank(matchedTaxon.getRank())
+                                .setSearchString(thisName)
+                                .setIsApprox(true)
+                                .setIsSynonym(false)
+                                .setScore(score));
+                    }
+                }
+        	}
+        	
+            // add the matches (if any) to the TNRS results
+            if (outOfTime) {
+            	partition.namesWithExhaustedFuzzyBudget.put(thisId, thisName);
+            } else if (matches.size() > 0) {
+                partition.results.addNameResult(new TNRSNameResult(thisId, matches));
+            } else {
+                partition.namesWithoutApproxMatches.put(thisId, thisName);
             }
         }
     }
 
     /**
-     * Calculate scores for non-exact matches where the name to score against may be arbitarily defined (as an argument).
+     * Add approximate matches for `thisName` to `matches` from the taxa whose names have the same normalized key (see
+     * LatinNameNormalizer) as `thisName`. The matches are held to `minIdentity` and scored the same way as fuzzy matches.
+     * 
+     * @return true if any matches were added
+     */
+    private boolean matchNormalizedName(String thisName, float minIdentity, TNRSMatchSet matches, MatchingPartition partition) {
+
+    	String key = LatinNameNormalizer.getKey(thisName);
+    	if (key.length() == 0) {
+    		return false;
+    	}
+
+    	boolean foundMatches = false;
+    	IndexHits<Node> hits = normalizedNameIndex.query(new TermQuery(new Term(TaxonomyProperty.NORMALIZED_NAME.propertyName(), key)));
+    	partition.results.addIndexProbes(1);
+    	try {
+    		for (Node hit : hits) {
+    			Taxon matchedTaxon = taxonomy.getTaxon(hit);
+    			String matchedName = matchedTaxon.getName();
+    			int maxDistance = getMaxDistance(thisName.length(), matchedName.length(), minIdentity);
+    			int distance = BoundedEditDistance.distance(thisName, matchedName.toLowerCase(), maxDistance);
+    			if (!isWithinMinIdentity(thisName.length(), matchedName.length(), distance, minIdentity)) {
+    				continue;
+    			}
+    			double score = getScore(getScore(thisName, matchedName, getScoreDistance(thisName, matchedName)), matchedTaxon, hit);
+    			if (score >= minScore) {
+    				if (matches.wouldKeep(score)) {
+    					matches.addMatch(new TNRSHit()
+    							.setMatchedTaxon(matchedTaxon)
+    							.setMatchedName(matchedTaxon.getName())
+    							.setRank(matchedTaxon.getRank())
+    							.setSearchString(thisName)
+    							.setIsApprox(true)
+    							.setIsSynonym(false)
+    							.setNomenCode(matchedTaxon.getNomenCode())
+    							.setScore(score));
+    				}
+    				foundMatches = true;
+    			}
+    		}
+    	} finally {
+    		hits.close();
+    	}
+    	return foundMatches;
+    }
+
+    /**
+     * Add approximate matches for `thisName` to `matches` by treating it as a binomial (or trinomial): the first word is
+     * matched against the names of the genera in the context, exactly if there are any exact matches, and otherwise
+     * approximately, within the minimum identity for that word alone. The rest of the name is then only compared to the
+     * species and infraspecific taxa in the candidate genera. A species is accepted if the sum of the edit distances for
+     * the genus and the epithet is within `minIdentity` for the whole name, and the same sum is used for its score.
+     * 
+     * @return true if any matches were added
+     */
+    private boolean matchBinomialApproximately(String thisName, float minIdentity, TNRSMatchSet matches, MatchingPartition partition) {
+
+    	int space = thisName.indexOf(' ');
+    	if (space < 1 || space == thisName.length() - 1) {
+    		return false;
+    	}
+    	String genusQuery = thisName.substring(0, space);
+    	String epithetQuery = thisName.substring(space + 1);
+    	String nameProperty = OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName();
+
+    	// the candidate genera, with the edit distance from each genus name to the first word
+    	Map<Node, Integer> genusDistances = new HashMap<Node, Integer>();
+    	IndexHits<Node> genusHits = generaIndex.query(new TermQuery(new Term(nameProperty, genusQuery)));
+    	try {
+    		for (Node genus : genusHits) {
+    			genusDistances.put(genus, 0);
+    		}
+    	} finally {
+    		genusHits.close();
+    	}
+    	partition.results.addIndexProbes(1);
+    	if (genusDistances.isEmpty()) {
+    		// the matcher only finds genera within the minimum identity, so their distances are never over the cutoff
+    		float genusMinIdentity = getMinIdentity(genusQuery);
+    		for (FuzzyMatch genus : findApproximateHits(generaMatcher, genusQuery, genusMinIdentity, partition)) {
+    			int maxDistance = getMaxDistance(genusQuery.length(), genus.getName().length(), genusMinIdentity);
+    			genusDistances.put(taxonomy.getNodeById(genus.getNodeId()), BoundedEditDistance.distance(genusQuery, genus.getName(), maxDistance));
+    		}
+    	}
+
+    	boolean foundMatches = false;
+    	for (Entry<Node, Integer> genusEntry : genusDistances.entrySet()) {
+
+    		String genusName = (String) genusEntry.getKey().getProperty(nameProperty);
+    		int genusDistance = genusEntry.getValue();
+
+    		// scores compare the search string to the matched name as it is spelled, so case differences count there. a genus
+    		// distance over the score cutoff for the longest possible match rules out all of its species
+    		int genusScoreDistance = BoundedEditDistance.distance(genusQuery, genusName, getMaxScoreDistance(thisName, thisName.length()));
+
+    		String genusOttId = String.valueOf(genusEntry.getKey().getProperty(OTVocabularyPredicate.OT_OTT_ID.propertyName()));
+    		IndexHits<Node> speciesHits = speciesByGenusIndex.get(TaxonomyProperty.PARENT_GENUS_OTT_ID.propertyName(), genusOttId);
+    		partition.results.addIndexProbes(1);
+    		try {
+    			for (Node hit : speciesHits) {
+
+    				String speciesName = (String) hit.getProperty(nameProperty);
+
+    				// distances over these cutoffs fail the checks below, so they do not need to be worked out exactly
+    				int maxDistance = getMaxDistance(thisName.length(), speciesName.length(), minIdentity);
+    				int maxScoreDistance = getMaxScoreDistance(thisName, speciesName.length());
+    				int distance;
+    				int scoreDistance;
+    				if (speciesName.length() > genusName.length() && speciesName.charAt(genusName.length()) == ' '
+    						&& speciesName.regionMatches(true, 0, genusName, 0, genusName.length())) {
+    					if (genusDistance > maxDistance || genusScoreDistance > maxScoreDistance) {
+    						continue;
+    					}
+    					String epithet = speciesName.substring(genusName.length() + 1);
+    					int epithetDistance = BoundedEditDistance.distance(epithetQuery, epithet.toLowerCase(), maxDistance - genusDistance);
+    					distance = genusDistance + epithetDistance;
+    					if (!isWithinMinIdentity(thisName.length(), speciesName.length(), distance, minIdentity)) {
+    						continue;
+    					}
+    					int maxEpithetScoreDistance = maxScoreDistance - genusScoreDistance;
+    					scoreDistance = genusScoreDistance + (epithet.equals(epithet.toLowerCase()) ? Math.min(epithetDistance, maxEpithetScoreDistance + 1)
+    							: BoundedEditDistance.distance(epithetQuery, epithet, maxEpithetScoreDistance));
+    				} else {
+    					// the name does not start with the genus name, so it can only be compared as a whole
+    					distance = BoundedEditDistance.distance(thisName, speciesName.toLowerCase(), maxDistance);
+    					if (!isWithinMinIdentity(thisName.length(), speciesName.length(), distance, minIdentity)) {
+    						continue;
+    					}
+    					scoreDistance = BoundedEditDistance.distance(thisName, speciesName, maxScoreDistance);
+    				}
+
+    				Taxon matchedTaxon = taxonomy.getTaxon(hit);
+    				double score = getScore(getScore(thisName, speciesName, scoreDistance), matchedTaxon, hit);
+    				if (score >= minScore) {
+    					if (matches.wouldKeep(score)) {
+    						matches.addMatch(new TNRSHit()
+    								.setMatchedTaxon(matchedTaxon)
+    								.setMatchedName(matchedTaxon.getName())
+    								.setRank(matchedTaxon.getRank())
+    								.setSearchString(thisName)
+    								.setIsApprox(true)
+    								.setIsSynonym(false)
+    								.setNomenCode(matchedTaxon.getNomenCode())
+    								.setScore(score));
+    					}
+    					foundMatches = true;
+    				}
+    			}
+    		} finally {
+    			speciesHits.close();
+    		}
+    	}
+    	return foundMatches;
+    }
+
+    /**
+     * Return the nodes found by `matcher` for `name`, counting the search as an index probe for `partition`.
+     */
+    private List<FuzzyMatch> findApproximateHits(FuzzyMatcher matcher, String name, float minIdentity, MatchingPartition partition) {
+    	partition.results.addIndexProbes(1);
+    	return matcher.findMatches(name, minIdentity);
+    }
+
+    /**
+     * Return the edit distance from `thisName` to the name in `candidate`, or -1 if an approximate match to it can be ruled
+     * out without loading anything from the graph, because its edit distance score is below the minimum score. The name
+     * in `candidate` is lowercased like `thisName`, so this score is never lower than the one against the name as it is
+     * spelled on the node. The weighting by distance from the LICA is only worked out for the candidates that pass.
+     */
+    private int getCandidateDistance(String thisName, FuzzyMatch candidate) {
+    	String name = candidate.getName();
+    	int distance = getScoreDistance(thisName, name);
+    	return getScore(thisName, name, distance) >= getMinBaseScore() ? distance : -1;
+    }
+
+    /**
+     * Return the edit distance score for `matchedName`, which was found through `candidate`. The distance to the candidate
+     * name (from getCandidateDistance()) is reused when the matched name is spelled the same way.
+     */
+    private double getScore(String thisName, String matchedName, FuzzyMatch candidate, int candidateDistance) {
+    	int distance = matchedName.equals(candidate.getName()) ? candidateDistance : getScoreDistance(thisName, matchedName);
+    	return getScore(thisName, matchedName, distance);
+    }
+
+    /**
+     * Return the edit distance from `thisName` to `name` if it is small enough to give a score of at least the minimum
+     * score, and otherwise some larger distance, which is cheaper to work out.
+     */
+    private int getScoreDistance(String thisName, String name) {
+    	return BoundedEditDistance.distance(thisName, name, getMaxScoreDistance(thisName, name.length()));
+    }
+
+    /**
+     * Return the greatest edit distance from `thisName` to a name of length `nameLength` that gives a base score of at
+     * least getMinBaseScore().
+     */
+    private int getMaxScoreDistance(String thisName, int nameLength) {
+    	double minBaseScore = getMinBaseScore();
+    	double s = Math.min(thisName.length(), nameLength);
+    	int maxDistance = (int) Math.floor(s * (1 - minBaseScore));
+    	// 1 - minBaseScore is not always exact, so check the next distance with the same sum that getScore() uses
+    	if ((s - (maxDistance + 1)) / s >= minBaseScore) {
+    		maxDistance++;
+    	}
+    	return Math.max(0, maxDistance);
+    }
+
+    /**
+     * Return the lowest base score that can still give a score of at least the minimum score once it is weighted by the
+     * distance from the inferred LICA. A hit at distance d outside the LICA is weighted by 1/ln(d), which raises the score
+     * of hits two edges away by 1/ln(2).
+     */
+    private double getMinBaseScore() {
+    	return bestGuessLICAForNames == null ? minScore : minScore * Math.log(2);
+    }
+
+    /**
+     * Run one of the matching phases over the names in `searchStrings` and record the results. If parallel matching is
+     * turned on, the names are split into partitions that are matched concurrently on the shared matching pool, otherwise
+     * they are all matched in a single partition on the calling thread. The partitions are merged in a fixed order once
+     * they are all finished, so the results (including the LICA, which is updated from the merged taxa) do not depend
+     * on how the names were partitioned.
+     * 
+     * @param phase
+     * @param searchStrings
+     */
+    private void runMatchingPhase(final MatchingPhase phase, Map<Object, String> searchStrings) {
+
+    	// approximate matching is slow enough to be worth spreading out one name at a time
+    	int minNamesPerPartition = phase == MatchingPhase.APPROXIMATE ? 1 : MIN_EXACT_NAMES_PER_PARTITION;
+    	int partitionCount = 1;
+    	if (matchInParallel) {
+    		partitionCount = Math.min(Math.min(getMatchingPool().getParallelism() * PARTITIONS_PER_THREAD, MAX_PARTITIONS_PER_QUERY),
+    				(searchStrings.size() + minNamesPerPartition - 1) / minNamesPerPartition);
+    	}
+
+    	List<MatchingPartition> partitions = new ArrayList<MatchingPartition>();
+    	if (partitionCount <= 1) {
+    		MatchingPartition partition = new MatchingPartition(searchStrings);
+    		matchPartition(phase, partition);
+    		partitions.add(partition);
+
+    	} else {
+    		// the names are dealt out in turn, so each partition keeps the order of `searchStrings`
+    		List<Map<Object, String>> partitionNames = new ArrayList<Map<Object, String>>();
+    		for (int i = 0; i < partitionCount; i++) {
+    			partitionNames.add(new LinkedHashMap<Object, String>());
+    		}
+    		int i = 0;
+    		for (Entry<Object, String> nameEntry : searchStrings.entrySet()) {
+    			partitionNames.get(i++ % partitionCount).put(nameEntry.getKey(), nameEntry.getValue());
+    		}
+
+    		List<Callable<MatchingPartition>> tasks = new ArrayList<Callable<MatchingPartition>>();
+    		for (final Map<Object, String> names : partitionNames) {
+    			tasks.add(new Callable<MatchingPartition>() {
+    				@Override
+    				public MatchingPartition call() {
+    					MatchingPartition partition = new MatchingPartition(names);
+    					matchPartition(phase, partition);
+    					return partition;
+    				}
+    			});
+    		}
+    		for (Future<MatchingPartition> result : getMatchingPool().invokeAll(tasks)) {
+    			try {
+    				partitions.add(result.get());
+    			} catch (InterruptedException ex) {
+    				Thread.currentThread().interrupt();
+    				throw new RuntimeException("interrupted while matching names", ex);
+    			} catch (ExecutionException ex) {
+    				throw new RuntimeException(ex.getCause());
+    			}
+    		}
+    	}
+
+    	// merge the partitions
+    	for (MatchingPartition partition : partitions) {
+    		results.addResults(partition.results);
+    		namesWithoutExactMatches.putAll(partition.namesWithoutExactMatches);
+    		for (Object id : partition.namesWithSynonymMatches) {
+    			namesWithoutExactMatches.remove(id);
+    		}
+    		namesWithoutApproxMatches.putAll(partition.namesWithoutApproxMatches);
+    		namesWithExhaustedFuzzyBudget.putAll(partition.namesWithExhaustedFuzzyBudget);
+    		validTaxaWithExactMatches.addAll(partition.validTaxaWithExactMatches);
+    		validTaxaWithExactMatchesById.putAll(partition.validTaxaWithExactMatchesById);
+    	}
+    }
+    
+    private void matchPartition(MatchingPhase phase, MatchingPartition partition) {
+		if (phase == MatchingPhase.EXACT_NAMES) {
+			matchExactNames(partition.names, partition);
+		} else if (phase == MatchingPhase.EXACT_SYNONYMS) {
+			matchExactSynonyms(partition.names, partition);
+		} else {
+			matchApproximately(partition.names, partition);
+		}
+    }
+
+    /**
+     * Return the pool used for parallel matching, which is shared by all queries and has one thread per processor.
+     */
+    private static synchronized ForkJoinPool getMatchingPool() {
+    	if (matchingPool == null) {
+    		matchingPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    	}
+    	return matchingPool;
+    }
+    
+    /**
+     * Find the exact taxon, synonym, and (if includeDeprecated is set) deprecated taxon hits for all the `names` whose hits
+     * have not been found yet, and keep them for the exact matching steps. If there is an exact name dictionary covering both
+     * the name and synonym indexes, each name is looked up once, otherwise the names are looked up in each index in turn.
+     * 
+     * @param names
+     */
+    private void fetchExactHits(Collection<String> names) {
+    	
+    	Set<String> namesToFetch = new HashSet<String>();
+    	for (String name : names) {
+    		if (!exactTaxonHits.containsKey(name)) {
+    			namesToFetch.add(name);
+    		}
+    	}
+
+    	if (!namesToFetch.isEmpty()) {
+	    	if (nameOrSynonymDictionary != null) {
+	    		for (String name : namesToFetch) {
+	    			List<Node> taxonHits = new ArrayList<Node>();
+	    			List<Node> synonymHits = new ArrayList<Node>();
+	    			if (nameFilter == null || synonymFilter == null || nameFilter.mightContain(name) || synonymFilter.mightContain(name)) {
+		    			results.addIndexProbes(1);
+		    			for (long nodeId : nameOrSynonymDictionary.get(name)) {
+		    				Node hit = taxonomy.getNodeById(nodeId);
+		    				if (hit.hasRelationship(TaxonomyRelType.SYNONYMOF, Direction.OUTGOING)) {
+		    					synonymHits.add(hit);
+		    				} else if (name.equals(((String) hit.getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName())).toLowerCase())) {
+		    					taxonHits.add(hit);
+		    				}
+		    			}
+	    			}
+	    			// the lists are only shared once they are complete, since other partitions may be reading these maps. the
+	    			// taxon hits go last, since they mark the name as fetched
+	    			exactSynonymHits.put(name, synonymHits);
+	    			exactTaxonHits.put(name, taxonHits);
+	    		}
+	    	} else {
+	    		exactSynonymHits.putAll(lookupExactHits(synonymIndex, synonymDictionary, synonymFilter, namesToFetch));
+	    		exactTaxonHits.putAll(lookupExactHits(nameIndex, nameDictionary, nameFilter, namesToFetch));
+	    	}
+    	}
+    	
+    	if (includeDeprecated) {
+    		Set<String> deprecatedNamesToFetch = new HashSet<String>();
+        	for (String name : names) {
+        		if (!exactDeprecatedHits.containsKey(name)) {
+        			deprecatedNamesToFetch.add(name);
+        		}
+        	}
+        	if (!deprecatedNamesToFetch.isEmpty()) {
+        		exactDeprecatedHits.putAll(lookupExactHits(deprecatedIndex, deprecatedDictionary, deprecatedFilter, deprecatedNamesToFetch));
+        	}
+    	}
+    }
+    
+    /**
+     * Return the hits kept in `hitsByName` for `name`, finding them first if that has not been done yet.
+     * 
+     * @param hitsByName one of exactTaxonHits, exactSynonymHits, or exactDeprecatedHits
+     * @param name
+     * @return
+     */
+    private List<Node> getKeptHits(Map<String, List<Node>> hitsByName, String name) {
+    	if (!hitsByName.containsKey(name)) {
+    		fetchExactHits(Collections.singleton(name));
+    	}
+    	List<Node> hits = hitsByName.get(name);
+    	return hits == null ? Collections.<Node>emptyList() : hits;
+    }
+    
+    /**
+     * Return the nodes in `index` that exactly match each of `names`. Names that the bloom filter for the index rules out
+     * are not looked up at all. Uses the exact name dictionary for the index if there is one. Otherwise, if batched exact
+     * lookups are turned on, resolves all the names at once using a BatchedExactLookup, and if not, queries the index for
+     * each name separately.
+     * 
+     * @param index
+     * @param dictionary may be null
+     * @param filter may be null
+     * @param names
+     * @return
+     */
+    private Map<String, List<Node>> lookupExactHits(Index<Node> index, ExactNameDictionary dictionary, NameBloomFilter filter, Collection<String> names) {
+    	
+    	Map<String, List<Node>> hitsByName = new HashMap<String, List<Node>>();
+    	if (filter != null) {
+    		List<String> possibleNames = new ArrayList<String>();
+    		for (String name : names) {
+    			if (filter.mightContain(name)) {
+    				possibleNames.add(name);
+    			} else {
+    				hitsByName.put(name, new ArrayList<Node>());
+    			}
+    		}
+    		names = possibleNames;
+    	}
+
+    	if (dictionary != null) {
+    		for (String name : names) {
+    			List<Node> nodes = new ArrayList<Node>();
+        		for (long nodeId : dictionary.get(name)) {
+        			nodes.add(taxonomy.getNodeById(nodeId));
+        		}
+        		hitsByName.put(name, nodes);
+    		}
+    		results.addIndexProbes(names.size());
+
+    	} else if (useBatchedExactLookups) {
+    		BatchedExactLookup lookup = new BatchedExactLookup(index, names);
+    		for (Entry<String, List<Long>> nameHits : lookup.run().entrySet()) {
+    			List<Node> nodes = new ArrayList<Node>();
+    			for (Long nodeId : nameHits.getValue()) {
+    				nodes.add(taxonomy.getNodeById(nodeId));
+    			}
+    			hitsByName.put(nameHits.getKey(), nodes);
+    		}
+    		results.addIndexProbes(lookup.getIndexPasses());
+
+    	} else {
+    		for (String name : names) {
+	    		List<Node> nodes = new ArrayList<Node>();
+	    		IndexHits<Node> hits = index.query(new TermQuery(new Term(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), name)));
+	    		try {
+	    			for (Node hit : hits) {
+	    				nodes.add(hit);
+	    			}
+	    		} finally {
+	    			hits.close();
+	    		}
+	    		hitsByName.put(name, nodes);
+    		}
+    		results.addIndexProbes(names.size());
+    	}
+    	return hitsByName;
+    }
+    
+    /**
+     * Return the part of the result cache keys that identifies everything other than the name that the results of this
+     * query depend on: the indexes searched, the query options, and the version and revision of the taxonomy.
+     */
+    private String getCacheKeyPrefix() {
+    	return context.getDescription().name
+    			+ "|" + includeDubious + "|" + includeDeprecated + "|" + matchSpTaxaToGenera + "|" + useGenusFirstMatching + "|" + maxMatchesPerName + "|" + minScore
+    			+ "|" + taxonomy.getMetadataMap().get("source") + "|" + taxonomy.getRevision()
+    			+ "|" + taxonomy.getStoreDir() + "|";
+    }
+    
+    /**
+     * Record the results of exact matching from the cache for any of `names` that have them. The taxa exactly matched
+     * by cached names with a single exact match are added to validTaxaWithExactMatches so they are used for context
+     * inference, and those of the other cached names are added to `ambiguousTaxa`.
+     * 
+     * @param names
+     * @param ambiguousTaxa
+     * @return the names that are not in the cache
+     */
+    private Map<Object, String> useCachedExactResults(Map<Object, String> names, List<Taxon> ambiguousTaxa) {
+    	
+    	Map<Object, String> uncachedNames = new HashMap<Object, String>();
+    	for (Entry<Object, String> nameEntry : names.entrySet()) {
+    		Object thisId = nameEntry.getKey();
+    		TNRSResultCache.Entry cached = resultCache.get(cacheKeyPrefix + "exact|" + nameEntry.getValue());
+    		if (cached == null) {
+    			uncachedNames.put(thisId, nameEntry.getValue());
+    			continue;
+    		}
+
+    		if (cached.getMatches() != null) {
+    			results.addNameResult(new TNRSNameResult(thisId, cached.getMatches()));
+    		}
+    		if (cached.getHasDirectMatch()) {
+    			results.addNameWithDirectMatch(thisId, nameEntry.getValue());
+    		}
+    		if (cached.getUnmatchedName() != null) {
+    			namesWithoutExactMatches.put(thisId, cached.getUnmatchedName());
+    		}
+    		if (cached.getExactlyMatchedTaxa().size() == 1) {
+    			validTaxaWithExactMatches.addAll(cached.getExactlyMatchedTaxa());
+    		} else {
+    			ambiguousTaxa.addAll(cached.getExactlyMatchedTaxa());
+    		}
+    	}
+    	return uncachedNames;
+    }
+    
+    /**
+     * Store the results of exact matching for `names` in the cache.
+     * @param names
+     */
+    private void cacheExactResults(Map<Object, String> names) {
+    	for (Entry<Object, String> nameEntry : names.entrySet()) {
+    		Object thisId = nameEntry.getKey();
+    		resultCache.put(cacheKeyPrefix + "exact|" + nameEntry.getValue(), new TNRSResultCache.Entry(
+    				results.containsResultWithId(thisId) ? results.getNameResult(thisId).getMatches() : null,
+    				results.getNameIdsWithDirectMatches().contains(thisId),
+    				validTaxaWithExactMatchesById.get(thisId),
+    				namesWithoutExactMatches.get(thisId)));
+    	}
+    }
+
+    /**
+     * Record the results of approximate matching from the cache for any of `names` that have them. Approximate match scores
+     * depend on the LICA of the exactly matched names, so it is part of the cache key.
+     * 
+     * @param names
+     * @return the names that are not in the cache
+     */
+    private Map<Object, String> useCachedApproxResults(Map<Object, String> names) {
+
+    	Map<Object, String> uncachedNames = new HashMap<Object, String>();
+    	for (Entry<Object, String> nameEntry : names.entrySet()) {
+    		Object thisId = nameEntry.getKey();
+    		TNRSResultCache.Entry cached = resultCache.get(getApproxCacheKey(nameEntry.getValue()));
+    		if (cached == null) {
+    			uncachedNames.put(thisId, nameEntry.getValue());
+    		} else if (cached.getMatches() != null) {
+    			results.addNameResult(new TNRSNameResult(thisId, cached.getMatches()));
+    		} else {
+    			namesWithoutApproxMatches.put(thisId, nameEntry.getValue());
+    		}
+    	}
+    	return uncachedNames;
+    }
+    
+    /**
+     * Store the results of approximate matching for `names` in the cache. Names that were skipped because the fuzzy
+     * matching budget was exhausted are not stored.
+     * @param names
+     */
+    private void cacheApproxResults(Map<Object, String> names) {
+    	for (Entry<Object, String> nameEntry : names.entrySet()) {
+    		Object thisId = nameEntry.getKey();
+    		if (namesWithExhaustedFuzzyBudget.containsKey(thisId)) {
+    			continue;
+    		}
+    		resultCache.put(getApproxCacheKey(nameEntry.getValue()), new TNRSResultCache.Entry(
+    				results.containsResultWithId(thisId) ? results.getNameResult(thisId).getMatches() : null, false, null, null));
+    	}
+    }
+    
+    private String getApproxCacheKey(String name) {
+    	return cacheKeyPrefix + "approx|" + (bestGuessLICAForNames == null ? "" : bestGuessLICAForNames.getNode().getId()) + "|" + name;
+    }
+    
+    /**
+     * If `name` is of the form 'Genus sp.' or 'Genus sp', return 'Genus'. Otherwise return null.
+     * @param name
+     * @return
+     */
+    private static String getInferredGenusName(String name) {
+		String[] parts = name.split("\\s+");
+		String lastPart = parts[parts.length -1].toLowerCase();
+		
+		if (lastPart.equals("sp.")) {
+			return name.substring(0,name.length()-3).trim();
+		} else if (lastPart.equals("sp")) {
+			return name.substring(0,name.length()-2).trim();
+		}
+		return null;
+    }
+
+    /**
+     * Weight the base score of a non-exact match by the distance of the matched taxon outside of the inferred LICA.
      * 
-     * @param thisName
-     * @param matchedName
+     * @param baseScore
      * @param matchedTaxon
      * @param hit
      * @return
      */
-    private double getScore(String thisName, String matchedName, Taxon matchedTaxon, Node hit) {
-    	        
-    	double baseScore = getScore(thisName, matchedName);
+    private double getScore(double baseScore, Taxon matchedTaxon, Node hit) {
 
     	// weight scores by distance outside of inferred lica (this may need to go away if it is a speed bottleneck)
         double scoreModifier = 1;
         
         if (bestGuessLICAForNames != null) {
-	        if (matchedTaxon.isPreferredTaxChildOf(bestGuessLICAForNames) == false) {
+	        if (isWithinBestGuessLICA(matchedTaxon) == false) {
 	            int d = taxonomy.getInternodalDistThroughMRCA(hit, bestGuessLICAForNames.getNode(), TaxonomyRelType.PREFTAXCHILDOF);
 	            scoreModifier *= (1/Math.log(d)); // down-weight fuzzy matches outside of mrca scope by abs distance to mrca
 	        }
@@ -684,20 +1515,28 @@ public class MultiNameContextQuery extends AbstractBaseQuery {
     }
 
     /**
-     * Calculate scores for non-exact matches where the name to score against is the name of the matched taxon.
+     * Return true if `taxon` is within the inferred LICA. Uses the positions of the taxon and the LICA in the preferred tree
+     * when they are both in it, which avoids traversing the graph for every hit.
      * 
-     * @param thisName
-     * @param matchedTaxon
-     * @param hit
+     * @param taxon
      * @return
      */
-    private double getScore(String thisName, Taxon matchedTaxon, Node hit) {
-    	return getScore(thisName, matchedTaxon.getName(), matchedTaxon, hit);
+    private boolean isWithinBestGuessLICA(Taxon taxon) {
+    	if (bestGuessLICAIndex >= 0) {
+    		int index = preferredTree.getIndex(taxon.getNode().getId());
+    		if (index >= 0) {
+    			return preferredTree.isWithin(index, bestGuessLICAIndex);
+    		}
+    	}
+    	return taxon.isPreferredTaxChildOf(bestGuessLICAForNames);
     }
-    
-    private double getScore(String searchName, String hitName) {
-        // use edit distance to calculate base score for fuzzy matches
-        double l = Levenshtein.distance(searchName, hitName);
+
+    /**
+     * Return the base score for a non-exact match to `hitName` at edit distance `l` from `searchName`. Callers work out
+     * the distance with a bound from getMaxScoreDistance(), since distances over it all give scores that cannot reach the
+     * minimum.
+     */
+    private double getScore(String searchName, String hitName, double l) {
         double s = Math.min(hitName.length(), searchName.length());
         return (s - l) / s;
     }
@@ -715,6 +1554,11 @@ public class MultiNameContextQuery extends AbstractBaseQuery {
 //            bestGuessLICAForNames = taxonomy.getTaxon(taxonomy.ALLTAXA.getRootNode());
         	bestGuessLICAForNames = taxonomy.getTaxon(taxonomy.getTaxonomyRootNode());
         }
+
+        // remember where the lica is in the preferred tree, so hits can be checked against it quickly
+        preferredTree = TaxonomyTree.get(taxonomy, TaxonomyRelType.PREFTAXCHILDOF);
+        bestGuessLICAIndex = preferredTree == null || bestGuessLICAForNames == null ? -1
+        		: preferredTree.getIndex(bestGuessLICAForNames.getNode().getId());
     }
 
     /**
@@ -722,12 +1566,60 @@ public class MultiNameContextQuery extends AbstractBaseQuery {
      */
     private void setIndexes() {
 		deprecatedIndex = taxonomy.ALLTAXA.getNodeIndex(TaxonomyNodeIndex.DEPRECATED_TAXA);
-    	if (includeDubious) {
-    		nameIndex = context.getNodeIndex(TaxonomyNodeIndex.TAXON_BY_NAME);
-    		synonymIndex = context.getNodeIndex(TaxonomyNodeIndex.SYNONYM_NODES_BY_SYNONYM);
-    	} else {
-    		nameIndex = context.getNodeIndex(TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME);
-    		synonymIndex = context.getNodeIndex(TaxonomyNodeIndex.PREFERRED_SYNONYM_NODES_BY_SYNONYM);
+		deprecatedDictionary = taxonomy.ALLTAXA.getExactNameDictionary(TaxonomyNodeIndex.DEPRECATED_TAXA);
+		deprecatedFilter = taxonomy.ALLTAXA.getNameBloomFilter(TaxonomyNodeIndex.DEPRECATED_TAXA);
+		TaxonomyNodeIndex nameIndexDesc = includeDubious ? TaxonomyNodeIndex.TAXON_BY_NAME : TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME;
+		TaxonomyNodeIndex synonymIndexDesc = includeDubious ? TaxonomyNodeIndex.SYNONYM_NODES_BY_SYNONYM : TaxonomyNodeIndex.PREFERRED_SYNONYM_NODES_BY_SYNONYM;
+		nameIndex = context.getNodeIndex(nameIndexDesc);
+		nameDictionary = context.getExactNameDictionary(nameIndexDesc);
+		synonymIndex = context.getNodeIndex(synonymIndexDesc);
+		synonymDictionary = context.getExactNameDictionary(synonymIndexDesc);
+		nameOrSynonymDictionary = context.getExactNameDictionary(nameIndexDesc, synonymIndexDesc);
+		nameFilter = context.getNameBloomFilter(nameIndexDesc);
+		synonymFilter = context.getNameBloomFilter(synonymIndexDesc);
+		normalizedNameIndex = context.getNodeIndex(includeDubious ? TaxonomyNodeIndex.TAXON_BY_NORMALIZED_NAME : TaxonomyNodeIndex.PREFERRED_TAXON_BY_NORMALIZED_NAME);
+		approximateMatcher = getCombinedFuzzyMatcher(
+				new TaxonomyContext[] {context, context, taxonomy.ALLTAXA},
+				new TaxonomyNodeIndex[] {nameIndexDesc, synonymIndexDesc, TaxonomyNodeIndex.DEPRECATED_TAXA});
+		TaxonomyNodeIndex generaIndexDesc = includeDubious ? TaxonomyNodeIndex.TAXON_BY_NAME_GENERA : TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME_GENERA;
+		generaIndex = context.getNodeIndex(generaIndexDesc);
+		generaMatcher = getFuzzyMatcher(context, generaIndexDesc);
+		speciesByGenusIndex = taxonomy.ALLTAXA.getNodeIndex(includeDubious ? TaxonomyNodeIndex.SPECIES_BY_GENUS : TaxonomyNodeIndex.PREFERRED_SPECIES_BY_GENUS);
+		
+		// any hits we found in the previous indexes are no longer valid
+		clearExactHits();
+    }
+    
+    private void clearExactHits() {
+        // these may be read by several threads during parallel matching
+        exactTaxonHits = new ConcurrentHashMap<String, List<Node>>();
+        exactSynonymHits = new ConcurrentHashMap<String, List<Node>>();
+        exactDeprecatedHits = new ConcurrentHashMap<String, List<Node>>();
+    }
+    
+    private enum MatchingPhase {
+    	EXACT_NAMES,
+    	EXACT_SYNONYMS,
+    	APPROXIMATE
+    }
+    
+    /**
+     * The names matched by one worker during a matching phase, and everything that worker has recorded about them. Workers
+     * only write to their own partition, and the partitions are merged into the query once the phase is complete.
+     */
+    private static class MatchingPartition {
+    	
+    	private final Map<Object, String> names;
+    	private final TNRSResults results = new TNRSResults();
+    	private final Map<Object, String> namesWithoutExactMatches = new HashMap<Object, String>();
+    	private final Set<Object> namesWithSynonymMatches = new HashSet<Object>();
+    	private final Map<Object, String> namesWithoutApproxMatches = new HashMap<Object, String>();
+    	private final Map<Object, String> namesWithExhaustedFuzzyBudget = new HashMap<Object, String>();
+    	private final Set<Taxon> validTaxaWithExactMatches = new HashSet<Taxon>();
+    	private final Map<Object, List<Taxon>> validTaxaWithExactMatchesById = new HashMap<Object, List<Taxon>>();
+    	
+    	public MatchingPartition(Map<Object, String> names) {
+    		this.names = names;
     	}
     }
 }
@@ -1,11 +1,17 @@
 package org.opentree.tnrs.queries;
 
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 import org.apache.lucene.queryParser.QueryParser;
+import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.index.IndexHits;
 import org.opentree.properties.OTVocabularyPredicate;
 import org.opentree.taxonomy.Taxon;
 import org.opentree.taxonomy.Taxonomy;
+import org.opentree.taxonomy.constants.TaxonomyRelType;
+import org.opentree.taxonomy.contexts.ExactNameDictionary;
 import org.opentree.taxonomy.contexts.TaxonomyContext;
 import org.opentree.taxonomy.contexts.TaxonomyNodeIndex;
 import org.opentree.tnrs.TNRSHit;
@@ -17,6 +23,7 @@ import org.opentree.exceptions.MultipleHitsException;
 public class SimpleQuery extends AbstractBaseQuery {
 
 	private String queryString;
+	private String unescapedQueryString;
 	
 	public SimpleQuery(Taxonomy taxonomy) {
 		super(taxonomy);
@@ -44,6 +51,7 @@ public class SimpleQuery extends AbstractBaseQuery {
     public SimpleQuery setQueryString(String queryString) {
     	clear();
     	this.queryString = QueryParser.escape(queryString);
+    	this.unescapedQueryString = queryString;
     	return this;
     }
     
@@ -53,6 +61,15 @@ public class SimpleQuery extends AbstractBaseQuery {
     public SimpleQuery runQuery() {
         
     	results = new TNRSResults();
+
+    	// use the exact name dictionaries if we have them
+    	ExactNameDictionary prefTaxNames = context.getExactNameDictionary(TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME);
+    	ExactNameDictionary prefSynonymNames = context.getExactNameDictionary(TaxonomyNodeIndex.PREFERRED_SYNONYM_NODES_BY_SYNONYM);
+    	if (prefTaxNames != null && prefSynonymNames != null) {
+    		runDictionaryQuery(prefTaxNames, prefSynonymNames);
+    		return this;
+    	}
+
     	IndexHits<Node> hits = null;
     	try {
     		hits = context.getNodeIndex(TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME_OR_SYNONYM).query(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), queryString); //.replace(" ", "\\ "));
@@ -76,6 +93,30 @@ public class SimpleQuery extends AbstractBaseQuery {
          return this;
     }
 
+    /**
+     * Find the exact name or synonym matches using exact name dictionaries instead of the PREFERRED_TAXON_BY_NAME_OR_SYNONYM index.
+     */
+    private void runDictionaryQuery(ExactNameDictionary prefTaxNames, ExactNameDictionary prefSynonymNames) {
+
+    	String name = unescapedQueryString.toLowerCase();
+    	Set<Node> hits = new LinkedHashSet<Node>();
+    	for (long nodeId : prefTaxNames.get(name)) {
+    		hits.add(taxonomy.getNodeById(nodeId));
+    	}
+    	for (long nodeId : prefSynonymNames.get(name)) {
+    		Node synonymNode = taxonomy.getNodeById(nodeId);
+    		if (synonymNode.hasRelationship(TaxonomyRelType.SYNONYMOF, Direction.OUTGOING)) {
+    			hits.add(synonymNode.getSingleRelationship(TaxonomyRelType.SYNONYMOF, Direction.OUTGOING).getEndNode());
+    		}
+    	}
+    	
+    	TNRSMatchSet matches = new TNRSMatchSet(taxonomy);
+    	for (Node hit : hits) {
+    		matches.addMatch(new TNRSHit().setMatchedTaxon(taxonomy.getTaxon(hit)));
+    	}
+    	results.addNameResult(new TNRSNameResult(queryString, matches));
+    }
+
     /**
      * Return the results of the last query
      */
@@ -100,6 +141,7 @@ public class SimpleQuery extends AbstractBaseQuery {
 	@Override
 	public SimpleQuery clear() {
 		queryString = "";
+		unescapedQueryString = "";
 		results = new TNRSResults();
 		return this;
 	}
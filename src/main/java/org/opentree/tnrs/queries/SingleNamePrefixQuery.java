@@ -4,7 +4,6 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.QueryParser;
-import org.apache.lucene.search.FuzzyQuery;
 import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.TermQuery;
 import org.neo4j.graphdb.Node;
@@ -86,6 +85,25 @@ public class SingleNamePrefixQuery extends AbstractBaseQuery {
 		return this;
 	}
 
+	/**
+	 * Set the engine used to find approximate matches. Defaults to the engine from FuzzyMatchingEngine.getDefault().
+	 * @param fuzzyMatchingEngine
+	 */
+	public SingleNamePrefixQuery setFuzzyMatchingEngine(FuzzyMatchingEngine fuzzyMatchingEngine) {
+		this.fuzzyMatchingEngine = fuzzyMatchingEngine;
+		return this;
+	}
+
+	/**
+	 * Set the cache used to remember the names found by approximate matching across queries. Defaults to the shared cache
+	 * from FuzzyExpansionCache.getSharedCache(). Pass null to search the indexes every time.
+	 * @param fuzzyExpansionCache
+	 */
+	public SingleNamePrefixQuery setFuzzyExpansionCache(FuzzyExpansionCache fuzzyExpansionCache) {
+		this.fuzzyExpansionCache = fuzzyExpansionCache;
+		return this;
+	}
+
     /**
      * Set the context to be used by this query.
      */
@@ -235,7 +253,7 @@ public class SingleNamePrefixQuery extends AbstractBaseQuery {
 	    				if (matches.size() < 1) {
 
 	    					// last resort: fuzzy match against entire index
-		    				getApproxMatches(escapedQuery, includeDubious ? taxNodesByNameOrSynonym : prefTaxNodesByNameOrSynonym);
+		    				getApproxMatches(escapedQuery, includeDubious ? TaxonomyNodeIndex.TAXON_BY_NAME_OR_SYNONYM : TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME_OR_SYNONYM);
 	    				}
     				}
     			}
@@ -256,7 +274,7 @@ public class SingleNamePrefixQuery extends AbstractBaseQuery {
     				getPrefixMatches(escapedQuery, includeDubious ? taxNodesBySynonym : prefTaxNodesBySynonym);
     				
     				if (matches.size() < 1) {
-    					getApproxMatches(escapedQuery, includeDubious ? taxNodesByNameOrSynonymHigher : prefTaxNodesByNameOrSynonymHigher);
+    					getApproxMatches(escapedQuery, includeDubious ? TaxonomyNodeIndex.TAXON_BY_NAME_OR_SYNONYM_HIGHER : TaxonomyNodeIndex.PREFERRED_TAXON_BY_NAME_OR_SYNONYM_HIGHER);
     				}
     			}
     		}
@@ -333,30 +351,24 @@ public class SingleNamePrefixQuery extends AbstractBaseQuery {
     }
 
     /**
-     * Search for approximate taxon name or synonym matches against `queryString`.
+     * Search for approximate taxon name or synonym matches against `queryString`, in the index defined by `indexDesc`
+     * within the current context.
      */
-    private void getApproxMatches(String query, Index<Node> index) {
+    private void getApproxMatches(String query, TaxonomyNodeIndex indexDesc) {
 	
     	float minIdentity = getMinIdentity(query);
 
     	// fuzzy match names against ALL within-context taxa and synonyms
-    	FuzzyQuery fuzzyQuery = new FuzzyQuery(new Term(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), query), minIdentity);
-        IndexHits<Node> hits = null;
-        try {
-        	hits = index.query(fuzzyQuery);
-        	
-            for (Node hit : hits) {               
-            	if (matchedNodes.contains(hit) == false) {
-	            	matchedNodes.add(hit);
-	                Taxon matchedTaxon = taxonomy.getTaxon(hit);
-	                matches.addMatch(new TNRSHit()
-	                        .setMatchedTaxon(matchedTaxon)
-	                        .setRank(matchedTaxon.getRank())
-	                        .setIsDubious((Boolean) matchedTaxon.getNode().hasProperty(TaxonomyProperty.DUBIOUS.propertyName())));
-            	}
-            }
-        } finally {
-        	hits.close();
+        for (FuzzyMatch match : getFuzzyMatcher(context, indexDesc).findMatches(query, minIdentity)) {               
+        	Node hit = taxonomy.getNodeById(match.getNodeId());
+        	if (matchedNodes.contains(hit) == false) {
+            	matchedNodes.add(hit);
+                Taxon matchedTaxon = taxonomy.getTaxon(hit);
+                matches.addMatch(new TNRSHit()
+                        .setMatchedTaxon(matchedTaxon)
+                        .setRank(matchedTaxon.getRank())
+                        .setIsDubious((Boolean) matchedTaxon.getNode().hasProperty(TaxonomyProperty.DUBIOUS.propertyName())));
+        	}
         }
     }
 }
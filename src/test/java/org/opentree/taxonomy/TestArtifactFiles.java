@@ -0,0 +1,217 @@
+package org.opentree.taxonomy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opentree.taxonomy.contexts.ExactNameDictionary;
+import org.opentree.taxonomy.contexts.NameBloomFilter;
+
+/**
+ * Writes each kind of file that is built to speed up queries, opens it again, and checks that it gives back what was
+ * written.
+ */
+public class TestArtifactFiles {
+
+	private File dir;
+
+	@Before
+	public void makeDirectory() throws IOException {
+		dir = File.createTempFile("taxomachine-test", "");
+		Assert.assertTrue(dir.delete() && dir.mkdir());
+	}
+
+	@After
+	public void removeDirectory() {
+		ExactNameDictionary.closeAll(dir);
+		NameBloomFilter.closeAll(dir);
+		OTTIdMap.closeAll(dir);
+		SourceIdTable.closeAll(dir);
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testExactNameDictionary() throws IOException {
+		Random random = new Random(5);
+		ExactNameDictionary.Builder builder = new ExactNameDictionary.Builder();
+		Map<String, Set<Long>> expected = new HashMap<String, Set<Long>>();
+		for (int i = 0; i < 20000; i++) {
+			String name = "Taxon " + random.nextInt(5000) + (random.nextBoolean() ? "" : " \u00e9"); // some non-ascii names
+			long nodeId = random.nextInt(1000000);
+			builder.add(name, nodeId);
+			if (!expected.containsKey(name.toLowerCase())) {
+				expected.put(name.toLowerCase(), new HashSet<Long>());
+			}
+			expected.get(name.toLowerCase()).add(nodeId);
+		}
+		File file = new File(dir, "names" + ExactNameDictionary.FILE_SUFFIX);
+		builder.write(file, 4);
+		Assert.assertFalse(new File(file.getPath() + ".tmp").exists());
+
+		ExactNameDictionary dictionary = ExactNameDictionary.open(file);
+		Assert.assertNotNull(dictionary);
+		Assert.assertSame(dictionary, ExactNameDictionary.open(file));
+		Assert.assertEquals(4, dictionary.getRevision());
+		Assert.assertEquals(expected.size(), dictionary.size());
+		for (Map.Entry<String, Set<Long>> entry : expected.entrySet()) {
+			Set<Long> ids = new HashSet<Long>();
+			for (long id : dictionary.get(entry.getKey())) {
+				ids.add(id);
+			}
+			Assert.assertEquals(entry.getValue(), ids);
+			Assert.assertEquals(entry.getValue().size(), dictionary.get(entry.getKey()).length); // no repeated ids
+		}
+		Assert.assertEquals(0, dictionary.get("not a taxon").length);
+		Assert.assertFalse(dictionary.contains("taxon 5000"));
+	}
+
+	@Test
+	public void testNameBloomFilter() throws IOException {
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < 10000; i++) {
+			names.add("Taxon " + i);
+		}
+		NameBloomFilter built = NameBloomFilter.build(names, 0.01);
+		File file = new File(dir, "names" + NameBloomFilter.FILE_SUFFIX);
+		built.write(file, 9);
+
+		NameBloomFilter filter = NameBloomFilter.open(file);
+		Assert.assertNotNull(filter);
+		Assert.assertEquals(9, filter.getRevision());
+		Assert.assertEquals(names.size(), filter.size());
+		Assert.assertEquals(0.01, filter.getFalsePositiveRate(), 1e-9);
+		for (String name : names) {
+			Assert.assertTrue(filter.mightContain(name.toLowerCase())); // no false negatives
+		}
+		int falsePositives = 0;
+		for (int i = 10000; i < 20000; i++) {
+			if (filter.mightContain("taxon " + i)) {
+				falsePositives++;
+			}
+		}
+		Assert.assertTrue("false positives: " + falsePositives, falsePositives < 300);
+	}
+
+	@Test
+	public void testOTTIdMap() throws IOException {
+		OTTIdMap.Builder builder = new OTTIdMap.Builder();
+		builder.add(1, 100, OTTIdMap.LIVE);
+		builder.add(2, 200, OTTIdMap.DEPRECATED);
+		builder.add(2, 201, OTTIdMap.ALIAS); // aliases take precedence over deprecated ids
+		builder.add(3, 300, OTTIdMap.ALIAS);
+		builder.add(3, 301, OTTIdMap.LIVE); // and live ids over aliases
+		builder.add(3, 302, OTTIdMap.DEPRECATED);
+		builder.add(1L << 40, 400, OTTIdMap.LIVE);
+		builder.add(1, 100, OTTIdMap.LIVE); // repeated for the same node, which is fine
+		builder.add(5, 500, OTTIdMap.LIVE);
+		builder.add(5, 501, OTTIdMap.LIVE); // two live taxa with the same id, so it is left out
+		builder.add(5, 502, OTTIdMap.ALIAS);
+		builder.add(6, 600, OTTIdMap.DEPRECATED);
+		builder.add(6, 601, OTTIdMap.DEPRECATED);
+		for (long ottId = 1000; ottId < 50000; ottId++) {
+			builder.add(ottId, ottId * 3, OTTIdMap.LIVE);
+		}
+		File file = new File(dir, OTTIdMap.FILE_NAME);
+		Assert.assertEquals(4 + 49000, builder.write(file, 2));
+		Assert.assertEquals(Arrays.asList(5L, 6L), builder.getAmbiguousIds());
+
+		OTTIdMap map = OTTIdMap.open(file);
+		Assert.assertNotNull(map);
+		Assert.assertEquals(2, map.getRevision());
+		Assert.assertEquals(4 + 49000, map.size());
+		checkOTTId(map, 1, 100, OTTIdMap.LIVE);
+		checkOTTId(map, 2, 201, OTTIdMap.ALIAS);
+		checkOTTId(map, 3, 301, OTTIdMap.LIVE);
+		checkOTTId(map, 1L << 40, 400, OTTIdMap.LIVE);
+		for (long ottId = 1000; ottId < 50000; ottId++) {
+			checkOTTId(map, ottId, ottId * 3, OTTIdMap.LIVE);
+		}
+		Assert.assertEquals(-1, map.get(4));
+		Assert.assertEquals(-1, map.get(5)); // ambiguous ids are looked up in the indexes instead
+		Assert.assertEquals(-1, map.getNodeId(6));
+		Assert.assertEquals(-1, map.getNodeId(-4));
+	}
+
+	private static void checkOTTId(OTTIdMap map, long ottId, long nodeId, int kind) {
+		long value = map.get(ottId);
+		Assert.assertEquals(nodeId, OTTIdMap.getValueNodeId(value));
+		Assert.assertEquals(kind, OTTIdMap.getValueKind(value));
+		Assert.assertEquals(nodeId, map.getNodeId(ottId));
+	}
+
+	@Test
+	public void testSourceIdTable() throws IOException {
+		SourceIdTable.Builder builder = new SourceIdTable.Builder();
+		builder.add("ncbi:9606", 770315);
+		builder.add("NCBI:9605", 770311); // case is ignored, as in the source id index
+		builder.add("gbif:2436436", 770315);
+		builder.add("irmng:1", 10);
+		builder.add("irmng:1", 11); // recorded for two taxa
+		builder.add("silva:AB123/#4", 20); // not a number
+		builder.add("ncbi:007", 30); // leading zeros are kept as they are
+		builder.add("if:", 40); // no local id
+		builder.add("nocolon", 50);
+		for (int i = 0; i < 10000; i++) {
+			builder.add("worms:" + (i * 7), 100000 + i);
+		}
+		File file = new File(dir, SourceIdTable.FILE_NAME);
+		Assert.assertEquals(6 + 10000, builder.write(file, 6));
+
+		SourceIdTable table = SourceIdTable.open(file);
+		Assert.assertNotNull(table);
+		Assert.assertEquals(6, table.getRevision());
+		Assert.assertEquals(770315, table.get("ncbi:9606"));
+		Assert.assertEquals(770315, table.get("NCBI:9606"));
+		Assert.assertEquals(770311, table.get("ncbi:9605"));
+		Assert.assertEquals(770315, table.get("gbif:2436436"));
+		Assert.assertEquals(SourceIdTable.AMBIGUOUS, table.get("irmng:1"));
+		Assert.assertEquals(20, table.get("silva:ab123/#4"));
+		Assert.assertEquals(30, table.get("ncbi:007"));
+		Assert.assertEquals(SourceIdTable.NOT_FOUND, table.get("ncbi:7"));
+		Assert.assertEquals(SourceIdTable.NOT_FOUND, table.get("if:"));
+		Assert.assertEquals(SourceIdTable.NOT_FOUND, table.get("nocolon"));
+		Assert.assertEquals(SourceIdTable.NOT_FOUND, table.get("ncbi:"));
+		Assert.assertEquals(SourceIdTable.NOT_FOUND, table.get("foo:1"));
+		for (int i = 0; i < 10000; i++) {
+			Assert.assertEquals(100000 + i, table.get("worms:" + (i * 7)));
+			Assert.assertEquals(SourceIdTable.NOT_FOUND, table.get("worms:" + (i * 7 + 1)));
+		}
+	}
+
+	@Test
+	public void testMissingAndUnreadableFiles() throws IOException {
+		File file = new File(dir, OTTIdMap.FILE_NAME);
+		Assert.assertNull(OTTIdMap.open(file));
+
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[64]);
+		out.close();
+		OTTIdMap.closeAll(dir); // otherwise the missing file is not tried again for a while
+		Assert.assertNull(OTTIdMap.open(file));
+
+		// a file written after closeAll() is picked up
+		OTTIdMap.Builder builder = new OTTIdMap.Builder();
+		builder.add(1, 2, OTTIdMap.LIVE);
+		builder.write(file, 1);
+		OTTIdMap.closeAll(dir);
+		OTTIdMap map = OTTIdMap.open(file);
+		Assert.assertNotNull(map);
+		Assert.assertEquals(2, map.getNodeId(1));
+		Assert.assertTrue(Arrays.asList(dir.list()).contains(OTTIdMap.FILE_NAME));
+	}
+}
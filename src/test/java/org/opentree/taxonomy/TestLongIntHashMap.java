@@ -0,0 +1,53 @@
+package org.opentree.taxonomy;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class TestLongIntHashMap {
+
+	@Test
+	public void testAgainstHashMap() {
+		Random random = new Random(3);
+		LongIntHashMap map = new LongIntHashMap(16, -1); // far too small, so the map has to grow
+		Map<Long, Integer> expected = new HashMap<Long, Integer>();
+		for (int i = 0; i < 100000; i++) {
+			// sequential ids with gaps and a few large and negative ones, like node ids and ott ids
+			long key = random.nextInt(10) == 0 ? random.nextLong() : random.nextInt(200000);
+			if (key == Long.MIN_VALUE) {
+				continue;
+			}
+			int value = random.nextInt();
+			map.put(key, value);
+			expected.put(key, value);
+		}
+
+		Assert.assertEquals(expected.size(), map.size());
+		for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+			Assert.assertTrue(map.containsKey(entry.getKey()));
+			Assert.assertEquals(entry.getValue().intValue(), map.get(entry.getKey()));
+		}
+		for (long key = 200000; key < 210000; key++) {
+			Assert.assertFalse(map.containsKey(key));
+			Assert.assertEquals(-1, map.get(key));
+		}
+	}
+
+	@Test
+	public void testReplace() {
+		LongIntHashMap map = new LongIntHashMap(4, 0);
+		map.put(7, 1);
+		map.put(7, 2);
+		Assert.assertEquals(1, map.size());
+		Assert.assertEquals(2, map.get(7));
+		Assert.assertEquals(0, map.get(8));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMinValueKey() {
+		new LongIntHashMap(4, 0).put(Long.MIN_VALUE, 1);
+	}
+}
@@ -0,0 +1,109 @@
+package org.opentree.taxonomy;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+
+/**
+ * Checks which revisions of the taxonomy the ott id map and the source id table are used at.
+ */
+public class TestQueryFileRevisions {
+
+	private File dir;
+	private GraphDatabaseService graphDb;
+	private Taxonomy taxonomy;
+
+	@Before
+	public void makeDatabase() throws IOException {
+		dir = File.createTempFile("taxomachine-test", "");
+		Assert.assertTrue(dir.delete() && dir.mkdir());
+		graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(dir.getPath());
+		taxonomy = new Taxonomy(graphDb);
+
+		File mapFile = taxonomy.getOTTIdMapFile();
+		Assert.assertTrue(mapFile.getParentFile().mkdirs());
+		OTTIdMap.Builder map = new OTTIdMap.Builder();
+		map.add(1, 10, OTTIdMap.LIVE);
+		map.write(mapFile, taxonomy.getRevision());
+
+		File tableFile = taxonomy.getSourceIdTableFile();
+		Assert.assertTrue(tableFile.getParentFile().mkdirs());
+		SourceIdTable.Builder table = new SourceIdTable.Builder();
+		table.add("ncbi:1", 10);
+		table.write(tableFile, taxonomy.getRevision());
+	}
+
+	@After
+	public void removeDatabase() {
+		graphDb.shutdown();
+		OTTIdMap.closeAll(taxonomy.getOTTIdMapFile().getParentFile());
+		SourceIdTable.closeAll(taxonomy.getSourceIdTableFile().getParentFile());
+		delete(dir);
+	}
+
+	@Test
+	public void testOTTIdMapIsKeptAfterAdditions() {
+		Assert.assertNotNull(taxonomy.getOTTIdMap());
+		Assert.assertNotNull(taxonomy.getSourceIdTable());
+
+		// additions only add ids, so the map can still be used, but the source id table cannot
+		incrementRevision(true);
+		incrementRevision(true);
+		Assert.assertEquals(2, taxonomy.getRevision());
+		Assert.assertNotNull(taxonomy.getOTTIdMap());
+		Assert.assertEquals(10, taxonomy.getOTTIdMap().getNodeId(1));
+		Assert.assertNull(taxonomy.getSourceIdTable());
+
+		// any other change makes the map out of date as well
+		incrementRevision(false);
+		Assert.assertNull(taxonomy.getOTTIdMap());
+		incrementRevision(true);
+		Assert.assertNull(taxonomy.getOTTIdMap());
+	}
+
+	@Test
+	public void testOTTIdMapAfterOtherChanges() throws IOException {
+		incrementRevision(false);
+		Assert.assertNull(taxonomy.getOTTIdMap());
+
+		// a map built after the change is used, and stays in use through later additions
+		OTTIdMap.Builder map = new OTTIdMap.Builder();
+		map.add(1, 11, OTTIdMap.LIVE);
+		map.write(taxonomy.getOTTIdMapFile(), taxonomy.getRevision());
+		OTTIdMap.closeAll(taxonomy.getOTTIdMapFile().getParentFile());
+		Assert.assertEquals(11, taxonomy.getOTTIdMap().getNodeId(1));
+		incrementRevision(true);
+		Assert.assertEquals(11, taxonomy.getOTTIdMap().getNodeId(1));
+	}
+
+	private void incrementRevision(boolean forAdditions) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			if (forAdditions) {
+				taxonomy.incrementRevisionForAdditions();
+			} else {
+				taxonomy.incrementRevision();
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,127 @@
+package org.opentree.tnrs.queries;
+
+import java.util.Random;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Checks BoundedEditDistance against the full edit distance table, for both the Levenshtein distance and the optimal
+ * string alignment distance (with transpositions).
+ */
+public class TestBoundedEditDistance {
+
+	private static final String ALPHABET = "abcd"; // small, so that the strings share a lot of characters
+
+	@Test
+	public void testKnownDistances() {
+		Assert.assertEquals(3, BoundedEditDistance.distance("kitten", "sitting"));
+		Assert.assertEquals(0, BoundedEditDistance.distance("homo", "homo"));
+		Assert.assertEquals(4, BoundedEditDistance.distance("", "homo"));
+		Assert.assertEquals(4, BoundedEditDistance.distance("homo", ""));
+		Assert.assertEquals(2, BoundedEditDistance.distance("homo sapeins", "homo sapiens"));
+		Assert.assertEquals(1, BoundedEditDistance.distance("homo sapeins", "homo sapiens", 2, true));
+	}
+
+	@Test
+	public void testBoundIsReported() {
+		// a distance over the bound is reported as the bound plus one
+		Assert.assertEquals(2, BoundedEditDistance.distance("kitten", "sitting", 1));
+		Assert.assertEquals(3, BoundedEditDistance.distance("kitten", "sitting", 3));
+		Assert.assertEquals(1, BoundedEditDistance.distance("a", "abcdef", 0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeBound() {
+		BoundedEditDistance.distance("a", "b", -1);
+	}
+
+	@Test
+	public void testLevenshteinAgainstFullTable() {
+		checkAgainstFullTable(false);
+	}
+
+	@Test
+	public void testTranspositionsAgainstFullTable() {
+		checkAgainstFullTable(true);
+	}
+
+	private void checkAgainstFullTable(boolean transpositions) {
+		Random random = new Random(17);
+		for (int i = 0; i < 20000; i++) {
+			String a = randomString(random, random.nextInt(12));
+			String b = random.nextInt(4) == 0 ? mutate(random, a) : randomString(random, random.nextInt(12));
+			int expected = fullDistance(a, b, transpositions);
+			for (int maxDistance = 0; maxDistance <= 8; maxDistance++) {
+				int bounded = BoundedEditDistance.distance(a, b, maxDistance, transpositions);
+				Assert.assertEquals("distance('" + a + "', '" + b + "', " + maxDistance + ", " + transpositions + ")",
+						Math.min(expected, maxDistance + 1), bounded);
+			}
+			if (!transpositions) {
+				Assert.assertEquals(expected, BoundedEditDistance.distance(a, b));
+			}
+		}
+	}
+
+	/**
+	 * The edit distance between `a` and `b` from the full table, counting transpositions of adjacent characters as single
+	 * edits if `transpositions` is true.
+	 */
+	private static int fullDistance(String a, String b, boolean transpositions) {
+		int[][] d = new int[a.length() + 1][b.length() + 1];
+		for (int i = 0; i <= a.length(); i++) {
+			d[i][0] = i;
+		}
+		for (int j = 0; j <= b.length(); j++) {
+			d[0][j] = j;
+		}
+		for (int i = 1; i <= a.length(); i++) {
+			for (int j = 1; j <= b.length(); j++) {
+				int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+				d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1), d[i - 1][j - 1] + cost);
+				if (transpositions && i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+					d[i][j] = Math.min(d[i][j], d[i - 2][j - 2] + 1);
+				}
+			}
+		}
+		return d[a.length()][b.length()];
+	}
+
+	private static String randomString(Random random, int length) {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			s.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		}
+		return s.toString();
+	}
+
+	/** Return `s` with a few random edits, including swaps of adjacent characters. */
+	private static String mutate(Random random, String s) {
+		StringBuilder m = new StringBuilder(s);
+		for (int edits = random.nextInt(4); edits > 0; edits--) {
+			int p = m.length() == 0 ? 0 : random.nextInt(m.length());
+			switch (random.nextInt(4)) {
+			case 0:
+				m.insert(p, ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+				break;
+			case 1:
+				if (m.length() > 0) {
+					m.deleteCharAt(p);
+				}
+				break;
+			case 2:
+				if (m.length() > 0) {
+					m.setCharAt(p, ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+				}
+				break;
+			default:
+				if (p + 1 < m.length()) {
+					char c = m.charAt(p);
+					m.setCharAt(p, m.charAt(p + 1));
+					m.setCharAt(p + 1, c);
+				}
+			}
+		}
+		return m.toString();
+	}
+}
@@ -0,0 +1,259 @@
+package org.opentree.tnrs.queries;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.Assert;
+import org.apache.lucene.search.BooleanQuery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.graphdb.index.Index;
+import org.opentree.properties.OTVocabularyPredicate;
+import org.opentree.taxonomy.Taxonomy;
+import org.opentree.taxonomy.contexts.BucketedTermDictionary;
+import org.opentree.taxonomy.contexts.DeletionNeighbourhoodIndex;
+import org.opentree.taxonomy.contexts.ExactNameDictionary;
+import org.opentree.taxonomy.contexts.SortedTermDictionary;
+import org.opentree.taxonomy.contexts.TaxonomyContext;
+import org.opentree.taxonomy.contexts.TaxonomyNodeIndex;
+
+/**
+ * Checks that every FuzzyMatchingEngine finds the same matches as a Lucene FuzzyQuery, over a small generated name index.
+ *
+ * A FuzzyQuery keeps only the best BooleanQuery.getMaxClauseCount() terms it expands to, so the dictionary is kept small
+ * enough that no query comes near that limit; past it Lucene would drop matches that the other engines find.
+ */
+public class TestFuzzyMatchers {
+
+	private static final String[] SYLLABLES = {"a", "ba", "bra", "ca", "chi", "di", "la", "lo", "ma", "mo", "no", "ra", "ri", "sa", "ta", "us"};
+	private static final TaxonomyNodeIndex INDEX = TaxonomyNodeIndex.TAXON_BY_NAME;
+
+	private File dir;
+	private GraphDatabaseService graphDb;
+	private TaxonomyContext context;
+	private List<String> names;
+
+	@Before
+	public void makeIndex() throws IOException {
+		dir = File.createTempFile("taxomachine-test", "");
+		Assert.assertTrue(dir.delete() && dir.mkdir());
+		graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(dir.getPath());
+		context = new Taxonomy(graphDb).ALLTAXA;
+
+		// names built from a few syllables, so that many of them are within a few edits of each other
+		Random random = new Random(11);
+		Set<String> nameSet = new HashSet<String>();
+		while (nameSet.size() < 1500) {
+			nameSet.add(randomName(random));
+		}
+		names = new ArrayList<String>(nameSet);
+		Collections.sort(names);
+
+		DeletionNeighbourhoodIndex.Builder deletionIndex = new DeletionNeighbourhoodIndex.Builder();
+		SortedTermDictionary.Builder terms = new SortedTermDictionary.Builder();
+		ExactNameDictionary.Builder dictionary = new ExactNameDictionary.Builder();
+		Index<Node> index = context.getNodeIndex(INDEX);
+		Transaction tx = graphDb.beginTx();
+		try {
+			for (int i = 0; i < names.size(); i++) {
+				// some names are recorded for two nodes, as homonyms are
+				for (int copies = i % 7 == 0 ? 2 : 1; copies > 0; copies--) {
+					Node node = graphDb.createNode();
+					node.setProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), names.get(i));
+					index.add(node, OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), names.get(i));
+					deletionIndex.add(names.get(i));
+					terms.add(names.get(i), node.getId());
+					dictionary.add(names.get(i), node.getId());
+				}
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+
+		long revision = context.getTaxonomy().getRevision();
+		deletionIndex.write(makeParent(context.getDeletionNeighbourhoodIndexFile(INDEX)), revision);
+		terms.write(makeParent(context.getSortedTermDictionaryFile(INDEX)), revision);
+		BucketedTermDictionary.write(terms, makeParent(context.getBucketedTermDictionaryFile(INDEX)), revision);
+		dictionary.write(makeParent(context.getExactNameDictionaryFile(INDEX)), revision);
+
+		Assert.assertNotNull(context.getDeletionNeighbourhoodIndex(INDEX));
+		Assert.assertNotNull(context.getSortedTermDictionary(INDEX));
+		Assert.assertNotNull(context.getBucketedTermDictionary(INDEX));
+		Assert.assertNotNull(context.getExactNameDictionary(INDEX));
+	}
+
+	@After
+	public void removeIndex() {
+		graphDb.shutdown();
+		for (File file : new File[] {context.getDeletionNeighbourhoodIndexFile(INDEX), context.getSortedTermDictionaryFile(INDEX),
+				context.getBucketedTermDictionaryFile(INDEX), context.getExactNameDictionaryFile(INDEX)}) {
+			DeletionNeighbourhoodIndex.closeAll(file.getParentFile());
+			SortedTermDictionary.closeAll(file.getParentFile());
+			BucketedTermDictionary.closeAll(file.getParentFile());
+			ExactNameDictionary.closeAll(file.getParentFile());
+		}
+		delete(dir);
+	}
+
+	@Test
+	public void testEnginesAgreeWithLucene() {
+
+		FuzzyMatcher lucene = FuzzyMatchingEngine.LUCENE.getMatcher(context, INDEX);
+		FuzzyMatcher deletionIndex = FuzzyMatchingEngine.DELETION_INDEX.getMatcher(context, INDEX);
+		FuzzyMatcher automaton = FuzzyMatchingEngine.LEVENSHTEIN_AUTOMATON.getMatcher(context, INDEX);
+		SortedTermDictionary terms = context.getSortedTermDictionary(INDEX);
+		CombinedFuzzyMatcher[] combined = new CombinedFuzzyMatcher[FuzzyMatchingEngine.values().length];
+		for (FuzzyMatchingEngine engine : FuzzyMatchingEngine.values()) {
+			combined[engine.ordinal()] = engine.getCombinedMatcher(new TaxonomyContext[] {context}, new TaxonomyNodeIndex[] {INDEX});
+		}
+
+		Random random = new Random(13);
+		int found = 0;
+		for (int i = 0; i < 400; i++) {
+			String name = i % 2 == 0 ? mutate(random, names.get(random.nextInt(names.size()))) : randomName(random);
+			if (name.length() == 0) {
+				continue;
+			}
+			// the identity used by the queries, and a stricter one; looser ones allow more edits than the other engines look for
+			for (float minIdentity : new float[] {AbstractBaseQuery.getMinIdentity(name), (1 + AbstractBaseQuery.getMinIdentity(name)) / 2}) {
+				String query = "'" + name + "' at " + minIdentity;
+				List<FuzzyMatch> luceneMatches = lucene.findMatches(name, minIdentity);
+				Assert.assertTrue(query, luceneMatches.size() < BooleanQuery.getMaxClauseCount());
+				Set<String> expected = asSet(luceneMatches);
+				found += expected.size();
+
+				Assert.assertEquals("deletion index, " + query, expected, asSet(deletionIndex.findMatches(name, minIdentity)));
+				Assert.assertEquals("bucketed automaton, " + query, expected, asSet(automaton.findMatches(name, minIdentity)));
+				Assert.assertEquals("automaton, " + query, expected, asSet(LevenshteinAutomatonFuzzyMatcher.findMatches(terms, name, minIdentity)));
+				for (FuzzyMatchingEngine engine : FuzzyMatchingEngine.values()) {
+					Assert.assertEquals("combined " + engine + ", " + query, expected,
+							asSet(combined[engine.ordinal()].findMatches(name, minIdentity, new boolean[] {true}).get(0)));
+				}
+
+				// the buckets skipped by the automaton must not hold any of the matches
+				for (FuzzyMatch match : luceneMatches) {
+					Assert.assertTrue("canMatch, " + query + ", '" + match.getName() + "'", LevenshteinAutomatonFuzzyMatcher.canMatch(
+							name, AbstractBaseQuery.getMaxEdits(name), minIdentity, match.getName().length(), match.getName().charAt(0)));
+				}
+			}
+		}
+		Assert.assertTrue("only " + found + " matches", found > 500); // the queries have to find something to compare
+	}
+
+	@Test
+	public void testLongNamesDoNotUseLucene() {
+
+		// mutated long names, for which the edit budget is more than the deletions recorded by the deletion index
+		Random random = new Random(17);
+		List<String> queries = new ArrayList<String>();
+		List<Set<String>> expected = new ArrayList<Set<String>>();
+		FuzzyMatcher lucene = FuzzyMatchingEngine.LUCENE.getMatcher(context, INDEX);
+		int found = 0;
+		for (String name : names) {
+			String query = mutate(random, name);
+			if (query.length() < 14) {
+				continue;
+			}
+			Assert.assertTrue(query, AbstractBaseQuery.getMaxEdits(query) > DeletionNeighbourhoodIndex.DEFAULT_MAX_DELETIONS);
+			queries.add(query);
+			expected.add(asSet(lucene.findMatches(query, AbstractBaseQuery.getMinIdentity(query))));
+			found += expected.get(expected.size() - 1).size();
+		}
+		Assert.assertTrue("only " + queries.size() + " long names", queries.size() > 100);
+		Assert.assertTrue("only " + found + " matches", found >= queries.size());
+
+		// empty the lucene index, so that any matches that still come from it are missed
+		Index<Node> index = context.getNodeIndex(INDEX);
+		Transaction tx = graphDb.beginTx();
+		try {
+			for (String name : names) {
+				for (Node node : index.get(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName(), name)) {
+					index.remove(node);
+				}
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		Assert.assertTrue(lucene.findMatches(queries.get(0), AbstractBaseQuery.getMinIdentity(queries.get(0))).isEmpty());
+
+		FuzzyMatcher deletionIndex = FuzzyMatchingEngine.DELETION_INDEX.getMatcher(context, INDEX);
+		CombinedFuzzyMatcher combined = FuzzyMatchingEngine.DELETION_INDEX.getCombinedMatcher(new TaxonomyContext[] {context}, new TaxonomyNodeIndex[] {INDEX});
+		for (int i = 0; i < queries.size(); i++) {
+			String query = queries.get(i);
+			float minIdentity = AbstractBaseQuery.getMinIdentity(query);
+			Assert.assertEquals(query, expected.get(i), asSet(deletionIndex.findMatches(query, minIdentity)));
+			Assert.assertEquals("combined, " + query, expected.get(i), asSet(combined.findMatches(query, minIdentity, new boolean[] {true}).get(0)));
+		}
+	}
+
+	/** Return the matches as strings, so that matchers which find them in a different order can be compared. */
+	private static Set<String> asSet(List<FuzzyMatch> matches) {
+		Set<String> set = new HashSet<String>();
+		for (FuzzyMatch match : matches) {
+			Assert.assertTrue("repeated match " + match.getName(), set.add(match.getName() + " " + match.getNodeId()));
+		}
+		return set;
+	}
+
+	/** Return a lowercase name of one or two words, between about 3 and 25 characters long. */
+	private static String randomName(Random random) {
+		StringBuilder name = new StringBuilder();
+		for (int words = random.nextInt(3) == 0 ? 2 : 1; words > 0; words--) {
+			if (name.length() > 0) {
+				name.append(' ');
+			}
+			for (int syllables = 2 + random.nextInt(4); syllables > 0; syllables--) {
+				name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+			}
+		}
+		return name.toString();
+	}
+
+	/** Return `s` with up to three random insertions, deletions or substitutions. */
+	private static String mutate(Random random, String s) {
+		StringBuilder m = new StringBuilder(s);
+		for (int edits = random.nextInt(4); edits > 0 && m.length() > 0; edits--) {
+			int p = random.nextInt(m.length());
+			char c = SYLLABLES[random.nextInt(SYLLABLES.length)].charAt(0);
+			switch (random.nextInt(3)) {
+			case 0:
+				m.insert(p, c);
+				break;
+			case 1:
+				m.deleteCharAt(p);
+				break;
+			default:
+				m.setCharAt(p, c);
+			}
+		}
+		return m.toString();
+	}
+
+	private static File makeParent(File file) {
+		Assert.assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+		return file;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
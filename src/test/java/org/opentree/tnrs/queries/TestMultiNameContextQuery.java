@@ -0,0 +1,297 @@
+package org.opentree.tnrs.queries;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.opentree.graphdb.GraphDatabaseAgent;
+import org.opentree.taxonomy.OTTIdMap;
+import org.opentree.taxonomy.SourceIdTable;
+import org.opentree.taxonomy.Taxonomy;
+import org.opentree.taxonomy.TaxonomyLoaderOTT;
+import org.opentree.taxonomy.TaxonomySynthesizer;
+import org.opentree.taxonomy.TaxonomyTree;
+import org.opentree.taxonomy.contexts.ContextDescription;
+import org.opentree.taxonomy.contexts.TaxonomyContext;
+import org.opentree.taxonomy.contexts.BucketedTermDictionary;
+import org.opentree.taxonomy.contexts.DeletionNeighbourhoodIndex;
+import org.opentree.taxonomy.contexts.ExactNameDictionary;
+import org.opentree.taxonomy.contexts.NameBloomFilter;
+import org.opentree.taxonomy.contexts.SortedTermDictionary;
+import org.opentree.taxonomy.plugins.taxonomy_v3;
+import org.opentree.tnrs.TNRSMatch;
+import org.opentree.tnrs.TNRSResultCache;
+import org.opentree.tnrs.TNRSResults;
+
+/**
+ * Runs MultiNameContextQuery against the example Dipsacales taxonomy (example/Dip.ncbi), loaded into a new database with
+ * the contexts and query files built as makecontexts would. The database is built once for all the tests, which must
+ * not depend on each other's changes to it.
+ */
+public class TestMultiNameContextQuery {
+
+	private static final File EXAMPLE_TAXONOMY = new File("example/Dip.ncbi");
+
+	private static File dir;
+	private static GraphDatabaseService graphDb;
+	private static Taxonomy taxonomy;
+
+	@BeforeClass
+	public static void makeDatabase() throws IOException {
+		dir = File.createTempFile("taxomachine-test", "");
+		Assert.assertTrue(dir.delete() && dir.mkdir());
+		File databaseDir = new File(dir, "graph.db");
+		graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(databaseDir.getPath());
+		taxonomy = new Taxonomy(graphDb);
+
+		// the example is in an older format without sources, unique names or flags, so it is rewritten in the ott format
+		File taxonomyFile = new File(dir, "taxonomy.tsv");
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(EXAMPLE_TAXONOMY), "UTF-8"));
+		PrintWriter out = new PrintWriter(taxonomyFile, "UTF-8");
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\\s*\\|\\s*", -1);
+				out.println(fields[0] + "\t|\t" + fields[1] + "\t|\t" + fields[2] + "\t|\t" + fields[3] + "\t|\tncbi:" + fields[0] + "\t|\t\t|\t");
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+
+		GraphDatabaseAgent gdb = new GraphDatabaseAgent(graphDb);
+		TaxonomyLoaderOTT loader = new TaxonomyLoaderOTT(gdb, databaseDir.getPath());
+		loader.setCreateOTTIdIndexes(true);
+		loader.setbuildPreferredIndexes(true);
+		loader.loadOTTIntoGraph("ncbi", taxonomyFile.getPath(), "", null);
+		new TaxonomySynthesizer(gdb, databaseDir.getPath()).makeContexts();
+	}
+
+	@AfterClass
+	public static void removeDatabase() {
+		File databaseDir = taxonomy.getStoreDir();
+		TaxonomyTree.invalidate(taxonomy);
+		graphDb.shutdown();
+		ExactNameDictionary.closeAll(databaseDir);
+		NameBloomFilter.closeAll(databaseDir);
+		DeletionNeighbourhoodIndex.closeAll(databaseDir);
+		SortedTermDictionary.closeAll(databaseDir);
+		BucketedTermDictionary.closeAll(databaseDir);
+		OTTIdMap.closeAll(databaseDir);
+		SourceIdTable.closeAll(databaseDir);
+		delete(dir);
+	}
+
+	@Test
+	public void testDuplicateNamesShareResults() {
+
+		Map<Object, String> names = new LinkedHashMap<Object, String>();
+		names.put("exact", "Patrinia villosa");
+		names.put("exact again", "Patrinia villosa");
+		names.put("exact in capitals", "PATRINIA VILLOSA");
+		names.put("approximate", "Patrinia vilosa");
+		names.put("approximate in other case", "patrinia Vilosa");
+		names.put("unmatched", "Nonexistia nonexistens");
+		names.put("unmatched in lowercase", "nonexistia nonexistens");
+		names.put("other", "Linnaea borealis");
+		TNRSResults results = query(names);
+
+		// each spelling of a name gets the same results, which give the matched names as they are spelled in the taxonomy
+		List<String> exact = describe(results, "exact");
+		Assert.assertFalse(exact.isEmpty());
+		Assert.assertTrue(exact.toString(), exact.get(0).contains(" 'Patrinia villosa' "));
+		Assert.assertEquals(exact, describe(results, "exact again"));
+		Assert.assertEquals(exact, describe(results, "exact in capitals"));
+
+		List<String> approximate = describe(results, "approximate");
+		boolean foundExactTaxon = false;
+		for (String match : approximate) {
+			Assert.assertTrue(match, match.endsWith(" approximate"));
+			foundExactTaxon |= match.startsWith(exact.get(0).split(" for ")[0] + " for ");
+		}
+		Assert.assertTrue(approximate.toString(), foundExactTaxon);
+		Assert.assertEquals(approximate, describe(results, "approximate in other case"));
+
+		Assert.assertTrue(results.getUnmatchedNameIds().contains("unmatched"));
+		Assert.assertTrue(results.getUnmatchedNameIds().contains("unmatched in lowercase"));
+		Assert.assertEquals(names.size() - 2, results.getMatchedNameIds().size());
+
+		// and the same results as when every name is only queried once
+		Map<Object, String> distinctNames = new LinkedHashMap<Object, String>();
+		for (Object id : new Object[] {"exact", "approximate", "unmatched", "other"}) {
+			distinctNames.put(id, names.get(id));
+		}
+		TNRSResults distinctResults = query(distinctNames);
+		Assert.assertEquals(exact, describe(distinctResults, "exact"));
+		Assert.assertEquals(approximate, describe(distinctResults, "approximate"));
+		Assert.assertEquals(describe(results, "other"), describe(distinctResults, "other"));
+		Assert.assertTrue(distinctResults.getUnmatchedNameIds().contains("unmatched"));
+	}
+
+	@Test
+	public void testRepeatedQueryUsesCache() {
+		TNRSResultCache cache = new TNRSResultCache(TNRSResultCache.DEFAULT_MAX_WEIGHT);
+		Map<Object, String> names = names("Patrinia vilosa", "Linnaea borealis", "Nonexistia nonexistens");
+
+		// every name misses the exact results, and the two without exact matches miss the approximate results as well
+		TNRSResults first = query(names, cache);
+		Assert.assertEquals(0, cache.getHitCount());
+		Assert.assertEquals(5, cache.getMissCount());
+
+		TNRSResults second = query(names, cache);
+		Assert.assertEquals(5, cache.getHitCount());
+		Assert.assertEquals(5, cache.getMissCount());
+		assertSameResults(names, first, second);
+		assertSameResults(names, query(names), second);
+	}
+
+	@Test
+	public void testOtherContextMissesCache() {
+		TNRSResultCache cache = new TNRSResultCache(TNRSResultCache.DEFAULT_MAX_WEIGHT);
+		Map<Object, String> names = names("Patrinia villosa", "Patrinia vilosa");
+		query(names, cache);
+		long misses = cache.getMissCount();
+
+		// results for another context are cached separately, and are what that context would give without the cache
+		TaxonomyContext asterids = taxonomy.getContext(ContextDescription.ASTERIDS);
+		TNRSResults inOtherContext = inContext(asterids, names).setResultCache(cache).runQuery().getResults();
+		Assert.assertEquals(0, cache.getHitCount());
+		Assert.assertTrue(cache.getMissCount() > misses);
+		assertSameResults(names, inContext(asterids, names).setResultCache(null).runQuery().getResults(), inOtherContext);
+		Assert.assertEquals(ContextDescription.ASTERIDS.name, inOtherContext.getContextName());
+	}
+
+	@Test
+	public void testOtherLICAMissesCache() {
+		TNRSResultCache cache = new TNRSResultCache(TNRSResultCache.DEFAULT_MAX_WEIGHT);
+		Map<Object, String> farNames = names("Patrinia vilosa", "Linnaea borealis");
+		Map<Object, String> nearNames = names("Patrinia vilosa", "Patrinia triloba");
+		TNRSResults far = query(farNames, cache);
+		long hits = cache.getHitCount();
+		long misses = cache.getMissCount();
+
+		// the exact results for the misspelled name are reused, but its approximate results are scored against the LICA of
+		// the other names, which is different this time
+		TNRSResults near = query(nearNames, cache);
+		Assert.assertEquals(hits + 1, cache.getHitCount());
+		Assert.assertEquals(misses + 2, cache.getMissCount());
+		assertSameResults(nearNames, query(nearNames), near);
+		Assert.assertFalse(describe(far, 0).equals(describe(near, 0)));
+	}
+
+	@Test
+	public void testAdditionsClearCache() throws Exception {
+		TNRSResultCache cache = TNRSResultCache.getSharedCache();
+		new MultiNameContextQuery(taxonomy).setSearchStrings(names("Patrinia villosa", "Patrinia vilosa")).runQuery();
+		Assert.assertTrue(cache.size() > 0);
+
+		new taxonomy_v3().process_additions(graphDb,
+				"{\"taxa\":[{\"ott_id\":9000001,\"name\":\"Patrinia additicia\",\"parent\":59171,\"rank\":\"species\"}]}");
+		Assert.assertEquals(0, cache.size());
+
+		// let the query files be rebuilt for the addition before the other tests use them
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals("query file builder")) {
+				thread.join();
+			}
+		}
+		Assert.assertFalse(describe(query(names("Patrinia additicia")), 0).isEmpty());
+	}
+
+	@Test
+	public void testParallelMatchingGivesSameResults() throws IOException {
+
+		// enough names for every matching phase to be split into partitions, with a misspelling of every third one
+		Map<Object, String> names = new LinkedHashMap<Object, String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(EXAMPLE_TAXONOMY), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null && names.size() < 300) {
+				String[] fields = line.split("\\s*\\|\\s*", -1);
+				if (fields[3].equals("species")) {
+					String name = fields[2];
+					names.put(names.size(), names.size() % 3 == 0 ? name.substring(0, name.length() - 3) + name.substring(name.length() - 2) : name);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		names.put(names.size(), "Nonexistia nonexistens");
+
+		MultiNameContextQuery serial = new MultiNameContextQuery(taxonomy).setSearchStrings(names).setResultCache(null).setMatchInParallel(false).runQuery();
+		MultiNameContextQuery parallel = new MultiNameContextQuery(taxonomy).setSearchStrings(names).setResultCache(null).setMatchInParallel(true).runQuery();
+		Assert.assertNotNull(serial.getBestGuessLICA());
+		Assert.assertEquals(serial.getBestGuessLICA().getNode().getId(), parallel.getBestGuessLICA().getNode().getId());
+		Assert.assertEquals(serial.getResults().getMatchedNameIds(), parallel.getResults().getMatchedNameIds());
+		Assert.assertTrue(parallel.getResults().getUnmatchedNameIds().contains(names.size() - 1));
+		Assert.assertTrue(describe(parallel.getResults(), 0).toString(), describe(parallel.getResults(), 0).get(0).endsWith(" approximate"));
+		assertSameResults(names, serial.getResults(), parallel.getResults());
+	}
+
+	/** Match `names` with approximate matching and no result cache. */
+	private static TNRSResults query(Map<Object, String> names) {
+		return query(names, null);
+	}
+
+	/** Match `names` with approximate matching, using the result cache `cache` if it is not null. */
+	private static TNRSResults query(Map<Object, String> names, TNRSResultCache cache) {
+		return new MultiNameContextQuery(taxonomy).setSearchStrings(names).setDoFuzzyMatching(true).setResultCache(cache).runQuery().getResults();
+	}
+
+	/** Return a query for `names` in `context`, with approximate matching and context inference turned off. */
+	private static MultiNameContextQuery inContext(TaxonomyContext context, Map<Object, String> names) {
+		return new MultiNameContextQuery(taxonomy).setSearchStrings(names).setDoFuzzyMatching(true).setAutomaticContextInference(false).setContext(context);
+	}
+
+	/** Return a map from the index of each of `names` to the name. */
+	private static Map<Object, String> names(String... names) {
+		Map<Object, String> idToName = new LinkedHashMap<Object, String>();
+		for (int i = 0; i < names.length; i++) {
+			idToName.put(i, names[i]);
+		}
+		return idToName;
+	}
+
+	private static void assertSameResults(Map<Object, String> names, TNRSResults expected, TNRSResults actual) {
+		for (Object id : names.keySet()) {
+			Assert.assertEquals(describe(expected, id), describe(actual, id));
+		}
+		Assert.assertEquals(expected.getUnmatchedNameIds(), actual.getUnmatchedNameIds());
+		Assert.assertEquals(expected.getContextName(), actual.getContextName());
+	}
+
+	/** Return a description of each match for the name with `id`, in the order they are reported. */
+	private static List<String> describe(TNRSResults results, Object id) {
+		List<String> matches = new ArrayList<String>();
+		if (results.containsResultWithId(id)) {
+			for (TNRSMatch match : results.getNameResult(id)) {
+				matches.add(match.getMatchedTaxon().getNode().getId() + " '" + match.getMatchedName() + "' for '" + match.getSearchString() + "' "
+						+ match.getScore() + (match.getIsApproximate() ? " approximate" : " exact") + (match.getIsSynonym() ? " synonym" : ""));
+			}
+		}
+		return matches;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -213,6 +213,8 @@ check_match_names_result = (
                         field(u'includes_approximate_matches', check_boolean),
                         field(u'includes_deprecated_taxa', check_boolean),
                         field(u'includes_suppressed_names', check_boolean),
+                        field(u'fuzzy_budget_exhausted', check_boolean),
+                        field(u'fuzzy_budget_exhausted_names', check_list(check_string)),
                         field(u'taxonomy', check_taxonomy_description_blob),
                         field(u'results', check_list(check_blob([
                             field(u'name', check_string),
@@ -0,0 +1,31 @@
+#!/usr/bin/env python
+
+from check import *
+
+# Source ids are matched without regard to case, as in taxon_info
+TEST_IDS = [u'ncbi:490635', u'NCBI:490635', u'ncbi:no_such_id']
+
+def check_translation(x, where):
+    return check_blob([field(u'source_id', check_string),
+                       opt_field(u'ott_id', check_integer)])(x, where)
+
+def check_result(x):
+    translations = x[u'translations']
+    return (len(translations) == 3 and
+            [t[u'source_id'] for t in translations] == TEST_IDS and
+            u'ott_id' in translations[0] and
+            translations[1].get(u'ott_id') == translations[0][u'ott_id'] and
+            not (u'ott_id' in translations[2]) and
+            x[u'source_ids_not_found'] == [u'ncbi:no_such_id'])
+
+status = 0
+
+status += \
+simple_test('/v3/taxonomy/source_id_translation',
+            {u'source_ids': TEST_IDS},
+            check=check_blob([field(u'translations', check_list(check_translation)),
+                              field(u'source_ids_not_found', check_list(check_string)),
+                              field(u'ambiguous_source_ids', check_list(check_string))]),
+            is_right=check_result)
+
+sys.exit(status)
@@ -0,0 +1,20 @@
+#!/usr/bin/env python
+
+from check import *
+
+def check_result(result):
+    return ([t[u'ott_id'] for t in result[u'taxa']] == [515698, 1042120] and
+            result[u'ott_ids_not_found'] == [-1])
+
+status = 0
+
+status += \
+simple_test('/v3/taxonomy/taxon_info_batch',
+            {u'ott_ids': [515698, -1, 1042120], u'include_lineage': True},
+            check_blob([field(u'taxa',
+                              check_list(check_blob(extended_taxon_blob_fields +
+                                                    [field(u'lineage', check_list(check_extended_taxon_blob))]))),
+                        field(u'ott_ids_not_found', check_list(check_integer))]),
+            is_right=check_result)
+
+sys.exit(status)
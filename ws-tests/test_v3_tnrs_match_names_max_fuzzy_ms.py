@@ -0,0 +1,41 @@
+#!/usr/bin/env python
+
+from check import *
+import random
+
+# With only a millisecond for approximate matching, most of these misspelt
+# names are never tried. They are listed as unmatched and in
+# fuzzy_budget_exhausted_names. The names are different every run, so the
+# server cannot answer them from its cache.
+LETTERS = 'abcdefghijklmnopqrstuvwxyz'
+TEST_LIST = ['Qx' + ''.join(random.choice(LETTERS) for i in range(10)) for n in range(200)]
+
+def check_exhausted(result):
+    exhausted = result[u'fuzzy_budget_exhausted_names']
+    if not result[u'fuzzy_budget_exhausted'] or len(exhausted) == 0:
+        sys.stderr.write('** expected the fuzzy budget to run out\n')
+        return False
+    if not set(exhausted) <= set(result[u'unmatched_names']):
+        sys.stderr.write('** names that were not tried should be unmatched\n')
+        return False
+    return True
+
+def check_not_exhausted(result):
+    return not result[u'fuzzy_budget_exhausted'] and result[u'fuzzy_budget_exhausted_names'] == []
+
+status = 0
+
+status += \
+simple_test('/v3/tnrs/match_names',
+            {u'names': TEST_LIST, u'do_approximate_matching': True, u'max_fuzzy_ms': 1},
+            check_match_names_result,
+            is_right=check_exhausted)
+
+# without approximate matching there is no budget to run out
+status += \
+simple_test('/v3/tnrs/match_names',
+            {u'names': TEST_LIST[:10]},
+            check_match_names_result,
+            is_right=check_not_exhausted)
+
+sys.exit(status)
@@ -0,0 +1,31 @@
+#!/usr/bin/env python
+
+from check import *
+
+# max_matches_per_name limits the approximate matches for a name, but exact
+# matches are never dropped: Aotus is both a monkey and a plant genus
+TEST_LIST = ["Aotus", "Symphyotrichm"]
+
+def check_result(result):
+    matches = {}
+    for name_result in result[u'results']:
+        matches[name_result[u'name']] = name_result[u'matches']
+    exact = matches.get(u'Aotus', [])
+    if len(exact) < 2 or any(m[u'is_approximate_match'] for m in exact):
+        sys.stderr.write('** expected all the exact matches for Aotus, got {}\n'.format(len(exact)))
+        return False
+    approximate = matches.get(u'Symphyotrichm', [])
+    if len(approximate) != 1 or not approximate[0][u'is_approximate_match']:
+        sys.stderr.write('** expected one approximate match for Symphyotrichm, got {}\n'.format(len(approximate)))
+        return False
+    return True
+
+status = 0
+
+status += \
+simple_test('/v3/tnrs/match_names',
+            {u'names': TEST_LIST, u'do_approximate_matching': True, u'max_matches_per_name': 1},
+            check_match_names_result,
+            is_right=check_result)
+
+sys.exit(status)
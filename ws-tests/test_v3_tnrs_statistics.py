@@ -0,0 +1,44 @@
+#!/usr/bin/env python
+
+from check import *
+
+check_cache = check_dict(check_string, check_integer)
+
+check_bloom_filter = check_blob([field(u'names', check_integer),
+                                 field(u'bits', check_integer),
+                                 field(u'hash_functions', check_integer),
+                                 field(u'false_positive_rate', check_float),
+                                 field(u'expected_false_positive_rate', check_float),
+                                 field(u'revision', check_integer),
+                                 field(u'checks', check_integer),
+                                 field(u'definite_misses', check_integer)])
+
+check_deletion_index = check_blob([field(u'names', check_integer),
+                                   field(u'variant_hashes', check_integer),
+                                   field(u'max_deletions', check_integer),
+                                   field(u'prefix_length', check_integer),
+                                   field(u'revision', check_integer),
+                                   field(u'lookups', check_integer),
+                                   field(u'candidates', check_integer)])
+
+def check_result(x):
+    return all(name in x[u'result_cache'] for name in [u'hits', u'misses', u'evictions', u'entries', u'weight'])
+
+status = 0
+
+# match a name first, so that the caches have been used
+status += \
+simple_test('/v3/tnrs/match_names',
+            {u'names': [u'Aster']},
+            check_match_names_result)
+
+status += \
+simple_test('/v3/tnrs/statistics',
+            {},
+            check=check_blob([field(u'result_cache', check_cache),
+                              field(u'fuzzy_expansion_cache', check_cache),
+                              field(u'name_bloom_filters', check_dict(check_string, check_bloom_filter)),
+                              field(u'deletion_indexes', check_dict(check_string, check_deletion_index))]),
+            is_right=check_result)
+
+sys.exit(status)